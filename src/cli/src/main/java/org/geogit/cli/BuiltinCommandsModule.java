@@ -12,6 +12,8 @@ import org.geogit.cli.plumbing.RebuildGraph;
 import org.geogit.cli.plumbing.RevList;
 import org.geogit.cli.plumbing.RevParse;
 import org.geogit.cli.plumbing.ShowRef;
+import org.geogit.cli.plumbing.UpdateBitmaps;
+import org.geogit.cli.plumbing.UpdateSpatialIndex;
 import org.geogit.cli.plumbing.WalkGraph;
 import org.geogit.cli.porcelain.Add;
 import org.geogit.cli.porcelain.Apply;
@@ -78,6 +80,8 @@ import com.google.inject.AbstractModule;
  * @see Fetch
  * @see Version
  * @see RebuildGraph
+ * @see UpdateBitmaps
+ * @see UpdateSpatialIndex
  */
 public class BuiltinCommandsModule extends AbstractModule implements CLIModule {
 
@@ -124,6 +128,8 @@ public class BuiltinCommandsModule extends AbstractModule implements CLIModule {
         bind(WalkGraph.class);
         bind(Version.class);
         bind(RebuildGraph.class);
+        bind(UpdateBitmaps.class);
+        bind(UpdateSpatialIndex.class);
     }
 
 }
@@ -0,0 +1,36 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+
+package org.geogit.cli.plumbing;
+
+import java.io.IOException;
+
+import org.geogit.api.plumbing.UpdateBitmapIndexOp;
+import org.geogit.cli.AbstractCommand;
+import org.geogit.cli.CLICommand;
+import org.geogit.cli.GeogitCLI;
+
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+
+/**
+ * Computes the missing reachability bitmaps used to negotiate the objects to send when serving
+ * fetches and clones.
+ * 
+ * @see UpdateBitmapIndexOp
+ */
+@Parameters(commandNames = "update-bitmaps", commandDescription = "Computes the missing reachability bitmaps.")
+public class UpdateBitmaps extends AbstractCommand implements CLICommand {
+
+    @Parameter(names = "--interval", description = "Number of commits between history checkpoints, 0 to only compute the bitmaps of the branch tips.")
+    private int interval = UpdateBitmapIndexOp.DEFAULT_INTERVAL;
+
+    @Override
+    public void runInternal(GeogitCLI cli) throws IOException {
+        int computed = cli.getGeogit().command(UpdateBitmapIndexOp.class).setInterval(interval)
+                .call().intValue();
+        cli.getConsole().println(computed + " bitmaps computed.");
+    }
+}
@@ -0,0 +1,62 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+
+package org.geogit.cli.plumbing;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.geogit.api.GeoGIT;
+import org.geogit.api.ObjectId;
+import org.geogit.api.Ref;
+import org.geogit.api.plumbing.ResolveTreeish;
+import org.geogit.api.plumbing.UpdateSpatialTreeIndexOp;
+import org.geogit.cli.AbstractCommand;
+import org.geogit.cli.CLICommand;
+import org.geogit.cli.GeogitCLI;
+
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+import com.google.common.base.Optional;
+
+/**
+ * Builds the missing spatial indexes of the large feature trees of a tree, which are not updated
+ * by commits.
+ * 
+ * @see UpdateSpatialTreeIndexOp
+ */
+@Parameters(commandNames = "update-spatial-index", commandDescription = "Builds the missing spatial indexes of large feature trees.")
+public class UpdateSpatialIndex extends AbstractCommand implements CLICommand {
+
+    @Parameter(description = "[<tree-ish>]")
+    private List<String> treeish = new ArrayList<String>();
+
+    @Parameter(names = "--previous", description = "A previously indexed version of the tree, whose indexes are updated and pruned instead of building new ones from scratch.")
+    private String previous;
+
+    @Parameter(names = "--min-size", description = "Minimum number of features for a tree to be indexed.")
+    private long minSize = UpdateSpatialTreeIndexOp.DEFAULT_MIN_SIZE;
+
+    @Override
+    public void runInternal(GeogitCLI cli) throws IOException {
+        checkParameter(treeish.size() < 2, "Only one tree-ish allowed");
+        final GeoGIT geogit = cli.getGeogit();
+
+        ObjectId rootTreeId = resolve(geogit, treeish.isEmpty() ? Ref.HEAD : treeish.get(0));
+        ObjectId previousRootTreeId = previous == null ? null : resolve(geogit, previous);
+
+        int built = geogit.command(UpdateSpatialTreeIndexOp.class).setRootTree(rootTreeId)
+                .setPreviousRootTree(previousRootTreeId).setMinSize(minSize).call().intValue();
+        cli.getConsole().println(built + " spatial indexes built.");
+    }
+
+    private ObjectId resolve(GeoGIT geogit, String refSpec) {
+        Optional<ObjectId> treeId = geogit.command(ResolveTreeish.class).setTreeish(refSpec)
+                .call();
+        checkParameter(treeId.isPresent(), "%s did not resolve to a tree", refSpec);
+        return treeId.get();
+    }
+}
@@ -45,6 +45,7 @@ import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.vividsolutions.jts.geom.Envelope;
 
 /**
  * Shows the commit logs.
@@ -199,6 +200,9 @@ public class Log extends AbstractCommand implements CLICommand {
                 op.addPath(s);
             }
         }
+        if (!args.bbox.isEmpty()) {
+            op.setBounds(parseBounds(args.bbox));
+        }
         Iterator<RevCommit> log = op.call();
         this.console = cli.getConsole();
         if (!log.hasNext()) {
@@ -412,6 +416,26 @@ public class Log extends AbstractCommand implements CLICommand {
         return "just now";
     }
 
+    /**
+     * Parses the {@code --bbox} argument values.
+     * 
+     * @param bbox the minx, miny, maxx and maxy ordinates
+     * @return the parsed envelope
+     */
+    private Envelope parseBounds(List<String> bbox) {
+        double[] ordinates = new double[4];
+        for (int i = 0; i < 4; i++) {
+            try {
+                ordinates[i] = Double.parseDouble(bbox.get(i));
+            } catch (NumberFormatException e) {
+                throw new InvalidParameterException("Invalid bbox ordinate: " + bbox.get(i));
+            }
+        }
+        checkParameter(ordinates[0] <= ordinates[2] && ordinates[1] <= ordinates[3],
+                "Invalid bbox, expected <minx> <miny> <maxx> <maxy>: %s", bbox);
+        return new Envelope(ordinates[0], ordinates[2], ordinates[1], ordinates[3]);
+    }
+
     /**
      * Returns an Id as a string, decorating or abbreviating it if needed
      * 
@@ -50,6 +50,9 @@ public class LogArgs {
     @Parameter(names = { "--path", "-p" }, description = "Print only commits that have modified the given path(s)", variableArity = true)
     public List<String> pathNames = Lists.newArrayList();
 
+    @Parameter(names = "--bbox", description = "Print only commits with changes intersecting the given bounding box: <minx> <miny> <maxx> <maxy>, in the native CRS of the changed layers", arity = 4)
+    public List<String> bbox = Lists.newArrayList();
+
     @Parameter(names = "--raw", description = "Show raw contents for commits")
     @Nullable
     public boolean raw;
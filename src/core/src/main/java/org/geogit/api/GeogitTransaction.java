@@ -4,11 +4,18 @@
  */
 package org.geogit.api;
 
+import java.io.File;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.List;
 import java.util.UUID;
 
 import javax.annotation.Nullable;
 
+import org.geogit.api.plumbing.ForEachRef;
+import org.geogit.api.plumbing.ResolveGeogitDir;
 import org.geogit.api.plumbing.TransactionEnd;
+import org.geogit.di.GuiceCommandLocator;
 import org.geogit.repository.Index;
 import org.geogit.repository.Repository;
 import org.geogit.repository.StagingArea;
@@ -16,9 +23,12 @@ import org.geogit.repository.WorkingTree;
 import org.geogit.storage.RefDatabase;
 import org.geogit.storage.TransactionRefDatabase;
 import org.geogit.storage.TransactionStagingArea;
+import org.geogit.storage.TransactionStagingDatabase;
 
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.inject.Injector;
 
 /**
  * Provides a method of performing concurrent operations on a single Geogit repository.
@@ -32,16 +42,31 @@ public class GeogitTransaction implements CommandLocator {
 
     public static final String TRANSACTIONS_DIR = TRANSACTIONS_NAMESPACE + "/";
 
+    /**
+     * Name of the file, in the transaction's {@link #getDirectory() directory}, holding the
+     * objects created during the transaction; hidden, as the directory also holds the transaction
+     * refs
+     */
+    private static final String OBJECTS_FILE = ".objects";
+
     private UUID transactionId;
 
     private CommandLocator locator;
 
+    private final TransactionStagingDatabase transactionDatabase;
+
     private final StagingArea transactionIndex;
 
     private final WorkingTree transactionWorkTree;
 
     private final TransactionRefDatabase transactionRefDatabase;
 
+    /**
+     * The injector of the commands run in the transaction, created on first use
+     */
+    @Nullable
+    private Injector injector;
+
     private Optional<String> authorName = Optional.absent();
 
     private Optional<String> authorEmail = Optional.absent();
@@ -57,9 +82,12 @@ public class GeogitTransaction implements CommandLocator {
         this.locator = locator;
         this.transactionId = transactionId;
 
-        transactionIndex = new TransactionStagingArea(new Index(
-                repository.getIndex().getDatabase(), this), transactionId);
-        transactionWorkTree = new WorkingTree(repository.getIndex().getDatabase(), this);
+        File directory = getDirectory();
+        transactionDatabase = new TransactionStagingDatabase(repository.getIndex().getDatabase(),
+                transactionId, directory == null ? null : new File(directory, OBJECTS_FILE));
+        transactionIndex = new TransactionStagingArea(new Index(transactionDatabase, this),
+                transactionDatabase);
+        transactionWorkTree = new WorkingTree(transactionDatabase, this);
         transactionRefDatabase = new TransactionRefDatabase(repository.getRefDatabase(),
                 transactionId);
     }
@@ -68,7 +96,24 @@ public class GeogitTransaction implements CommandLocator {
         transactionRefDatabase.create();
     }
 
+    /**
+     * Copies the objects created during the transaction that its refs reach to the repository's
+     * staging database; to be called by {@link TransactionEnd} while committing the transaction.
+     */
+    public void mergeObjects() {
+        List<ObjectId> tips = Lists.newArrayList();
+        for (Ref ref : command(ForEachRef.class).setPrefixFilter(Ref.REFS_PREFIX).call()) {
+            tips.add(ref.getObjectId());
+        }
+        transactionDatabase.merge(tips);
+    }
+
+    /**
+     * Closes the transaction, discarding the objects created during it that were not
+     * {@link #mergeObjects() merged} into the repository.
+     */
     public void close() {
+        transactionDatabase.discard();
         transactionRefDatabase.close();
     }
 
@@ -84,6 +129,25 @@ public class GeogitTransaction implements CommandLocator {
         return this;
     }
 
+    /**
+     * @return the directory to keep the transaction's files in, under the repository's
+     *         {@link #TRANSACTIONS_DIR transactions directory}, or {@code null} if the repository
+     *         is not stored in a directory
+     */
+    @Nullable
+    public File getDirectory() {
+        URL geogitDir = locator.command(ResolveGeogitDir.class).call();
+        if (geogitDir == null || !"file".equals(geogitDir.getProtocol())) {
+            return null;
+        }
+        try {
+            return new File(new File(new File(geogitDir.toURI()), TRANSACTIONS_NAMESPACE),
+                    transactionId.toString());
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
     /**
      * @return the transaction id of the transaction
      */
@@ -114,11 +178,24 @@ public class GeogitTransaction implements CommandLocator {
      */
     @Override
     public <T extends AbstractGeoGitOp<?>> T command(Class<T> commandClass) {
-        T instance = locator.command(commandClass);
+        T instance;
+        if (locator instanceof GuiceCommandLocator) {
+            // commands injected with the repository's storage get the transaction's instead
+            instance = injector().getInstance(commandClass);
+        } else {
+            instance = locator.command(commandClass);
+        }
         instance.setCommandLocator(this);
         return instance;
     }
 
+    private synchronized Injector injector() {
+        if (injector == null) {
+            injector = ((GuiceCommandLocator) locator).createTransactionInjector(this);
+        }
+        return injector;
+    }
+
     @Override
     public String toString() {
         return new StringBuilder(getClass().getSimpleName()).append('[').append(transactionId)
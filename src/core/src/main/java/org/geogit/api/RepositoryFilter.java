@@ -12,12 +12,15 @@ import java.util.Map;
 import org.geogit.api.RevObject.TYPE;
 import org.geotools.filter.text.cql2.CQL;
 import org.geotools.filter.text.cql2.CQLException;
+import org.geotools.filter.visitor.ExtractBoundsFilterVisitor;
 import org.opengis.feature.Feature;
 import org.opengis.filter.Filter;
 
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
+import com.vividsolutions.jts.geom.Envelope;
 
 /**
  * Provides a filter for sparse repositories. A default filter can be applied to all feature types,
@@ -29,6 +32,11 @@ public class RepositoryFilter {
 
     private List<FilterDescription> filterDescriptions;
 
+    /**
+     * Cache of the spatial extent of each filter, see {@link #extractBounds(Filter)}
+     */
+    private Map<Filter, Optional<Envelope>> filterBounds;
+
     /**
      * Provides a text description of a particular filter.
      */
@@ -81,6 +89,7 @@ public class RepositoryFilter {
     public RepositoryFilter() {
         repositoryFilters = new HashMap<String, Filter>();
         filterDescriptions = new LinkedList<FilterDescription>();
+        filterBounds = new HashMap<Filter, Optional<Envelope>>();
     }
 
     /**
@@ -135,4 +144,68 @@ public class RepositoryFilter {
         }
         return false;
     }
+
+    /**
+     * Returns the area the features at the given path have to intersect to match this filter, so
+     * that features that don't can be discarded without even being loaded.
+     * 
+     * @param featurePath the path of the features (without the feature ID)
+     * @return the area features have to intersect, or {@link Optional#absent() absent} if the
+     *         filter doesn't constrain them to any area
+     */
+    public Optional<Envelope> getBounds(String featurePath) {
+        Filter typeFilter = repositoryFilters.get(featurePath);
+        if (typeFilter == null) {
+            typeFilter = repositoryFilters.get("default");
+        }
+        if (typeFilter == null) {
+            return Optional.absent();
+        }
+        return extractBounds(typeFilter);
+    }
+
+    /**
+     * Returns the area the features of the given tree, at any depth, have to intersect to match
+     * this filter, so that subtrees and buckets that don't can be skipped.
+     * 
+     * @param treePath the path of the tree
+     * @return the union of the areas of the filters applying to the tree and its subtrees, or
+     *         {@link Optional#absent() absent} if any of them doesn't constrain features to an area
+     */
+    public Optional<Envelope> getTreeBounds(String treePath) {
+        Envelope union = new Envelope();
+        boolean constrained = false;
+        for (Map.Entry<String, Filter> entry : repositoryFilters.entrySet()) {
+            final String path = entry.getKey();
+            // the default filter applies to any subtree without a filter of its own
+            boolean applies = path.equals("default") || treePath.isEmpty()
+                    || path.equals(treePath) || path.startsWith(treePath + NodeRef.PATH_SEPARATOR);
+            if (!applies) {
+                continue;
+            }
+            Optional<Envelope> bounds = extractBounds(entry.getValue());
+            if (!bounds.isPresent()) {
+                return Optional.absent();
+            }
+            union.expandToInclude(bounds.get());
+            constrained = true;
+        }
+        return constrained ? Optional.of(union) : Optional.<Envelope> absent();
+    }
+
+    private Optional<Envelope> extractBounds(Filter filter) {
+        Optional<Envelope> bounds = filterBounds.get(filter);
+        if (bounds == null) {
+            Envelope extent = (Envelope) filter.accept(ExtractBoundsFilterVisitor.BOUNDS_VISITOR,
+                    null);
+            if (extent == null || extent.isNull() || Double.isInfinite(extent.getWidth())
+                    || Double.isInfinite(extent.getHeight())) {
+                bounds = Optional.absent();
+            } else {
+                bounds = Optional.of(new Envelope(extent));
+            }
+            filterBounds.put(filter, bounds);
+        }
+        return bounds;
+    }
 }
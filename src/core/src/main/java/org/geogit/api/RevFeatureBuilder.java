@@ -6,6 +6,7 @@ package org.geogit.api;
 
 import java.util.Collection;
 
+import org.geogit.api.plumbing.HashObject.FeatureHasher;
 import org.opengis.feature.Feature;
 import org.opengis.feature.Property;
 
@@ -14,6 +15,8 @@ import com.google.common.collect.ImmutableList;
 
 /**
  * Provides a method of building a {@link RevFeature} from a {@link Feature}.
+ * <p>
+ * The feature's id is computed while its values are collected, so they're traversed only once.
  * 
  * @see RevFeature
  * @see Feature
@@ -34,11 +37,13 @@ public final class RevFeatureBuilder {
         Collection<Property> props = feature.getProperties();
 
         ImmutableList.Builder<Optional<Object>> valuesBuilder = new ImmutableList.Builder<Optional<Object>>();
-
+        FeatureHasher hasher = new FeatureHasher();
         for (Property prop : props) {
-            valuesBuilder.add(Optional.fromNullable(prop.getValue()));
+            Optional<Object> value = Optional.fromNullable(prop.getValue());
+            valuesBuilder.add(value);
+            hasher.put(value.orNull());
         }
 
-        return RevFeature.build(valuesBuilder.build());
+        return new RevFeature(hasher.hash(), valuesBuilder.build());
     }
 }
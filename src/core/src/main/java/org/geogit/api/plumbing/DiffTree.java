@@ -18,6 +18,7 @@ import org.geogit.api.ObjectId;
 import org.geogit.api.RevTree;
 import org.geogit.api.plumbing.diff.DiffEntry;
 import org.geogit.api.plumbing.diff.DiffTreeWalk;
+import org.geogit.api.plumbing.diff.TreeBoundsFilter;
 import org.geogit.storage.ObjectDatabase;
 import org.geogit.storage.StagingDatabase;
 
@@ -46,6 +47,9 @@ public class DiffTree extends AbstractGeoGitOp<Iterator<DiffEntry>> implements
 
     private boolean recursive;
 
+    @Nullable
+    private TreeBoundsFilter boundsFilter;
+
     /**
      * Constructs a new instance of the {@code DiffTree} operation with the given parameters.
      * 
@@ -161,6 +165,7 @@ public class DiffTree extends AbstractGeoGitOp<Iterator<DiffEntry>> implements
         treeWalk.setFilter(pathFilters);
         treeWalk.setReportTrees(reportTrees);
         treeWalk.setRecursive(recursive);
+        treeWalk.setBoundsFilter(boundsFilter);
         return treeWalk.get();
     }
 
@@ -181,4 +186,14 @@ public class DiffTree extends AbstractGeoGitOp<Iterator<DiffEntry>> implements
         this.recursive = recursive;
         return this;
     }
+
+    /**
+     * @param boundsFilter if not {@code null}, the buckets and subtrees it rejects are skipped
+     *        without being read, and none of the changes inside them are reported
+     * @return {@code this}
+     */
+    public DiffTree setBoundsFilter(@Nullable TreeBoundsFilter boundsFilter) {
+        this.boundsFilter = boundsFilter;
+        return this;
+    }
 }
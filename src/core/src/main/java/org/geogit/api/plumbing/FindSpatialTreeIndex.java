@@ -0,0 +1,60 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.api.plumbing;
+
+import org.geogit.api.AbstractGeoGitOp;
+import org.geogit.api.ObjectId;
+import org.geogit.storage.HilbertRTree;
+import org.geogit.storage.SpatialTreeIndex;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.inject.Inject;
+
+/**
+ * Looks up the {@link HilbertRTree spatial index} of a tree in the repository's
+ * {@link SpatialTreeIndex}.
+ *
+ * @see UpdateSpatialTreeIndexOp
+ */
+public class FindSpatialTreeIndex extends AbstractGeoGitOp<Optional<HilbertRTree>> {
+
+    private final SpatialTreeIndex index;
+
+    private ObjectId treeId;
+
+    /**
+     * Constructs a new {@code FindSpatialTreeIndex} operation.
+     *
+     * @param index the spatial tree index to look up
+     */
+    @Inject
+    public FindSpatialTreeIndex(SpatialTreeIndex index) {
+        this.index = index;
+    }
+
+    /**
+     * @param treeId the tree whose index to find
+     * @return {@code this}
+     */
+    public FindSpatialTreeIndex setTreeId(ObjectId treeId) {
+        this.treeId = treeId;
+        return this;
+    }
+
+    /**
+     * Executes the operation.
+     *
+     * @return the spatial index of the tree, or {@link Optional#absent()} if it has none
+     */
+    @Override
+    public Optional<HilbertRTree> call() {
+        Preconditions.checkState(treeId != null, "tree id not set");
+        if (!index.isOpen()) {
+            return Optional.absent();
+        }
+        return index.get(treeId);
+    }
+}
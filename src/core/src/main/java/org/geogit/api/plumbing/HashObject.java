@@ -11,8 +11,11 @@ import static org.geogit.api.RevObject.TYPE.FEATURETYPE;
 import static org.geogit.api.RevObject.TYPE.TAG;
 import static org.geogit.api.RevObject.TYPE.TREE;
 
+import javax.annotation.Nullable;
+
 import org.geogit.api.AbstractGeoGitOp;
 import org.geogit.api.ObjectId;
+import org.geogit.api.RevFeature;
 import org.geogit.api.RevObject;
 
 import com.google.common.base.Preconditions;
@@ -67,4 +70,32 @@ public class HashObject extends AbstractGeoGitOp<ObjectId> {
         return id;
     }
 
+    /**
+     * Computes the id of a {@link RevFeature} from its values as they are provided one at a time,
+     * which is the same id this command computes for a feature with those values.
+     */
+    public static class FeatureHasher {
+
+        private final Hasher hasher = ObjectId.HASH_FUNCTION.newHasher();
+
+        public FeatureHasher() {
+            HashObjectFunnels.featureHeader(hasher);
+        }
+
+        /**
+         * @param value the next value of the feature, {@code null} for a null value
+         * @return {@code this}
+         */
+        public FeatureHasher put(@Nullable Object value) {
+            HashObjectFunnels.featureValue(value, hasher);
+            return this;
+        }
+
+        /**
+         * @return the id of the feature, after which this hasher shall no longer be used
+         */
+        public ObjectId hash() {
+            return ObjectId.createNoClone(hasher.hash().asBytes());
+        }
+    }
 }
@@ -74,6 +74,21 @@ class HashObjectFunnels {
         return FeatureFunnel.INSTANCE;
     }
 
+    /**
+     * Funnels the start of a feature, to be followed by its values as funneled by
+     * {@link #featureValue}, in the same way as {@link #featureFunnel()} does.
+     */
+    public static void featureHeader(PrimitiveSink into) {
+        RevObjectTypeFunnel.funnel(TYPE.FEATURE, into);
+    }
+
+    /**
+     * @see #featureHeader(PrimitiveSink)
+     */
+    public static void featureValue(Object value, PrimitiveSink into) {
+        PropertyValueFunnel.funnel(value, into);
+    }
+
     public static Funnel<RevTag> tagFunnel() {
         return TagFunnel.INSTANCE;
     }
@@ -204,10 +219,10 @@ class HashObjectFunnels {
 
         @Override
         public void funnel(RevFeature from, PrimitiveSink into) {
-            RevObjectTypeFunnel.funnel(TYPE.FEATURE, into);
+            featureHeader(into);
 
             for (Optional<Object> value : from.getValues()) {
-                PropertyValueFunnel.funnel(value.orNull(), into);
+                featureValue(value.orNull(), into);
             }
         }
     };
@@ -0,0 +1,145 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.api.plumbing;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.geogit.api.AbstractGeoGitOp;
+import org.geogit.api.Node;
+import org.geogit.api.NodeRef;
+import org.geogit.api.ObjectId;
+import org.geogit.api.RevCommit;
+import org.geogit.api.plumbing.diff.DiffEntry;
+import org.geogit.repository.Repository;
+import org.geogit.repository.SpatialOps;
+import org.geogit.storage.SpatialChangeIndex;
+import org.geogit.storage.SpatialChangeSummary;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Returns the {@link SpatialChangeSummary} of a commit, computing it out of the diff against its
+ * first parent and adding it to the repository's {@link SpatialChangeIndex} if it's not indexed
+ * yet.
+ * <p>
+ * The bounds of each change are {@link SpatialOps#aggregatedBounds(Node, Node) aggregated} from
+ * the old and new versions of the feature, and grouped by the path of the tree the feature is in.
+ * Commits whose first parent is not present (e.g. at the bottom of a shallow clone) are diffed
+ * against the empty tree.
+ */
+public class IndexSpatialChangesOp extends AbstractGeoGitOp<SpatialChangeSummary> {
+
+    /**
+     * Maximum number of change envelopes kept per path to compute its grid; paths with more
+     * changes are flagged as touching every cell
+     */
+    private static final int MAX_GRID_ENVELOPES = 10 * 1000;
+
+    private final Repository repository;
+
+    private RevCommit commit;
+
+    /**
+     * Constructs a new {@code IndexSpatialChangesOp} with the provided {@link Repository}.
+     *
+     * @param repository the repository
+     */
+    @Inject
+    public IndexSpatialChangesOp(Repository repository) {
+        this.repository = repository;
+    }
+
+    /**
+     * @param commit the commit to summarize
+     * @return {@code this}
+     */
+    public IndexSpatialChangesOp setCommit(RevCommit commit) {
+        this.commit = commit;
+        return this;
+    }
+
+    /**
+     * Executes the operation.
+     *
+     * @return the spatial change summary of the commit
+     */
+    @Override
+    public SpatialChangeSummary call() {
+        Preconditions.checkState(commit != null, "commit not set");
+        final SpatialChangeIndex index = repository.getSpatialChangeIndex();
+        if (index.isOpen()) {
+            Optional<SpatialChangeSummary> indexed = index.get(commit.getId());
+            if (indexed.isPresent()) {
+                return indexed.get();
+            }
+        }
+
+        ObjectId oldTreeId = ObjectId.NULL;
+        Optional<ObjectId> parentId = commit.parentN(0);
+        if (parentId.isPresent() && repository.commitExists(parentId.get())) {
+            oldTreeId = repository.getCommit(parentId.get()).getTreeId();
+        }
+        Iterator<DiffEntry> changes = command(DiffTree.class).setOldTree(oldTreeId)
+                .setNewTree(commit.getTreeId()).call();
+
+        Map<String, Envelope> bounds = Maps.newHashMap();
+        Map<String, List<Envelope>> envelopes = Maps.newHashMap();
+        while (changes.hasNext()) {
+            DiffEntry change = changes.next();
+            NodeRef oldObject = change.getOldObject();
+            NodeRef newObject = change.getNewObject();
+            Envelope where = SpatialOps.aggregatedBounds(
+                    oldObject == null ? null : oldObject.getNode(), newObject == null ? null
+                            : newObject.getNode());
+            if (where.isNull()) {
+                continue;
+            }
+            final String path = (newObject == null ? oldObject : newObject).getParentPath();
+            Envelope pathBounds = bounds.get(path);
+            List<Envelope> pathEnvelopes = envelopes.get(path);
+            if (pathBounds == null) {
+                pathBounds = new Envelope();
+                bounds.put(path, pathBounds);
+                pathEnvelopes = Lists.newArrayList();
+                envelopes.put(path, pathEnvelopes);
+            }
+            pathBounds.expandToInclude(where);
+            if (pathEnvelopes != null) {
+                if (pathEnvelopes.size() < MAX_GRID_ENVELOPES) {
+                    pathEnvelopes.add(where);
+                } else {
+                    envelopes.put(path, null);
+                }
+            }
+        }
+
+        Map<String, Long> grids = Maps.newHashMap();
+        for (Map.Entry<String, Envelope> entry : bounds.entrySet()) {
+            List<Envelope> pathEnvelopes = envelopes.get(entry.getKey());
+            long grid = 0L;
+            if (pathEnvelopes == null) {
+                grid = SpatialChangeSummary.FULL_GRID;
+            } else {
+                for (Envelope env : pathEnvelopes) {
+                    grid |= SpatialChangeSummary.cells(entry.getValue(), env);
+                }
+            }
+            grids.put(entry.getKey(), Long.valueOf(grid));
+        }
+
+        SpatialChangeSummary summary = new SpatialChangeSummary(commit.getId(), bounds, grids);
+        if (index.isOpen()) {
+            index.put(summary);
+        }
+        return summary;
+    }
+}
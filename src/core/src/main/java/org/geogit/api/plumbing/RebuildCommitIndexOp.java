@@ -0,0 +1,76 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.api.plumbing;
+
+import java.util.Iterator;
+
+import org.geogit.api.AbstractGeoGitOp;
+import org.geogit.api.Ref;
+import org.geogit.api.RevCommit;
+import org.geogit.api.porcelain.BranchListOp;
+import org.geogit.api.porcelain.LogOp;
+import org.geogit.repository.Repository;
+import org.geogit.storage.CommitMetadataIndex;
+
+import com.google.common.collect.ImmutableList;
+import com.google.inject.Inject;
+
+/**
+ * Rebuilds the {@link CommitMetadataIndex} out of the commits reachable from every local and remote
+ * branch, and returns the number of commits indexed.
+ */
+public final class RebuildCommitIndexOp extends AbstractGeoGitOp<Long> {
+
+    private Repository repository;
+
+    private boolean truncate = true;
+
+    /**
+     * Constructs a new {@code RebuildCommitIndexOp} with the provided {@link Repository}.
+     *
+     * @param repository the repository
+     */
+    @Inject
+    public RebuildCommitIndexOp(Repository repository) {
+        this.repository = repository;
+    }
+
+    /**
+     * @param truncate whether to clear the index before rebuilding it ({@code true}, the default)
+     *        or only add the commits missing from it
+     * @return {@code this}
+     */
+    public RebuildCommitIndexOp setTruncate(boolean truncate) {
+        this.truncate = truncate;
+        return this;
+    }
+
+    /**
+     * Executes the {@code RebuildCommitIndexOp} operation.
+     *
+     * @return the number of commits added to the index
+     */
+    @Override
+    public Long call() {
+        CommitMetadataIndex index = repository.getCommitMetadataIndex();
+        if (truncate) {
+            index.truncate();
+        }
+        ImmutableList<Ref> branches = command(BranchListOp.class).setLocal(true).setRemotes(true)
+                .call();
+
+        long added = 0;
+        for (Ref ref : branches) {
+            Iterator<RevCommit> commits = command(LogOp.class).setUntil(ref.getObjectId()).call();
+            while (commits.hasNext()) {
+                RevCommit next = commits.next();
+                if (index.put(next)) {
+                    added++;
+                }
+            }
+        }
+        return Long.valueOf(added);
+    }
+}
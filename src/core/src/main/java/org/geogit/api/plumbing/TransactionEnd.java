@@ -5,22 +5,34 @@
 
 package org.geogit.api.plumbing;
 
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.concurrent.TimeoutException;
 
 import javax.annotation.Nullable;
 
 import org.geogit.api.AbstractGeoGitOp;
+import org.geogit.api.CommitBuilder;
 import org.geogit.api.GeogitTransaction;
+import org.geogit.api.ObjectId;
+import org.geogit.api.Platform;
 import org.geogit.api.Ref;
+import org.geogit.api.RevCommit;
+import org.geogit.api.RevObject.TYPE;
+import org.geogit.api.RevTree;
 import org.geogit.api.SymRef;
-import org.geogit.api.porcelain.CheckoutOp;
-import org.geogit.api.porcelain.MergeOp;
-import org.geogit.api.porcelain.NothingToCommitException;
-import org.geogit.api.porcelain.RebaseOp;
+import org.geogit.api.plumbing.diff.DiffEntry;
+import org.geogit.api.plumbing.merge.Conflict;
+import org.geogit.api.plumbing.merge.MergeScenarioReport;
+import org.geogit.api.plumbing.merge.ReportCommitConflictsOp;
+import org.geogit.api.porcelain.ConfigGet;
+import org.geogit.api.porcelain.RebaseConflictsException;
+import org.geogit.repository.Repository;
+import org.geogit.repository.TreeDiffApplier;
 
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
-import com.google.common.base.Suppliers;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableSet;
 import com.google.inject.Inject;
@@ -28,11 +40,20 @@ import com.google.inject.Inject;
 /**
  * Finishes a {@link GeogitTransaction} by merging all refs that have been changed.
  * <p>
- * If a given ref has not been changed on the repsoitory, it will simply update the repository's ref
- * to the value of the transaction ref.
+ * Refs that have not been changed by the transaction are left untouched. If a given ref has not
+ * been changed on the repository, or the transaction ref already contains the repository ref in
+ * its history, it will simply update the repository's ref to the value of the transaction ref.
  * <p>
  * If the repository ref was updated while the transaction occurred, the changes will be brought
- * together via a merge or rebase operation and the new ref will be updated to the result.
+ * together via a merge or rebase and the new ref will be updated to the result. Both are done at
+ * the tree level, without a working tree or index: a rebase replays each of the transaction's
+ * commits since the common ancestor, following first parents, onto the repository's commit, and
+ * fails if any of them conflicts with it; a merge applies the repository's changes since the common
+ * ancestor onto the transaction's tree, the repository's version of the features changed on both
+ * sides winning, and commits the result with both commits as parents.
+ * <p>
+ * Either way, if the updated ref is the repository's current branch, the repository's
+ * {@code WORK_HEAD} and {@code STAGE_HEAD} are then reset to its new commit.
  * 
  * @see GeogitTransaction
  */
@@ -48,8 +69,14 @@ public class TransactionEnd extends AbstractGeoGitOp<Boolean> {
 
     private Optional<String> authorEmail = Optional.absent();
 
+    private Repository repository;
+
+    private Platform platform;
+
     @Inject
-    public TransactionEnd() {
+    public TransactionEnd(Repository repository, Platform platform) {
+        this.repository = repository;
+        this.platform = platform;
     }
 
     /**
@@ -112,48 +139,47 @@ public class TransactionEnd extends AbstractGeoGitOp<Boolean> {
             }
 
             try {
+                // Copy the objects the transaction staged to the repository before any repository
+                // ref can point to them
+                transaction.mergeObjects();
+
                 // Update refs
                 for (Ref ref : changedRefs) {
-                    Ref updatedRef = ref;
+                    if (!transactionChanged(ref)) {
+                        // nothing to bring back, leave the repository ref as it is
+                        continue;
+                    }
+                    checkObjectsMerged(ref);
+                    ObjectId newValue = ref.getObjectId();
 
                     Optional<Ref> repoRef = command(RefParse.class).setName(ref.getName()).call();
-                    if (repoRef.isPresent() && repositoryChanged(repoRef.get())) {
+                    if (repoRef.isPresent() && repositoryChanged(repoRef.get())
+                            && !isFastForward(repoRef.get(), ref)) {
+                        Preconditions.checkState(TYPE.COMMIT.equals(ref.getType())
+                                && TYPE.COMMIT.equals(repoRef.get().getType()),
+                                "%s was changed both in the repository and in the transaction",
+                                ref.getName());
+                        // the new commits go straight to the repository's object database
+                        RevCommit transactionCommit = repository.getCommit(ref.getObjectId());
+                        RevCommit repoCommit = repository.getCommit(repoRef.get().getObjectId());
                         if (rebase) {
-                            // Try to rebase
-                            transaction.command(CheckoutOp.class).setSource(ref.getName())
-                                    .setForce(true).call();
-                            transaction.command(RebaseOp.class)
-                                    .setUpstream(Suppliers.ofInstance(repoRef.get().getObjectId()))
-                                    .call();
-                            updatedRef = transaction.command(RefParse.class).setName(ref.getName())
-                                    .call().get();
+                            newValue = rebase(transactionCommit, repoCommit);
                         } else {
                             // sync transactions have to use merge to prevent divergent history
-                            transaction.command(CheckoutOp.class).setSource(ref.getName())
-                                    .setForce(true).call();
-                            try {
-                            transaction.command(MergeOp.class)
-                                    .setAuthor(authorName.orNull(), authorEmail.orNull())
-                                    .addCommit(Suppliers.ofInstance(repoRef.get().getObjectId()))
-                                    .setTheirs(true).call();
-                            } catch (NothingToCommitException e) {
-                            	// The repo commit is already in our history, this is a fast forward.
-                            }
-                            updatedRef = transaction.command(RefParse.class).setName(ref.getName())
-                                    .call().get();
+                            newValue = merge(transactionCommit, repoCommit);
                         }
                     }
-                    command(UpdateRef.class).setName(ref.getName())
-                            .setNewValue(updatedRef.getObjectId()).call();
+                    command(UpdateRef.class).setName(ref.getName()).setNewValue(newValue).call();
 
                     if (currentBranch.equals(ref.getName())) {
-                        // Update HEAD, WORK_HEAD and STAGE_HEAD
+                        // Update HEAD, WORK_HEAD and STAGE_HEAD, whether the ref was fast
+                        // forwarded or rebased/merged, discarding any uncommitted changes
                         command(UpdateSymRef.class).setName(Ref.HEAD).setNewValue(ref.getName())
                                 .call();
-                        command(UpdateRef.class).setName(Ref.WORK_HEAD)
-                                .setNewValue(updatedRef.getObjectId()).call();
-                        command(UpdateRef.class).setName(Ref.STAGE_HEAD)
-                                .setNewValue(updatedRef.getObjectId()).call();
+                        command(UpdateRef.class).setName(Ref.WORK_HEAD).setNewValue(newValue)
+                                .call();
+                        command(UpdateRef.class).setName(Ref.STAGE_HEAD).setNewValue(newValue)
+                                .call();
                     }
                 }
 
@@ -166,7 +192,7 @@ public class TransactionEnd extends AbstractGeoGitOp<Boolean> {
 
         }
 
-        // Erase old refs
+        // Erase old refs and the objects that were not merged
         transaction.close();
 
         // Success
@@ -177,6 +203,175 @@ public class TransactionEnd extends AbstractGeoGitOp<Boolean> {
         return transaction.command(ForEachRef.class).setPrefixFilter(Ref.REFS_PREFIX).call();
     }
 
+    /**
+     * @return whether the transaction ref no longer points to where the repository ref pointed to
+     *         when the transaction began
+     */
+    private boolean transactionChanged(Ref ref) {
+        Optional<Ref> transactionOriginal = transaction.command(RefParse.class)
+                .setName(ref.getName().replace("refs/", "orig/refs/")).call();
+        if (transactionOriginal.isPresent()) {
+            return !ref.getObjectId().equals(transactionOriginal.get().getObjectId());
+        }
+        // Ref was created in transaction
+        return true;
+    }
+
+    /**
+     * @return whether the transaction ref already contains the repository ref in its history, so
+     *         that the repository ref can just be moved forward to it
+     */
+    private boolean isFastForward(Ref repoRef, Ref transactionRef) {
+        if (repoRef.getObjectId().isNull()) {
+            return true;
+        }
+        if (transactionRef.getObjectId().isNull()) {
+            return false;
+        }
+        Optional<RevCommit> repoCommit = command(RevObjectParse.class)
+                .setObjectId(repoRef.getObjectId()).call(RevCommit.class);
+        Optional<RevCommit> transactionCommit = transaction.command(RevObjectParse.class)
+                .setObjectId(transactionRef.getObjectId()).call(RevCommit.class);
+        if (!repoCommit.isPresent() || !transactionCommit.isPresent()) {
+            return false;
+        }
+        Optional<RevCommit> ancestor = command(FindCommonAncestor.class)
+                .setLeft(repoCommit.get()).setRight(transactionCommit.get()).call();
+        return ancestor.isPresent() && ancestor.get().getId().equals(repoRef.getObjectId());
+    }
+
+    /**
+     * Replays the transaction's commits since the common ancestor onto the repository's commit.
+     * 
+     * @return the id of the last replayed commit
+     * @throws RebaseConflictsException if a commit conflicts with the ones replayed before it
+     */
+    private ObjectId rebase(final RevCommit transactionCommit, final RevCommit repoCommit) {
+        final ObjectId ancestorId = ancestor(transactionCommit, repoCommit);
+
+        LinkedList<RevCommit> commits = new LinkedList<RevCommit>();
+        for (RevCommit commit = transactionCommit; !commit.getId().equals(ancestorId);) {
+            commits.addFirst(commit);
+            Preconditions.checkState(!commit.getParentIds().isEmpty(),
+                    "Commit %s can't be replayed, the common ancestor is not a first parent",
+                    transactionCommit.getId());
+            commit = repository.getCommit(commit.getParentIds().get(0));
+        }
+
+        RevCommit head = repoCommit;
+        for (RevCommit commit : commits) {
+            MergeScenarioReport report = command(ReportCommitConflictsOp.class).setCommit(commit)
+                    .setTarget(head.getId()).call();
+            if (!report.getConflicts().isEmpty()) {
+                StringBuilder msg = new StringBuilder();
+                msg.append("error: could not apply ");
+                msg.append(commit.getId().toString().substring(0, 7));
+                msg.append(" " + commit.getMessage() + "\n");
+                for (Conflict conflict : report.getConflicts()) {
+                    msg.append("CONFLICT: conflict in " + conflict.getPath() + "\n");
+                }
+                throw new RebaseConflictsException(msg.toString());
+            }
+            ObjectId parentTreeId = repository.getCommit(commit.getParentIds().get(0))
+                    .getTreeId();
+            Iterator<DiffEntry> changes = command(DiffTree.class).setOldTree(parentTreeId)
+                    .setNewTree(commit.getTreeId()).setReportTrees(true).call();
+            ObjectId treeId = apply(head.getTreeId(), changes);
+
+            long timestamp = platform.currentTimeMillis();
+            CommitBuilder builder = new CommitBuilder(commit);
+            builder.setParentIds(Arrays.asList(head.getId()));
+            builder.setTreeId(treeId);
+            builder.setCommitterTimestamp(timestamp);
+            builder.setCommitterTimeZoneOffset(platform.timeZoneOffset(timestamp));
+            head = builder.build();
+            repository.getObjectDatabase().put(head);
+        }
+        return head.getId();
+    }
+
+    /**
+     * Applies the repository's changes since the common ancestor onto the transaction's tree, and
+     * commits the result as a merge of both commits.
+     * 
+     * @return the id of the merge commit
+     */
+    private ObjectId merge(final RevCommit transactionCommit, final RevCommit repoCommit) {
+        final ObjectId ancestorId = ancestor(transactionCommit, repoCommit);
+        Iterator<DiffEntry> changes = command(DiffTree.class)
+                .setOldTree(repository.getCommit(ancestorId).getTreeId())
+                .setNewTree(repoCommit.getTreeId()).setReportTrees(true).call();
+        ObjectId treeId = apply(transactionCommit.getTreeId(), changes);
+
+        String message;
+        Optional<Ref> branch = transaction.command(ResolveBranchId.class)
+                .setObjectId(repoCommit.getId()).call();
+        if (branch.isPresent()) {
+            message = "Merge branch " + branch.get().getName();
+        } else {
+            message = "Merge commit '" + repoCommit.getId().toString() + "'. ";
+        }
+        final String committer = config("user.name");
+        final String committerEmail = config("user.email");
+        long timestamp = platform.currentTimeMillis();
+        int timeZoneOffset = platform.timeZoneOffset(timestamp);
+
+        CommitBuilder builder = new CommitBuilder();
+        builder.setParentIds(Arrays.asList(transactionCommit.getId(), repoCommit.getId()));
+        builder.setTreeId(treeId);
+        builder.setMessage(message);
+        builder.setAuthor(authorName.isPresent() ? authorName.get() : committer);
+        builder.setAuthorEmail(authorName.isPresent() ? authorEmail.orNull() : committerEmail);
+        builder.setCommitter(committer);
+        builder.setCommitterEmail(committerEmail);
+        builder.setAuthorTimestamp(timestamp);
+        builder.setCommitterTimestamp(timestamp);
+        builder.setAuthorTimeZoneOffset(timeZoneOffset);
+        builder.setCommitterTimeZoneOffset(timeZoneOffset);
+        RevCommit mergeCommit = builder.build();
+        repository.getObjectDatabase().put(mergeCommit);
+        return mergeCommit.getId();
+    }
+
+    private ObjectId ancestor(final RevCommit transactionCommit, final RevCommit repoCommit) {
+        Optional<RevCommit> ancestor = command(FindCommonAncestor.class)
+                .setLeft(transactionCommit).setRight(repoCommit).call();
+        Preconditions.checkState(ancestor.isPresent(), "No ancestor commit could be found.");
+        return ancestor.get().getId();
+    }
+
+    /**
+     * @return the id of the tree resulting from applying the changes to the given tree, written
+     *         to the repository's object database
+     */
+    private ObjectId apply(final ObjectId treeId, final Iterator<DiffEntry> changes) {
+        RevTree tree = treeId.isNull() ? RevTree.EMPTY : repository.getTree(treeId);
+        return new TreeDiffApplier(getCommandLocator(), repository.getObjectDatabase())
+                .apply(tree, changes, getProgressListener(), 0).or(tree.getId());
+    }
+
+    @Nullable
+    private String config(final String key) {
+        return command(ConfigGet.class).setName(key).call().orNull();
+    }
+
+    /**
+     * Makes sure the commit the ref points to made it to the repository, so that no repository ref
+     * is left pointing to an object that only existed in the transaction; e.g. when the
+     * transaction objects were lost.
+     * 
+     * @throws IllegalStateException if the commit is missing
+     */
+    private void checkObjectsMerged(Ref ref) {
+        final ObjectId commitId = ref.getObjectId();
+        if (commitId.isNull() || !TYPE.COMMIT.equals(ref.getType())) {
+            return;
+        }
+        Preconditions.checkState(getIndex().getDatabase().exists(commitId),
+                "Commit %s of %s is missing, the transaction can't be committed", commitId,
+                ref.getName());
+    }
+
     private boolean repositoryChanged(Ref ref) {
         Optional<Ref> transactionOriginal = transaction.command(RefParse.class)
                 .setName(ref.getName().replace("refs/", "orig/refs/")).call();
@@ -0,0 +1,180 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.api.plumbing;
+
+import java.util.Iterator;
+import java.util.List;
+
+import org.geogit.api.AbstractGeoGitOp;
+import org.geogit.api.Bucket;
+import org.geogit.api.Node;
+import org.geogit.api.ObjectId;
+import org.geogit.api.Ref;
+import org.geogit.api.RevCommit;
+import org.geogit.api.RevTree;
+import org.geogit.api.porcelain.BranchListOp;
+import org.geogit.api.porcelain.LogOp;
+import org.geogit.repository.Repository;
+import org.geogit.storage.BitmapIndex;
+import org.geogit.storage.ObjectDatabase;
+import org.geogit.storage.ReachabilityBitmap;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.inject.Inject;
+
+/**
+ * Computes the missing {@link ReachabilityBitmap reachability bitmaps} for the tip of every local
+ * and remote branch, and for every {@link #setInterval(int) n-th} commit along their first parent
+ * history, counting from the root commit so checkpoints stay the same as history grows.
+ * <p>
+ * Bitmaps are computed loading only trees; the bitmaps of the subtrees found along the way are
+ * cached so trees shared among the selected commits (e.g. unchanged feature type trees) are
+ * traversed once.
+ *
+ * @see BitmapIndex
+ */
+public class UpdateBitmapIndexOp extends AbstractGeoGitOp<Integer> {
+
+    /**
+     * Default number of commits between history checkpoints
+     */
+    public static final int DEFAULT_INTERVAL = 100;
+
+    private final Repository repository;
+
+    private int interval = DEFAULT_INTERVAL;
+
+    private BitmapIndex index;
+
+    private ObjectDatabase database;
+
+    private Cache<ObjectId, ReachabilityBitmap> subtrees;
+
+    /**
+     * Constructs a new {@code UpdateBitmapIndexOp} with the provided {@link Repository}.
+     *
+     * @param repository the repository
+     */
+    @Inject
+    public UpdateBitmapIndexOp(Repository repository) {
+        this.repository = repository;
+    }
+
+    /**
+     * @param interval the number of commits between history checkpoints, {@code 0} to only compute
+     *        bitmaps for the branch tips
+     * @return {@code this}
+     */
+    public UpdateBitmapIndexOp setInterval(int interval) {
+        Preconditions.checkArgument(interval >= 0, "interval shall be >= 0: " + interval);
+        this.interval = interval;
+        return this;
+    }
+
+    /**
+     * Executes the operation.
+     *
+     * @return the number of bitmaps computed
+     */
+    @Override
+    public Integer call() {
+        index = repository.getBitmapIndex();
+        database = repository.getObjectDatabase();
+        subtrees = CacheBuilder.newBuilder().maximumSize(1024).softValues().build();
+
+        ImmutableList<Ref> branches = command(BranchListOp.class).setLocal(true).setRemotes(true)
+                .call();
+        int computed = 0;
+        try {
+            for (Ref ref : branches) {
+                final ObjectId tip = ref.getObjectId();
+                if (tip.isNull()) {
+                    continue;
+                }
+                if (interval == 0) {
+                    if (update(repository.getCommit(tip))) {
+                        computed++;
+                    }
+                    continue;
+                }
+                Iterator<RevCommit> history = command(LogOp.class).setFirstParentOnly(true)
+                        .setUntil(tip).call();
+                List<ObjectId> chain = Lists.newArrayList();
+                while (history.hasNext()) {
+                    chain.add(history.next().getId());
+                }
+                for (int i = 0; i < chain.size(); i++) {
+                    final int depth = chain.size() - 1 - i;
+                    if ((i == 0 || depth % interval == 0)
+                            && update(repository.getCommit(chain.get(i)))) {
+                        computed++;
+                    }
+                }
+            }
+        } finally {
+            subtrees.invalidateAll();
+        }
+        return Integer.valueOf(computed);
+    }
+
+    private boolean update(RevCommit commit) {
+        if (index.getBitmap(commit.getId()).isPresent()) {
+            return false;
+        }
+        ReachabilityBitmap bitmap = new ReachabilityBitmap();
+        bitmap.set(index.add(commit.getId()));
+        bitmap.or(subtree(commit.getTreeId()));
+        index.putBitmap(commit.getId(), bitmap);
+        return true;
+    }
+
+    private ReachabilityBitmap subtree(ObjectId treeId) {
+        ReachabilityBitmap bitmap = subtrees.getIfPresent(treeId);
+        if (bitmap == null) {
+            bitmap = new ReachabilityBitmap();
+            collect(treeId, bitmap);
+            subtrees.put(treeId, bitmap);
+        }
+        return bitmap;
+    }
+
+    private void collect(ObjectId treeId, ReachabilityBitmap bitmap) {
+        if (!bitmap.set(index.add(treeId))) {
+            return;
+        }
+        RevTree tree = database.getIfPresent(treeId, RevTree.class);
+        if (tree == null) {
+            // the empty tree is not necessarily stored
+            return;
+        }
+        if (tree.trees().isPresent()) {
+            for (Node node : tree.trees().get()) {
+                addMetadata(node, bitmap);
+                bitmap.or(subtree(node.getObjectId()));
+            }
+        }
+        if (tree.features().isPresent()) {
+            for (Node node : tree.features().get()) {
+                addMetadata(node, bitmap);
+                bitmap.set(index.add(node.getObjectId()));
+            }
+        }
+        if (tree.buckets().isPresent()) {
+            for (Bucket bucket : tree.buckets().get().values()) {
+                collect(bucket.id(), bitmap);
+            }
+        }
+    }
+
+    private void addMetadata(Node node, ReachabilityBitmap bitmap) {
+        if (node.getMetadataId().isPresent()) {
+            bitmap.set(index.add(node.getMetadataId().get()));
+        }
+    }
+}
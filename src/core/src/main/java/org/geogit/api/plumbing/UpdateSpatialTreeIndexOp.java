@@ -0,0 +1,198 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.api.plumbing;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import org.geogit.api.AbstractGeoGitOp;
+import org.geogit.api.Node;
+import org.geogit.api.NodeRef;
+import org.geogit.api.ObjectId;
+import org.geogit.api.RevTree;
+import org.geogit.api.plumbing.diff.DepthTreeIterator;
+import org.geogit.api.plumbing.diff.DepthTreeIterator.Strategy;
+import org.geogit.api.plumbing.diff.DiffEntry;
+import org.geogit.storage.HilbertRTree;
+import org.geogit.storage.ObjectDatabase;
+import org.geogit.storage.SpatialTreeIndex;
+import org.geogit.storage.StagingDatabase;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.inject.Inject;
+
+/**
+ * Builds the missing {@link HilbertRTree spatial indexes} for the feature trees of a root tree
+ * holding at least {@link #setMinSize(long) minSize} features.
+ * <p>
+ * If a previous version of the root tree is given and the tree at the same path in it is indexed,
+ * the new index is derived from the previous one by applying the diff between both trees, instead
+ * of traversing the whole new tree, and the index of the previous version is removed so that only
+ * the latest indexed version of each tree is kept. Trees without an index are read the regular
+ * way, so pruning a version still in use only makes reading it slower.
+ * <p>
+ * Building an index takes time and memory proportional to the size of the tree, so this command
+ * is not run on every commit; it's meant to be run explicitly, e.g. with the
+ * {@code update-spatial-index} command line command, once the history of large layers settles.
+ *
+ * @see SpatialTreeIndex
+ */
+public class UpdateSpatialTreeIndexOp extends AbstractGeoGitOp<Integer> {
+
+    /**
+     * Default minimum number of features for a tree to be indexed
+     */
+    public static final long DEFAULT_MIN_SIZE = 10 * 1000;
+
+    private final StagingDatabase database;
+
+    private final SpatialTreeIndex index;
+
+    private ObjectId rootTreeId;
+
+    private ObjectId previousRootTreeId = ObjectId.NULL;
+
+    private long minSize = DEFAULT_MIN_SIZE;
+
+    /**
+     * Constructs a new {@code UpdateSpatialTreeIndexOp}.
+     *
+     * @param database the database to read the trees from
+     * @param index the spatial tree index to update
+     */
+    @Inject
+    public UpdateSpatialTreeIndexOp(StagingDatabase database, SpatialTreeIndex index) {
+        this.database = database;
+        this.index = index;
+    }
+
+    /**
+     * @param rootTreeId the root tree whose feature trees to index
+     * @return {@code this}
+     */
+    public UpdateSpatialTreeIndexOp setRootTree(ObjectId rootTreeId) {
+        this.rootTreeId = rootTreeId;
+        return this;
+    }
+
+    /**
+     * @param previousRootTreeId a previous version of the root tree, whose indexes can be used to
+     *        derive the new ones, or {@code null}
+     * @return {@code this}
+     */
+    public UpdateSpatialTreeIndexOp setPreviousRootTree(@Nullable ObjectId previousRootTreeId) {
+        this.previousRootTreeId = previousRootTreeId == null ? ObjectId.NULL : previousRootTreeId;
+        return this;
+    }
+
+    /**
+     * @param minSize the minimum number of features for a tree to be indexed, defaults to
+     *        {@link #DEFAULT_MIN_SIZE}
+     * @return {@code this}
+     */
+    public UpdateSpatialTreeIndexOp setMinSize(long minSize) {
+        Preconditions.checkArgument(minSize >= 0, "minSize shall be >= 0: " + minSize);
+        this.minSize = minSize;
+        return this;
+    }
+
+    /**
+     * Executes the operation.
+     *
+     * @return the number of indexes built
+     */
+    @Override
+    public Integer call() {
+        Preconditions.checkState(rootTreeId != null, "root tree not set");
+        if (!index.isOpen() || rootTreeId.isNull()) {
+            return Integer.valueOf(0);
+        }
+        final RevTree root = database.getTree(rootTreeId);
+        Optional<RevTree> previousRoot = Optional.absent();
+        if (!previousRootTreeId.isNull() && database.exists(previousRootTreeId)) {
+            previousRoot = Optional.of(database.getTree(previousRootTreeId));
+        }
+
+        int built = 0;
+        Iterator<NodeRef> trees = new DepthTreeIterator("", ObjectId.NULL, root, database,
+                Strategy.RECURSIVE_TREES_ONLY);
+        while (trees.hasNext()) {
+            final NodeRef treeRef = trees.next();
+            final ObjectId treeId = treeRef.objectId();
+            if (index.get(treeId).isPresent()) {
+                continue;
+            }
+            final RevTree tree = database.getTree(treeId);
+            if (tree.size() < minSize || tree.numTrees() > 0) {
+                continue;
+            }
+            Optional<HilbertRTree> previous = Optional.absent();
+            ObjectId previousTreeId = ObjectId.NULL;
+            if (previousRoot.isPresent()) {
+                Optional<NodeRef> previousRef = command(FindTreeChild.class)
+                        .setParent(previousRoot.get()).setChildPath(treeRef.path()).setIndex(true)
+                        .call();
+                if (previousRef.isPresent()) {
+                    previousTreeId = previousRef.get().objectId();
+                    previous = index.get(previousTreeId);
+                }
+            }
+            HilbertRTree treeIndex;
+            if (previous.isPresent()) {
+                treeIndex = update(previous.get(), previousTreeId, treeId);
+            } else {
+                treeIndex = build(database, treeRef, tree);
+            }
+            index.put(treeId, treeIndex);
+            if (previous.isPresent()) {
+                index.remove(previousTreeId);
+            }
+            built++;
+        }
+        return Integer.valueOf(built);
+    }
+
+    private HilbertRTree build(ObjectDatabase database, NodeRef treeRef, RevTree tree) {
+        Iterator<NodeRef> features = new DepthTreeIterator(treeRef.path(), treeRef.getMetadataId(),
+                tree, database, Strategy.FEATURES_ONLY);
+        List<Node> nodes = Lists.newArrayListWithCapacity((int) tree.size());
+        while (features.hasNext()) {
+            nodes.add(features.next().getNode());
+        }
+        return HilbertRTree.build(nodes);
+    }
+
+    private HilbertRTree update(HilbertRTree previous, ObjectId previousTreeId, ObjectId treeId) {
+        // only the changed nodes are held apart, the unchanged ones are taken from the previous
+        // index as they're copied over
+        Set<String> removed = Sets.newHashSet();
+        List<Node> added = Lists.newArrayList();
+        Iterator<DiffEntry> changes = command(DiffTree.class).setOldTree(previousTreeId)
+                .setNewTree(treeId).call();
+        while (changes.hasNext()) {
+            DiffEntry change = changes.next();
+            if (change.getOldObject() != null) {
+                removed.add(change.getOldObject().getNode().getName());
+            }
+            if (change.getNewObject() != null) {
+                added.add(change.getNewObject().getNode());
+            }
+        }
+        List<Node> nodes = Lists.newArrayListWithCapacity(previous.size() + added.size());
+        for (Node node : previous.nodes()) {
+            if (!removed.contains(node.getName())) {
+                nodes.add(node);
+            }
+        }
+        nodes.addAll(added);
+        return HilbertRTree.build(nodes);
+    }
+}
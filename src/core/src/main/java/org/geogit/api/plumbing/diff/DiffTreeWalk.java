@@ -47,6 +47,9 @@ public class DiffTreeWalk {
 
     private boolean recursive;
 
+    @Nullable
+    private TreeBoundsFilter boundsFilter;
+
     public DiffTreeWalk(final ObjectDatabase db, final RevTree fromRootTree,
             final RevTree toRootTree) {
         Preconditions.checkNotNull(db);
@@ -87,6 +90,14 @@ public class DiffTreeWalk {
         this.recursive = recursive;
     }
 
+    /**
+     * @param boundsFilter if not {@code null}, the buckets and subtrees it rejects are skipped
+     *        without being read, and none of the changes inside them are reported
+     */
+    public void setBoundsFilter(@Nullable TreeBoundsFilter boundsFilter) {
+        this.boundsFilter = boundsFilter;
+    }
+
     public Iterator<DiffEntry> get() {
 
         RevTree oldTree = this.fromRootTree;
@@ -139,7 +150,7 @@ public class DiffTreeWalk {
         // TODO: pass pathFilter to TreeDiffEntryIterator so it ignores inner trees where the path
         // is guaranteed not to be present
         Iterator<DiffEntry> iterator = new TreeDiffEntryIterator(oldRef, newRef, oldTree, newTree,
-                reportTrees, recursive, objectDb);
+                reportTrees, recursive, boundsFilter, objectDb);
 
         // boolean comparingTree = (oldRef == null ? newRef : oldRef).getType().equals(TYPE.TREE);
         // if (reportTrees && comparingTree && !Objects.equal(oldRef, newRef)) {
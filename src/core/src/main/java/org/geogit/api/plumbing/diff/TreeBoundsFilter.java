@@ -0,0 +1,27 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.api.plumbing.diff;
+
+import org.geogit.api.Bounded;
+
+/**
+ * Tells a tree diff which buckets and subtrees it can skip without reading them, because none of
+ * the features within their bounds are of interest.
+ *
+ * @see DiffTreeWalk#setBoundsFilter(TreeBoundsFilter)
+ */
+public interface TreeBoundsFilter {
+
+    /**
+     * @param treePath the path of the tree the bucket or subtree belongs to, or of the subtree
+     *        itself
+     * @param hasSubtrees whether the contents of {@code bounded} may include subtrees, whose paths
+     *        are below {@code treePath}
+     * @param bounded a bucket, subtree or feature node
+     * @return {@code false} if no feature within the bounds of {@code bounded} is of interest,
+     *         {@code true} otherwise
+     */
+    public boolean apply(String treePath, boolean hasSubtrees, Bounded bounded);
+}
@@ -15,6 +15,7 @@ import java.util.Set;
 
 import javax.annotation.Nullable;
 
+import org.geogit.api.Bounded;
 import org.geogit.api.Bucket;
 import org.geogit.api.Node;
 import org.geogit.api.NodeRef;
@@ -30,6 +31,7 @@ import com.google.common.base.Function;
 import com.google.common.base.Objects;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
 import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableSortedMap;
@@ -57,6 +59,12 @@ class TreeDiffEntryIterator extends AbstractIterator<DiffEntry> {
 
     private final boolean recursive;
 
+    /**
+     * If present, the buckets and subtrees it rejects are not traversed
+     */
+    @Nullable
+    private final TreeBoundsFilter boundsFilter;
+
     /**
      * The {@link Strategy} used to iterate the two trees which tells whether to report or not tree
      * entries besides feature entries
@@ -66,10 +74,18 @@ class TreeDiffEntryIterator extends AbstractIterator<DiffEntry> {
     public TreeDiffEntryIterator(@Nullable NodeRef oldTreeRef, @Nullable NodeRef newTreeRef,
             @Nullable RevTree oldTree, @Nullable RevTree newTree, final boolean reportTrees,
             final boolean recursive, final ObjectDatabase db) {
+        this(oldTreeRef, newTreeRef, oldTree, newTree, reportTrees, recursive, null, db);
+    }
+
+    public TreeDiffEntryIterator(@Nullable NodeRef oldTreeRef, @Nullable NodeRef newTreeRef,
+            @Nullable RevTree oldTree, @Nullable RevTree newTree, final boolean reportTrees,
+            final boolean recursive, @Nullable TreeBoundsFilter boundsFilter,
+            final ObjectDatabase db) {
 
         checkArgument(oldTree != null || newTree != null);
         this.reportTrees = reportTrees;
         this.recursive = recursive;
+        this.boundsFilter = boundsFilter;
         this.objectDb = db;
 
         this.strategy = resolveStrategy();
@@ -93,8 +109,9 @@ class TreeDiffEntryIterator extends AbstractIterator<DiffEntry> {
 
             delegate = new ChildrenChildrenDiff(left, right);
         } else if (oldTree.buckets().isPresent() && newTree.buckets().isPresent()) {
+            final boolean hasSubtrees = oldTree.numTrees() > 0 || newTree.numTrees() > 0;
             delegate = new BucketBucketDiff(oldTreeRef, newTreeRef, oldTree.buckets().get(),
-                    newTree.buckets().get());
+                    newTree.buckets().get(), hasSubtrees);
         } else if (newTree.buckets().isPresent()) {
             checkState(!oldTree.buckets().isPresent());
             DepthTreeIterator left = new DepthTreeIterator(oldTreeRef.path(),
@@ -163,6 +180,15 @@ class TreeDiffEntryIterator extends AbstractIterator<DiffEntry> {
         final ObjectId metadataId = treeRef == null ? ObjectId.NULL : treeRef.getMetadataId();
 
         treeIterator = new DepthTreeIterator(path, metadataId, tree, objectDb, strategy);
+        if (boundsFilter != null) {
+            final boolean hasSubtrees = tree.numTrees() > 0;
+            treeIterator.setBoundsFilter(new Predicate<Bounded>() {
+                @Override
+                public boolean apply(Bounded bounded) {
+                    return boundsFilter.apply(path, hasSubtrees, bounded);
+                }
+            });
+        }
 
         Iterator<DiffEntry> iterator;
 
@@ -261,13 +287,23 @@ class TreeDiffEntryIterator extends AbstractIterator<DiffEntry> {
                     return Iterators.emptyIterator();
                 }
             }
+            if (boundsFilter != null && !boundsIntersect(nextLeft) && !boundsIntersect(nextRight)) {
+                // none of the subtree's changes are of interest, only report the subtree itself
+                // when added, removed or its metadata changed
+                if (reportTrees
+                        && (nextLeft == null || nextRight == null || !nextLeft.getMetadataId()
+                                .equals(nextRight.getMetadataId()))) {
+                    return Iterators.singletonIterator(new DiffEntry(nextLeft, nextRight));
+                }
+                return Iterators.emptyIterator();
+            }
             RevTree fromTree = resolveSubtree(nextLeft);
             RevTree toTree = resolveSubtree(nextRight);
 
             Iterator<DiffEntry> it;
 
             it = new TreeDiffEntryIterator(nextLeft, nextRight, fromTree, toTree, reportTrees,
-                    recursive, objectDb);
+                    recursive, boundsFilter, objectDb);
 
             return it;
         }
@@ -281,6 +317,10 @@ class TreeDiffEntryIterator extends AbstractIterator<DiffEntry> {
             RevTree tree = objectDb.getTree(id);
             return tree;
         }
+
+        private boolean boundsIntersect(@Nullable NodeRef treeRef) {
+            return treeRef != null && boundsFilter.apply(treeRef.path(), true, treeRef.getNode());
+        }
     }
 
     /**
@@ -321,12 +361,15 @@ class TreeDiffEntryIterator extends AbstractIterator<DiffEntry> {
 
         private NodeRef rightRef;
 
+        private final boolean hasSubtrees;
+
         public BucketBucketDiff(final NodeRef leftRef, final NodeRef rightRef,
                 final ImmutableSortedMap<Integer, Bucket> left,
-                final ImmutableSortedMap<Integer, Bucket> right) {
+                final ImmutableSortedMap<Integer, Bucket> right, final boolean hasSubtrees) {
 
             this.leftRef = leftRef;
             this.rightRef = rightRef;
+            this.hasSubtrees = hasSubtrees;
             int expectedKeys = left.size() + right.size();
             int expectedValuesPerKey = 2;
             leftRightBuckets = ArrayListMultimap.create(expectedKeys, expectedValuesPerKey);
@@ -356,17 +399,30 @@ class TreeDiffEntryIterator extends AbstractIterator<DiffEntry> {
                 if (Objects.equal(leftBucket, rightBucket)) {
                     continue;
                 }
+                if (boundsFilter != null && !boundsIntersect(leftBucket)
+                        && !boundsIntersect(rightBucket)) {
+                    continue;
+                }
 
                 final RevTree left = resolveTree(leftBucket);
                 final RevTree right = resolveTree(rightBucket);
 
                 this.currentBucketIterator = new TreeDiffEntryIterator(leftRef, rightRef, left,
-                        right, reportTrees, recursive, objectDb);
+                        right, reportTrees, recursive, boundsFilter, objectDb);
                 break;
             }
             return computeNext();
         }
 
+        private boolean boundsIntersect(Optional<Bucket> bucket) {
+            if (!bucket.isPresent()) {
+                return false;
+            }
+            NodeRef treeRef = leftRef == null ? rightRef : leftRef;
+            String treePath = treeRef == null ? NodeRef.ROOT : treeRef.path();
+            return boundsFilter.apply(treePath, hasSubtrees, bucket.get());
+        }
+
         private RevTree resolveTree(Optional<Bucket> bucket) {
             RevTree bucketTree = RevTree.EMPTY;
             if (bucket.isPresent()) {
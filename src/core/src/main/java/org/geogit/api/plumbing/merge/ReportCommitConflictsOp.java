@@ -15,12 +15,12 @@ import org.geogit.api.Ref;
 import org.geogit.api.RevCommit;
 import org.geogit.api.RevFeature;
 import org.geogit.api.RevFeatureType;
-import org.geogit.api.RevObject;
 import org.geogit.api.RevObject.TYPE;
+import org.geogit.api.RevTree;
 import org.geogit.api.plumbing.DiffFeature;
 import org.geogit.api.plumbing.DiffTree;
-import org.geogit.api.plumbing.FindTreeChild;
 import org.geogit.api.plumbing.ResolveObjectType;
+import org.geogit.api.plumbing.ResolveTreeish;
 import org.geogit.api.plumbing.RevObjectParse;
 import org.geogit.api.plumbing.diff.AttributeDiff;
 import org.geogit.api.plumbing.diff.DiffEntry;
@@ -36,14 +36,17 @@ import com.google.inject.Inject;
 
 /**
  * Reports conflicts between changes introduced by a given commit and the last commit of the current
- * head. That should give information about whether the specified commit can be applied safely on
- * the current branch without overwriting changes It classifies the changes of the commit in
- * conflicting or unconflicting, so they can be applied partially
+ * head, or the given {@link #setTarget(ObjectId) target commit}. That should give information about
+ * whether the specified commit can be applied safely on the current branch without overwriting
+ * changes It classifies the changes of the commit in conflicting or unconflicting, so they can be
+ * applied partially
  */
 public class ReportCommitConflictsOp extends AbstractGeoGitOp<MergeScenarioReport> {
 
     private RevCommit commit;
 
+    private ObjectId target;
+
     private Repository repository;
 
     @Inject
@@ -59,10 +62,21 @@ public class ReportCommitConflictsOp extends AbstractGeoGitOp<MergeScenarioRepor
         return this;
     }
 
+    /**
+     * @param target the commit the changes are to be applied onto, instead of the current head;
+     *        e.g. the last commit replayed by a rebase that doesn't move the head until it's done
+     */
+    public ReportCommitConflictsOp setTarget(ObjectId target) {
+        this.target = target;
+        return this;
+    }
+
     @Override
     public MergeScenarioReport call() {
 
         MergeScenarioReport report = new MergeScenarioReport();
+        final RevTree targetTree = targetTree();
+        final DepthSearch depthSearch = new DepthSearch(repository.getObjectDatabase());
 
         ObjectId parentCommitId = ObjectId.NULL;
         if (commit.getParentIds().size() > 0) {
@@ -79,25 +93,23 @@ public class ReportCommitConflictsOp extends AbstractGeoGitOp<MergeScenarioRepor
         while (diffs.hasNext()) {
             DiffEntry diff = diffs.next();
             String path = diff.oldPath() == null ? diff.newPath() : diff.oldPath();
-            Optional<RevObject> obj = command(RevObjectParse.class).setRefSpec(
-                    Ref.HEAD + ":" + path).call();
+            Optional<NodeRef> targetNode = depthSearch.find(targetTree, path);
             switch (diff.changeType()) {
             case ADDED:
-                if (obj.isPresent()) {
+                if (targetNode.isPresent()) {
                     TYPE type = command(ResolveObjectType.class).setObjectId(
                             diff.getNewObject().objectId()).call();
                     if (TYPE.TREE.equals(type)) {
-                        NodeRef headVersion = command(FindTreeChild.class).setChildPath(path)
-                                .setParent(repository.getOrCreateHeadTree()).call().get();
+                        NodeRef headVersion = targetNode.get();
                         if (!headVersion.getMetadataId()
                                 .equals(diff.getNewObject().getMetadataId())) {
                             report.addConflict(new Conflict(path, ObjectId.NULL, diff
                                     .getNewObject().getMetadataId(), headVersion.getMetadataId()));
                         }
                     } else {
-                        if (!obj.get().getId().equals(diff.newObjectId())) {
+                        if (!targetNode.get().objectId().equals(diff.newObjectId())) {
                             report.addConflict(new Conflict(path, ObjectId.NULL,
-                                    diff.newObjectId(), obj.get().getId()));
+                                    diff.newObjectId(), targetNode.get().objectId()));
                         }
                     }
                 } else {
@@ -105,12 +117,12 @@ public class ReportCommitConflictsOp extends AbstractGeoGitOp<MergeScenarioRepor
                 }
                 break;
             case REMOVED:
-                if (obj.isPresent()) {
-                    if (obj.get().getId().equals(diff.oldObjectId())) {
+                if (targetNode.isPresent()) {
+                    if (targetNode.get().objectId().equals(diff.oldObjectId())) {
                         report.addUnconflicted(diff);
                     } else {
                         report.addConflict(new Conflict(path, diff.oldObjectId(), ObjectId.NULL,
-                                obj.get().getId()));
+                                targetNode.get().objectId()));
                     }
                 }
                 break;
@@ -122,22 +134,20 @@ public class ReportCommitConflictsOp extends AbstractGeoGitOp<MergeScenarioRepor
                     // one
                     report.addUnconflicted(diff);
                 } else {
-                    String refSpec = Ref.HEAD + ":" + path;
-                    obj = command(RevObjectParse.class).setRefSpec(refSpec).call();
-                    if (!obj.isPresent()) {
+                    if (!targetNode.isPresent()) {
                         // git reports this as a conflict but does not mark as conflicted, just adds
                         // the missing file.
                         // We add it and consider it unconflicted
                         report.addUnconflicted(diff);
                         break;
                     }
-                    RevFeature feature = (RevFeature) obj.get();
-                    DepthSearch depthSearch = new DepthSearch(repository.getObjectDatabase());
-                    Optional<NodeRef> noderef = depthSearch
-                            .find(this.getWorkTree().getTree(), path);
+                    RevFeature feature = command(RevObjectParse.class)
+                            .setObjectId(targetNode.get().objectId()).call(RevFeature.class).get();
+                    // the feature type of the target version of the feature, since the working
+                    // tree may lag behind it while commits are being replayed
                     RevFeatureType featureType = command(RevObjectParse.class)
-                            .setObjectId(noderef.get().getMetadataId()).call(RevFeatureType.class)
-                            .get();
+                            .setObjectId(targetNode.get().getMetadataId())
+                            .call(RevFeatureType.class).get();
                     ImmutableList<PropertyDescriptor> descriptors = featureType.sortedDescriptors();
                     FeatureDiff featureDiff = command(DiffFeature.class)
                             .setOldVersion(Suppliers.ofInstance(diff.getOldObject()))
@@ -177,7 +187,7 @@ public class ReportCommitConflictsOp extends AbstractGeoGitOp<MergeScenarioRepor
                         report.addUnconflicted(diff);
                     } else {
                         report.addConflict(new Conflict(path, diff.oldObjectId(), diff
-                                .newObjectId(), obj.get().getId()));
+                                .newObjectId(), targetNode.get().objectId()));
                     }
                 }
 
@@ -189,4 +199,14 @@ public class ReportCommitConflictsOp extends AbstractGeoGitOp<MergeScenarioRepor
         return report;
 
     }
+
+    private RevTree targetTree() {
+        Optional<ObjectId> targetTreeId = command(ResolveTreeish.class).setTreeish(
+                target == null ? Ref.HEAD : target.toString()).call();
+        if (!targetTreeId.isPresent() || targetTreeId.get().isNull()) {
+            return RevTree.EMPTY;
+        }
+        return command(RevObjectParse.class).setObjectId(targetTreeId.get()).call(RevTree.class)
+                .get();
+    }
 }
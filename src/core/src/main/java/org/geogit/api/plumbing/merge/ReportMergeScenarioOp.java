@@ -6,35 +6,39 @@ package org.geogit.api.plumbing.merge;
 
 import java.util.Iterator;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
 
+import javax.annotation.Nullable;
+
 import org.geogit.api.AbstractGeoGitOp;
 import org.geogit.api.FeatureInfo;
+import org.geogit.api.Node;
 import org.geogit.api.NodeRef;
 import org.geogit.api.ObjectId;
 import org.geogit.api.RevCommit;
 import org.geogit.api.RevFeature;
 import org.geogit.api.RevFeatureBuilder;
 import org.geogit.api.RevFeatureType;
-import org.geogit.api.RevObject.TYPE;
 import org.geogit.api.RevTree;
 import org.geogit.api.plumbing.DiffFeature;
 import org.geogit.api.plumbing.DiffTree;
 import org.geogit.api.plumbing.FindCommonAncestor;
-import org.geogit.api.plumbing.FindTreeChild;
-import org.geogit.api.plumbing.ResolveObjectType;
 import org.geogit.api.plumbing.RevObjectParse;
-import org.geogit.api.plumbing.RevParse;
+import org.geogit.api.plumbing.diff.DepthTreeIterator;
+import org.geogit.api.plumbing.diff.DepthTreeIterator.Strategy;
 import org.geogit.api.plumbing.diff.DiffEntry;
-import org.geogit.api.plumbing.diff.DiffEntry.ChangeType;
 import org.geogit.api.plumbing.diff.FeatureDiff;
+import org.geogit.storage.NodeStorageOrder;
 import org.opengis.feature.Feature;
 
+import com.google.common.base.Objects;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Suppliers;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Maps;
+import com.google.common.collect.PeekingIterator;
+import com.google.common.collect.Sets;
 import com.google.inject.Inject;
 
 /**
@@ -42,6 +46,13 @@ import com.google.inject.Inject;
  * another reference commit, it returns the set of changes from the common ancestor to the first
  * commit, classified according to whether they can or not be safely applied onto the reference
  * commit. Changes that will have no effect on the target commit are not included as unconflicted.
+ * <p>
+ * The ancestor, target and source trees are walked together one tree level at a time, skipping the
+ * subtrees the source commit didn't change, and taking the source changes to the subtrees the
+ * target commit didn't change as they are. Only the changes to the features of trees changed by
+ * both commits are compared, by joining the two diffs of the tree's features as they are streamed
+ * in {@link NodeStorageOrder storage order}, so the memory used doesn't depend on the number of
+ * changes.
  */
 public class ReportMergeScenarioOp extends AbstractGeoGitOp<MergeScenarioReport> {
 
@@ -49,6 +60,14 @@ public class ReportMergeScenarioOp extends AbstractGeoGitOp<MergeScenarioReport>
 
     private RevCommit mergeInto;
 
+    private ObjectId ancestorTreeId;
+
+    private ObjectId oursTreeId;
+
+    private ObjectId theirsTreeId;
+
+    private MergeScenarioReport report;
+
     @Inject
     public ReportMergeScenarioOp() {
     }
@@ -76,180 +95,209 @@ public class ReportMergeScenarioOp extends AbstractGeoGitOp<MergeScenarioReport>
                 .setRight(mergeInto).call();
         Preconditions.checkState(ancestor.isPresent(), "No ancestor commit could be found.");
 
-        Map<String, DiffEntry> mergeIntoDiffs = Maps.newHashMap();
-        MergeScenarioReport report = new MergeScenarioReport();
+        ancestorTreeId = ancestor.get().getTreeId();
+        oursTreeId = mergeInto.getTreeId();
+        theirsTreeId = toMerge.getTreeId();
+        report = new MergeScenarioReport();
+
+        if (!theirsTreeId.equals(ancestorTreeId)) {
+            mergeChildren(NodeRef.ROOT, tree(ancestorTreeId), tree(oursTreeId),
+                    tree(theirsTreeId), ObjectId.NULL, ObjectId.NULL, ObjectId.NULL);
+        }
+        return report;
+    }
+
+    /**
+     * Reports the changes to the subtree at {@code path}, which differs between the ancestor and
+     * the commit to merge.
+     */
+    private void mergeTree(final String path, @Nullable final NodeRef ancestor,
+            @Nullable final NodeRef ours, @Nullable final NodeRef theirs) {
+
+        if (Objects.equal(ancestor, ours)) {
+            // not changed in the target commit, all the changes in the subtree apply as they are
+            Iterator<DiffEntry> diffs = command(DiffTree.class).setOldTree(ancestorTreeId)
+                    .setNewTree(theirsTreeId).setFilterPath(path).setReportTrees(true).call();
+            while (diffs.hasNext()) {
+                report.addUnconflicted(diffs.next());
+            }
+            return;
+        }
+        if (Objects.equal(ours, theirs)) {
+            // same changes in both commits
+            return;
+        }
+
+        if (ours == null || theirs == null) {
+            // removed in one commit and modified in the other
+            report.addConflict(new Conflict(path, ancestor.objectId(), ours == null ? ObjectId.NULL
+                    : ours.objectId(), theirs == null ? ObjectId.NULL : theirs.objectId()));
+        } else if (!ours.getMetadataId().equals(theirs.getMetadataId())) {
+            // added or modified in both commits with different default feature types, even if only
+            // one of them changed it. If the metadata ids match, only the content is to be merged.
+            // In this case, we store the metadata id, not the element id
+            report.addConflict(new Conflict(path, ancestor == null ? ObjectId.NULL : ancestor
+                    .getMetadataId(), ours.getMetadataId(), theirs.getMetadataId()));
+        }
+
+        mergeChildren(path, tree(ancestor), tree(ours), tree(theirs), metadataId(ancestor),
+                metadataId(ours), metadataId(theirs));
+    }
+
+    /**
+     * Reports the changes to the direct children of the tree at {@code path}, recursing into the
+     * subtrees changed in the commit to merge.
+     */
+    private void mergeChildren(final String path, final RevTree ancestor, final RevTree ours,
+            final RevTree theirs, final ObjectId ancestorMetadataId,
+            final ObjectId oursMetadataId, final ObjectId theirsMetadataId) {
+
+        final Map<String, NodeRef> ancestorTrees = subtrees(path, ancestor, ancestorMetadataId);
+        final Map<String, NodeRef> oursTrees = subtrees(path, ours, oursMetadataId);
+        final Map<String, NodeRef> theirsTrees = subtrees(path, theirs, theirsMetadataId);
 
-        Iterator<DiffEntry> diffs = command(DiffTree.class).setOldTree(ancestor.get().getId())
-                .setReportTrees(true).setNewTree(mergeInto.getId()).call();
-        while (diffs.hasNext()) {
-            DiffEntry diff = diffs.next();
-            String path = diff.oldPath() == null ? diff.newPath() : diff.oldPath();
-            mergeIntoDiffs.put(path, diff);
+        Set<String> names = Sets.union(ancestorTrees.keySet(), theirsTrees.keySet());
+        for (String name : names) {
+            NodeRef ancestorTree = ancestorTrees.get(name);
+            NodeRef theirsTree = theirsTrees.get(name);
+            if (!Objects.equal(ancestorTree, theirsTree)) {
+                mergeTree(NodeRef.appendChild(path, name), ancestorTree, oursTrees.get(name),
+                        theirsTree);
+            }
+        }
+
+        mergeFeatures(path);
+    }
+
+    /**
+     * Joins the changes to the features directly under {@code path} in both commits, which are
+     * both reported in storage order.
+     */
+    private void mergeFeatures(final String path) {
+        final String filter = NodeRef.ROOT.equals(path) ? null : path;
+        Iterator<DiffEntry> toMergeDiffs = command(DiffTree.class).setOldTree(ancestorTreeId)
+                .setNewTree(theirsTreeId).setFilterPath(filter).setRecursive(false).call();
+        if (!toMergeDiffs.hasNext()) {
+            return;
         }
+        PeekingIterator<DiffEntry> mergeIntoDiffs = Iterators.peekingIterator(command(
+                DiffTree.class).setOldTree(ancestorTreeId).setNewTree(oursTreeId)
+                .setFilterPath(filter).setRecursive(false).call());
 
-        Iterator<DiffEntry> toMergeDiffs = command(DiffTree.class)
-                .setOldTree(ancestor.get().getId()).setReportTrees(true)
-                .setNewTree(toMerge.getId()).call();
+        final NodeStorageOrder order = new NodeStorageOrder();
         while (toMergeDiffs.hasNext()) {
             DiffEntry toMergeDiff = toMergeDiffs.next();
-            String path = toMergeDiff.oldPath() == null ? toMergeDiff.newPath() : toMergeDiff
-                    .oldPath();
-            if (mergeIntoDiffs.containsKey(path)) {
-                RevTree ancestorTree = command(RevObjectParse.class)
-                        .setObjectId(ancestor.get().getTreeId()).call(RevTree.class).get();
-                Optional<NodeRef> ancestorVersion = command(FindTreeChild.class).setChildPath(path)
-                        .setParent(ancestorTree).call();
-                ObjectId ancestorVersionId = ancestorVersion.isPresent() ? ancestorVersion.get()
-                        .getNode().getObjectId() : ObjectId.NULL;
-                ObjectId theirs = toMergeDiff.getNewObject() == null ? ObjectId.NULL : toMergeDiff
-                        .getNewObject().objectId();
-                DiffEntry mergeIntoDiff = mergeIntoDiffs.get(path);
-                ObjectId ours = mergeIntoDiff.getNewObject() == null ? ObjectId.NULL
-                        : mergeIntoDiff.getNewObject().objectId();
-                if (!mergeIntoDiff.changeType().equals(toMergeDiff.changeType())) {
-                    report.addConflict(new Conflict(path, ancestorVersionId, ours, theirs));
-                    continue;
-                }
-                switch (toMergeDiff.changeType()) {
-                case ADDED:
-                    if (toMergeDiff.getNewObject().equals(mergeIntoDiff.getNewObject())) {
-                        // already added in current branch, no need to do anything
-                    } else {
-                        TYPE type = command(ResolveObjectType.class).setObjectId(
-                                toMergeDiff.getNewObject().objectId()).call();
-                        if (TYPE.TREE.equals(type)) {
-                            boolean conflict = !toMergeDiff.getNewObject().getMetadataId()
-                                    .equals(mergeIntoDiff.getNewObject().getMetadataId());
-                            if (conflict) {
-                                // In this case, we store the metadata id, not the element id
-                                ancestorVersionId = ancestorVersion.isPresent() ? ancestorVersion
-                                        .get().getMetadataId() : ObjectId.NULL;
-                                ours = mergeIntoDiff.getNewObject().getMetadataId();
-                                theirs = toMergeDiff.getNewObject().getMetadataId();
-                                report.addConflict(new Conflict(path, ancestorVersionId, ours,
-                                        theirs));
-                            }
-                            // if the metadata ids match, it means both branches have added the same
-                            // tree, maybe with different content, but there is no need to do
-                            // anything. The correct tree is already there and the merge can be run
-                            // safely, so we do not add it neither as a conflicted change nor as an
-                            // unconflicted one
-                        } else {
-                            report.addConflict(new Conflict(path, ancestorVersionId, ours, theirs));
-                        }
-                    }
-                    break;
-                case REMOVED:
-                    // removed by both histories => no conflict and no need to do anything
-                    break;
-                case MODIFIED:
-                    TYPE type = command(ResolveObjectType.class).setObjectId(
-                            toMergeDiff.getNewObject().objectId()).call();
-                    if (TYPE.TREE.equals(type)) {
-                        boolean conflict = !toMergeDiff.getNewObject().getMetadataId()
-                                .equals(mergeIntoDiff.getNewObject().getMetadataId());
-                        if (conflict) {
-                            // In this case, we store the metadata id, not the element id
-                            ancestorVersionId = ancestorVersion.isPresent() ? ancestorVersion.get()
-                                    .getMetadataId() : ObjectId.NULL;
-                            ours = mergeIntoDiff.getNewObject().getMetadataId();
-                            theirs = toMergeDiff.getNewObject().getMetadataId();
-                            report.addConflict(new Conflict(path, ancestorVersionId, ours, theirs));
-                        }
-                    } else {
-                        FeatureDiff toMergeFeatureDiff = command(DiffFeature.class)
-                                .setOldVersion(Suppliers.ofInstance(toMergeDiff.getOldObject()))
-                                .setNewVersion(Suppliers.ofInstance(toMergeDiff.getNewObject()))
-                                .call();
-                        FeatureDiff mergeIntoFeatureDiff = command(DiffFeature.class)
-                                .setOldVersion(Suppliers.ofInstance(mergeIntoDiff.getOldObject()))
-                                .setNewVersion(Suppliers.ofInstance(mergeIntoDiff.getNewObject()))
-                                .call();
-                        if (toMergeFeatureDiff.conflicts(mergeIntoFeatureDiff)) {
-                            report.addConflict(new Conflict(path, ancestorVersionId, ours, theirs));
-                        } else {
-                            // if the feature types are different we report a conflict and do not
-                            // try to perform automerge
-                            if (!toMergeDiff.getNewObject().getMetadataId()
-                                    .equals(mergeIntoDiff.getNewObject().getMetadataId())) {
-                                report.addConflict(new Conflict(path, ancestorVersionId, ours,
-                                        theirs));
-                            } else if (!toMergeFeatureDiff.equals(mergeIntoFeatureDiff)) {
-                                Feature mergedFeature = command(MergeFeaturesOp.class)
-                                        .setFirstFeature(mergeIntoDiff.getNewObject())
-                                        .setSecondFeature(toMergeDiff.getNewObject())
-                                        .setAncestorFeature(mergeIntoDiff.getOldObject()).call();
-                                RevFeature revFeature = new RevFeatureBuilder()
-                                        .build(mergedFeature);
-                                if (revFeature.getId().equals(toMergeDiff.newObjectId())) {
-                                    // the resulting merged feature equals the feature to merge from
-                                    // the branch, which means that it exists in the repo and there
-                                    // is no need to add it
-                                    report.addUnconflicted(toMergeDiff);
-                                } else {
-                                    RevFeatureType featureType = command(RevObjectParse.class)
-                                            .setObjectId(
-                                                    mergeIntoDiff.getNewObject().getMetadataId())
-                                            .call(RevFeatureType.class).get();
-                                    FeatureInfo merged = new FeatureInfo(mergedFeature,
-                                            featureType, path);
-                                    report.addMerged(merged);
-                                }
-                            }
-                        }
-                    }
-                    break;
-                }
+            Node node = node(toMergeDiff);
+            while (mergeIntoDiffs.hasNext()
+                    && order.compare(node(mergeIntoDiffs.peek()), node) < 0) {
+                mergeIntoDiffs.next();
+            }
+            if (mergeIntoDiffs.hasNext()
+                    && node.getName().equals(node(mergeIntoDiffs.peek()).getName())) {
+                mergeFeature(toMergeDiff, mergeIntoDiffs.next());
             } else {
-                // If the element is a tree, not a feature, it might be a conflict even if the other
-                // branch has not modified it.
-                // If we are removing the tree, we have to make sure that there are no features
-                // modified in the other branch under it.
-                if (ChangeType.REMOVED.equals(toMergeDiff.changeType())) {
-                    TYPE type = command(ResolveObjectType.class).setObjectId(
-                            toMergeDiff.oldObjectId()).call();
-                    if (TYPE.TREE.equals(type)) {
-                        String parentPath = toMergeDiff.oldPath();
-                        Set<Entry<String, DiffEntry>> entries = mergeIntoDiffs.entrySet();
-                        boolean conflict = false;
-                        for (Entry<String, DiffEntry> entry : entries) {
-                            if (entry.getKey().startsWith(parentPath)) {
-                                if (!ChangeType.REMOVED.equals(entry.getValue().changeType())) {
-                                    RevTree ancestorTree = command(RevObjectParse.class)
-                                            .setObjectId(ancestor.get().getTreeId())
-                                            .call(RevTree.class).get();
-                                    Optional<NodeRef> ancestorVersion = command(FindTreeChild.class)
-                                            .setChildPath(path).setParent(ancestorTree).call();
-                                    ObjectId ancestorVersionId = ancestorVersion.isPresent() ? ancestorVersion
-                                            .get().getNode().getObjectId()
-                                            : ObjectId.NULL;
-                                    ObjectId theirs = toMergeDiff.getNewObject() == null ? ObjectId.NULL
-                                            : toMergeDiff.getNewObject().objectId();
-                                    String oursRefSpec = mergeInto.getId().toString() + ":"
-                                            + parentPath;
-                                    Optional<ObjectId> ours = command(RevParse.class).setRefSpec(
-                                            oursRefSpec).call();
-                                    report.addConflict(new Conflict(path, ancestorVersionId, ours
-                                            .get(), theirs));
-                                    conflict = true;
-                                    break;
-                                }
-                            }
-                        }
-                        if (!conflict) {
-                            report.addUnconflicted(toMergeDiff);
-                        }
-                    } else {
+                report.addUnconflicted(toMergeDiff);
+            }
+        }
+    }
+
+    /**
+     * Reports the changes to a feature changed in both commits.
+     */
+    private void mergeFeature(final DiffEntry toMergeDiff, final DiffEntry mergeIntoDiff) {
+        final String path = toMergeDiff.oldPath() == null ? toMergeDiff.newPath() : toMergeDiff
+                .oldPath();
+        final ObjectId ancestorVersionId = toMergeDiff.getOldObject() == null ? ObjectId.NULL
+                : toMergeDiff.getOldObject().objectId();
+        final ObjectId theirs = toMergeDiff.getNewObject() == null ? ObjectId.NULL : toMergeDiff
+                .getNewObject().objectId();
+        final ObjectId ours = mergeIntoDiff.getNewObject() == null ? ObjectId.NULL
+                : mergeIntoDiff.getNewObject().objectId();
+        if (!mergeIntoDiff.changeType().equals(toMergeDiff.changeType())) {
+            report.addConflict(new Conflict(path, ancestorVersionId, ours, theirs));
+            return;
+        }
+        switch (toMergeDiff.changeType()) {
+        case ADDED:
+            if (toMergeDiff.getNewObject().equals(mergeIntoDiff.getNewObject())) {
+                // already added in current branch, no need to do anything
+            } else {
+                report.addConflict(new Conflict(path, ancestorVersionId, ours, theirs));
+            }
+            break;
+        case REMOVED:
+            // removed by both histories => no conflict and no need to do anything
+            break;
+        case MODIFIED:
+            FeatureDiff toMergeFeatureDiff = command(DiffFeature.class)
+                    .setOldVersion(Suppliers.ofInstance(toMergeDiff.getOldObject()))
+                    .setNewVersion(Suppliers.ofInstance(toMergeDiff.getNewObject())).call();
+            FeatureDiff mergeIntoFeatureDiff = command(DiffFeature.class)
+                    .setOldVersion(Suppliers.ofInstance(mergeIntoDiff.getOldObject()))
+                    .setNewVersion(Suppliers.ofInstance(mergeIntoDiff.getNewObject())).call();
+            if (toMergeFeatureDiff.conflicts(mergeIntoFeatureDiff)) {
+                report.addConflict(new Conflict(path, ancestorVersionId, ours, theirs));
+            } else {
+                // if the feature types are different we report a conflict and do not
+                // try to perform automerge
+                if (!toMergeDiff.getNewObject().getMetadataId()
+                        .equals(mergeIntoDiff.getNewObject().getMetadataId())) {
+                    report.addConflict(new Conflict(path, ancestorVersionId, ours, theirs));
+                } else if (!toMergeFeatureDiff.equals(mergeIntoFeatureDiff)) {
+                    Feature mergedFeature = command(MergeFeaturesOp.class)
+                            .setFirstFeature(mergeIntoDiff.getNewObject())
+                            .setSecondFeature(toMergeDiff.getNewObject())
+                            .setAncestorFeature(mergeIntoDiff.getOldObject()).call();
+                    RevFeature revFeature = new RevFeatureBuilder().build(mergedFeature);
+                    if (revFeature.getId().equals(toMergeDiff.newObjectId())) {
+                        // the resulting merged feature equals the feature to merge from
+                        // the branch, which means that it exists in the repo and there
+                        // is no need to add it
                         report.addUnconflicted(toMergeDiff);
+                    } else {
+                        RevFeatureType featureType = command(RevObjectParse.class)
+                                .setObjectId(mergeIntoDiff.getNewObject().getMetadataId())
+                                .call(RevFeatureType.class).get();
+                        FeatureInfo merged = new FeatureInfo(mergedFeature, featureType, path);
+                        report.addMerged(merged);
                     }
-                } else {
-                    report.addUnconflicted(toMergeDiff);
                 }
             }
+            break;
+        }
+    }
 
+    private Map<String, NodeRef> subtrees(final String path, final RevTree tree,
+            final ObjectId metadataId) {
+        Map<String, NodeRef> subtrees = Maps.newHashMap();
+        if (tree.numTrees() > 0) {
+            Iterator<NodeRef> children = new DepthTreeIterator(path, metadataId, tree, getIndex()
+                    .getDatabase(), Strategy.TREES_ONLY);
+            while (children.hasNext()) {
+                NodeRef child = children.next();
+                subtrees.put(child.name(), child);
+            }
         }
+        return subtrees;
+    }
 
-        return report;
+    private RevTree tree(@Nullable final NodeRef treeRef) {
+        return treeRef == null ? RevTree.EMPTY : tree(treeRef.objectId());
+    }
+
+    private RevTree tree(final ObjectId treeId) {
+        if (treeId.isNull()) {
+            return RevTree.EMPTY;
+        }
+        return command(RevObjectParse.class).setObjectId(treeId).call(RevTree.class).get();
+    }
+
+    private static ObjectId metadataId(@Nullable final NodeRef treeRef) {
+        return treeRef == null ? ObjectId.NULL : treeRef.getMetadataId();
+    }
 
+    private static Node node(final DiffEntry diff) {
+        return diff.getNewObject() == null ? diff.getOldObject().getNode() : diff.getNewObject()
+                .getNode();
     }
 }
@@ -10,17 +10,18 @@ import org.geogit.api.AbstractGeoGitOp;
 import org.geogit.api.ObjectId;
 import org.geogit.api.Ref;
 import org.geogit.api.RevCommit;
+import org.geogit.api.RevTree;
 import org.geogit.api.SymRef;
 import org.geogit.api.plumbing.DiffTree;
 import org.geogit.api.plumbing.RefParse;
 import org.geogit.api.plumbing.UpdateRef;
-import org.geogit.api.plumbing.WriteTree;
 import org.geogit.api.plumbing.diff.DiffEntry;
 import org.geogit.api.plumbing.merge.Conflict;
 import org.geogit.api.plumbing.merge.ConflictsWriteOp;
 import org.geogit.api.plumbing.merge.MergeScenarioReport;
 import org.geogit.api.plumbing.merge.ReportCommitConflictsOp;
 import org.geogit.repository.Repository;
+import org.geogit.repository.TreeDiffApplier;
 
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
@@ -101,14 +102,15 @@ public class CherryPickOp extends AbstractGeoGitOp<RevCommit> {
         MergeScenarioReport report = command(ReportCommitConflictsOp.class)
                 .setCommit(commitToApply).call();
         if (report.getConflicts().isEmpty()) {
-            // stage changes
-            getIndex().stage(getProgressListener(), diff, 0);
-            // write new tree
-            ObjectId newTreeId = command(WriteTree.class).call();
+            // apply the changes straight onto the clean index tree and stage the result at once
+            RevTree indexTree = getIndex().getTree();
+            ObjectId newTreeId = new TreeDiffApplier(getCommandLocator(),
+                    repository.getObjectDatabase()).apply(indexTree, diff, getProgressListener(),
+                    0).or(indexTree.getId());
+            getIndex().updateStageHead(newTreeId);
             RevCommit newCommit = command(CommitOp.class).setCommit(commitToApply).call();
 
-            repository.getWorkingTree().updateWorkHead(newTreeId);
-            repository.getIndex().updateStageHead(newTreeId);
+            getWorkTree().updateWorkHead(newTreeId);
 
             getProgressListener().complete();
 
@@ -4,24 +4,36 @@
  */
 package org.geogit.api.porcelain;
 
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.Stack;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.annotation.Nullable;
+
 import org.geogit.api.AbstractGeoGitOp;
 import org.geogit.api.ObjectId;
 import org.geogit.api.Ref;
 import org.geogit.api.RevCommit;
+import org.geogit.api.RevObject;
+import org.geogit.api.plumbing.IndexSpatialChangesOp;
 import org.geogit.api.plumbing.RevParse;
 import org.geogit.api.plumbing.diff.DiffEntry;
 import org.geogit.di.CanRunDuringConflict;
+import org.geogit.repository.CommitPrefetcher;
 import org.geogit.repository.Repository;
+import org.geogit.storage.CommitMetadata;
+import org.geogit.storage.CommitMetadataIndex;
 import org.geogit.storage.GraphDatabase;
+import org.geogit.storage.ObjectDatabase;
+import org.geogit.storage.SpatialChangeIndex;
+import org.geogit.storage.SpatialChangeSummary;
 import org.geotools.util.Range;
 
 import com.google.common.base.Optional;
@@ -34,6 +46,7 @@ import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.inject.Inject;
+import com.vividsolutions.jts.geom.Envelope;
 
 /**
  * Operation to query the commits logs.
@@ -45,8 +58,20 @@ import com.google.inject.Inject;
  * <li> {@link #setSince(ObjectId) since}...{@link #setUntil(ObjectId) until}: Show only commits
  * between the named two commits.
  * <li> {@link #addPath(String) addPath}: Show only commits that affect the specified path.
+ * <li> {@link #setBounds(Envelope) bounds}: Show only commits with changes intersecting the given
+ * envelope.
  * </ul>
  * </p>
+ * <p>
+ * When filtering by time range, author or committer in chronological order, the repository's
+ * {@link CommitMetadataIndex} is used to find the matching commits, and the history is traversed
+ * through the {@link GraphDatabase} loading only those commits out of the object database.
+ * </p>
+ * <p>
+ * When filtering by bounds, the {@link SpatialChangeSummary} of each commit is looked up in the
+ * repository's {@link SpatialChangeIndex}, and computed and indexed the first time if missing, so
+ * no diff is computed for commits already summarized.
+ * </p>
  * 
  * 
  */
@@ -68,6 +93,8 @@ public class LogOp extends AbstractGeoGitOp<Iterator<RevCommit>> {
 
     private Set<String> paths;
 
+    private Envelope bounds;
+
     private Repository repository;
 
     private Pattern author;
@@ -82,6 +109,8 @@ public class LogOp extends AbstractGeoGitOp<Iterator<RevCommit>> {
 
     private List<ObjectId> commits = Lists.newArrayList();
 
+    private int prefetchWindow = CommitPrefetcher.DEFAULT_WINDOW;
+
     /**
      * Constructs a new {@code LogOp} with the given {@link Repository}.
      * 
@@ -162,6 +191,21 @@ public class LogOp extends AbstractGeoGitOp<Iterator<RevCommit>> {
         return this;
     }
 
+    /**
+     * Sets how many commits to load from the object database ahead of them being consumed while
+     * traversing the history.
+     * 
+     * @param prefetchWindow the maximum number of commits to prefetch, {@code 0} disables
+     *        prefetching. Defaults to {@link CommitPrefetcher#DEFAULT_WINDOW}
+     * @return {@code this}
+     */
+    public LogOp setPrefetchWindow(int prefetchWindow) {
+        Preconditions.checkArgument(prefetchWindow >= 0, "prefetchWindow shall be >= 0: "
+                + prefetchWindow);
+        this.prefetchWindow = prefetchWindow;
+        return this;
+    }
+
     /**
      * Adds a commit to be used as starting point for computing history. If no commit is provided,
      * HEAD is used, or the 'until' commit if provided
@@ -212,6 +256,20 @@ public class LogOp extends AbstractGeoGitOp<Iterator<RevCommit>> {
         return this;
     }
 
+    /**
+     * Show only commits that changed features whose old or new bounds intersect the given envelope.
+     * <p>
+     * Bounds are compared against the bounds of the features as stored, so the envelope shall be
+     * in the native CRS of the feature types of interest.
+     * 
+     * @param bounds the area of interest, {@code null} to not filter by bounds
+     * @return {@code this}
+     */
+    public LogOp setBounds(@Nullable Envelope bounds) {
+        this.bounds = bounds == null || bounds.isNull() ? null : new Envelope(bounds);
+        return this;
+    }
+
     /**
      * Show only commits that lie within the specified time range.
      * 
@@ -262,19 +320,31 @@ public class LogOp extends AbstractGeoGitOp<Iterator<RevCommit>> {
         }
 
         Iterator<RevCommit> history;
+        CommitPrefetcher loader = null;
         if (firstParent) {
-            history = new LinearHistoryIterator(newestCommitId, repository);
+            loader = new CommitPrefetcher(repository.getObjectDatabase(), graphDb, prefetchWindow,
+                    true);
+            history = new LinearHistoryIterator(newestCommitId, loader);
         } else {
             if (commits.isEmpty()) {
                 commits.add(newestCommitId);
             }
-            if (topo) {
-                history = new TopologicalHistoryIterator(commits, repository, graphDb);
+            if (!topo && canUseCommitIndex()) {
+                history = new IndexedHistoryIterator(commits, oldestCommitId,
+                        repository.getCommitMetadataIndex(), repository.getObjectDatabase(),
+                        graphDb, timeRange, author, commiter);
             } else {
-                history = new ChronologicalHistoryIterator(commits, repository);
+                loader = new CommitPrefetcher(repository.getObjectDatabase(), graphDb,
+                        prefetchWindow, false);
+                if (topo) {
+                    history = new TopologicalHistoryIterator(commits, loader, graphDb);
+                } else {
+                    history = new ChronologicalHistoryIterator(commits, loader);
+                }
             }
         }
-        LogFilter filter = new LogFilter(oldestCommitId, timeRange, paths, author, commiter);
+        LogFilter filter = new LogFilter(oldestCommitId, timeRange, paths, bounds, author,
+                commiter);
         Iterator<RevCommit> filteredCommits = Iterators.filter(history, filter);
         if (skip != null) {
             Iterators.advance(filteredCommits, skip.intValue());
@@ -282,6 +352,9 @@ public class LogOp extends AbstractGeoGitOp<Iterator<RevCommit>> {
         if (limit != null) {
             filteredCommits = Iterators.limit(filteredCommits, limit.intValue());
         }
+        if (loader != null) {
+            filteredCommits = loader.closeWhenDone(filteredCommits);
+        }
         return filteredCommits;
     }
 
@@ -292,7 +365,7 @@ public class LogOp extends AbstractGeoGitOp<Iterator<RevCommit>> {
      */
     private static class ChronologicalHistoryIterator extends AbstractIterator<RevCommit> {
 
-        private final Repository repo;
+        private final CommitPrefetcher loader;
 
         private Set<RevCommit> parents;
 
@@ -300,17 +373,18 @@ public class LogOp extends AbstractGeoGitOp<Iterator<RevCommit>> {
          * Constructs a new {@code LinearHistoryIterator} with the given parameters.
          * 
          * @param tip the first commit in the history
-         * @param repo the repository where the commits are stored.
+         * @param loader the loader to fetch commits from the repository
          */
-        public ChronologicalHistoryIterator(final List<ObjectId> tips, final Repository repo) {
+        public ChronologicalHistoryIterator(final List<ObjectId> tips,
+                final CommitPrefetcher loader) {
             parents = Sets.newHashSet();
             for (ObjectId tip : tips) {
                 if (!tip.isNull()) {
-                    final RevCommit commit = repo.getCommit(tip);
+                    final RevCommit commit = loader.get(tip).get();
                     parents.add(commit);
                 }
             }
-            this.repo = repo;
+            this.loader = loader;
         }
 
         /**
@@ -321,6 +395,7 @@ public class LogOp extends AbstractGeoGitOp<Iterator<RevCommit>> {
         @Override
         protected RevCommit computeNext() {
             if (parents.isEmpty()) {
+                loader.close();
                 return endOfData();
             } else {
                 Iterator<RevCommit> iter = parents.iterator();
@@ -334,11 +409,10 @@ public class LogOp extends AbstractGeoGitOp<Iterator<RevCommit>> {
                     }
                 }
                 parents.remove(mostRecent);
-                RevCommit commit;
                 for (ObjectId parent : mostRecent.getParentIds()) {
-                    if (repo.commitExists(parent)) {
-                        commit = repo.getCommit(parent);
-                        parents.add(commit);
+                    Optional<RevCommit> commit = loader.get(parent);
+                    if (commit.isPresent()) {
+                        parents.add(commit.get());
                     }
                 }
                 return mostRecent;
@@ -347,6 +421,223 @@ public class LogOp extends AbstractGeoGitOp<Iterator<RevCommit>> {
         }
     }
 
+    /**
+     * @return whether there are filters the commit metadata index can resolve and the index covers
+     *         the commits to start the traversal from
+     */
+    private boolean canUseCommitIndex() {
+        if (ALWAYS.equals(timeRange) && author == null && commiter == null) {
+            return false;
+        }
+        CommitMetadataIndex index = repository.getCommitMetadataIndex();
+        if (!index.isOpen() || index.size() == 0) {
+            return false;
+        }
+        for (ObjectId tip : commits) {
+            if (!tip.isNull() && !index.get(tip).isPresent()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Iterator that traverses the commit history backwards starting from the provided commits, in
+     * chronological order, returning only the commits matching the time range, author and committer
+     * filters.
+     * <p>
+     * The commits matching the filters are looked up in the {@link CommitMetadataIndex} upfront.
+     * The traversal is performed over the commit graph, using the indexed committer timestamps to
+     * keep the same order as {@link ChronologicalHistoryIterator}, so only the matching commits are
+     * loaded from the object database. Ancestors missing from the index are loaded and matched as
+     * they're found. The traversal stops once it gets past the oldest matching commit, as the
+     * index may also hold commits not reachable from the tips; or past the start of the time range
+     * if any ancestor was missing from the index.
+     * <p>
+     * Committer timestamps come from the committers' clocks, so a commit may be older than some of
+     * its ancestors. The traversal hence doesn't stop as soon as the newest queued commit is older
+     * than that boundary, but once it's older by more than {@link #CLOCK_SKEW_MARGIN} for
+     * {@link #SLOP} commits in a row.
+     */
+    private static class IndexedHistoryIterator extends AbstractIterator<RevCommit> {
+
+        /**
+         * How much older than the boundary a commit has to be for its ancestors not to match
+         */
+        private static final long CLOCK_SKEW_MARGIN = 24L * 60 * 60 * 1000;
+
+        /**
+         * Number of commits past the boundary walked before stopping
+         */
+        private static final int SLOP = 5;
+
+        private final CommitMetadataIndex index;
+
+        private final ObjectDatabase objectDb;
+
+        private final GraphDatabase graphDb;
+
+        private final ObjectId oldestCommitId;
+
+        private final Range<Long> timeRange;
+
+        private final Pattern author;
+
+        private final Pattern committer;
+
+        private final Set<ObjectId> candidates;
+
+        private final Set<ObjectId> queued = Sets.newHashSet();
+
+        private final PriorityQueue<QueuedCommit> queue = new PriorityQueue<QueuedCommit>(11,
+                new Comparator<QueuedCommit>() {
+                    @Override
+                    public int compare(QueuedCommit o1, QueuedCommit o2) {
+                        long t1 = o1.metadata.getTimestamp();
+                        long t2 = o2.metadata.getTimestamp();
+                        if (t1 != t2) {
+                            return t1 > t2 ? -1 : 1;
+                        }
+                        return o1.sequence < o2.sequence ? -1 : (o1.sequence == o2.sequence ? 0
+                                : 1);
+                    }
+                });
+
+        private long sequence;
+
+        /**
+         * Committer timestamp of the oldest matching commit in the index
+         */
+        private final long oldestCandidate;
+
+        /**
+         * Whether an ancestor missing from the index has been found
+         */
+        private boolean unindexedFound;
+
+        /**
+         * Number of commits in a row walked past the boundary returned by {@link #oldestMatch()}
+         */
+        private int pastBoundary;
+
+        public IndexedHistoryIterator(final List<ObjectId> tips, final ObjectId oldestCommitId,
+                final CommitMetadataIndex index, final ObjectDatabase objectDb,
+                final GraphDatabase graphDb, final Range<Long> timeRange, final Pattern author,
+                final Pattern committer) {
+            this.index = index;
+            this.objectDb = objectDb;
+            this.graphDb = graphDb;
+            this.oldestCommitId = oldestCommitId;
+            this.timeRange = timeRange;
+            this.author = author;
+            this.committer = committer;
+            this.candidates = index.find(timeRange, author, committer);
+            long oldest = Long.MAX_VALUE;
+            for (ObjectId candidate : candidates) {
+                oldest = Math.min(oldest, index.get(candidate).get().getTimestamp());
+            }
+            this.oldestCandidate = oldest;
+            for (ObjectId tip : tips) {
+                enqueue(tip);
+            }
+        }
+
+        @Override
+        protected RevCommit computeNext() {
+            while (!queue.isEmpty() && (unindexedFound || !candidates.isEmpty())) {
+                if (queue.peek().metadata.getTimestamp() < oldestMatch()) {
+                    // what's left in the queue is older than any commit that could match, unless
+                    // clocks were skewed
+                    if (++pastBoundary > SLOP) {
+                        break;
+                    }
+                } else {
+                    pastBoundary = 0;
+                }
+                final QueuedCommit next = queue.poll();
+                final ObjectId id = next.metadata.getCommitId();
+                if (oldestCommitId.equals(id)) {
+                    break;
+                }
+                RevCommit commit = next.commit;
+                ImmutableList<ObjectId> parents;
+                if (commit == null) {
+                    parents = graphDb.getParents(id);
+                } else {
+                    parents = commit.getParentIds();
+                }
+                for (ObjectId parent : parents) {
+                    enqueue(parent);
+                }
+                if (candidates.remove(id) || (next.commit != null && matches(next.metadata))) {
+                    return commit == null ? objectDb.getCommit(id) : commit;
+                }
+            }
+            return endOfData();
+        }
+
+        /**
+         * @return the committer timestamp below which no commit, nor its ancestors, can match
+         */
+        private long oldestMatch() {
+            long oldest = timeRange.getMinValue().longValue();
+            if (!unindexedFound) {
+                oldest = Math.max(oldest, oldestCandidate);
+            }
+            return oldest < Long.MIN_VALUE + CLOCK_SKEW_MARGIN ? Long.MIN_VALUE : oldest
+                    - CLOCK_SKEW_MARGIN;
+        }
+
+        private boolean matches(CommitMetadata metadata) {
+            if (!timeRange.contains(Long.valueOf(metadata.getTimestamp()))) {
+                return false;
+            }
+            if (author != null && metadata.getAuthorName().isPresent()
+                    && !author.matcher(metadata.getAuthorName().get()).matches()) {
+                return false;
+            }
+            if (committer != null && metadata.getCommitterName().isPresent()
+                    && !committer.matcher(metadata.getCommitterName().get()).matches()) {
+                return false;
+            }
+            return true;
+        }
+
+        private void enqueue(ObjectId commitId) {
+            if (commitId.isNull() || !queued.add(commitId)) {
+                return;
+            }
+            Optional<CommitMetadata> metadata = index.get(commitId);
+            RevCommit commit = null;
+            if (!metadata.isPresent()) {
+                // not indexed, or not in the repository at all (e.g. a shallow clone)
+                RevObject object = objectDb.getIfPresent(commitId);
+                if (!(object instanceof RevCommit)) {
+                    return;
+                }
+                commit = (RevCommit) object;
+                unindexedFound = true;
+                metadata = Optional.of(CommitMetadata.of(commit));
+            }
+            queue.add(new QueuedCommit(metadata.get(), commit, sequence++));
+        }
+
+        private static class QueuedCommit {
+
+            private final CommitMetadata metadata;
+
+            private final RevCommit commit;
+
+            private final long sequence;
+
+            QueuedCommit(CommitMetadata metadata, RevCommit commit, long sequence) {
+                this.metadata = metadata;
+                this.commit = commit;
+                this.sequence = sequence;
+            }
+        }
+    }
+
     /**
      * Iterator that traverses the commit history backwards starting from the provided commit, in
      * topological order. It performs a reverse depth-first search
@@ -354,7 +645,7 @@ public class LogOp extends AbstractGeoGitOp<Iterator<RevCommit>> {
      */
     private static class TopologicalHistoryIterator extends AbstractIterator<RevCommit> {
 
-        private final Repository repo;
+        private final CommitPrefetcher loader;
 
         private Stack<RevCommit> tips;
 
@@ -368,22 +659,22 @@ public class LogOp extends AbstractGeoGitOp<Iterator<RevCommit>> {
          * Constructs a new {@code LinearHistoryIterator} with the given parameters.
          * 
          * @param tipsList the list of tips to start computing history from
-         * @param repo the repository where the commits are stored.
+         * @param loader the loader to fetch commits from the repository
          * @param graphDb
          */
-        public TopologicalHistoryIterator(final List<ObjectId> tipsList, final Repository repo,
-                GraphDatabase graphDb) {
+        public TopologicalHistoryIterator(final List<ObjectId> tipsList,
+                final CommitPrefetcher loader, GraphDatabase graphDb) {
             this.graphDb = graphDb;
             tips = new Stack<RevCommit>();
             stopPoints = Lists.newArrayList();
             for (ObjectId tip : tipsList) {
                 if (!tip.isNull()) {
-                    final RevCommit commit = repo.getCommit(tip);
+                    final RevCommit commit = loader.get(tip).get();
                     tips.add(commit);
                     stopPoints.add(tip);
                 }
             }
-            this.repo = repo;
+            this.loader = loader;
         }
 
         /**
@@ -397,18 +688,23 @@ public class LogOp extends AbstractGeoGitOp<Iterator<RevCommit>> {
                 lastCommit = tips.pop();
                 return lastCommit;
             }
-            Optional<ObjectId> parent = Optional.absent();
+            Optional<RevCommit> parent = Optional.absent();
             int index = 0;
             for (ObjectId parentId : lastCommit.getParentIds()) {
-                if (repo.commitExists(parentId)) {
-                    parent = Optional.of(parentId);
+                if (stopPoints.contains(parentId)) {
+                    parent = Optional.absent();
+                    break;
+                }
+                parent = loader.get(parentId);
+                if (parent.isPresent()) {
                     break;
                 }
                 index++;
             }
-            if (!parent.isPresent() || parent.get().isNull() || stopPoints.contains(parent.get())) {
+            if (!parent.isPresent()) {
                 // move to the next tip and start traversing it
                 if (tips.isEmpty()) {
+                    loader.close();
                     return endOfData();
                 } else {
                     lastCommit = tips.pop();
@@ -416,15 +712,15 @@ public class LogOp extends AbstractGeoGitOp<Iterator<RevCommit>> {
             } else {
                 List<ObjectId> parents = lastCommit.getParentIds();
                 for (int i = index + 1; i < parents.size(); i++) {
-                    if (repo.commitExists(parents.get(i))) {
-                        final RevCommit commit = repo.getCommit(parents.get(i));
-                        tips.push(commit);
+                    Optional<RevCommit> commit = loader.get(parents.get(i));
+                    if (commit.isPresent()) {
+                        tips.push(commit.get());
                     }
                 }
-                lastCommit = repo.getCommit(parent.get());
-                ImmutableList<ObjectId> children = this.graphDb.getChildren(parent.get());
+                lastCommit = parent.get();
+                ImmutableList<ObjectId> children = this.graphDb.getChildren(lastCommit.getId());
                 if (children.size() > 1) {
-                    stopPoints.add(parent.get());
+                    stopPoints.add(lastCommit.getId());
                 }
             }
 
@@ -439,21 +735,19 @@ public class LogOp extends AbstractGeoGitOp<Iterator<RevCommit>> {
      */
     private static class LinearHistoryIterator extends AbstractIterator<RevCommit> {
 
-        private Optional<ObjectId> nextCommitId;
+        private Optional<RevCommit> nextCommit;
 
-        private final Repository repo;
+        private final CommitPrefetcher loader;
 
         /**
          * Constructs a new {@code LinearHistoryIterator} with the given parameters.
          * 
          * @param tip the first commit in the history
-         * @param repo the repository where the commits are stored.
+         * @param loader the loader to fetch commits from the repository
          */
-        @SuppressWarnings("unchecked")
-        public LinearHistoryIterator(final ObjectId tip, final Repository repo) {
-            this.nextCommitId = (Optional<ObjectId>) (tip.isNull() ? Optional.absent() : Optional
-                    .of(tip));
-            this.repo = repo;
+        public LinearHistoryIterator(final ObjectId tip, final CommitPrefetcher loader) {
+            this.loader = loader;
+            this.nextCommit = loader.get(tip);
         }
 
         /**
@@ -463,14 +757,17 @@ public class LogOp extends AbstractGeoGitOp<Iterator<RevCommit>> {
          */
         @Override
         protected RevCommit computeNext() {
-            if (nextCommitId.isPresent()) {
-                RevCommit commit = repo.getCommit(nextCommitId.get());
-                nextCommitId = commit.parentN(0);
-                if (nextCommitId.isPresent() && !repo.commitExists(nextCommitId.get())) {
-                    nextCommitId = Optional.absent();
+            if (nextCommit.isPresent()) {
+                RevCommit commit = nextCommit.get();
+                Optional<ObjectId> parentId = commit.parentN(0);
+                if (parentId.isPresent()) {
+                    nextCommit = loader.get(parentId.get());
+                } else {
+                    nextCommit = Optional.absent();
                 }
                 return commit;
             }
+            loader.close();
             return endOfData();
         }
 
@@ -491,6 +788,8 @@ public class LogOp extends AbstractGeoGitOp<Iterator<RevCommit>> {
 
         private final Set<String> paths;
 
+        private final Envelope bounds;
+
         private Pattern author;
 
         private Pattern committer;
@@ -502,16 +801,19 @@ public class LogOp extends AbstractGeoGitOp<Iterator<RevCommit>> {
          * @param timeRange extra time range filter besides oldest commit
          * @param paths extra filter on content, indicates to return only commits that affected any
          *        of the provided paths
+         * @param bounds extra filter on content, indicates to return only commits with changes
+         *        intersecting the given envelope
          * @param commiter the regexp pattern to filter author names
          * @param author the regexp pattern to filter commiter names
          */
         public LogFilter(final ObjectId oldestCommitId, final Range<Long> timeRange,
-                final Set<String> paths, Pattern author, Pattern commiter) {
+                final Set<String> paths, final Envelope bounds, Pattern author, Pattern commiter) {
             Preconditions.checkNotNull(oldestCommitId);
             Preconditions.checkNotNull(timeRange);
             this.oldestCommitId = oldestCommitId;
             this.timeRange = timeRange;
             this.paths = paths;
+            this.bounds = bounds;
             this.author = author;
             this.committer = commiter;
         }
@@ -548,6 +850,13 @@ public class LogOp extends AbstractGeoGitOp<Iterator<RevCommit>> {
             if (!applies) {
                 return false;
             }
+            if (bounds != null) {
+                SpatialChangeSummary summary = command(IndexSpatialChangesOp.class).setCommit(
+                        commit).call();
+                if (!summary.intersects(bounds, paths)) {
+                    return false;
+                }
+            }
             if (paths != null && paths.size() > 0) {
                 // did this commit touch any of the paths?
                 for (String path : paths) {
@@ -19,12 +19,14 @@ import org.geogit.api.ObjectId;
 import org.geogit.api.Platform;
 import org.geogit.api.Ref;
 import org.geogit.api.RevCommit;
+import org.geogit.api.RevTree;
 import org.geogit.api.SymRef;
 import org.geogit.api.plumbing.CatObject;
 import org.geogit.api.plumbing.DiffTree;
 import org.geogit.api.plumbing.FindCommonAncestor;
 import org.geogit.api.plumbing.RefParse;
 import org.geogit.api.plumbing.ResolveGeogitDir;
+import org.geogit.api.plumbing.RevObjectParse;
 import org.geogit.api.plumbing.UpdateRef;
 import org.geogit.api.plumbing.UpdateSymRef;
 import org.geogit.api.plumbing.WriteTree;
@@ -37,6 +39,7 @@ import org.geogit.api.plumbing.merge.ReportCommitConflictsOp;
 import org.geogit.api.porcelain.ResetOp.ResetMode;
 import org.geogit.di.CanRunDuringConflict;
 import org.geogit.repository.Repository;
+import org.geogit.repository.TreeDiffApplier;
 import org.geogit.storage.ObjectReader;
 import org.geogit.storage.text.TextSerializationFactory;
 
@@ -59,9 +62,10 @@ import com.google.inject.Inject;
  * containing the ID of the commit. Files have correlative names starting on 1, indicating the order
  * in which they should be applied
  * 
- * -HEAD is rewinded to starting point
- * 
- * -Commits are applied. For each commit applied, the corresponding file is deleted
+ * -Commits are applied. The changes of each commit are applied straight onto the tree of the
+ * previous one, starting from the commit to rebase onto. The current branch, working tree and index
+ * are only updated once all the commits are applied, or when one of them conflicts, and so are the
+ * files of the applied commits deleted. If the rebase fails otherwise, they are left untouched
  * 
  * -A file named 'next' keeps track of the next commit to apply between executions of the rebase
  * command, in case of conflicts
@@ -94,6 +98,17 @@ public class RebaseOp extends AbstractGeoGitOp<Boolean> {
 
     private String squashMessage;
 
+    /**
+     * Index of the first commit file applied since the rebase progress was last saved, or
+     * {@code -1} if no commit file has been read yet
+     */
+    private int firstApplied = -1;
+
+    /**
+     * Index of the next commit file to apply
+     */
+    private int nextToApply;
+
     /**
      * Constructs a new {@code RebaseOp} using the specified parameters.
      * 
@@ -302,13 +317,11 @@ public class RebaseOp extends AbstractGeoGitOp<Boolean> {
                 commit = commitIterator.next();
             }
 
-            // rewind the HEAD
+            // the commits are replayed from there, HEAD is only moved once they're applied
             if (onto == null) {
                 onto = Suppliers.ofInstance(upstream.get());
             }
             rebaseHead = onto.get();
-            command(ResetOp.class).setCommit(Suppliers.ofInstance(rebaseHead))
-                    .setMode(ResetMode.HARD).call();
 
             if (squashMessage != null) {
                 CommitBuilder builder = new CommitBuilder(commitsToRebase.get(0));
@@ -326,6 +339,7 @@ public class RebaseOp extends AbstractGeoGitOp<Boolean> {
                     throw new IllegalStateException("Cannot create squash commit info file");
                 }
                 applyCommit(squashCommit, true);
+                moveHead();
                 return true;
             } else {
                 createRebaseCommitsInfoFiles(commitsToRebase);
@@ -340,6 +354,8 @@ public class RebaseOp extends AbstractGeoGitOp<Boolean> {
                 ret = applyNextCommit(true);
             } while (ret);
         }
+        moveHead();
+        saveProgress();
 
         // clean up
         File squashFile = new File(getRebaseFolder(), "squash");
@@ -403,27 +419,49 @@ public class RebaseOp extends AbstractGeoGitOp<Boolean> {
 
     private boolean applyNextCommit(boolean useCommitChanges) {
         File rebaseFolder = getRebaseFolder();
-        File nextFile = new File(rebaseFolder, "next");
         try {
-            String idx = Files.readFirstLine(nextFile, Charsets.UTF_8);
-            File commitFile = new File(rebaseFolder, idx);
+            if (firstApplied < 0) {
+                File nextFile = new File(rebaseFolder, "next");
+                nextToApply = Integer.parseInt(Files.readFirstLine(nextFile, Charsets.UTF_8));
+                firstApplied = nextToApply;
+            }
+            File commitFile = new File(rebaseFolder, Integer.toString(nextToApply));
             if (commitFile.exists()) {
                 String commitId = Files.readFirstLine(commitFile, Charsets.UTF_8);
                 RevCommit commit = repository.getCommit(ObjectId.valueOf(commitId));
                 applyCommit(commit, useCommitChanges);
-                commitFile.delete();
-                int newIdx = Integer.parseInt(idx) + 1;
-                Files.write(Integer.toString(newIdx), nextFile, Charsets.UTF_8);
+                nextToApply++;
                 return true;
             } else {
                 return false;
             }
         } catch (IOException e) {
-            throw new IllegalStateException("Cannot read/write rebase commits index file");
+            throw new IllegalStateException("Cannot read rebase commits index file");
         }
 
     }
 
+    /**
+     * Deletes the files of the commits applied since the progress was last saved, and points the
+     * 'next' file to the next commit to apply.
+     */
+    private void saveProgress() {
+        if (firstApplied < 0) {
+            return;
+        }
+        File rebaseFolder = getRebaseFolder();
+        for (int idx = firstApplied; idx < nextToApply; idx++) {
+            new File(rebaseFolder, Integer.toString(idx)).delete();
+        }
+        try {
+            Files.write(Integer.toString(nextToApply), new File(rebaseFolder, "next"),
+                    Charsets.UTF_8);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot write rebase commits index file");
+        }
+        firstApplied = nextToApply;
+    }
+
     /**
      * Applies the passed command.
      * 
@@ -449,14 +487,17 @@ public class RebaseOp extends AbstractGeoGitOp<Boolean> {
                     .setNewTree(commitToApply.getTreeId()).setReportTrees(true).call();
 
             // see if there are conflicts
-            MergeScenarioReport report = command(ReportCommitConflictsOp.class).setCommit(
-                    commitToApply).call();
+            MergeScenarioReport report = command(ReportCommitConflictsOp.class)
+                    .setCommit(commitToApply).setTarget(rebaseHead).call();
             if (report.getConflicts().isEmpty()) {
-                // stage changes
-                getIndex().stage(getProgressListener(), diff, 0);
-
-                // write new tree
-                ObjectId newTreeId = command(WriteTree.class).call();
+                // apply the changes straight onto the tree of the last replayed commit, leaving the
+                // branch, working tree and index to be updated once the replay finishes
+                RevTree baseTree = command(RevObjectParse.class)
+                        .setObjectId(repository.getCommit(rebaseHead).getTreeId())
+                        .call(RevTree.class).get();
+                ObjectId newTreeId = new TreeDiffApplier(getCommandLocator(),
+                        repository.getObjectDatabase())
+                        .apply(baseTree, diff, getProgressListener(), 0).or(baseTree.getId());
 
                 long timestamp = platform.currentTimeMillis();
                 // Create new commit
@@ -471,13 +512,9 @@ public class RebaseOp extends AbstractGeoGitOp<Boolean> {
 
                 rebaseHead = newCommit.getId();
 
-                command(UpdateRef.class).setName(currentBranch).setNewValue(rebaseHead).call();
-                command(UpdateSymRef.class).setName(Ref.HEAD).setNewValue(currentBranch).call();
-
-                getWorkTree().updateWorkHead(newTreeId);
-                getIndex().updateStageHead(newTreeId);
-
             } else {
+                moveHead();
+
                 Iterator<DiffEntry> unconflicted = report.getUnconflicted().iterator();
                 // stage unconflicted changes
                 getIndex().stage(getProgressListener(), unconflicted, 0);
@@ -485,6 +522,7 @@ public class RebaseOp extends AbstractGeoGitOp<Boolean> {
 
                 // mark conflicted elements
                 command(ConflictsWriteOp.class).setConflicts(report.getConflicts()).call();
+                saveProgress();
 
                 // created exception message
                 StringBuilder msg = new StringBuilder();
@@ -522,16 +560,22 @@ public class RebaseOp extends AbstractGeoGitOp<Boolean> {
             repository.getObjectDatabase().put(newCommit);
 
             rebaseHead = newCommit.getId();
-
-            command(UpdateRef.class).setName(currentBranch).setNewValue(rebaseHead).call();
-            command(UpdateSymRef.class).setName(Ref.HEAD).setNewValue(currentBranch).call();
-
-            getWorkTree().updateWorkHead(newTreeId);
-            getIndex().updateStageHead(newTreeId);
         }
 
     }
 
+    /**
+     * Points the current branch to the last commit replayed, and sets its tree as the working tree
+     * and index.
+     */
+    private void moveHead() {
+        command(UpdateRef.class).setName(currentBranch).setNewValue(rebaseHead).call();
+        command(UpdateSymRef.class).setName(Ref.HEAD).setNewValue(currentBranch).call();
+        ObjectId treeId = repository.getCommit(rebaseHead).getTreeId();
+        getWorkTree().updateWorkHead(treeId);
+        getIndex().updateStageHead(treeId);
+    }
+
     /**
      * Return the commit that is the squashed version of all the commits to apply, reading it from
      * the 'squash' file. If the file does not exist (that is, we are not in the middle of a rebase
@@ -19,8 +19,11 @@ import org.geogit.api.RevObject;
 import org.geogit.repository.Index;
 import org.geogit.repository.Repository;
 import org.geogit.repository.StagingArea;
+import org.geogit.repository.WorkTreeJournalInterceptor;
 import org.geogit.repository.WorkingTree;
+import org.geogit.storage.BitmapIndex;
 import org.geogit.storage.CachingObjectDatabaseGetInterceptor;
+import org.geogit.storage.CommitMetadataIndex;
 import org.geogit.storage.ConfigDatabase;
 import org.geogit.storage.DeduplicationService;
 import org.geogit.storage.GraphDatabase;
@@ -28,17 +31,24 @@ import org.geogit.storage.ObjectDatabase;
 import org.geogit.storage.ObjectDatabasePutInterceptor;
 import org.geogit.storage.ObjectSerializingFactory;
 import org.geogit.storage.RefDatabase;
+import org.geogit.storage.SpatialChangeIndex;
+import org.geogit.storage.SpatialTreeIndex;
 import org.geogit.storage.StagingDatabase;
 import org.geogit.storage.TinkerGraphDatabase;
 import org.geogit.storage.datastream.DataStreamSerializationFactory;
+import org.geogit.storage.fs.FileBitmapIndex;
+import org.geogit.storage.fs.FileCommitMetadataIndex;
 import org.geogit.storage.fs.FileObjectDatabase;
 import org.geogit.storage.fs.FileRefDatabase;
+import org.geogit.storage.fs.FileSpatialChangeIndex;
+import org.geogit.storage.fs.FileSpatialTreeIndex;
 import org.geogit.storage.fs.IniConfigDatabase;
-import org.geogit.storage.memory.HeapDeduplicationService;
+import org.geogit.storage.fs.SpillingDeduplicationService;
 import org.geogit.storage.memory.HeapStagingDatabase;
 
 import com.google.common.base.Throwables;
 import com.google.inject.AbstractModule;
+import com.google.inject.Binder;
 import com.google.inject.Scopes;
 import com.google.inject.matcher.Matcher;
 
@@ -57,6 +67,10 @@ import com.google.inject.matcher.Matcher;
  * @see GraphDatabase
  * @see ObjectSerializingFactory
  * @see DeduplicationService
+ * @see CommitMetadataIndex
+ * @see BitmapIndex
+ * @see SpatialChangeIndex
+ * @see SpatialTreeIndex
  */
 
 public class GeogitModule extends AbstractModule {
@@ -77,6 +91,10 @@ public class GeogitModule extends AbstractModule {
         bind(StagingDatabase.class).to(HeapStagingDatabase.class).in(Scopes.SINGLETON);
         bind(WorkingTree.class).in(Scopes.SINGLETON);
         bind(GraphDatabase.class).to(TinkerGraphDatabase.class).in(Scopes.SINGLETON);
+        bind(CommitMetadataIndex.class).to(FileCommitMetadataIndex.class).in(Scopes.SINGLETON);
+        bind(BitmapIndex.class).to(FileBitmapIndex.class).in(Scopes.SINGLETON);
+        bind(SpatialChangeIndex.class).to(FileSpatialChangeIndex.class).in(Scopes.SINGLETON);
+        bind(SpatialTreeIndex.class).to(FileSpatialTreeIndex.class).in(Scopes.SINGLETON);
 
         bind(ObjectDatabase.class).to(FileObjectDatabase.class).in(Scopes.SINGLETON);
         bind(RefDatabase.class).to(FileRefDatabase.class).in(Scopes.SINGLETON);
@@ -84,13 +102,16 @@ public class GeogitModule extends AbstractModule {
         bind(ObjectSerializingFactory.class).to(DataStreamSerializationFactory.class).in(
                 Scopes.SINGLETON);
 
-        bind(DeduplicationService.class).to(HeapDeduplicationService.class).in(Scopes.SINGLETON);
+        bind(DeduplicationService.class).to(SpillingDeduplicationService.class).in(
+                Scopes.SINGLETON);
 
         bindRevObjectCachingDatabaseInterceptor();
 
         bindCommitGraphInterceptor();
 
-        bindConflictCheckingInterceptor();
+        bindConflictCheckingInterceptor(binder());
+
+        bindWorkTreeJournalInterceptor(binder());
     }
 
     private void bindRevObjectCachingDatabaseInterceptor() {
@@ -132,14 +153,55 @@ public class GeogitModule extends AbstractModule {
 
     }
 
-    private void bindConflictCheckingInterceptor() {
+    /**
+     * Binds the interceptor that keeps commands from running while there are merge conflicts,
+     * shared with the injectors of {@link TransactionModule transactions}.
+     */
+    static void bindConflictCheckingInterceptor(Binder binder) {
+        Matcher<Class<?>> canRunDuringCommitMatcher = new Matcher<Class<?>>() {
+
+            @Override
+            public boolean matches(Class<?> clazz) {
+                // TODO: this is not a very clean way of doing this...
+                return !(clazz.getPackage().getName().contains("plumbing") || clazz
+                        .isAnnotationPresent(CanRunDuringConflict.class));
+            }
+
+            @Override
+            public Matcher<Class<?>> or(Matcher<? super Class<?>> arg0) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public Matcher<Class<?>> and(Matcher<? super Class<?>> arg0) {
+                throw new UnsupportedOperationException();
+            }
+
+        };
+
+        binder.bindInterceptor(canRunDuringCommitMatcher, callMatcher(), new ConflictInterceptor());
+    }
+
+    /**
+     * Binds the interceptor that writes the journal of unstaged changes of the working tree back
+     * once a command finishes, shared with the injectors of {@link TransactionModule transactions}.
+     */
+    static void bindWorkTreeJournalInterceptor(Binder binder) {
+        binder.bindInterceptor(subclassesOf(AbstractGeoGitOp.class), callMatcher(),
+                new WorkTreeJournalInterceptor(binder.getProvider(WorkingTree.class)));
+    }
+
+    /**
+     * @return a matcher for the {@link AbstractGeoGitOp#call()} method of commands
+     */
+    private static Matcher<Method> callMatcher() {
         final Method callMethod;
         try {
             callMethod = AbstractGeoGitOp.class.getMethod("call");
         } catch (Exception e) {
             throw Throwables.propagate(e);
         }
-        Matcher<Method> callMatcher = new Matcher<Method>() {
+        return new Matcher<Method>() {
 
             @Override
             public boolean matches(Method t) {
@@ -163,29 +225,6 @@ public class GeogitModule extends AbstractModule {
                 throw new UnsupportedOperationException();
             }
         };
-
-        Matcher<Class<?>> canRunDuringCommitMatcher = new Matcher<Class<?>>() {
-
-            @Override
-            public boolean matches(Class<?> clazz) {
-                // TODO: this is not a very clean way of doing this...
-                return !(clazz.getPackage().getName().contains("plumbing") || clazz
-                        .isAnnotationPresent(CanRunDuringConflict.class));
-            }
-
-            @Override
-            public Matcher<Class<?>> or(Matcher<? super Class<?>> arg0) {
-                throw new UnsupportedOperationException();
-            }
-
-            @Override
-            public Matcher<Class<?>> and(Matcher<? super Class<?>> arg0) {
-                throw new UnsupportedOperationException();
-            }
-
-        };
-
-        bindInterceptor(canRunDuringCommitMatcher, callMatcher, new ConflictInterceptor());
     }
 
     private void bindCommitGraphInterceptor() {
@@ -225,6 +264,7 @@ public class GeogitModule extends AbstractModule {
         };
 
         bindInterceptor(subclassesOf(ObjectDatabase.class), methodMatcher,
-                new ObjectDatabasePutInterceptor(getProvider(GraphDatabase.class)));
+                new ObjectDatabasePutInterceptor(getProvider(GraphDatabase.class),
+                        getProvider(CommitMetadataIndex.class)));
     }
 }
@@ -7,10 +7,12 @@ package org.geogit.di;
 
 import org.geogit.api.AbstractGeoGitOp;
 import org.geogit.api.CommandLocator;
+import org.geogit.api.GeogitTransaction;
 import org.geogit.repository.StagingArea;
 import org.geogit.repository.WorkingTree;
 import org.geogit.storage.RefDatabase;
 
+import com.google.inject.Guice;
 import com.google.inject.Inject;
 import com.google.inject.Injector;
 
@@ -46,6 +48,18 @@ public class GuiceCommandLocator implements CommandLocator {
         return instance;
     }
 
+    /**
+     * Creates the injector of the commands run in the given transaction, which resolves their
+     * dependencies on the repository's storage to the transaction's.
+     * 
+     * @param transaction the transaction
+     * @return the injector, for the transaction only
+     * @see TransactionModule
+     */
+    public Injector createTransactionInjector(GeogitTransaction transaction) {
+        return Guice.createInjector(new TransactionModule(injector, transaction));
+    }
+
     @Override
     public WorkingTree getWorkingTree() {
         return injector.getInstance(WorkingTree.class);
@@ -0,0 +1,78 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.di;
+
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.geogit.api.CommandLocator;
+import org.geogit.api.GeogitTransaction;
+import org.geogit.repository.StagingArea;
+import org.geogit.repository.WorkingTree;
+import org.geogit.storage.RefDatabase;
+import org.geogit.storage.StagingDatabase;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.inject.AbstractModule;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Stage;
+import com.google.inject.util.Providers;
+
+/**
+ * Provides the bindings of the commands run in a {@link GeogitTransaction}: the command locator,
+ * staging area, staging database, working tree and ref database are the transaction's, and
+ * everything else is resolved by the repository's injector.
+ * <p>
+ * Guice doesn't let a child injector override the bindings of its parent, so the transaction's
+ * injector is a standalone one that delegates each of the repository injector's bindings to it,
+ * except those overridden here.
+ *
+ * @see GuiceCommandLocator#createTransactionInjector(GeogitTransaction)
+ */
+class TransactionModule extends AbstractModule {
+
+    private static final Set<Key<?>> OVERRIDDEN = ImmutableSet.<Key<?>> of(
+            Key.get(CommandLocator.class), Key.get(StagingArea.class),
+            Key.get(StagingDatabase.class), Key.get(WorkingTree.class),
+            Key.get(RefDatabase.class));
+
+    private final Injector repositoryInjector;
+
+    private final GeogitTransaction transaction;
+
+    TransactionModule(Injector repositoryInjector, GeogitTransaction transaction) {
+        this.repositoryInjector = repositoryInjector;
+        this.transaction = transaction;
+    }
+
+    @Override
+    protected void configure() {
+        for (Key<?> key : repositoryInjector.getBindings().keySet()) {
+            Class<?> type = key.getTypeLiteral().getRawType();
+            if (OVERRIDDEN.contains(key) || Injector.class.equals(type)
+                    || Logger.class.equals(type) || Stage.class.equals(type)) {
+                // either overridden or bound by every injector
+                continue;
+            }
+            delegate(key);
+        }
+
+        // bound to providers rather than instances, which Guice would inject members into
+        bind(CommandLocator.class).toProvider(Providers.<CommandLocator> of(transaction));
+        bind(StagingArea.class).toProvider(Providers.of(transaction.getIndex()));
+        bind(StagingDatabase.class).toProvider(Providers.of(transaction.getIndex().getDatabase()));
+        bind(WorkingTree.class).toProvider(Providers.of(transaction.getWorkingTree()));
+        bind(RefDatabase.class).toProvider(Providers.of(transaction.getRefDatabase()));
+
+        // the repository's interceptors only apply to the commands its own injector creates
+        GeogitModule.bindConflictCheckingInterceptor(binder());
+        GeogitModule.bindWorkTreeJournalInterceptor(binder());
+    }
+
+    private <T> void delegate(Key<T> key) {
+        bind(key).toProvider(repositoryInjector.getProvider(key));
+    }
+}
@@ -4,16 +4,26 @@
  */
 package org.geogit.remote;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import javax.annotation.Nullable;
 
@@ -24,20 +34,147 @@ import org.geogit.api.RevFeatureType;
 import org.geogit.api.RevObject;
 import org.geogit.api.RevTree;
 import org.geogit.repository.PostOrderIterator;
+import org.geogit.repository.SharedExecutor;
+import org.geogit.storage.BitmapIndex;
 import org.geogit.storage.Deduplicator;
 import org.geogit.storage.ObjectDatabase;
 import org.geogit.storage.ObjectReader;
 import org.geogit.storage.ObjectSerializingFactory;
 import org.geogit.storage.ObjectWriter;
+import org.geogit.storage.ReachabilityBitmap;
 import org.geogit.storage.datastream.DataStreamSerializationFactory;
 
 import com.google.common.base.Function;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.Iterators;
+import com.google.common.io.CountingOutputStream;
+import com.ning.compress.lzf.LZFInputStream;
+import com.ning.compress.lzf.LZFOutputStream;
 
+/**
+ * Packs the objects needed to go from a set of commits to another into a binary stream, and
+ * ingests such streams.
+ * <p>
+ * Two stream {@link Format formats} are supported. The {@link Format#LEGACY legacy} one is just a
+ * sequence of raw object ids, each followed by the serialized object. The {@link Format#FRAMED
+ * framed} ones start with a header made of the {@code GGPK} magic bytes, a version byte and a flags
+ * byte telling whether the rest of the stream is LZF compressed, followed by a sequence of records
+ * made of the object type byte, the raw object id, the length of the serialized object as an int
+ * and the serialized object itself, terminated by an end of stream marker. Framing allows the
+ * receiving end to skip objects it already has without decoding them, and to tell a truncated
+ * stream from a complete one.
+ * <p>
+ * Each {@link #write written} stream carries a batch of whole commits, whose size is bounded by a
+ * number of serialized bytes and a number of objects, see {@link #setBatchLimits(long, int)}. The
+ * receiving end asks for more until it has all the commits it wants. When
+ * {@link #setReportProgress(boolean) asked to}, framed streams also carry progress records after
+ * each commit, telling how many commits, objects and bytes were written so far, which are handed
+ * to the {@link ProgressCallback} given at ingestion.
+ */
 public final class BinaryPackedObjects {
+
+    /**
+     * Pack stream formats
+     */
+    public static enum Format {
+        /**
+         * Unframed, uncompressed stream, understood by all versions
+         */
+        LEGACY,
+        /**
+         * Framed, uncompressed stream
+         */
+        FRAMED,
+        /**
+         * Framed stream with LZF compressed records
+         */
+        FRAMED_COMPRESSED;
+
+        /**
+         * @return whether streams in this format are framed
+         */
+        public boolean isFramed() {
+            return this != LEGACY;
+        }
+
+        /**
+         * Resolves the format requested by a client, falling back to {@link #LEGACY} for clients
+         * that don't request any format or request an unknown one.
+         * 
+         * @param name the name of the requested format, or {@code null}
+         * @return the format to use
+         */
+        public static Format negotiate(@Nullable String name) {
+            if (name != null) {
+                for (Format format : values()) {
+                    if (format.name().equals(name)) {
+                        return format;
+                    }
+                }
+            }
+            return LEGACY;
+        }
+    }
+
+    /**
+     * Name of the request parameter a client uses to ask for a pack stream {@link Format format}
+     */
+    public static final String FORMAT_PARAM = "packFormat";
+
+    /**
+     * Media type of {@link Format#isFramed() framed} pack streams, used by servers to tell clients
+     * that they honored the requested format
+     */
+    public static final String FRAMED_MEDIA_TYPE = "application/x-geogit-packed-framed";
+
+    /**
+     * Name of the request parameter a client uses to ask for a batch size in bytes, see
+     * {@link #setBatchLimits(long, int)}
+     */
+    public static final String BATCH_BYTES_PARAM = "batchBytes";
+
+    /**
+     * Name of the request parameter a client uses to ask for progress records in framed streams,
+     * see {@link #setReportProgress(boolean)}
+     */
+    public static final String PROGRESS_PARAM = "progress";
+
+    /**
+     * Default number of serialized bytes after which a batch is ended, at the next commit
+     */
+    public static final long DEFAULT_BATCH_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Maximum batch size in bytes a client can ask for
+     */
+    public static final long MAX_BATCH_BYTES = 128 * 1024 * 1024;
+
+    /**
+     * Default number of objects after which a batch is ended, at the next commit
+     */
+    public static final int DEFAULT_BATCH_OBJECTS = 100000;
+
+    private static final byte[] FRAMED_MAGIC = { 'G', 'G', 'P', 'K' };
+
+    private static final int FRAMED_VERSION = 1;
+
+    /**
+     * Version of the framed streams that carry progress records, which version 1 readers don't
+     * understand
+     */
+    private static final int FRAMED_PROGRESS_VERSION = 2;
+
+    private static final int PROGRESS = 0xFE;
+
+    private static final int FLAG_COMPRESSED = 0x01;
+
+    private static final int END_OF_STREAM = 0xFF;
+
     private final ObjectWriter<RevCommit> commitWriter;
 
     private final ObjectWriter<RevTree> treeWriter;
@@ -48,12 +185,30 @@ public final class BinaryPackedObjects {
 
     private final ObjectReader<RevObject> objectReader;
 
-    private final int CAP = 100;
+    private long batchBytes = DEFAULT_BATCH_BYTES;
+
+    private int batchObjects = DEFAULT_BATCH_OBJECTS;
+
+    private boolean reportProgress;
 
     private final ObjectDatabase database;
 
+    @Nullable
+    private final BitmapIndex bitmaps;
+
     public BinaryPackedObjects(ObjectDatabase database) {
+        this(database, null);
+    }
+
+    /**
+     * @param database the database to read objects from and write them to
+     * @param bitmaps if provided, the reachability bitmaps used to compute the objects the
+     *        receiving end already has without traversing them, when bitmaps are available for all
+     *        the commits involved
+     */
+    public BinaryPackedObjects(ObjectDatabase database, @Nullable BitmapIndex bitmaps) {
         this.database = database;
+        this.bitmaps = bitmaps;
         final ObjectSerializingFactory factory = new DataStreamSerializationFactory();
         this.commitWriter = factory.createObjectWriter(RevObject.TYPE.COMMIT);
         this.treeWriter = factory.createObjectWriter(RevObject.TYPE.TREE);
@@ -62,13 +217,48 @@ public final class BinaryPackedObjects {
         this.objectReader = factory.createObjectReader();
     }
 
+    /**
+     * Sets the size of the batches written by each call to {@link #write}, which end with the
+     * first commit written after either limit is reached. A batch always has at least one commit.
+     * 
+     * @param maxBytes the number of serialized bytes, capped to {@link #MAX_BATCH_BYTES}
+     * @param maxObjects the number of objects
+     */
+    public void setBatchLimits(long maxBytes, int maxObjects) {
+        Preconditions.checkArgument(maxBytes > 0, "batch size in bytes must be positive");
+        Preconditions.checkArgument(maxObjects > 0, "batch size in objects must be positive");
+        this.batchBytes = Math.min(maxBytes, MAX_BATCH_BYTES);
+        this.batchObjects = maxObjects;
+    }
+
+    /**
+     * @param reportProgress whether to write progress records in {@link Format#isFramed() framed}
+     *        streams, which only clients that ask for them understand
+     */
+    public void setReportProgress(boolean reportProgress) {
+        this.reportProgress = reportProgress;
+    }
+
     public void write(OutputStream out, List<ObjectId> want, List<ObjectId> have,
             boolean traverseCommits, Deduplicator deduplicator) throws IOException {
-        write(out, want, have, new HashSet<ObjectId>(), DEFAULT_CALLBACK, traverseCommits, deduplicator);
+        write(out, want, have, traverseCommits, deduplicator, Format.LEGACY);
+    }
+
+    public void write(OutputStream out, List<ObjectId> want, List<ObjectId> have,
+            boolean traverseCommits, Deduplicator deduplicator, Format format) throws IOException {
+        write(out, want, have, new HashSet<ObjectId>(), DEFAULT_CALLBACK, traverseCommits,
+                deduplicator, format);
     }
 
     public <T> T write(OutputStream out, List<ObjectId> want, List<ObjectId> have,
             Set<ObjectId> sent, Callback<T> callback, boolean traverseCommits, Deduplicator deduplicator) throws IOException {
+        return write(out, want, have, sent, callback, traverseCommits, deduplicator,
+                Format.LEGACY);
+    }
+
+    public <T> T write(OutputStream out, List<ObjectId> want, List<ObjectId> have,
+            Set<ObjectId> sent, Callback<T> callback, boolean traverseCommits,
+            Deduplicator deduplicator, Format format) throws IOException {
         T state = null;
         for (ObjectId i : want) {
             if (!database.exists(i)) {
@@ -79,32 +269,125 @@ public final class BinaryPackedObjects {
         ImmutableList<ObjectId> needsPrevisit = traverseCommits ? scanForPrevisitList(want, have, deduplicator)
                 : ImmutableList.copyOf(have);
         deduplicator.reset();
-        ImmutableList<ObjectId> previsitResults = reachableContentIds(needsPrevisit, deduplicator);
-        deduplicator.reset();
+        Optional<Set<ObjectId>> previsitBitmap = reachableFromBitmaps(needsPrevisit);
+        Iterator<RevObject> objects;
+        if (previsitBitmap.isPresent()) {
+            objects = PostOrderIterator.range(want, previsitBitmap.get(), database,
+                    traverseCommits, deduplicator);
+        } else {
+            ImmutableList<ObjectId> previsitResults = reachableContentIds(needsPrevisit,
+                    deduplicator);
+            deduplicator.reset();
+            objects = PostOrderIterator.range(want, new ArrayList<ObjectId>(previsitResults),
+                    database, traverseCommits, deduplicator);
+        }
 
         int commitsSent = 0;
-        Iterator<RevObject> objects = PostOrderIterator.range(want, new ArrayList<ObjectId>(
-                previsitResults), database, traverseCommits, deduplicator);
-        while (objects.hasNext() && commitsSent < CAP) {
-            RevObject object = objects.next();
+        long objectsSent = 0;
+        long bytesSent = 0;
+        if (format.isFramed()) {
+            DataOutputStream framedOut = writeHeader(out, format);
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            while (objects.hasNext()) {
+                RevObject object = objects.next();
+
+                buffer.reset();
+                writeObject(object, buffer);
+                framedOut.writeByte(object.getType().value());
+                framedOut.write(object.getId().getRawValue());
+                framedOut.writeInt(buffer.size());
+                buffer.writeTo(framedOut);
+                objectsSent++;
+                bytesSent += buffer.size();
+                state = callback.callback(object, state);
+                if (object instanceof RevCommit) {
+                    commitsSent++;
+                    if (reportProgress) {
+                        writeProgress(framedOut, commitsSent, objectsSent, bytesSent);
+                    }
+                    if (batchFull(objectsSent, bytesSent)) {
+                        break;
+                    }
+                }
+            }
+            framedOut.writeByte(END_OF_STREAM);
+            framedOut.flush();
+        } else {
+            CountingOutputStream countingOut = new CountingOutputStream(out);
+            while (objects.hasNext()) {
+                RevObject object = objects.next();
 
-            out.write(object.getId().getRawValue());
-            if (object instanceof RevCommit) {
-                commitWriter.write((RevCommit) object, out);
-                commitsSent++;
-            } else if (object instanceof RevTree) {
-                treeWriter.write((RevTree) object, out);
-            } else if (object instanceof RevFeature) {
-                featureWriter.write((RevFeature) object, out);
-            } else if (object instanceof RevFeatureType) {
-                featureTypeWriter.write((RevFeatureType) object, out);
+                countingOut.write(object.getId().getRawValue());
+                writeObject(object, countingOut);
+                objectsSent++;
+                state = callback.callback(object, state);
+                if (object instanceof RevCommit) {
+                    if (batchFull(objectsSent, countingOut.getCount())) {
+                        break;
+                    }
+                }
             }
-            state = callback.callback(object, state);
         }
 
         return state;
     }
 
+    private void writeObject(RevObject object, OutputStream out) throws IOException {
+        if (object instanceof RevCommit) {
+            commitWriter.write((RevCommit) object, out);
+        } else if (object instanceof RevTree) {
+            treeWriter.write((RevTree) object, out);
+        } else if (object instanceof RevFeature) {
+            featureWriter.write((RevFeature) object, out);
+        } else if (object instanceof RevFeatureType) {
+            featureTypeWriter.write((RevFeatureType) object, out);
+        }
+    }
+
+    private boolean batchFull(long objectsSent, long bytesSent) {
+        return objectsSent >= batchObjects || bytesSent >= batchBytes;
+    }
+
+    private void writeProgress(DataOutputStream out, int commits, long objects, long bytes)
+            throws IOException {
+        out.writeByte(PROGRESS);
+        out.writeInt(commits);
+        out.writeLong(objects);
+        out.writeLong(bytes);
+    }
+
+    /**
+     * Writes the header of a framed stream and returns the stream records shall be written to.
+     */
+    private DataOutputStream writeHeader(OutputStream out, Format format) throws IOException {
+        final boolean compressed = format == Format.FRAMED_COMPRESSED;
+        out.write(FRAMED_MAGIC);
+        out.write(reportProgress ? FRAMED_PROGRESS_VERSION : FRAMED_VERSION);
+        out.write(compressed ? FLAG_COMPRESSED : 0);
+        return new DataOutputStream(compressed ? new LZFOutputStream(out) : out);
+    }
+
+    /**
+     * Reads the header of a framed stream and returns the stream records shall be read from.
+     */
+    private DataInputStream readHeader(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        byte[] magic = new byte[FRAMED_MAGIC.length];
+        data.readFully(magic);
+        if (!Arrays.equals(FRAMED_MAGIC, magic)) {
+            throw new IOException("Not a framed pack stream");
+        }
+        final int version = data.readUnsignedByte();
+        if (version != FRAMED_VERSION && version != FRAMED_PROGRESS_VERSION) {
+            throw new IOException("Unsupported pack stream version: " + version);
+        }
+        final int flags = data.readUnsignedByte();
+        if ((flags & FLAG_COMPRESSED) != 0) {
+            data = new DataInputStream(new LZFInputStream(in));
+        }
+        return data;
+    }
+
     /**
      * Find commits which should be previsited to avoid resending objects that are already on the
      * receiving end. A commit should be previsited if:
@@ -145,40 +428,301 @@ public final class BinaryPackedObjects {
         };
 
         Iterator<ObjectId> reachable = Iterators.transform( //
-                PostOrderIterator.contentsOf(needsPrevisit, database, deduplicator), //
+                PostOrderIterator.contentsOf(needsPrevisit, database, deduplicator, true), //
                 getIdTransformer);
         return ImmutableList.copyOf(reachable);
     }
 
+    /**
+     * Computes the union of the reachability bitmaps of the given commits, as a replacement for
+     * {@link #reachableContentIds}.
+     * 
+     * @return the set of objects reachable from the given commits, or {@link Optional#absent()} if
+     *         there's no bitmap index or some commit has no bitmap
+     */
+    private Optional<Set<ObjectId>> reachableFromBitmaps(List<ObjectId> commits) {
+        if (bitmaps == null || !bitmaps.isOpen()) {
+            return Optional.absent();
+        }
+        ReachabilityBitmap union = new ReachabilityBitmap();
+        for (ObjectId commitId : commits) {
+            Optional<ReachabilityBitmap> bitmap = bitmaps.getBitmap(commitId);
+            if (!bitmap.isPresent()) {
+                return Optional.absent();
+            }
+            union.or(bitmap.get());
+        }
+        Set<ObjectId> set = new BitmapObjectSet(union, bitmaps);
+        return Optional.of(set);
+    }
+
+    /**
+     * A read only view of the objects set in a {@link ReachabilityBitmap}
+     */
+    private static class BitmapObjectSet extends AbstractSet<ObjectId> {
+
+        private final ReachabilityBitmap bitmap;
+
+        private final BitmapIndex index;
+
+        private final int size;
+
+        public BitmapObjectSet(ReachabilityBitmap bitmap, BitmapIndex index) {
+            this.bitmap = bitmap;
+            this.index = index;
+            this.size = bitmap.cardinality();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return o instanceof ObjectId && bitmap.get(index.ordinal((ObjectId) o));
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Iterator<ObjectId> iterator() {
+            return new AbstractIterator<ObjectId>() {
+
+                private int next = bitmap.nextSetBit(0);
+
+                @Override
+                protected ObjectId computeNext() {
+                    if (next < 0) {
+                        return endOfData();
+                    }
+                    ObjectId id = index.objectAt(next);
+                    next = bitmap.nextSetBit(next + 1);
+                    return id;
+                }
+            };
+        }
+    }
+
     public void ingest(final InputStream in) {
         ingest(in, DEFAULT_CALLBACK);
     }
 
     public <T> T ingest(final InputStream in, Callback<T> callback) {
-        T state = null;
+        return ingest(in, callback, Format.LEGACY);
+    }
+
+    /**
+     * Ingests a pack stream in the given format. For {@link Format#isFramed() framed} formats the
+     * stream header tells whether it is compressed, so any framed format can be given.
+     * <p>
+     * Objects are decoded on the calling thread and gathered in batches, whose existence is checked
+     * with a single {@link ObjectDatabase#existing(Iterable) lookup}, and whose missing objects are
+     * stored with {@link ObjectDatabase#putAll(Iterator)} on a background thread while the next
+     * batch is being read. The callback is called for each missing object before it's stored, and
+     * all objects are stored by the time this method returns, even if it fails. Batches are stored
+     * in order, and the commits of each batch after its other objects. Since streams are in post
+     * order, a stored commit always has all its contents stored.
+     */
+    public <T> T ingest(final InputStream in, Callback<T> callback, Format format) {
+        return ingest(in, callback, format, null);
+    }
+
+    /**
+     * Ingests a pack stream in the given format, handing the progress records of framed streams,
+     * if any, to the given progress callback.
+     * 
+     * @see #ingest(InputStream, Callback, Format)
+     */
+    public <T> T ingest(final InputStream in, Callback<T> callback, Format format,
+            @Nullable ProgressCallback progress) {
+        Ingester<T> ingester = new Ingester<T>(callback);
+        try {
+            if (format.isFramed()) {
+                ingestFramed(in, ingester, progress);
+            } else {
+                ingestLegacy(in, ingester);
+            }
+            return ingester.finish();
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        } finally {
+            ingester.close();
+        }
+    }
+
+    private void ingestLegacy(final InputStream in, Ingester<?> ingester) throws IOException {
         while (true) {
+            ObjectId id;
+            RevObject revObj;
             try {
-                state = ingestOne(in, callback, state);
+                id = readObjectId(in);
+                revObj = objectReader.read(id, in);
             } catch (EOFException e) {
                 break;
-            } catch (IOException e) {
-                Throwables.propagate(e);
             }
+            ingester.add(id, revObj, 0);
         }
-        return state;
     }
 
-    private <T> T ingestOne(final InputStream in, Callback<T> callback, T state) throws IOException {
-        ObjectId id = readObjectId(in);
-        RevObject revObj = objectReader.read(id, in);
-        final T result;
-        if (!database.exists(id)) {
-            result = callback.callback(revObj, state);
-            database.put(revObj);
-        } else {
-            result = state;
+    private void ingestFramed(final InputStream in, Ingester<?> ingester,
+            @Nullable ProgressCallback progress) throws IOException {
+        final DataInputStream data = readHeader(in);
+        while (true) {
+            final int type = data.readUnsignedByte();
+            if (type == END_OF_STREAM) {
+                break;
+            }
+            if (type == PROGRESS) {
+                final int commits = data.readInt();
+                final long objects = data.readLong();
+                final long bytes = data.readLong();
+                if (progress != null) {
+                    progress.progress(commits, objects, bytes);
+                }
+                continue;
+            }
+            byte[] rawId = new byte[ObjectId.NUM_BYTES];
+            data.readFully(rawId);
+            final ObjectId id = ObjectId.createNoClone(rawId);
+            final int length = data.readInt();
+            byte[] payload = new byte[length];
+            data.readFully(payload);
+            // decoding is deferred until the batch is checked for existing objects
+            ingester.add(id, payload, length);
+        }
+    }
+
+    /**
+     * Maximum number of objects per ingestion batch
+     */
+    private static final int INGEST_BATCH_SIZE = 1000;
+
+    /**
+     * Maximum number of encoded bytes held per ingestion batch
+     */
+    private static final int INGEST_BATCH_BYTES = 8 * 1024 * 1024;
+
+    /**
+     * Gathers ingested objects in batches and stores each batch while the next one is read.
+     * <p>
+     * Batch entries are either decoded {@link RevObject}s or encoded objects to be decoded only if
+     * they're missing from the database.
+     */
+    private class Ingester<T> {
+
+        private final Callback<T> callback;
+
+        private T state;
+
+        private final Map<ObjectId, Object> batch = new LinkedHashMap<ObjectId, Object>();
+
+        private int batchBytes;
+
+        private Future<?> pendingWrite;
+
+        /**
+         * Ids of the objects being stored by {@link #pendingWrite}, which existence checks can't
+         * see yet
+         */
+        private Set<ObjectId> pendingIds = ImmutableSet.of();
+
+        Ingester(Callback<T> callback) {
+            this.callback = callback;
+        }
+
+        void add(ObjectId id, Object object, int size) throws IOException {
+            batch.put(id, object);
+            batchBytes += size;
+            if (batch.size() >= INGEST_BATCH_SIZE || batchBytes >= INGEST_BATCH_BYTES) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            if (batch.isEmpty()) {
+                return;
+            }
+            final Set<ObjectId> existing = database.existing(batch.keySet());
+            final List<RevObject> missing = new ArrayList<RevObject>(batch.size());
+            for (Map.Entry<ObjectId, Object> entry : batch.entrySet()) {
+                final ObjectId id = entry.getKey();
+                if (existing.contains(id) || pendingIds.contains(id)) {
+                    continue;
+                }
+                RevObject revObj;
+                if (entry.getValue() instanceof RevObject) {
+                    revObj = (RevObject) entry.getValue();
+                } else {
+                    byte[] payload = (byte[]) entry.getValue();
+                    revObj = objectReader.read(id, new ByteArrayInputStream(payload));
+                }
+                state = callback.callback(revObj, state);
+                missing.add(revObj);
+            }
+            batch.clear();
+            batchBytes = 0;
+
+            awaitPendingWrite();
+            if (!missing.isEmpty()) {
+                Set<ObjectId> ids = new HashSet<ObjectId>();
+                final List<RevObject> commits = new ArrayList<RevObject>();
+                final List<RevObject> contents = new ArrayList<RevObject>(missing.size());
+                for (RevObject o : missing) {
+                    ids.add(o.getId());
+                    if (o instanceof RevCommit) {
+                        commits.add(o);
+                    } else {
+                        contents.add(o);
+                    }
+                }
+                pendingIds = ids;
+                pendingWrite = SharedExecutor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        // store commits after their contents, so that an interrupted ingestion
+                        // never leaves a commit whose contents are missing
+                        database.putAll(contents.iterator());
+                        database.putAll(commits.iterator());
+                    }
+                });
+            }
+        }
+
+        private void awaitPendingWrite() {
+            if (pendingWrite == null) {
+                return;
+            }
+            try {
+                pendingWrite.get();
+            } catch (InterruptedException e) {
+                throw Throwables.propagate(e);
+            } catch (ExecutionException e) {
+                throw Throwables.propagate(e.getCause());
+            } finally {
+                pendingWrite = null;
+                pendingIds = ImmutableSet.of();
+            }
+        }
+
+        T finish() throws IOException {
+            flush();
+            awaitPendingWrite();
+            return state;
+        }
+
+        /**
+         * Makes sure no write is left running in the background, even on failure
+         */
+        void close() {
+            if (pendingWrite != null) {
+                try {
+                    pendingWrite.get();
+                } catch (Exception e) {
+                    // the original failure is being propagated already
+                } finally {
+                    pendingWrite = null;
+                }
+            }
         }
-        return result;
     }
 
     private ObjectId readObjectId(final InputStream in) throws IOException {
@@ -201,6 +745,18 @@ public final class BinaryPackedObjects {
         public abstract T callback(RevObject object, T state);
     }
 
+    /**
+     * Receives the progress records of framed streams, see {@link #setReportProgress(boolean)}
+     */
+    public static interface ProgressCallback {
+        /**
+         * @param commits the number of commits written so far
+         * @param objects the number of objects written so far, commits included
+         * @param bytes the number of serialized bytes written so far, before compression
+         */
+        public void progress(int commits, long objects, long bytes);
+    }
+
     private static final Callback<Void> DEFAULT_CALLBACK = new Callback<Void>() {
         @Override
         public Void callback(RevObject object, Void state) {
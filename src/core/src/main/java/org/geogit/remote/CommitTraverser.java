@@ -5,9 +5,11 @@
 
 package org.geogit.remote;
 
+import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.Stack;
 
@@ -27,6 +29,12 @@ abstract class CommitTraverser {
 
     public List<ObjectId> have;
 
+    /**
+     * Parents of the applied commits, kept after the traversal so callers can tell how the commits
+     * in {@link #commits} relate to each other
+     */
+    public Map<ObjectId, ImmutableList<ObjectId>> parents;
+
     private Hashtable<ObjectId, ImmutableList<ObjectId>> commitParents;
 
     /**
@@ -100,6 +108,7 @@ abstract class CommitTraverser {
     public CommitTraverser() {
         commits = new Stack<ObjectId>();
         have = new LinkedList<ObjectId>();
+        parents = new HashMap<ObjectId, ImmutableList<ObjectId>>();
         commitParents = new Hashtable<ObjectId, ImmutableList<ObjectId>>();
     }
 
@@ -123,6 +132,7 @@ abstract class CommitTraverser {
         }
 
         commits.add(commitNode.getObjectId());
+        this.parents.put(commitNode.getObjectId(), parents);
     }
 
     /**
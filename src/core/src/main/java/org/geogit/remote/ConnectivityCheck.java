@@ -0,0 +1,152 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.remote;
+
+import java.util.Iterator;
+import java.util.Set;
+
+import org.geogit.api.Bucket;
+import org.geogit.api.Node;
+import org.geogit.api.ObjectId;
+import org.geogit.api.RevCommit;
+import org.geogit.api.RevObject;
+import org.geogit.api.RevTag;
+import org.geogit.api.RevTree;
+import org.geogit.api.plumbing.HashObject;
+import org.geogit.storage.Deduplicator;
+import org.geogit.storage.ObjectDatabase;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+
+/**
+ * Validates the objects of a push as they are {@link BinaryPackedObjects#ingest ingested}, so that
+ * the pushed refs can be rejected if their history is incomplete, without traversing it afterwards.
+ * <p>
+ * Each ingested object's id is recomputed and checked against the one it was sent with. The ids
+ * of the ingested objects are kept in a {@link Deduplicator}, and the objects they reference that
+ * were not ingested before them are kept as pending. Since pack streams are in post order, most
+ * references are to objects ingested before, and the pending ones are mostly unchanged objects
+ * the receiving end already has, which are looked up in the database in batches.
+ */
+public class ConnectivityCheck implements BinaryPackedObjects.Callback<Void> {
+
+    /**
+     * Number of pending references after which they're looked up in the database
+     */
+    private static final int PENDING_THRESHOLD = 10000;
+
+    private final ObjectDatabase database;
+
+    private final Deduplicator received;
+
+    private Set<ObjectId> pending = Sets.newHashSet();
+
+    private ObjectId corrupt;
+
+    /**
+     * @param database the database objects are ingested into
+     * @param received the deduplicator to keep track of the ingested objects with, released by
+     *        {@link #release()}
+     */
+    public ConnectivityCheck(ObjectDatabase database, Deduplicator received) {
+        this.database = database;
+        this.received = received;
+    }
+
+    /**
+     * Checks the given object's id and records its references.
+     *
+     * @throws IllegalArgumentException if the object's contents don't hash to its id
+     */
+    @Override
+    public synchronized Void callback(RevObject object, Void state) {
+        final ObjectId id = object.getId();
+        final ObjectId hash = new HashObject().setObject(object).call();
+        if (!hash.equals(id)) {
+            if (corrupt == null) {
+                corrupt = id;
+            }
+            throw new IllegalArgumentException("Object " + id + " was received corrupted, "
+                    + "its contents hash to " + hash);
+        }
+        received.visit(id);
+        pending.remove(id);
+
+        switch (object.getType()) {
+        case COMMIT:
+            RevCommit commit = (RevCommit) object;
+            reference(commit.getTreeId());
+            for (ObjectId parentId : commit.getParentIds()) {
+                reference(parentId);
+            }
+            break;
+        case TREE:
+            RevTree tree = (RevTree) object;
+            if (tree.buckets().isPresent()) {
+                for (Bucket bucket : tree.buckets().get().values()) {
+                    reference(bucket.id());
+                }
+            }
+            Iterator<Node> children = tree.children();
+            while (children.hasNext()) {
+                Node node = children.next();
+                reference(node.getObjectId());
+                if (node.getMetadataId().isPresent()) {
+                    reference(node.getMetadataId().get());
+                }
+            }
+            break;
+        case TAG:
+            reference(((RevTag) object).getCommitId());
+            break;
+        default:
+            break;
+        }
+        if (pending.size() >= PENDING_THRESHOLD) {
+            resolvePending();
+        }
+        return null;
+    }
+
+    private void reference(ObjectId id) {
+        if (!id.isNull() && !received.isDuplicate(id)) {
+            pending.add(id);
+        }
+    }
+
+    private void resolvePending() {
+        pending.removeAll(database.existing(pending));
+    }
+
+    /**
+     * Returns the objects referenced by the ingested objects, or the given ones, that are neither
+     * ingested nor in the database. The result is empty when everything ingested so far, and the
+     * given objects, have their whole history in the database.
+     *
+     * @param tips ids of objects that are expected to have been ingested or to exist already, like
+     *        the new values of the pushed refs
+     * @return the missing objects
+     * @throws IllegalStateException if a corrupted object was received
+     */
+    public synchronized Set<ObjectId> missing(Iterable<ObjectId> tips) {
+        if (corrupt != null) {
+            throw new IllegalStateException("Object " + corrupt + " was received corrupted");
+        }
+        for (ObjectId tip : tips) {
+            reference(tip);
+        }
+        resolvePending();
+        return ImmutableSet.copyOf(pending);
+    }
+
+    /**
+     * Releases the resources held by this check, after which it shall no longer be used.
+     */
+    public synchronized void release() {
+        pending = Sets.newHashSet();
+        received.release();
+    }
+}
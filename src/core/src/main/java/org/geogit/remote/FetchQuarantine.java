@@ -0,0 +1,475 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.remote;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.geogit.api.ObjectId;
+import org.geogit.api.RevCommit;
+import org.geogit.api.RevObject;
+import org.geogit.api.RevObject.TYPE;
+import org.geogit.api.plumbing.ResolveGeogitDir;
+import org.geogit.repository.Repository;
+import org.geogit.storage.AbstractObjectDatabase;
+import org.geogit.storage.ObjectDatabase;
+import org.geogit.storage.datastream.DataStreamSerializationFactory;
+import org.geogit.storage.datastream.FormatCommon;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Sets;
+import com.google.common.io.Closeables;
+import com.ning.compress.lzf.LZFInputStream;
+
+/**
+ * A persistent area where the objects fetched from a remote are kept until the fetch completes,
+ * so that a failed fetch doesn't leave partial history in the repository and can be resumed
+ * instead of starting over.
+ * <p>
+ * The quarantine lives in the {@code quarantine/<remote hash>} directory of the repository, and is
+ * made of an append only log of the fetched objects and a checkpoint file listing the commits that
+ * were fully received. A truncated record at the end of either file, as left by an interrupted
+ * fetch, is discarded when the quarantine is opened.
+ * <p>
+ * On success, the quarantined objects are {@link #promote() promoted} to the repository's object
+ * database, and the quarantine is deleted. Promotion is not atomic, since the object database has
+ * no transactions, but it is ordered so that an interrupted promotion leaves the repository
+ * consistent: all other objects are promoted before any commit, and commits after their parents,
+ * so that a commit in the repository always has all its contents and history. The quarantine is
+ * only deleted once promotion completes, so the next fetch promotes whatever was left over.
+ */
+class FetchQuarantine {
+
+    private final ObjectDatabase repositoryDb;
+
+    private final File directory;
+
+    private final QuarantineDatabase database;
+
+    private final RandomAccessFile checkpointFile;
+
+    private final Set<ObjectId> checkpoint = Sets.newHashSet();
+
+    private FetchQuarantine(ObjectDatabase repositoryDb, File directory) throws IOException {
+        this.repositoryDb = repositoryDb;
+        this.directory = directory;
+        this.database = new QuarantineDatabase(new File(directory, "objects"), repositoryDb);
+        this.database.open();
+        this.checkpointFile = new RandomAccessFile(new File(directory, "checkpoint"), "rw");
+        final int recordLength = ObjectId.NUM_BYTES;
+        final long complete = checkpointFile.length() - checkpointFile.length() % recordLength;
+        checkpointFile.setLength(complete);
+        byte[] raw = new byte[recordLength];
+        for (long offset = 0; offset < complete; offset += recordLength) {
+            checkpointFile.readFully(raw);
+            checkpoint.add(ObjectId.createNoClone(raw.clone()));
+        }
+    }
+
+    /**
+     * Opens the quarantine for the fetches from the given remote, creating it if needed.
+     *
+     * @param localRepository the repository objects are being fetched into
+     * @param remote an identifier of the remote objects are being fetched from
+     * @return the quarantine, holding the objects of any previous interrupted fetch from the same
+     *         remote
+     */
+    public static FetchQuarantine open(Repository localRepository, String remote) {
+        final URL repoUrl = localRepository.command(ResolveGeogitDir.class).call();
+        Preconditions.checkState(repoUrl != null, "Can't find geogit repository home");
+        File directory;
+        try {
+            directory = new File(new File(new File(repoUrl.toURI()), "quarantine"), ObjectId
+                    .forString(remote).toString());
+        } catch (URISyntaxException e) {
+            throw Throwables.propagate(e);
+        }
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IllegalStateException("Can't create quarantine directory: "
+                    + directory.getAbsolutePath());
+        }
+        try {
+            return new FetchQuarantine(localRepository.getObjectDatabase(), directory);
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    /**
+     * @return the database fetched objects shall be written to. Its existence checks also look
+     *         into the repository's object database, so objects already in the repository are not
+     *         fetched again
+     */
+    public ObjectDatabase getDatabase() {
+        return database;
+    }
+
+    /**
+     * @return the commits recorded as fully received by previous calls to
+     *         {@link #checkpoint(List)}, including those of previous fetches
+     */
+    public synchronized ImmutableSet<ObjectId> getCheckpoint() {
+        return ImmutableSet.copyOf(checkpoint);
+    }
+
+    /**
+     * Records the given commits as fully received, after making sure they and all the objects
+     * quarantined so far are on disk.
+     *
+     * @param commits the commits whose contents were all received
+     */
+    public synchronized void checkpoint(List<ObjectId> commits) {
+        Set<ObjectId> received = database.existing(commits);
+        for (ObjectId commitId : commits) {
+            Preconditions.checkState(received.contains(commitId),
+                    "Commit %s was not received", commitId);
+        }
+        try {
+            database.sync();
+            checkpointFile.seek(checkpointFile.length());
+            for (ObjectId commitId : commits) {
+                checkpointFile.write(commitId.getRawValue());
+            }
+            checkpointFile.getFD().sync();
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+        checkpoint.addAll(commits);
+    }
+
+    /**
+     * Copies the quarantined objects to the repository's object database, commits last and each
+     * after its parents, and deletes the quarantine.
+     */
+    public synchronized void promote() {
+        repositoryDb.putAll(database.objects(false));
+        repositoryDb.putAll(database.commits());
+        close();
+        delete(directory);
+    }
+
+    /**
+     * Closes the quarantine, keeping its contents for a later fetch to resume from.
+     */
+    public synchronized void close() {
+        database.close();
+        Closeables.closeQuietly(checkpointFile);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * An object database appending objects to a single file, and keeping the offsets of the
+     * objects in memory.
+     * <p>
+     * Each record is made of the object type, the raw object id, the length of the stored object
+     * as an int and the stored object itself. Objects stored through
+     * {@link #putInternal(ObjectId, byte[])} get their type out of the header of the stored object.
+     */
+    private static class QuarantineDatabase extends AbstractObjectDatabase {
+
+        private static final int HEADER_LENGTH = 1 + ObjectId.NUM_BYTES + 4;
+
+        private final File file;
+
+        private final ObjectDatabase repositoryDb;
+
+        private RandomAccessFile data;
+
+        /**
+         * Offset of each object's record, in insertion order
+         */
+        private final Map<ObjectId, Long> offsets = new LinkedHashMap<ObjectId, Long>();
+
+        QuarantineDatabase(File file, ObjectDatabase repositoryDb) {
+            super(new DataStreamSerializationFactory());
+            this.file = file;
+            this.repositoryDb = repositoryDb;
+        }
+
+        @Override
+        public synchronized boolean isOpen() {
+            return data != null;
+        }
+
+        @Override
+        public synchronized void open() {
+            if (isOpen()) {
+                return;
+            }
+            try {
+                data = new RandomAccessFile(file, "rw");
+                final long length = data.length();
+                long offset = 0;
+                byte[] rawId = new byte[ObjectId.NUM_BYTES];
+                while (offset + HEADER_LENGTH <= length) {
+                    data.seek(offset + 1);
+                    data.readFully(rawId);
+                    final int size = data.readInt();
+                    if (offset + HEADER_LENGTH + size > length) {
+                        break;
+                    }
+                    offsets.put(ObjectId.createNoClone(rawId.clone()), Long.valueOf(offset));
+                    offset += HEADER_LENGTH + size;
+                }
+                // discard the truncated tail of an interrupted fetch, if any
+                data.setLength(offset);
+            } catch (IOException e) {
+                Closeables.closeQuietly(data);
+                data = null;
+                throw Throwables.propagate(e);
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            Closeables.closeQuietly(data);
+            data = null;
+            offsets.clear();
+        }
+
+        synchronized void sync() throws IOException {
+            data.getFD().sync();
+        }
+
+        @Override
+        public boolean exists(ObjectId id) {
+            synchronized (this) {
+                if (offsets.containsKey(id)) {
+                    return true;
+                }
+            }
+            return repositoryDb.exists(id);
+        }
+
+        @Override
+        public Set<ObjectId> existing(Iterable<ObjectId> ids) {
+            Set<ObjectId> existing = Sets.newHashSet();
+            List<ObjectId> missing = new ArrayList<ObjectId>();
+            synchronized (this) {
+                for (ObjectId id : ids) {
+                    if (offsets.containsKey(id)) {
+                        existing.add(id);
+                    } else {
+                        missing.add(id);
+                    }
+                }
+            }
+            if (!missing.isEmpty()) {
+                existing.addAll(repositoryDb.existing(missing));
+            }
+            return existing;
+        }
+
+        @Override
+        public <T extends RevObject> boolean put(T object) {
+            ByteArrayOutputStream rawOut = new ByteArrayOutputStream();
+            writeObject(object, rawOut);
+            return append(object.getType(), object.getId(), rawOut.toByteArray());
+        }
+
+        @Override
+        public void putAll(Iterator<? extends RevObject> objects) {
+            while (objects.hasNext()) {
+                put(objects.next());
+            }
+        }
+
+        @Override
+        protected boolean putInternal(ObjectId id, byte[] rawData) {
+            return append(typeOf(rawData), id, rawData);
+        }
+
+        /**
+         * @return the type named by the header of the given stored object
+         */
+        private static TYPE typeOf(byte[] rawData) {
+            DataInputStream in = new DataInputStream(new LZFInputStream(new ByteArrayInputStream(
+                    rawData)));
+            try {
+                String header = FormatCommon.readToMarker(in, FormatCommon.NUL);
+                return TYPE.valueOf(header.toUpperCase(Locale.ENGLISH));
+            } catch (IOException e) {
+                throw Throwables.propagate(e);
+            } finally {
+                Closeables.closeQuietly(in);
+            }
+        }
+
+        private synchronized boolean append(TYPE type, ObjectId id, byte[] rawData) {
+            Preconditions.checkState(isOpen(), "quarantine is not open");
+            if (offsets.containsKey(id)) {
+                return false;
+            }
+            try {
+                final long offset = data.length();
+                data.seek(offset);
+                data.writeByte(type.value());
+                data.write(id.getRawValue());
+                data.writeInt(rawData.length);
+                data.write(rawData);
+                offsets.put(id, Long.valueOf(offset));
+            } catch (IOException e) {
+                throw Throwables.propagate(e);
+            }
+            return true;
+        }
+
+        @Override
+        protected synchronized InputStream getRawInternal(ObjectId id, boolean failIfNotFound) {
+            Long offset = offsets.get(id);
+            if (offset == null) {
+                if (failIfNotFound) {
+                    throw new IllegalArgumentException("Object does not exist: " + id);
+                }
+                return null;
+            }
+            try {
+                data.seek(offset.longValue() + 1 + ObjectId.NUM_BYTES);
+                byte[] rawData = new byte[data.readInt()];
+                data.readFully(rawData);
+                return new ByteArrayInputStream(rawData);
+            } catch (IOException e) {
+                throw Throwables.propagate(e);
+            }
+        }
+
+        private synchronized TYPE typeOf(ObjectId id) throws IOException {
+            data.seek(offsets.get(id).longValue());
+            return TYPE.valueOf(data.readUnsignedByte());
+        }
+
+        /**
+         * @param commits whether to return the commits or all the other objects
+         * @return the quarantined objects, in insertion order
+         */
+        Iterator<RevObject> objects(final boolean commits) {
+            final Iterator<ObjectId> ids;
+            synchronized (this) {
+                ids = ImmutableList.copyOf(offsets.keySet()).iterator();
+            }
+            return new AbstractIterator<RevObject>() {
+                @Override
+                protected RevObject computeNext() {
+                    try {
+                        while (ids.hasNext()) {
+                            ObjectId id = ids.next();
+                            if ((typeOf(id) == TYPE.COMMIT) == commits) {
+                                return get(id);
+                            }
+                        }
+                    } catch (IOException e) {
+                        throw Throwables.propagate(e);
+                    }
+                    return endOfData();
+                }
+            };
+        }
+
+        /**
+         * @return the quarantined commits, each after those of its parents that are quarantined
+         *         too
+         */
+        Iterator<RevObject> commits() {
+            final Map<ObjectId, List<ObjectId>> parents;
+            parents = new LinkedHashMap<ObjectId, List<ObjectId>>();
+            Iterator<RevObject> commits = objects(true);
+            while (commits.hasNext()) {
+                RevCommit commit = (RevCommit) commits.next();
+                parents.put(commit.getId(), commit.getParentIds());
+            }
+            // commits of concurrently fetched ranges are quarantined in no particular order
+            final List<ObjectId> ordered = new ArrayList<ObjectId>(parents.size());
+            final Set<ObjectId> expanded = Sets.newHashSet();
+            final Set<ObjectId> emitted = Sets.newHashSet();
+            final Deque<ObjectId> stack = new ArrayDeque<ObjectId>();
+            for (ObjectId root : parents.keySet()) {
+                stack.push(root);
+                while (!stack.isEmpty()) {
+                    ObjectId id = stack.peek();
+                    if (expanded.add(id)) {
+                        for (ObjectId parentId : parents.get(id)) {
+                            if (parents.containsKey(parentId) && !expanded.contains(parentId)) {
+                                stack.push(parentId);
+                            }
+                        }
+                    } else {
+                        stack.pop();
+                        if (emitted.add(id)) {
+                            ordered.add(id);
+                        }
+                    }
+                }
+            }
+            return Iterators.transform(ordered.iterator(), new Function<ObjectId, RevObject>() {
+                @Override
+                public RevObject apply(ObjectId id) {
+                    return get(id);
+                }
+            });
+        }
+
+        @Override
+        protected synchronized List<ObjectId> lookUpInternal(byte[] raw) {
+            ImmutableList.Builder<ObjectId> matches = ImmutableList.builder();
+            byte[] rawId = new byte[ObjectId.NUM_BYTES];
+            for (ObjectId id : offsets.keySet()) {
+                id.getRawValue(rawId);
+                if (Arrays.equals(raw, Arrays.copyOf(rawId, raw.length))) {
+                    matches.add(id);
+                }
+            }
+            return matches.build();
+        }
+
+        @Override
+        public synchronized boolean delete(ObjectId objectId) {
+            // the record stays in the file, but is no longer reachable
+            return offsets.remove(objectId) != null;
+        }
+
+        @Override
+        public long deleteAll(Iterator<ObjectId> ids) {
+            long count = 0;
+            while (ids.hasNext()) {
+                if (delete(ids.next())) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+}
@@ -6,21 +6,30 @@ package org.geogit.remote;
 
 import java.util.Iterator;
 
+import org.geogit.api.Bounded;
 import org.geogit.api.NodeRef;
 import org.geogit.api.ObjectId;
 import org.geogit.api.RepositoryFilter;
 import org.geogit.api.RevFeatureType;
 import org.geogit.api.RevObject;
 import org.geogit.api.RevObject.TYPE;
+import org.geogit.api.plumbing.DiffTree;
 import org.geogit.api.plumbing.RevObjectParse;
 import org.geogit.api.plumbing.diff.DiffEntry;
+import org.geogit.api.plumbing.diff.TreeBoundsFilter;
 import org.geogit.repository.Repository;
 
+import com.google.common.base.Optional;
 import com.google.common.collect.AbstractIterator;
+import com.vividsolutions.jts.geom.Envelope;
 
 /**
  * An implementation of a {@link DiffEntry} iterator that filters entries based on a provided
  * {@link RepositoryFilter}.
+ * <p>
+ * Features whose bounds don't intersect the {@link RepositoryFilter#getBounds(String) area} of the
+ * filter are discarded without being loaded, and when constructed out of a {@link DiffTree} the
+ * buckets and subtrees outside that area can be skipped altogether.
  */
 public class FilteredDiffIterator extends AbstractIterator<DiffEntry> {
 
@@ -51,6 +60,28 @@ public class FilteredDiffIterator extends AbstractIterator<DiffEntry> {
         filtered = false;
     }
 
+    /**
+     * Constructs a new {@code FilteredDiffIterator} over the changes reported by the given diff.
+     * 
+     * @param diff the diff to filter, not yet called
+     * @param sourceRepo the repository where objects are stored
+     * @param repoFilter the filter to use
+     * @param pruneTrees whether the diff shall skip the buckets and subtrees that lie outside the
+     *        area of the filter. The changes inside them are never seen by this iterator, so it
+     *        shall only be {@code true} if {@link #trackingObject(ObjectId)} can't be true for any
+     *        of them, like when no object is being tracked at all
+     */
+    public FilteredDiffIterator(DiffTree diff, Repository sourceRepo, RepositoryFilter repoFilter,
+            boolean pruneTrees) {
+        this.sourceRepo = sourceRepo;
+        this.repoFilter = repoFilter;
+        filtered = false;
+        if (pruneTrees) {
+            diff.setBoundsFilter(new PruningBoundsFilter());
+        }
+        this.source = diff.call();
+    }
+
     /**
      * Compute the next {@link DiffEntry} that matches our {@link RepositoryFilter}.
      */
@@ -94,6 +125,17 @@ public class FilteredDiffIterator extends AbstractIterator<DiffEntry> {
             return null;
         }
 
+        if (node.getType() == TYPE.FEATURE) {
+            if (trackingObject(node.objectId())) {
+                // We are already tracking this object, continue to do so
+                return node;
+            }
+            if (!mayMatch(repoFilter.getBounds(node.getParentPath()), node.getNode())) {
+                // the feature lies outside the filter, no need to load it
+                return null;
+            }
+        }
+
         RevObject object = sourceRepo.command(RevObjectParse.class)
                 .setObjectId(node.getNode().getObjectId()).call().get();
 
@@ -103,11 +145,6 @@ public class FilteredDiffIterator extends AbstractIterator<DiffEntry> {
                     .call().get();
         }
         if (node.getType() == TYPE.FEATURE) {
-            if (trackingObject(object.getId())) {
-                // We are already tracking this object, continue to do so
-                return node;
-            }
-
             RevFeatureType revFeatureType = (RevFeatureType) metadata;
 
             if (!repoFilter.filterObject(revFeatureType, node.getParentPath(), object)) {
@@ -120,6 +157,34 @@ public class FilteredDiffIterator extends AbstractIterator<DiffEntry> {
         return node;
     }
 
+    private static boolean mayMatch(Optional<Envelope> area, Bounded bounded) {
+        if (!area.isPresent()) {
+            return true;
+        }
+        Envelope bounds = new Envelope();
+        bounded.expand(bounds);
+        // objects with no known bounds can't be ruled out
+        return bounds.isNull() || bounded.intersects(area.get());
+    }
+
+    /**
+     * Rejects the buckets and subtrees that lie outside the area of the {@link RepositoryFilter},
+     * marking the changes as {@link #wasFiltered() filtered} when it does.
+     */
+    private class PruningBoundsFilter implements TreeBoundsFilter {
+
+        @Override
+        public boolean apply(String treePath, boolean hasSubtrees, Bounded bounded) {
+            Optional<Envelope> area = hasSubtrees ? repoFilter.getTreeBounds(treePath)
+                    : repoFilter.getBounds(treePath);
+            if (mayMatch(area, bounded)) {
+                return true;
+            }
+            filtered = true;
+            return false;
+        }
+    }
+
     /**
      * An overridable method for hinting that the given object should be tracked, regardless of
      * whether or not it matches the filter.
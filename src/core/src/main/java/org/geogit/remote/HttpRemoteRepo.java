@@ -12,13 +12,21 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.net.HttpURLConnection;
+import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.geogit.api.ObjectId;
 import org.geogit.api.Ref;
@@ -28,11 +36,16 @@ import org.geogit.api.porcelain.SynchronizationException;
 import org.geogit.repository.Repository;
 import org.geogit.storage.DeduplicationService;
 import org.geogit.storage.Deduplicator;
+import org.geogit.storage.ObjectDatabase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
@@ -46,10 +59,10 @@ import com.google.gson.JsonPrimitive;
  */
 class HttpRemoteRepo extends AbstractRemoteRepo {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(HttpRemoteRepo.class);
+
     private URL repositoryURL;
 
-    private List<ObjectId> fetchedIds;
-    
     final private DeduplicationService deduplicationService;
 
     /**
@@ -178,34 +191,239 @@ class HttpRemoteRepo extends AbstractRemoteRepo {
 
     /**
      * Fetch all new objects from the specified {@link Ref} from the remote.
+     * <p>
+     * The wanted commits are fetched in ranges over up to {@link #FETCH_CONNECTIONS} concurrent
+     * connections, see {@link PipelinedFetch}. Fetched objects are kept in a
+     * {@link FetchQuarantine quarantine} and checkpointed as each range completes, and only
+     * promoted to the repository once all of them were received. If the fetch fails, the
+     * quarantine is kept and the next fetch from the same remote resumes from the last checkpoint.
      * 
      * @param ref the remote ref that points to new commit data
      * @param fetchLimit the maximum depth to fetch
      */
     @Override
     public void fetchNewData(Ref ref, Optional<Integer> fetchLimit) {
-        fetchedIds = new LinkedList<ObjectId>();
-
         CommitTraverser traverser = getFetchTraverser(fetchLimit);
+        traverser.traverse(ref.getObjectId());
+        List<ObjectId> want = new LinkedList<ObjectId>();
+        want.addAll(traverser.commits);
+        Collections.reverse(want);
+        Set<ObjectId> have = new HashSet<ObjectId>();
+        have.addAll(traverser.have);
 
+        FetchQuarantine quarantine = FetchQuarantine.open(localRepository,
+                repositoryURL.toString());
         try {
-            traverser.traverse(ref.getObjectId());
-            List<ObjectId> want = new LinkedList<ObjectId>();
-            want.addAll(traverser.commits);
-            Collections.reverse(want);
-            Set<ObjectId> have = new HashSet<ObjectId>();
-            have.addAll(traverser.have);
-            while (!want.isEmpty()) {
-                fetchMoreData(want, have);
-            }
+            new PipelinedFetch(want, have, traverser.parents, quarantine).run();
+            quarantine.promote();
         } catch (Exception e) {
-            for (ObjectId oid : fetchedIds) {
-                localRepository.getObjectDatabase().delete(oid);
-            }
             Throwables.propagate(e);
         } finally {
-            fetchedIds.clear();
-            fetchedIds = null;
+            quarantine.close();
+        }
+    }
+
+    /**
+     * Maximum number of concurrent connections used to fetch objects
+     */
+    private static final int FETCH_CONNECTIONS = 4;
+
+    /**
+     * Number of commits requested by the first request of each connection
+     */
+    private static final int INITIAL_RANGE_SIZE = 10;
+
+    /**
+     * Maximum number of commits per request
+     */
+    private static final int MAX_RANGE_SIZE = 100;
+
+    /**
+     * Size in bytes of the batches asked to the server by the first request of a fetch, see
+     * {@link BinaryPackedObjects#setBatchLimits(long, int)}
+     */
+    private static final long INITIAL_BATCH_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * Smallest batch size in bytes asked to the server, below which request latency dominates
+     */
+    private static final long MIN_BATCH_BYTES = 256 * 1024;
+
+    /**
+     * Request duration the range size is adapted to, long enough to amortize the request latency
+     * and short enough to keep all connections busy until the end of the fetch
+     */
+    private static final long TARGET_REQUEST_MILLIS = 2000;
+
+    /**
+     * Fetches a list of commits by handing out consecutive ranges of it to several connections.
+     * <p>
+     * The request for each range tells the remote that the parents of the range's commits that are
+     * being fetched as part of other ranges are already known, so that each range only carries the
+     * objects introduced by its own commits, and ranges can be fetched and ingested independently.
+     * The size of the ranges, and the size in bytes of the batches the server answers each request
+     * with, are adapted to the measured throughput so that requests take about
+     * {@link HttpRemoteRepo#TARGET_REQUEST_MILLIS}. The throughput in bytes is measured out of the
+     * progress records of the server's responses.
+     * <p>
+     * Objects are written to a {@link FetchQuarantine}, and the commits of each range are
+     * checkpointed once the range completes. Commits checkpointed or quarantined by a previous
+     * fetch are not requested again.
+     */
+    private class PipelinedFetch {
+
+        private final LinkedList<ObjectId> pending;
+
+        private final Set<ObjectId> wanted;
+
+        private final Set<ObjectId> have;
+
+        private final Map<ObjectId, ImmutableList<ObjectId>> parents;
+
+        private final FetchQuarantine quarantine;
+
+        private int rangeSize = INITIAL_RANGE_SIZE;
+
+        private long batchBytes = INITIAL_BATCH_BYTES;
+
+        private long fetchedObjects;
+
+        private long fetchedBytes;
+
+        private volatile boolean failed;
+
+        PipelinedFetch(List<ObjectId> want, Set<ObjectId> have,
+                Map<ObjectId, ImmutableList<ObjectId>> parents, FetchQuarantine quarantine) {
+            this.pending = new LinkedList<ObjectId>(want);
+            this.pending.removeAll(quarantine.getCheckpoint());
+            // a fetch interrupted in the middle of a range leaves some of the range's commits in
+            // the quarantine without a checkpoint. They're complete, since commits are stored
+            // after their contents, and the ingester would skip them anyway without taking them
+            // off their range
+            this.pending.removeAll(quarantine.getDatabase().existing(pending));
+            this.wanted = ImmutableSet.copyOf(want);
+            this.have = ImmutableSet.copyOf(have);
+            this.parents = parents;
+            this.quarantine = quarantine;
+        }
+
+        void run() throws Exception {
+            if (pending.isEmpty()) {
+                return;
+            }
+            final int connections = Math.min(FETCH_CONNECTIONS, pending.size());
+            ExecutorService executor = Executors.newFixedThreadPool(connections,
+                    new ThreadFactoryBuilder().setDaemon(true)
+                            .setNameFormat("geogit-http-fetch-%d").build());
+            try {
+                List<Future<Void>> futures = new ArrayList<Future<Void>>(connections);
+                for (int i = 0; i < connections; i++) {
+                    futures.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() {
+                            try {
+                                fetchRanges();
+                            } catch (RuntimeException e) {
+                                failed = true;
+                                throw e;
+                            }
+                            return null;
+                        }
+                    }));
+                }
+                // wait for all the connections, so that nothing is being written by the time
+                // the caller rolls back a failed fetch
+                Throwable failure = null;
+                for (Future<Void> future : futures) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException e) {
+                        if (failure == null) {
+                            failure = e.getCause();
+                        }
+                    }
+                }
+                if (failure != null) {
+                    Throwables.propagateIfPossible(failure, Exception.class);
+                    throw new RuntimeException(failure);
+                }
+            } finally {
+                executor.shutdown();
+            }
+        }
+
+        private void fetchRanges() {
+            List<ObjectId> range;
+            while (!(range = nextRange()).isEmpty()) {
+                final List<ObjectId> commits = ImmutableList.copyOf(range);
+                final Set<ObjectId> rangeHave = haveFor(range);
+                final long start = System.currentTimeMillis();
+                while (!range.isEmpty()) {
+                    final int remaining = range.size();
+                    final long requestStart = System.currentTimeMillis();
+                    BatchProgress progress = fetchMoreData(range, rangeHave,
+                            quarantine.getDatabase(), batchBytes());
+                    Preconditions.checkState(range.size() < remaining,
+                            "The remote did not send any of the requested commits");
+                    received(progress, System.currentTimeMillis() - requestStart);
+                }
+                quarantine.checkpoint(commits);
+                completed(commits.size(), System.currentTimeMillis() - start);
+            }
+        }
+
+        private synchronized List<ObjectId> nextRange() {
+            List<ObjectId> range = new LinkedList<ObjectId>();
+            while (!failed && range.size() < rangeSize && !pending.isEmpty()) {
+                range.add(pending.removeFirst());
+            }
+            return range;
+        }
+
+        private Set<ObjectId> haveFor(List<ObjectId> range) {
+            Set<ObjectId> rangeHave = new HashSet<ObjectId>(have);
+            Set<ObjectId> inRange = new HashSet<ObjectId>(range);
+            for (ObjectId commitId : range) {
+                ImmutableList<ObjectId> commitParents = parents.get(commitId);
+                if (commitParents == null) {
+                    continue;
+                }
+                for (ObjectId parentId : commitParents) {
+                    // parents out of the fetched commits are only known if already in have,
+                    // wanted ones are either checkpointed or fetched by another range
+                    if (!inRange.contains(parentId) && wanted.contains(parentId)) {
+                        rangeHave.add(parentId);
+                    }
+                }
+            }
+            return rangeHave;
+        }
+
+        private synchronized long batchBytes() {
+            return batchBytes;
+        }
+
+        private synchronized void received(BatchProgress progress, long elapsedMillis) {
+            if (progress.bytes == 0) {
+                // the server doesn't report progress
+                return;
+            }
+            fetchedObjects += progress.objects;
+            fetchedBytes += progress.bytes;
+            LOGGER.info("Fetched {} objects ({} KB) from {}", fetchedObjects,
+                    fetchedBytes / 1024, repositoryURL);
+
+            long target = progress.bytes * TARGET_REQUEST_MILLIS / Math.max(1L, elapsedMillis);
+            target = Math.max(MIN_BATCH_BYTES,
+                    Math.min(BinaryPackedObjects.MAX_BATCH_BYTES, target));
+            batchBytes = (batchBytes + target + 1) / 2;
+        }
+
+        private synchronized void completed(int commits, long elapsedMillis) {
+            long target = commits * TARGET_REQUEST_MILLIS / Math.max(1L, elapsedMillis);
+            target = Math.max(1L, Math.min(MAX_RANGE_SIZE, target));
+            // smooth out the variations between requests
+            rangeSize = (int) ((rangeSize + target + 1) / 2);
         }
     }
 
@@ -249,7 +467,10 @@ class HttpRemoteRepo extends AbstractRemoteRepo {
         Set<ObjectId> sent = new HashSet<ObjectId>();
         while (!toSend.isEmpty()) {
             try {
-                String expanded = repositoryURL.toString() + "/repo/sendobject";
+                // identifies the push connection the objects are validated for, see beginPush()
+                String internalIp = InetAddress.getLocalHost().getHostName();
+                String expanded = repositoryURL.toString() + "/repo/sendobject?internalIp="
+                        + internalIp;
                 HttpURLConnection connection = (HttpURLConnection) new URL(expanded)
                         .openConnection();
                 connection.setDoOutput(true);
@@ -309,22 +530,20 @@ class HttpRemoteRepo extends AbstractRemoteRepo {
      * 
      * @param want a list of ObjectIds that need to be fetched
      * @param have a list of ObjectIds that are in common with the remote repository
+     * @param target the database to write the retrieved objects to
+     * @param batchBytes the size in bytes of the batch to ask the remote for
+     * @return the progress reported by the remote for the retrieved batch, zero if it reported none
      */
-    private void fetchMoreData(final List<ObjectId> want, final Set<ObjectId> have) {
-        final JsonObject message = createFetchMessage(want, have);
-        final URL resourceURL;
-        try {
-            resourceURL = new URL(repositoryURL.toString() + "/repo/batchobjects");
-        } catch (MalformedURLException e) {
-            throw Throwables.propagate(e);
-        }
+    private BatchProgress fetchMoreData(final List<ObjectId> want, final Set<ObjectId> have,
+            final ObjectDatabase target, final long batchBytes) {
+        final JsonObject message = createFetchMessage(want, have, batchBytes);
 
         final Gson gson = new Gson();
         final HttpURLConnection connection;
         final OutputStream out;
         final Writer writer;
         try {
-            connection = (HttpURLConnection) resourceURL.openConnection();
+            connection = openConnection("/repo/batchobjects");
             connection.setDoOutput(true);
             connection.setDoInput(true);
             out = connection.getOutputStream();
@@ -342,7 +561,17 @@ class HttpRemoteRepo extends AbstractRemoteRepo {
             throw Throwables.propagate(e);
         }
 
-        BinaryPackedObjects unpacker = new BinaryPackedObjects(localRepository.getObjectDatabase());
+        // servers that don't know about framed streams ignore the requested format and answer
+        // with a legacy stream
+        final String contentType = connection.getContentType();
+        final BinaryPackedObjects.Format format;
+        if (contentType != null && contentType.startsWith(BinaryPackedObjects.FRAMED_MEDIA_TYPE)) {
+            format = BinaryPackedObjects.Format.FRAMED;
+        } else {
+            format = BinaryPackedObjects.Format.LEGACY;
+        }
+
+        BinaryPackedObjects unpacker = new BinaryPackedObjects(target);
         BinaryPackedObjects.Callback<Void> callback = new BinaryPackedObjects.Callback<Void>() {
             @Override
             public Void callback(RevObject object, Void state) {
@@ -355,10 +584,39 @@ class HttpRemoteRepo extends AbstractRemoteRepo {
                 return null;
             }
         };
-        unpacker.ingest(in, callback);
+        BatchProgress progress = new BatchProgress();
+        unpacker.ingest(in, callback, format, progress);
+        return progress;
+    }
+
+    /**
+     * Opens a connection to a resource of the remote repository.
+     * 
+     * @param resource the path of the resource, relative to the repository URL
+     * @return the connection, not yet connected
+     */
+    HttpURLConnection openConnection(String resource) throws IOException {
+        return (HttpURLConnection) new URL(repositoryURL.toString() + resource).openConnection();
+    }
+
+    /**
+     * Keeps the last progress record of a batch, which has its totals
+     */
+    private static class BatchProgress implements BinaryPackedObjects.ProgressCallback {
+
+        private long objects;
+
+        private long bytes;
+
+        @Override
+        public void progress(int commits, long objects, long bytes) {
+            this.objects = objects;
+            this.bytes = bytes;
+        }
     }
 
-    private JsonObject createFetchMessage(List<ObjectId> want, Set<ObjectId> have) {
+    private JsonObject createFetchMessage(List<ObjectId> want, Set<ObjectId> have,
+            long batchBytes) {
         JsonObject message = new JsonObject();
         JsonArray wantArray = new JsonArray();
         for (ObjectId id : want) {
@@ -370,6 +628,10 @@ class HttpRemoteRepo extends AbstractRemoteRepo {
         }
         message.add("want", wantArray);
         message.add("have", haveArray);
+        message.addProperty(BinaryPackedObjects.FORMAT_PARAM,
+                BinaryPackedObjects.Format.FRAMED_COMPRESSED.name());
+        message.addProperty(BinaryPackedObjects.BATCH_BYTES_PARAM, Long.valueOf(batchBytes));
+        message.addProperty(BinaryPackedObjects.PROGRESS_PARAM, Boolean.TRUE);
         return message;
     }
 
@@ -21,14 +21,18 @@ import org.geogit.api.ObjectId;
 import org.geogit.api.Ref;
 import org.geogit.api.RevObject;
 import org.geogit.api.SymRef;
+import org.geogit.api.porcelain.SynchronizationException;
+import org.geogit.api.porcelain.SynchronizationException.StatusCode;
 import org.geogit.repository.Repository;
 import org.geogit.storage.datastream.ObjectReader;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableList.Builder;
+import com.google.common.io.CharStreams;
 import com.google.common.io.Closeables;
 
 /**
@@ -504,6 +508,8 @@ class HttpUtils {
      * @param refspec the refspec we are pushing to
      * @param newCommitId the new value of the ref
      * @param originalRefValue the value of the ref when we started pushing
+     * @throws SynchronizationException if the remote ref was changed during push
+     * @throws IllegalStateException if the remote rejected the pushed objects
      */
     public static void endPush(URL repositoryURL, String refspec, ObjectId newCommitId,
             String originalRefValue) {
@@ -520,8 +526,23 @@ class HttpUtils {
             connection.setUseCaches(false);
             connection.setDoOutput(true);
 
-            connection.getInputStream();
-            // TODO: throw an exception if the remote ref was not updated.
+            final int responseCode = connection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_CONFLICT) {
+                throw new SynchronizationException(StatusCode.REMOTE_HAS_CHANGES);
+            } else if (responseCode != HttpURLConnection.HTTP_OK) {
+                String message = null;
+                InputStream es = connection.getErrorStream();
+                if (es != null) {
+                    try {
+                        message = CharStreams.toString(new InputStreamReader(es, Charsets.UTF_8));
+                    } finally {
+                        Closeables.closeQuietly(es);
+                    }
+                }
+                throw new IllegalStateException("The remote ref was not updated: "
+                        + (message == null ? connection.getResponseMessage() : message));
+            }
+            consumeAndCloseStream(connection.getInputStream());
 
         } catch (Exception e) {
             Throwables.propagate(e);
@@ -6,9 +6,12 @@ package org.geogit.remote;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 import org.geogit.api.Bucket;
 import org.geogit.api.GeoGIT;
@@ -27,6 +30,10 @@ import org.geogit.api.plumbing.UpdateRef;
 import org.geogit.api.plumbing.UpdateSymRef;
 import org.geogit.api.porcelain.SynchronizationException;
 import org.geogit.repository.Repository;
+import org.geogit.storage.CommitMetadataIndex;
+import org.geogit.storage.CopyableObjectDatabase;
+import org.geogit.storage.GraphDatabase;
+import org.geogit.storage.ObjectDatabase;
 import org.geogit.storage.ObjectInserter;
 
 import com.google.common.base.Optional;
@@ -34,6 +41,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
 import com.google.inject.Injector;
 
 /**
@@ -51,6 +59,12 @@ class LocalRemoteRepo extends AbstractRemoteRepo {
 
     private List<ObjectId> touchedIds;
 
+    /**
+     * Whether the remote's object store was copied as a whole by a previous call to
+     * {@link #fetchNewData}
+     */
+    private boolean storeCopied;
+
     /**
      * Constructs a new {@code LocalRemoteRepo} with the given parameters.
      * 
@@ -140,6 +154,11 @@ class LocalRemoteRepo extends AbstractRemoteRepo {
     @Override
     public void fetchNewData(Ref ref, Optional<Integer> fetchLimit) {
 
+        if (storeCopied || (!fetchLimit.isPresent() && copyObjectStore())) {
+            indexCommits(ref.getObjectId());
+            return;
+        }
+
         touchedIds = new LinkedList<ObjectId>();
 
         CommitTraverser traverser = getFetchTraverser(fetchLimit);
@@ -161,6 +180,58 @@ class LocalRemoteRepo extends AbstractRemoteRepo {
         }
     }
 
+    /**
+     * Copies the files of the remote's object database to the local one, which is a lot faster
+     * than copying object by object. That is only possible if the local database is still empty,
+     * as when cloning, neither repository is shallow, and both use the same kind of storage.
+     * 
+     * @return {@code true} if the object store was copied
+     */
+    private boolean copyObjectStore() {
+        final Repository remoteRepository = remoteGeoGit.getRepository();
+        if (localRepository.getDepth().isPresent() || remoteRepository.getDepth().isPresent()) {
+            return false;
+        }
+        final ObjectDatabase from = remoteRepository.getObjectDatabase();
+        final ObjectDatabase to = localRepository.getObjectDatabase();
+        if (!(from instanceof CopyableObjectDatabase) || !(to instanceof CopyableObjectDatabase)
+                || !((CopyableObjectDatabase) to).isEmpty()) {
+            return false;
+        }
+        try {
+            storeCopied = ((CopyableObjectDatabase) from).copyTo(to);
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+        return storeCopied;
+    }
+
+    /**
+     * Adds the history of the given commit to the local graph database and commit index, which are
+     * otherwise updated as commits are inserted one by one.
+     */
+    private void indexCommits(ObjectId tip) {
+        final GraphDatabase graphDb = localRepository.getGraphDatabase();
+        final CommitMetadataIndex commitIndex = localRepository.getCommitMetadataIndex();
+        final Set<ObjectId> seen = Sets.newHashSet();
+        final Deque<ObjectId> pending = new ArrayDeque<ObjectId>();
+        pending.push(tip);
+        while (!pending.isEmpty()) {
+            final ObjectId commitId = pending.pop();
+            if (commitId.isNull() || !seen.add(commitId)) {
+                continue;
+            }
+            final RevCommit commit = localRepository.getCommit(commitId);
+            graphDb.put(commitId, commit.getParentIds());
+            if (commitIndex.isOpen()) {
+                commitIndex.put(commit);
+            }
+            for (ObjectId parentId : commit.getParentIds()) {
+                pending.push(parentId);
+            }
+        }
+    }
+
     /**
      * Push all new objects from the specified {@link Ref} to the given refspec.
      * 
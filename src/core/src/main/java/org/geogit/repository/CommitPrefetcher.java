@@ -0,0 +1,215 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.repository;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.geogit.api.ObjectId;
+import org.geogit.api.RevCommit;
+import org.geogit.api.RevObject;
+import org.geogit.storage.GraphDatabase;
+import org.geogit.storage.ObjectDatabase;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Loads {@link RevCommit commits} on behalf of a history walker, resolving the ancestors of the
+ * commits being consumed through the {@link GraphDatabase} and fetching them from the
+ * {@link ObjectDatabase} in the background before they're asked for.
+ * <p>
+ * At most {@code window} commits are being loaded or waiting to be consumed at any time. Commits
+ * that are not in the object database (e.g. the bottom of a shallow clone) are reported as
+ * {@link Optional#absent() absent} instead of failing, which saves the walkers the extra
+ * {@link Repository#commitExists(ObjectId)} lookup.
+ * <p>
+ * Instances of this class are not thread safe and are meant to be used by a single walker.
+ */
+public class CommitPrefetcher {
+
+    /**
+     * Default number of commits to load ahead of consumption
+     */
+    public static final int DEFAULT_WINDOW = 64;
+
+    private final ObjectDatabase objectDb;
+
+    private final GraphDatabase graphDb;
+
+    private final int window;
+
+    private final boolean firstParentOnly;
+
+    private final Map<ObjectId, Future<RevCommit>> pending = Maps.newHashMap();
+
+    /**
+     * Commits whose ancestors are still to be scheduled for prefetching
+     */
+    private final Deque<ObjectId> frontier = new ArrayDeque<ObjectId>();
+
+    /**
+     * Commits already scheduled or handed out, to avoid loading shared ancestors twice
+     */
+    private final Set<ObjectId> seen = Sets.newHashSet();
+
+    /**
+     * @param objectDb the database to load commits from
+     * @param graphDb the database used to resolve commit ancestors ahead of loading them
+     * @param window the maximum number of commits to load ahead of consumption, {@code 0} disables
+     *        prefetching
+     * @param firstParentOnly whether to only prefetch the first parent of each commit
+     */
+    public CommitPrefetcher(ObjectDatabase objectDb, GraphDatabase graphDb, int window,
+            boolean firstParentOnly) {
+        Preconditions.checkNotNull(objectDb);
+        Preconditions.checkNotNull(graphDb);
+        Preconditions.checkArgument(window >= 0, "window shall be >= 0: " + window);
+        this.objectDb = objectDb;
+        this.graphDb = graphDb;
+        this.window = window;
+        this.firstParentOnly = firstParentOnly;
+    }
+
+    /**
+     * Returns the commit with the given id, waiting for it if it's being prefetched, and schedules
+     * its ancestors to be loaded.
+     *
+     * @param commitId the id of the commit to return
+     * @return the commit, or {@link Optional#absent()} if it's not in the object database
+     */
+    public Optional<RevCommit> get(final ObjectId commitId) {
+        Preconditions.checkNotNull(commitId);
+        if (commitId.isNull()) {
+            return Optional.absent();
+        }
+        RevCommit commit;
+        Future<RevCommit> future = pending.remove(commitId);
+        if (future == null) {
+            commit = load(objectDb, commitId);
+        } else {
+            try {
+                commit = future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw Throwables.propagate(e);
+            } catch (ExecutionException e) {
+                throw Throwables.propagate(e.getCause());
+            }
+        }
+        if (commit != null && seen.add(commitId)) {
+            frontier.add(commitId);
+        }
+        fill();
+        return Optional.fromNullable(commit);
+    }
+
+    /**
+     * Cancels any outstanding prefetch. Shall be called once the walker is done, even if it didn't
+     * get to the end of the history.
+     */
+    public void close() {
+        for (Future<RevCommit> future : pending.values()) {
+            future.cancel(false);
+        }
+        pending.clear();
+        frontier.clear();
+    }
+
+    /**
+     * @param commits the commits a walker returns
+     * @return an iterator over {@code commits} that closes this prefetcher as soon as there are no
+     *         more commits to return, either because the history was exhausted or the walker
+     *         stopped early, e.g. when a limit was reached
+     */
+    public Iterator<RevCommit> closeWhenDone(final Iterator<RevCommit> commits) {
+        return new AbstractIterator<RevCommit>() {
+            @Override
+            protected RevCommit computeNext() {
+                if (commits.hasNext()) {
+                    return commits.next();
+                }
+                close();
+                return endOfData();
+            }
+        };
+    }
+
+    /**
+     * @return the ids of the commits being prefetched, for testing purposes
+     */
+    Set<ObjectId> pending() {
+        return ImmutableSet.copyOf(pending.keySet());
+    }
+
+    /**
+     * Schedules the ancestors of the commits in the frontier for loading, breadth first, until the
+     * window is full.
+     */
+    private void fill() {
+        while (pending.size() < window && !frontier.isEmpty()) {
+            final ObjectId next = frontier.peek();
+            ImmutableList<ObjectId> parents;
+            try {
+                parents = graphDb.getParents(next);
+            } catch (IllegalArgumentException e) {
+                // not in the graph, the walker will resolve the parents out of the commit itself
+                parents = ImmutableList.of();
+            }
+            if (firstParentOnly && parents.size() > 1) {
+                parents = parents.subList(0, 1);
+            }
+            int scheduled = 0;
+            for (ObjectId parent : parents) {
+                if (pending.size() >= window) {
+                    break;
+                }
+                scheduled++;
+                if (parent.isNull() || !seen.add(parent)) {
+                    continue;
+                }
+                pending.put(parent, SharedExecutor.submit(new LoadCommit(objectDb, parent)));
+                frontier.add(parent);
+            }
+            if (scheduled == parents.size()) {
+                frontier.poll();
+            }
+        }
+    }
+
+    private static RevCommit load(ObjectDatabase objectDb, ObjectId commitId) {
+        RevObject object = objectDb.getIfPresent(commitId);
+        return object instanceof RevCommit ? (RevCommit) object : null;
+    }
+
+    private static class LoadCommit implements Callable<RevCommit> {
+
+        private final ObjectDatabase objectDb;
+
+        private final ObjectId commitId;
+
+        public LoadCommit(ObjectDatabase objectDb, ObjectId commitId) {
+            this.objectDb = objectDb;
+            this.commitId = commitId;
+        }
+
+        @Override
+        public RevCommit call() {
+            return load(objectDb, commitId);
+        }
+    }
+}
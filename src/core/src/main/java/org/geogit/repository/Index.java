@@ -6,8 +6,6 @@ package org.geogit.repository;
 
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 
 import javax.annotation.Nullable;
 
@@ -16,17 +14,13 @@ import org.geogit.api.Node;
 import org.geogit.api.NodeRef;
 import org.geogit.api.ObjectId;
 import org.geogit.api.Ref;
-import org.geogit.api.RevObject.TYPE;
 import org.geogit.api.RevTree;
-import org.geogit.api.RevTreeBuilder;
 import org.geogit.api.plumbing.DiffCount;
 import org.geogit.api.plumbing.DiffIndex;
-import org.geogit.api.plumbing.FindOrCreateSubtree;
 import org.geogit.api.plumbing.FindTreeChild;
 import org.geogit.api.plumbing.ResolveTreeish;
 import org.geogit.api.plumbing.RevObjectParse;
 import org.geogit.api.plumbing.UpdateRef;
-import org.geogit.api.plumbing.WriteBack;
 import org.geogit.api.plumbing.diff.DiffEntry;
 import org.geogit.api.plumbing.diff.DiffObjectCount;
 import org.geogit.api.plumbing.merge.Conflict;
@@ -35,10 +29,6 @@ import org.opengis.util.ProgressListener;
 
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
-import com.google.common.base.Supplier;
-import com.google.common.base.Suppliers;
-import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
 import com.google.inject.Inject;
 
 /**
@@ -122,19 +112,6 @@ public class Index implements StagingArea {
         return stageTree;
     }
 
-    /**
-     * @return a supplier for the index.
-     */
-    private Supplier<RevTreeBuilder> getTreeSupplier() {
-        Supplier<RevTreeBuilder> supplier = new Supplier<RevTreeBuilder>() {
-            @Override
-            public RevTreeBuilder get() {
-                return getTree().builder(getDatabase());
-            }
-        };
-        return Suppliers.memoize(supplier);
-    }
-
     /**
      * @param path the path of the {@link Node} to find
      * @return the {@code Node} for the feature at the specified path if it exists in the index,
@@ -163,6 +140,9 @@ public class Index implements StagingArea {
 
     /**
      * Stages the changes indicated by the {@link DiffEntry} iterator.
+     * <p>
+     * The changes are applied by a {@link TreeDiffApplier}, and written back together into a single
+     * new stage head.
      * 
      * @param progress the progress listener for the process
      * @param unstaged an iterator for the unstaged changes
@@ -171,120 +151,29 @@ public class Index implements StagingArea {
     @Override
     public void stage(final ProgressListener progress, final Iterator<DiffEntry> unstaged,
             final long numChanges) {
-        int i = 0;
         progress.started();
 
         final RevTree currentIndexHead = getTree();
 
-        Map<String, RevTreeBuilder> parentTress = Maps.newHashMap();
-        Map<String, ObjectId> parentMetadataIds = Maps.newHashMap();
-        Set<String> removedTrees = Sets.newHashSet();
-        while (unstaged.hasNext()) {
-            final DiffEntry diff = unstaged.next();
-            final String fullPath = diff.oldPath() == null ? diff.newPath() : diff.oldPath();
-            final String parentPath = NodeRef.parentPath(fullPath);
-            /*
-             * TODO: revisit, ideally the list of diff entries would come with one single entry for
-             * the whole removed tree instead of that one and every single children of it.
-             */
-            if (removedTrees.contains(parentPath)) {
-                continue;
-            }
-            if (null == parentPath) {
-                // it is the root tree that's been changed, update head and ignore anything else
-                ObjectId newRoot = diff.newObjectId();
-                updateStageHead(newRoot);
-                progress.progress(100f);
-                progress.complete();
-                return;
-            }
-            RevTreeBuilder parentTree = getParentTree(currentIndexHead, parentPath, parentTress,
-                    parentMetadataIds);
-
-            i++;
-            progress.progress((float) (i * 100) / numChanges);
-
-            NodeRef oldObject = diff.getOldObject();
-            NodeRef newObject = diff.getNewObject();
-            if (newObject == null) {
-                // Delete
-                parentTree.remove(oldObject.name());
-                if (TYPE.TREE.equals(oldObject.getType())) {
-                    removedTrees.add(oldObject.path());
-                }
-            } else if (oldObject == null) {
-                // Add
-                Node node = newObject.getNode();
-                parentTree.put(node);
-                parentMetadataIds.put(newObject.path(), newObject.getMetadataId());
-            } else {
-                // Modify
-                Node node = newObject.getNode();
-                parentTree.put(node);
-            }
-
-            indexDatabase.removeConflict(null, fullPath);
-        }
-
-        ObjectId newRootTree = currentIndexHead.getId();
-
-        for (Map.Entry<String, RevTreeBuilder> entry : parentTress.entrySet()) {
-            String changedTreePath = entry.getKey();
-            RevTreeBuilder changedTreeBuilder = entry.getValue();
-            RevTree changedTree = changedTreeBuilder.build();
-            ObjectId parentMetadataId = parentMetadataIds.get(changedTreePath);
-            if (NodeRef.ROOT.equals(changedTreePath)) {
-                // root
-                indexDatabase.put(changedTree);
-                newRootTree = changedTree.getId();
-            } else {
-                // parentMetadataId = parentMetadataId == null ?
-                Supplier<RevTreeBuilder> rootTreeSupplier = getTreeSupplier();
-                newRootTree = commandLocator.command(WriteBack.class).setAncestor(rootTreeSupplier)
-                        .setChildPath(changedTreePath).setMetadataId(parentMetadataId)
-                        .setToIndex(true).setTree(changedTree).call();
+        TreeDiffApplier applier = new TreeDiffApplier(commandLocator, indexDatabase) {
+            @Override
+            protected void applied(String path) {
+                indexDatabase.removeConflict(null, path);
             }
-            updateStageHead(newRootTree);
+        };
+        Optional<ObjectId> newRootTree = applier.apply(currentIndexHead, unstaged, progress,
+                numChanges);
+        if (newRootTree.isPresent()) {
+            // the trees whose contents changed, for the journal of unstaged changes
+            commandLocator.getWorkingTree().journal()
+                    .stageChanged(currentIndexHead.getId(), newRootTree.get(),
+                            applier.changedTrees());
+            updateStageHead(newRootTree.get());
         }
 
         progress.complete();
     }
 
-    /**
-     * @param currentIndexHead
-     * @param diffEntry
-     * @param parentTress
-     * @param parentMetadataIds
-     * @return
-     */
-    private RevTreeBuilder getParentTree(RevTree currentIndexHead, String parentPath,
-            Map<String, RevTreeBuilder> parentTress, Map<String, ObjectId> parentMetadataIds) {
-
-        RevTreeBuilder parentBuilder = parentTress.get(parentPath);
-        if (parentBuilder == null) {
-            ObjectId parentMetadataId = null;
-            if (NodeRef.ROOT.equals(parentPath)) {
-                parentBuilder = currentIndexHead.builder(indexDatabase);
-            } else {
-                Optional<NodeRef> parentRef = commandLocator.command(FindTreeChild.class)
-                        .setIndex(true).setParent(currentIndexHead).setChildPath(parentPath).call();
-
-                if (parentRef.isPresent()) {
-                    parentMetadataId = parentRef.get().getMetadataId();
-                }
-
-                parentBuilder = commandLocator.command(FindOrCreateSubtree.class)
-                        .setParent(Suppliers.ofInstance(Optional.of(getTree()))).setIndex(true)
-                        .setChildPath(parentPath).call().builder(getDatabase());
-            }
-            parentTress.put(parentPath, parentBuilder);
-            if (parentMetadataId != null) {
-                parentMetadataIds.put(parentPath, parentMetadataId);
-            }
-        }
-        return parentBuilder;
-    }
-
     /**
      * @param pathFilter if specified, only changes that match the filter will be returned
      * @return an iterator for all of the differences between STAGE_HEAD and HEAD based on the path
@@ -4,12 +4,19 @@
  */
 package org.geogit.repository;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import javax.annotation.Nullable;
 
 import org.geogit.api.Bucket;
 import org.geogit.api.Node;
@@ -20,6 +27,7 @@ import org.geogit.api.RevTree;
 import org.geogit.storage.Deduplicator;
 import org.geogit.storage.ObjectDatabase;
 
+import com.google.common.base.Throwables;
 import com.google.common.collect.AbstractIterator;
 
 /**
@@ -39,13 +47,18 @@ import com.google.common.collect.AbstractIterator;
  */
 public class PostOrderIterator extends AbstractIterator<RevObject> {
 
+    /**
+     * Minimum number of children of a tree for them to be loaded concurrently
+     */
+    private static final int PARALLEL_THRESHOLD = 16;
+
     /**
      * A traversal of all objects reachable from the given origin, with deduplication.
      */
     public static Iterator<RevObject> all(ObjectId top, ObjectDatabase database, Deduplicator deduplicator) {
         List<ObjectId> start = new ArrayList<ObjectId>();
         start.add(top);
-        return new PostOrderIterator(start, database, unique(ALL_SUCCESSORS));
+        return new PostOrderIterator(start, database, unique(ALL_SUCCESSORS), false);
     }
 
     /**
@@ -55,8 +68,19 @@ public class PostOrderIterator extends AbstractIterator<RevObject> {
      */
     public static Iterator<RevObject> range(List<ObjectId> start, List<ObjectId> base,
             ObjectDatabase database, boolean traverseCommits, Deduplicator deduplicator) {
+        return range(start, new HashSet<ObjectId>(base), database, traverseCommits, deduplicator);
+    }
+
+    /**
+     * Same as {@link #range(List, List, ObjectDatabase, boolean, Deduplicator)} but taking the set
+     * of base objects as is, which allows for set implementations other than a {@link HashSet}
+     * (e.g. backed by a {@link org.geogit.storage.ReachabilityBitmap}). Only
+     * {@link Set#contains(Object)} is called on {@code base}.
+     */
+    public static Iterator<RevObject> range(List<ObjectId> start, Set<ObjectId> base,
+            ObjectDatabase database, boolean traverseCommits, Deduplicator deduplicator) {
         return new PostOrderIterator(new ArrayList<ObjectId>(start), database, //
-                uniqueWithDeduplicator(blacklist((traverseCommits ? ALL_SUCCESSORS : COMMIT_SUCCESSORS), base), deduplicator));
+                uniqueWithDeduplicator(blacklist((traverseCommits ? ALL_SUCCESSORS : COMMIT_SUCCESSORS), base), deduplicator), false);
     }
 
     /**
@@ -67,12 +91,26 @@ public class PostOrderIterator extends AbstractIterator<RevObject> {
      * @return
      */
     public static Iterator<RevObject> rangeOfCommits(List<ObjectId> start, List<ObjectId> base, ObjectDatabase database, Deduplicator deduplicator) {
-        return new PostOrderIterator(new ArrayList<ObjectId>(start), database, uniqueWithDeduplicator(blacklist( COMMIT_PARENTS, base), deduplicator));
+        return new PostOrderIterator(new ArrayList<ObjectId>(start), database, uniqueWithDeduplicator(blacklist( COMMIT_PARENTS, new HashSet<ObjectId>(base)), deduplicator), false);
     }
 
+    /**
+     * A traversal of the content (no ancestry) of the given commits, with deduplication.
+     */
     public static Iterator<RevObject> contentsOf(List<ObjectId> needsPrevisit,
             ObjectDatabase database, Deduplicator deduplicator) {
-        return new PostOrderIterator(new ArrayList<ObjectId>(needsPrevisit), database, uniqueWithDeduplicator(COMMIT_SUCCESSORS, deduplicator));
+        return contentsOf(needsPrevisit, database, deduplicator, false);
+    }
+
+    /**
+     * Same as {@link #contentsOf(List, ObjectDatabase, Deduplicator)}, optionally loading the
+     * children of each tree concurrently. The deduplicator is only ever called from the iterating
+     * thread, and objects are returned in the same order either way.
+     */
+    public static Iterator<RevObject> contentsOf(List<ObjectId> needsPrevisit,
+            ObjectDatabase database, Deduplicator deduplicator, boolean parallel) {
+        return new PostOrderIterator(new ArrayList<ObjectId>(needsPrevisit), database,
+                uniqueWithDeduplicator(COMMIT_SUCCESSORS, deduplicator), parallel);
     }
 
     /**
@@ -81,10 +119,10 @@ public class PostOrderIterator extends AbstractIterator<RevObject> {
     private final ObjectDatabase database;
 
     /**
-     * The collection of ObjectIds that must be visited. It is organized as a list of lists - the
-     * first entry is always the deepest set of ObjectIds that needs to be processed.
+     * The stack of objects that must be visited, as a stack of levels - the first level is always
+     * the deepest set of objects that needs to be processed.
      */
-    private List<List<ObjectId>> toVisit;
+    private final Deque<Level> toVisit;
 
     /**
      * A flag tracking the state of the traversal. When true, we are building up a queue of objects
@@ -97,6 +135,11 @@ public class PostOrderIterator extends AbstractIterator<RevObject> {
      */
     private final Successors successors;
 
+    /**
+     * Whether the children of trees are loaded concurrently
+     */
+    private final boolean parallel;
+
     /**
      * The single, private constructor for PostOrderIterator. Generally it will be more convenient
      * to use static factory methods which properly prepare a Successors capturing the traversal
@@ -106,43 +149,52 @@ public class PostOrderIterator extends AbstractIterator<RevObject> {
      *        actually visited, but the subgraph visited is reachable from this list)
      * @param database the objectdatabase used for retrieving objects
      * @param successors the traversal policy for this iteration.
+     * @param parallel whether to load the children of trees concurrently
      */
-    private PostOrderIterator(List<ObjectId> start, ObjectDatabase database, Successors successors) {
+    private PostOrderIterator(List<ObjectId> start, ObjectDatabase database,
+            Successors successors, boolean parallel) {
         super();
         this.database = database;
         this.enqueue = true;
         this.successors = successors;
-        toVisit = new ArrayList<List<ObjectId>>();
-        toVisit.add(new ArrayList<ObjectId>());
-        toVisit.get(0).addAll(start);
+        this.parallel = parallel;
+        toVisit = new ArrayDeque<Level>();
+        toVisit.addFirst(new Level(start, null));
     }
 
     @Override
     protected RevObject computeNext() {
         while (!toVisit.isEmpty()) {
-            List<ObjectId> currentList = toVisit.get(0);
-            if (currentList.isEmpty()) {
+            Level currentLevel = toVisit.peekFirst();
+            if (currentLevel.isEmpty()) {
                 // No more ids at this depth - pop a level off of the stack and switch to "visiting"
                 // mode
                 enqueue = false;
-                toVisit.remove(0);
+                toVisit.removeFirst();
             } else {
                 if (enqueue) {
                     // We're building up a list of objects to visit, so add all the reachable
                     // objects from here to the front of the toVisit stack
-                    final ObjectId id = currentList.get(0);
-                    final RevObject object = database.get(id);
+                    final RevObject object = currentLevel.head(database);
                     final List<ObjectId> next = new ArrayList<ObjectId>();
                     successors.findSuccessors(object, next);
-                    toVisit.add(0, next);
+                    // the children of a tree are bounded in number and depth, so they're loaded
+                    // as a batch. Commit ancestry is loaded lazily to keep memory bounded.
+                    Deque<RevObject> loaded = null;
+                    if (object instanceof RevTree && !next.isEmpty()) {
+                        loaded = loadAll(next);
+                    }
+                    toVisit.addFirst(new Level(next, loaded));
                 } else {
                     // We just visited a node, so switch back to enqueuing mode in order to make
                     // sure the successors of the next one at this depth are visited.
                     enqueue = true;
-                    final ObjectId id = currentList.remove(0);
+                    // the head was already loaded when enqueuing its successors
+                    final RevObject object = currentLevel.head(database);
+                    final ObjectId id = currentLevel.pop();
 
                     if (successors.previsit(id)) {
-                        return database.get(id);
+                        return object;
                     }
                 }
             }
@@ -151,6 +203,93 @@ public class PostOrderIterator extends AbstractIterator<RevObject> {
         return endOfData();
     }
 
+    /**
+     * Loads the given objects, concurrently if this is a parallel traversal and there are enough
+     * of them.
+     * 
+     * @return the objects, in the same order as {@code ids}
+     */
+    private Deque<RevObject> loadAll(final List<ObjectId> ids) {
+        final Deque<RevObject> objects = new ArrayDeque<RevObject>(ids.size());
+        if (!parallel || ids.size() < PARALLEL_THRESHOLD) {
+            for (ObjectId id : ids) {
+                objects.addLast(database.get(id));
+            }
+            return objects;
+        }
+        final int chunkSize = (ids.size() + SharedExecutor.THREADS - 1) / SharedExecutor.THREADS;
+        List<Future<List<RevObject>>> chunks = new ArrayList<Future<List<RevObject>>>();
+        for (int from = 0; from < ids.size(); from += chunkSize) {
+            final List<ObjectId> chunk = ids.subList(from, Math.min(ids.size(), from + chunkSize));
+            chunks.add(SharedExecutor.submit(new Callable<List<RevObject>>() {
+                @Override
+                public List<RevObject> call() {
+                    List<RevObject> loaded = new ArrayList<RevObject>(chunk.size());
+                    for (ObjectId id : chunk) {
+                        loaded.add(database.get(id));
+                    }
+                    return loaded;
+                }
+            }));
+        }
+        try {
+            for (Future<List<RevObject>> chunk : chunks) {
+                objects.addAll(chunk.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(e);
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        } finally {
+            for (Future<List<RevObject>> chunk : chunks) {
+                chunk.cancel(true);
+            }
+        }
+        return objects;
+    }
+
+    /**
+     * A level of the traversal stack: the ids of the successors of an object, and either all of
+     * them loaded beforehand or the one at the head once it's loaded.
+     */
+    private static final class Level {
+
+        private final Deque<ObjectId> ids;
+
+        @Nullable
+        private final Deque<RevObject> loaded;
+
+        private RevObject head;
+
+        Level(List<ObjectId> ids, @Nullable Deque<RevObject> loaded) {
+            this.ids = new ArrayDeque<ObjectId>(ids);
+            this.loaded = loaded;
+        }
+
+        boolean isEmpty() {
+            return ids.isEmpty();
+        }
+
+        RevObject head(ObjectDatabase database) {
+            if (loaded != null) {
+                return loaded.peekFirst();
+            }
+            if (head == null) {
+                head = database.get(ids.peekFirst());
+            }
+            return head;
+        }
+
+        ObjectId pop() {
+            head = null;
+            if (loaded != null) {
+                loaded.removeFirst();
+            }
+            return ids.removeFirst();
+        }
+    }
+
     /**
      * The Successors interface defines a pluggable strategy for finding successors of (nodes
      * reachable from) a GeoGit history object. We follow a combinatorial approach in defining
@@ -352,11 +491,10 @@ public class PostOrderIterator extends AbstractIterator<RevObject> {
      * they are reachable by another path.
      * 
      * @param delegate the original Successors policy
-     * @param base a list of blacklisted objectids
+     * @param baseSet a set of blacklisted objectids
      * @return a Successors policy for visiting the same nodes as the original policy, but with
      */
-    private final static Successors blacklist(final Successors delegate, final List<ObjectId> base) {
-        final Set<ObjectId> baseSet = new HashSet<ObjectId>(base);
+    private final static Successors blacklist(final Successors delegate, final Set<ObjectId> baseSet) {
         return new Successors() {
             public void findSuccessors(final RevObject object, final List<ObjectId> successors) {
                 if (!baseSet.contains(object.getId())) {
@@ -23,11 +23,15 @@ import org.geogit.api.plumbing.RevObjectParse;
 import org.geogit.api.plumbing.RevParse;
 import org.geogit.api.porcelain.ConfigOp;
 import org.geogit.api.porcelain.ConfigOp.ConfigAction;
+import org.geogit.storage.BitmapIndex;
+import org.geogit.storage.CommitMetadataIndex;
 import org.geogit.storage.ConfigDatabase;
 import org.geogit.storage.GraphDatabase;
 import org.geogit.storage.ObjectDatabase;
 import org.geogit.storage.ObjectInserter;
 import org.geogit.storage.RefDatabase;
+import org.geogit.storage.SpatialChangeIndex;
+import org.geogit.storage.SpatialTreeIndex;
 
 import com.google.common.base.Optional;
 import com.google.inject.Inject;
@@ -67,6 +71,18 @@ public class Repository implements CommandLocator {
     @Inject
     private GraphDatabase graphDatabase;
 
+    @Inject
+    private CommitMetadataIndex commitIndex;
+
+    @Inject
+    private BitmapIndex bitmapIndex;
+
+    @Inject
+    private SpatialChangeIndex spatialIndex;
+
+    @Inject
+    private SpatialTreeIndex spatialTreeIndex;
+
     public static final String DEPTH_CONFIG_KEY = "core.depth";
 
     /**
@@ -79,6 +95,10 @@ public class Repository implements CommandLocator {
         refDatabase.create();
         objectDatabase.open();
         graphDatabase.open();
+        commitIndex.open();
+        bitmapIndex.open();
+        spatialIndex.open();
+        spatialTreeIndex.open();
         index.getDatabase().open();
     }
 
@@ -111,6 +131,34 @@ public class Repository implements CommandLocator {
         return graphDatabase;
     }
 
+    /**
+     * @return the {@link CommitMetadataIndex} for this repository
+     */
+    public CommitMetadataIndex getCommitMetadataIndex() {
+        return commitIndex;
+    }
+
+    /**
+     * @return the {@link BitmapIndex} for this repository
+     */
+    public BitmapIndex getBitmapIndex() {
+        return bitmapIndex;
+    }
+
+    /**
+     * @return the {@link SpatialChangeIndex} for this repository
+     */
+    public SpatialChangeIndex getSpatialChangeIndex() {
+        return spatialIndex;
+    }
+
+    /**
+     * @return the {@link SpatialTreeIndex} for this repository
+     */
+    public SpatialTreeIndex getSpatialTreeIndex() {
+        return spatialTreeIndex;
+    }
+
     /**
      * @return the {@link StagingArea} for this repository
      */
@@ -126,6 +174,10 @@ public class Repository implements CommandLocator {
         refDatabase.close();
         objectDatabase.close();
         graphDatabase.close();
+        commitIndex.close();
+        bitmapIndex.close();
+        spatialIndex.close();
+        spatialTreeIndex.close();
         index.getDatabase().close();
     }
 
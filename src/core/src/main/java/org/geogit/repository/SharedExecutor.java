@@ -0,0 +1,67 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.repository;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * The thread pool shared by all the background work of GeoGit, such as prefetching commits,
+ * loading objects during traversals, building trees while staging, converting features on bulk
+ * inserts and storing ingested objects, so that concurrent operations share a bounded number of
+ * threads instead of each keeping a pool of its own.
+ * <p>
+ * The pool has at most {@link #THREADS} threads, and further tasks are queued. Its threads are
+ * daemon threads that terminate after being idle for a while, so it needs no shutting down.
+ * <p>
+ * As the pool is bounded, tasks shall never wait on other tasks submitted to it, or they could
+ * take all the threads the tasks they wait on need to run.
+ */
+public final class SharedExecutor {
+
+    /**
+     * Maximum number of threads running tasks at the same time
+     */
+    public static final int THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final ThreadPoolExecutor EXECUTOR;
+    static {
+        EXECUTOR = new ThreadPoolExecutor(THREADS, THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactoryBuilder().setDaemon(true)
+                        .setNameFormat("geogit-worker-%d").build());
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private SharedExecutor() {
+        // static methods only
+    }
+
+    /**
+     * Submits a task to the shared pool.
+     *
+     * @param task the task to run
+     * @return a future for the task's result
+     */
+    public static <T> Future<T> submit(Callable<T> task) {
+        return EXECUTOR.submit(task);
+    }
+
+    /**
+     * Submits a task to the shared pool.
+     *
+     * @param task the task to run
+     * @return a future for the task's completion
+     */
+    public static Future<?> submit(Runnable task) {
+        return EXECUTOR.submit(task);
+    }
+}
@@ -0,0 +1,246 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.repository;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import javax.annotation.Nullable;
+
+import org.geogit.api.CommandLocator;
+import org.geogit.api.Node;
+import org.geogit.api.NodeRef;
+import org.geogit.api.ObjectId;
+import org.geogit.api.RevObject.TYPE;
+import org.geogit.api.RevTree;
+import org.geogit.api.RevTreeBuilder;
+import org.geogit.api.plumbing.FindOrCreateSubtree;
+import org.geogit.api.plumbing.FindTreeChild;
+import org.geogit.api.plumbing.diff.DiffEntry;
+import org.geogit.storage.ObjectDatabase;
+import org.opengis.util.ProgressListener;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Suppliers;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Applies a set of changes to a root tree, producing a new root tree without updating any ref.
+ * <p>
+ * The changes are grouped by parent tree, the changed trees are built concurrently, and then
+ * written back together into the new root tree. This is what the {@link Index} does to stage
+ * changes, and what commands replaying commits do to apply each commit's changes straight onto
+ * the tree of the previously replayed one.
+ */
+public class TreeDiffApplier {
+
+    private final CommandLocator commandLocator;
+
+    private final ObjectDatabase database;
+
+    private Set<String> changedTrees = ImmutableSet.of();
+
+    /**
+     * @param commandLocator used to find the existing trees in the index
+     * @param database the database to write the new trees to
+     */
+    public TreeDiffApplier(final CommandLocator commandLocator, final ObjectDatabase database) {
+        this.commandLocator = commandLocator;
+        this.database = database;
+    }
+
+    /**
+     * Applies the changes to the given root tree.
+     *
+     * @param root the tree to apply the changes to
+     * @param changes the changes to apply, including the ones to the trees themselves
+     * @param progress the progress listener to report each applied change to
+     * @param numChanges number of changes, for progress reporting purposes
+     * @return the id of the new root tree, or {@link Optional#absent()} if there was nothing to
+     *         apply
+     */
+    public Optional<ObjectId> apply(final RevTree root, final Iterator<DiffEntry> changes,
+            final ProgressListener progress, final long numChanges) {
+        int i = 0;
+
+        Map<String, RevTreeBuilder> parentTress = Maps.newHashMap();
+        Map<String, ObjectId> parentMetadataIds = Maps.newHashMap();
+        Set<String> removedTrees = Sets.newHashSet();
+        changedTrees = Sets.newHashSet();
+        while (changes.hasNext()) {
+            final DiffEntry diff = changes.next();
+            final String fullPath = diff.oldPath() == null ? diff.newPath() : diff.oldPath();
+            final String parentPath = NodeRef.parentPath(fullPath);
+            /*
+             * TODO: revisit, ideally the list of diff entries would come with one single entry for
+             * the whole removed tree instead of that one and every single children of it.
+             */
+            if (isRemoved(parentPath, removedTrees)) {
+                continue;
+            }
+            if (null == parentPath) {
+                // it is the root tree that's been changed, use it and ignore anything else
+                changedTrees = ImmutableSet.of(NodeRef.ROOT);
+                progress.progress(100f);
+                return Optional.of(diff.newObjectId());
+            }
+            RevTreeBuilder parentTree = getParentTree(root, parentPath, parentTress,
+                    parentMetadataIds);
+
+            i++;
+            progress.progress((float) (i * 100) / numChanges);
+
+            NodeRef oldObject = diff.getOldObject();
+            NodeRef newObject = diff.getNewObject();
+            if (newObject == null) {
+                // Delete
+                parentTree.remove(oldObject.name());
+                if (TYPE.TREE.equals(oldObject.getType())) {
+                    removedTrees.add(oldObject.path());
+                }
+            } else if (oldObject == null) {
+                // Add
+                Node node = newObject.getNode();
+                parentTree.put(node);
+                parentMetadataIds.put(newObject.path(), newObject.getMetadataId());
+            } else {
+                // Modify
+                Node node = newObject.getNode();
+                parentTree.put(node);
+            }
+
+            TYPE type = (newObject == null ? oldObject : newObject).getType();
+            changedTrees.add(TYPE.TREE.equals(type) ? fullPath : parentPath);
+
+            applied(fullPath);
+        }
+
+        // trees removed as a whole don't need their subtrees rebuilt
+        for (Iterator<String> it = parentTress.keySet().iterator(); it.hasNext();) {
+            if (isRemoved(it.next(), removedTrees)) {
+                it.remove();
+            }
+        }
+        if (parentTress.isEmpty()) {
+            return Optional.absent();
+        }
+        final Map<String, RevTree> newTrees = build(parentTress);
+        return Optional.of(new TreeWriteBack(commandLocator, database).writeBack(root, newTrees,
+                parentMetadataIds));
+    }
+
+    /**
+     * @return the paths of the trees whose contents were changed by the last {@link #apply} call
+     */
+    public Set<String> changedTrees() {
+        return changedTrees;
+    }
+
+    /**
+     * Called for each change applied, does nothing by default.
+     *
+     * @param path the path of the changed tree or feature
+     */
+    protected void applied(String path) {
+        // nothing to do
+    }
+
+    /**
+     * @return whether {@code path} or any of its ancestors is one of the {@code removedTrees}
+     */
+    private static boolean isRemoved(@Nullable String path, Set<String> removedTrees) {
+        if (removedTrees.isEmpty()) {
+            return false;
+        }
+        while (path != null && !path.isEmpty()) {
+            if (removedTrees.contains(path)) {
+                return true;
+            }
+            path = NodeRef.parentPath(path);
+        }
+        return false;
+    }
+
+    /**
+     * Builds the changed trees, concurrently if there are more than one, and saves them to the
+     * database.
+     *
+     * @return the built trees, by path
+     */
+    private Map<String, RevTree> build(final Map<String, RevTreeBuilder> builders) {
+        final Map<String, RevTree> trees = Maps.newHashMap();
+        if (builders.size() < 2) {
+            for (Map.Entry<String, RevTreeBuilder> entry : builders.entrySet()) {
+                RevTree tree = entry.getValue().build();
+                database.put(tree);
+                trees.put(entry.getKey(), tree);
+            }
+            return trees;
+        }
+
+        final Map<String, Future<RevTree>> futures = Maps.newHashMap();
+        for (Map.Entry<String, RevTreeBuilder> entry : builders.entrySet()) {
+            final RevTreeBuilder builder = entry.getValue();
+            futures.put(entry.getKey(), SharedExecutor.submit(new Callable<RevTree>() {
+                @Override
+                public RevTree call() {
+                    RevTree tree = builder.build();
+                    database.put(tree);
+                    return tree;
+                }
+            }));
+        }
+        try {
+            for (Map.Entry<String, Future<RevTree>> entry : futures.entrySet()) {
+                trees.put(entry.getKey(), entry.getValue().get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(e);
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        } finally {
+            for (Future<RevTree> future : futures.values()) {
+                future.cancel(true);
+            }
+        }
+        return trees;
+    }
+
+    private RevTreeBuilder getParentTree(RevTree root, String parentPath,
+            Map<String, RevTreeBuilder> parentTress, Map<String, ObjectId> parentMetadataIds) {
+
+        RevTreeBuilder parentBuilder = parentTress.get(parentPath);
+        if (parentBuilder == null) {
+            ObjectId parentMetadataId = null;
+            if (NodeRef.ROOT.equals(parentPath)) {
+                parentBuilder = root.builder(database);
+            } else {
+                Optional<NodeRef> parentRef = commandLocator.command(FindTreeChild.class)
+                        .setIndex(true).setParent(root).setChildPath(parentPath).call();
+
+                if (parentRef.isPresent()) {
+                    parentMetadataId = parentRef.get().getMetadataId();
+                }
+
+                parentBuilder = commandLocator.command(FindOrCreateSubtree.class)
+                        .setParent(Suppliers.ofInstance(Optional.of(root))).setIndex(true)
+                        .setChildPath(parentPath).call().builder(database);
+            }
+            parentTress.put(parentPath, parentBuilder);
+            if (parentMetadataId != null) {
+                parentMetadataIds.put(parentPath, parentMetadataId);
+            }
+        }
+        return parentBuilder;
+    }
+}
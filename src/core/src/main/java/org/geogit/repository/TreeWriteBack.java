@@ -0,0 +1,148 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.repository;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.annotation.Nullable;
+
+import org.geogit.api.CommandLocator;
+import org.geogit.api.Node;
+import org.geogit.api.NodeRef;
+import org.geogit.api.ObjectId;
+import org.geogit.api.RevObject.TYPE;
+import org.geogit.api.RevTree;
+import org.geogit.api.RevTreeBuilder;
+import org.geogit.api.plumbing.FindTreeChild;
+import org.geogit.api.plumbing.RevObjectParse;
+import org.geogit.storage.ObjectDatabase;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Maps;
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Writes several new trees back into a root tree at once, rebuilding each of their ancestors only
+ * once, deepest first, unlike {@link org.geogit.api.plumbing.WriteBack} does for one tree at a
+ * time.
+ * <p>
+ * Tree nodes are created as {@code WriteBack} does: with bounds only for trees with a default
+ * feature type, and with the metadata ids of the existing trees for the rebuilt ancestors.
+ */
+class TreeWriteBack {
+
+    private final CommandLocator commandLocator;
+
+    private final ObjectDatabase database;
+
+    /**
+     * @param commandLocator used to find the existing ancestor trees in the index
+     * @param database the database to write the trees to
+     */
+    TreeWriteBack(CommandLocator commandLocator, ObjectDatabase database) {
+        this.commandLocator = commandLocator;
+        this.database = database;
+    }
+
+    /**
+     * Orders tree paths deepest first, so that trees are rebuilt before their parents
+     */
+    private static final Comparator<String> DEEPEST_FIRST = new Comparator<String>() {
+        @Override
+        public int compare(String p1, String p2) {
+            int depth1 = NodeRef.depth(p1);
+            int depth2 = NodeRef.depth(p2);
+            return depth1 == depth2 ? p1.compareTo(p2) : depth2 - depth1;
+        }
+    };
+
+    /**
+     * Writes the given trees back into the root tree, rebuilding each of their ancestors once,
+     * and returns the id of the new root tree.
+     * 
+     * @param root the current root tree
+     * @param newTrees the new trees, by path, where the root path stands for a new version of the
+     *        root tree to write the other trees back into
+     * @param metadataIds the metadata ids of the new trees' nodes, by path, defaulting to
+     *        {@link ObjectId#NULL}
+     * @return the id of the new root tree
+     */
+    public ObjectId writeBack(final RevTree root, final Map<String, RevTree> newTrees,
+            final Map<String, ObjectId> metadataIds) {
+
+        // the nodes of the rebuilt trees, by the path of their parents
+        final TreeMap<String, Map<String, Node>> children = new TreeMap<String, Map<String, Node>>(
+                DEEPEST_FIRST);
+        for (Map.Entry<String, RevTree> entry : newTrees.entrySet()) {
+            final String path = entry.getKey();
+            if (path.isEmpty()) {
+                continue;// the new root is the base for the rebuilt root below
+            }
+            putTreeNode(children, path, entry.getValue(), metadataIds.get(path));
+        }
+        if (children.isEmpty()) {
+            RevTree newRoot = newTrees.containsKey(NodeRef.ROOT) ? newTrees.get(NodeRef.ROOT)
+                    : root;
+            database.put(newRoot);
+            return newRoot.getId();
+        }
+
+        while (true) {
+            final Map.Entry<String, Map<String, Node>> deepest = children.pollFirstEntry();
+            final String path = deepest.getKey();
+
+            RevTree base;
+            ObjectId metadataId = ObjectId.NULL;
+            if (newTrees.containsKey(path)) {
+                base = newTrees.get(path);
+                metadataId = metadataIds.get(path);
+            } else if (path.isEmpty()) {
+                base = root;
+            } else {
+                Optional<NodeRef> treeRef = commandLocator.command(FindTreeChild.class)
+                        .setIndex(true).setParent(root).setChildPath(path).call();
+                if (treeRef.isPresent()) {
+                    metadataId = treeRef.get().getMetadataId();
+                    base = commandLocator.command(RevObjectParse.class)
+                            .setObjectId(treeRef.get().objectId()).call(RevTree.class).get();
+                } else {
+                    base = RevTree.EMPTY;
+                }
+            }
+            RevTreeBuilder builder = base.builder(database);
+            for (Node child : deepest.getValue().values()) {
+                builder.put(child);
+            }
+            RevTree tree = builder.build();
+            if (path.isEmpty()) {
+                database.put(tree);
+                return tree.getId();
+            }
+            putTreeNode(children, path, tree, metadataId);
+        }
+    }
+
+    private void putTreeNode(Map<String, Map<String, Node>> children, String path, RevTree tree,
+            @Nullable ObjectId metadataId) {
+        database.put(tree);
+        if (metadataId == null) {
+            metadataId = ObjectId.NULL;
+        }
+        Envelope treeBounds = null;
+        if (!metadataId.isNull()) {// only include bounds for trees with a default feature type
+            treeBounds = SpatialOps.boundsOf(tree);
+        }
+        final String parentPath = NodeRef.parentPath(path);
+        Map<String, Node> siblings = children.get(parentPath);
+        if (siblings == null) {
+            siblings = Maps.newHashMap();
+            children.put(parentPath, siblings);
+        }
+        String name = NodeRef.nodeFromPath(path);
+        siblings.put(name, Node.create(name, tree.getId(), metadataId, TYPE.TREE, treeBounds));
+    }
+}
@@ -0,0 +1,307 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.repository;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.annotation.Nullable;
+
+import org.geogit.api.CommandLocator;
+import org.geogit.api.GeogitTransaction;
+import org.geogit.api.NodeRef;
+import org.geogit.api.ObjectId;
+import org.geogit.api.Ref;
+import org.geogit.api.RevTree;
+import org.geogit.api.plumbing.FindTreeChild;
+import org.geogit.api.plumbing.ResolveGeogitDir;
+import org.geogit.api.plumbing.ResolveTreeish;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.io.Files;
+
+/**
+ * Keeps track of the trees that may differ between the {@link Ref#STAGE_HEAD STAGE_HEAD} and the
+ * {@link Ref#WORK_HEAD WORK_HEAD}, so that the unstaged changes can be computed by diffing only
+ * those trees instead of both trees from their roots.
+ * <p>
+ * The journal is kept in memory, as the ids of the stage and work trees it was recorded for and
+ * the dirty tree paths. Since trees are immutable and identified by their contents, the recorded
+ * paths hold for as long as both refs point to the recorded trees, regardless of how they got
+ * there. Each update tells the tree it was based on, so an update based on a tree other than the
+ * recorded one (e.g. after a ref update that wasn't recorded, or made by another process) starts
+ * the journal over if that tree was also the other side's, and makes it invalid otherwise, in
+ * which case the callers fall back to a full diff. Only {@link #dirtyTrees()} resolves the refs.
+ * <p>
+ * Staging the contents of a dirty tree as they are in the work tree removes it from the dirty
+ * trees, and a journal is always valid, and empty, while both refs point to the same tree.
+ * <p>
+ * The journal is read from the {@code .geogit/WORK_JOURNAL} file, or from a hidden file in the
+ * {@link GeogitTransaction#getDirectory() transaction directory} for the work tree of a
+ * transaction, the first time it's used, and only written back when {@link #flush() flushed},
+ * once the command that changed it finishes. The file is rewritten through a temporary file of its
+ * own, so concurrent writers never clobber each other's partial contents.
+ *
+ * @see WorkTreeJournalInterceptor
+ */
+class WorkTreeJournal {
+
+    private static final String FILE_NAME = "WORK_JOURNAL";
+
+    /**
+     * Name of the journal file in a transaction directory, hidden as the directory also holds the
+     * transaction refs
+     */
+    private static final String TRANSACTION_FILE_NAME = "." + FILE_NAME;
+
+    private final CommandLocator commandLocator;
+
+    private File file;
+
+    /**
+     * Whether the journal file has been read
+     */
+    private boolean loaded;
+
+    /**
+     * The stage tree the dirty trees were recorded for, or {@code null} if the journal is invalid
+     */
+    private ObjectId stageHead;
+
+    /**
+     * The work tree the dirty trees were recorded for, or {@code null} if the journal is invalid
+     */
+    private ObjectId workHead;
+
+    private final Set<String> dirtyTrees = new TreeSet<String>();
+
+    /**
+     * Whether the journal changed since it was read or last flushed
+     */
+    private boolean modified;
+
+    WorkTreeJournal(final CommandLocator commandLocator) {
+        this.commandLocator = commandLocator;
+    }
+
+    /**
+     * @return the paths of the trees that may have unstaged changes, or {@link Optional#absent()}
+     *         if the journal is missing or was not recorded for the current stage and work trees
+     */
+    public synchronized Optional<Set<String>> dirtyTrees() {
+        final ObjectId stage = resolve(Ref.STAGE_HEAD);
+        final ObjectId work = resolve(Ref.WORK_HEAD);
+        if (stage.isNull() || work.isNull()) {
+            // an unset STAGE_HEAD stands for the HEAD tree, which may move on its own
+            return Optional.absent();
+        }
+        if (stage.equals(work)) {
+            return Optional.<Set<String>> of(ImmutableSet.<String> of());
+        }
+        load();
+        if (stage.equals(stageHead) && work.equals(workHead)) {
+            return Optional.<Set<String>> of(ImmutableSet.copyOf(dirtyTrees));
+        }
+        return Optional.absent();
+    }
+
+    /**
+     * Records that the work tree was updated by changing only the given trees.
+     *
+     * @param oldWorkHead the id of the work tree the update was based on
+     * @param newWorkHead the id of the new work tree
+     * @param changedTrees the paths of the trees changed in the new work tree
+     */
+    public synchronized void workTreeChanged(final ObjectId oldWorkHead,
+            final ObjectId newWorkHead, final Iterable<String> changedTrees) {
+        load();
+        if (!oldWorkHead.equals(workHead)) {
+            final ObjectId stage = resolve(Ref.STAGE_HEAD);
+            if (stage.isNull() || !stage.equals(oldWorkHead)) {
+                invalidate();
+                return;
+            }
+            // no unstaged changes before the update
+            stageHead = stage;
+            dirtyTrees.clear();
+        }
+        workHead = newWorkHead;
+        Iterables.addAll(dirtyTrees, changedTrees);
+        changed();
+    }
+
+    /**
+     * Records that the stage tree was updated by changing only the given trees.
+     *
+     * @param oldStageHead the id of the stage tree the update was based on
+     * @param newStageHead the id of the new stage tree
+     * @param changedTrees the paths of the trees changed in the new stage tree
+     */
+    public synchronized void stageChanged(final ObjectId oldStageHead,
+            final ObjectId newStageHead, final Iterable<String> changedTrees) {
+        load();
+        if (!oldStageHead.equals(stageHead)) {
+            final ObjectId work = resolve(Ref.WORK_HEAD);
+            if (work.isNull() || !work.equals(oldStageHead)) {
+                invalidate();
+                return;
+            }
+            // no unstaged changes before the update
+            workHead = work;
+            dirtyTrees.clear();
+        }
+        stageHead = newStageHead;
+        if (!stageHead.equals(workHead)) {
+            final RevTree stageTree = tree(stageHead);
+            final RevTree workTree = tree(workHead);
+            for (String path : changedTrees) {
+                if (sameTree(stageTree, workTree, path)) {
+                    // staged as it is in the work tree
+                    dirtyTrees.remove(path);
+                } else {
+                    dirtyTrees.add(path);
+                }
+            }
+        }
+        changed();
+    }
+
+    /**
+     * Writes the journal back to its file if it changed.
+     */
+    public synchronized void flush() {
+        if (!modified) {
+            return;
+        }
+        modified = false;
+        final File file = file();
+        if (file == null) {
+            return;
+        }
+        if (stageHead == null || stageHead.equals(workHead)) {
+            file.delete();
+            return;
+        }
+        StringBuilder contents = new StringBuilder();
+        contents.append(stageHead).append('\n').append(workHead).append('\n');
+        for (String path : dirtyTrees) {
+            contents.append(path).append('\n');
+        }
+        File tmp = null;
+        try {
+            Files.createParentDirs(file);
+            tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+            Files.write(contents, tmp, Charsets.UTF_8);
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            // a missing journal only means the unstaged changes are computed the slow way
+            if (tmp != null) {
+                tmp.delete();
+            }
+            file.delete();
+        }
+    }
+
+    private void changed() {
+        if (stageHead.isNull() || workHead.isNull()) {
+            invalidate();
+            return;
+        }
+        if (stageHead.equals(workHead)) {
+            dirtyTrees.clear();
+        }
+        modified = true;
+    }
+
+    private void invalidate() {
+        stageHead = null;
+        workHead = null;
+        dirtyTrees.clear();
+        modified = true;
+    }
+
+    private boolean sameTree(final RevTree stageTree, final RevTree workTree, final String path) {
+        if (NodeRef.ROOT.equals(path)) {
+            return stageTree.getId().equals(workTree.getId());
+        }
+        Optional<NodeRef> staged = commandLocator.command(FindTreeChild.class).setIndex(true)
+                .setParent(stageTree).setChildPath(path).call();
+        Optional<NodeRef> unstaged = commandLocator.command(FindTreeChild.class).setIndex(true)
+                .setParent(workTree).setChildPath(path).call();
+        return staged.equals(unstaged);
+    }
+
+    private RevTree tree(final ObjectId treeId) {
+        return commandLocator.getIndex().getDatabase().getTree(treeId);
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        final File file = file();
+        if (file == null || !file.exists()) {
+            return;
+        }
+        try {
+            List<String> lines = Files.readLines(file, Charsets.UTF_8);
+            if (lines.size() >= 2) {
+                ObjectId stage = ObjectId.valueOf(lines.get(0));
+                ObjectId work = ObjectId.valueOf(lines.get(1));
+                dirtyTrees.addAll(lines.subList(2, lines.size()));
+                stageHead = stage;
+                workHead = work;
+            }
+        } catch (IOException e) {
+            // start with an invalid journal
+        } catch (IllegalArgumentException e) {
+            // not a journal
+            dirtyTrees.clear();
+        }
+    }
+
+    private ObjectId resolve(final String refName) {
+        return commandLocator.command(ResolveTreeish.class).setTreeish(refName).call()
+                .or(ObjectId.NULL);
+    }
+
+    /**
+     * @return the journal file, or {@code null} if the repository is not stored in a directory
+     */
+    @Nullable
+    private File file() {
+        if (file == null && commandLocator instanceof GeogitTransaction) {
+            File directory = ((GeogitTransaction) commandLocator).getDirectory();
+            if (directory == null) {
+                return null;
+            }
+            file = new File(directory, TRANSACTION_FILE_NAME);
+        }
+        if (file == null) {
+            URL geogitDir = commandLocator.command(ResolveGeogitDir.class).call();
+            if (geogitDir == null || !"file".equals(geogitDir.getProtocol())) {
+                return null;
+            }
+            try {
+                file = new File(new File(geogitDir.toURI()), FILE_NAME);
+            } catch (URISyntaxException e) {
+                return null;
+            }
+        }
+        return file;
+    }
+}
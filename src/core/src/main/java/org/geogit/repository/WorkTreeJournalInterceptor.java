@@ -0,0 +1,50 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.repository;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+
+import com.google.inject.Provider;
+
+/**
+ * An interceptor that writes the {@link WorkTreeJournal journal} of unstaged changes of the
+ * working tree back to its file once the outermost command running on the calling thread finishes,
+ * so that the commands it runs only update the journal in memory.
+ */
+public class WorkTreeJournalInterceptor implements MethodInterceptor {
+
+    private final Provider<WorkingTree> workingTree;
+
+    /**
+     * Number of commands running on each thread
+     */
+    private final ThreadLocal<int[]> depth = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+
+    /**
+     * @param workingTree provides the working tree of the commands this interceptor is bound to
+     */
+    public WorkTreeJournalInterceptor(final Provider<WorkingTree> workingTree) {
+        this.workingTree = workingTree;
+    }
+
+    @Override
+    public Object invoke(MethodInvocation invocation) throws Throwable {
+        final int[] running = depth.get();
+        running[0]++;
+        try {
+            return invocation.proceed();
+        } finally {
+            if (--running[0] == 0) {
+                workingTree.get().journal().flush();
+            }
+        }
+    }
+}
@@ -7,12 +7,22 @@ package org.geogit.repository;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import javax.annotation.Nullable;
 
+import org.geogit.api.Bounded;
 import org.geogit.api.CommandLocator;
 import org.geogit.api.FeatureBuilder;
 import org.geogit.api.Node;
@@ -20,7 +30,6 @@ import org.geogit.api.NodeRef;
 import org.geogit.api.ObjectId;
 import org.geogit.api.Ref;
 import org.geogit.api.RevFeature;
-import org.geogit.api.RevFeatureBuilder;
 import org.geogit.api.RevFeatureType;
 import org.geogit.api.RevObject;
 import org.geogit.api.RevObject.TYPE;
@@ -37,25 +46,36 @@ import org.geogit.api.plumbing.ResolveTreeish;
 import org.geogit.api.plumbing.RevObjectParse;
 import org.geogit.api.plumbing.UpdateRef;
 import org.geogit.api.plumbing.WriteBack;
+import org.geogit.api.plumbing.diff.DepthTreeIterator;
 import org.geogit.api.plumbing.diff.DiffEntry;
 import org.geogit.api.plumbing.diff.DiffObjectCount;
 import org.geogit.storage.StagingDatabase;
+import org.geogit.storage.datastream.EncodedFeature;
+import org.geotools.filter.visitor.ExtractBoundsFilterVisitor;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.opengis.feature.Feature;
 import org.opengis.feature.type.FeatureType;
+import org.opengis.feature.type.GeometryDescriptor;
 import org.opengis.feature.type.Name;
+import org.opengis.feature.type.PropertyDescriptor;
 import org.opengis.filter.Filter;
+import org.opengis.filter.spatial.BBOX;
 import org.opengis.geometry.BoundingBox;
 import org.opengis.util.ProgressListener;
 
 import com.google.common.base.Function;
 import com.google.common.base.Optional;
+import com.google.common.base.Predicate;
 import com.google.common.base.Preconditions;
-import com.google.common.base.Supplier;
 import com.google.common.base.Suppliers;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
 import com.google.common.collect.PeekingIterator;
+import com.google.common.collect.Sets;
 import com.google.inject.Inject;
 import com.vividsolutions.jts.geom.Envelope;
 
@@ -83,16 +103,24 @@ import com.vividsolutions.jts.geom.Envelope;
  */
 public class WorkingTree {
 
+    /**
+     * Number of features converted and written by each task of the bulk insert pipeline
+     */
+    private static final int INSERT_BATCH_SIZE = 1000;
+
     private StagingDatabase indexDatabase;
 
     private CommandLocator commandLocator;
 
+    private final WorkTreeJournal journal;
+
     @Inject
     public WorkingTree(final StagingDatabase indexDb, final CommandLocator commandLocator) {
         Preconditions.checkNotNull(indexDb);
         Preconditions.checkNotNull(commandLocator);
         this.indexDatabase = indexDb;
         this.commandLocator = commandLocator;
+        this.journal = new WorkTreeJournal(commandLocator);
     }
 
     /**
@@ -105,6 +133,22 @@ public class WorkingTree {
         commandLocator.command(UpdateRef.class).setName(Ref.WORK_HEAD).setNewValue(newTree).call();
     }
 
+    /**
+     * Updates the WORK_HEAD ref from {@code oldTree} to the specified tree, recording the trees
+     * that changed in the {@link WorkTreeJournal journal} of unstaged changes.
+     */
+    private void updateWorkHead(RevTree oldTree, ObjectId newTree, Iterable<String> changedTrees) {
+        journal.workTreeChanged(oldTree.getId(), newTree, changedTrees);
+        updateWorkHead(newTree);
+    }
+
+    /**
+     * @return the journal of the trees with unstaged changes
+     */
+    WorkTreeJournal journal() {
+        return journal;
+    }
+
     /**
      * @return the tree represented by WORK_HEAD. If there is no tree set at WORK_HEAD, it will
      *         return the HEAD tree (no unstaged changes).
@@ -134,19 +178,6 @@ public class WorkingTree {
         return workTree;
     }
 
-    /**
-     * @return a supplier for the working tree.
-     */
-    private Supplier<RevTreeBuilder> getTreeSupplier() {
-        Supplier<RevTreeBuilder> supplier = new Supplier<RevTreeBuilder>() {
-            @Override
-            public RevTreeBuilder get() {
-                return getTree().builder(indexDatabase);
-            }
-        };
-        return Suppliers.memoize(supplier);
-    }
-
     /**
      * Deletes a single feature from the working tree and updates the WORK_HEAD ref.
      * 
@@ -155,8 +186,9 @@ public class WorkingTree {
      * @return true if the object was found and deleted, false otherwise
      */
     public boolean delete(final String path, final String featureId) {
+        final RevTree workHead = getTree();
         Optional<NodeRef> typeTreeRef = commandLocator.command(FindTreeChild.class).setIndex(true)
-                .setParent(getTree()).setChildPath(path).call();
+                .setParent(workHead).setChildPath(path).call();
 
         ObjectId metadataId = null;
         if (typeTreeRef.isPresent()) {
@@ -164,7 +196,7 @@ public class WorkingTree {
         }
 
         RevTreeBuilder parentTree = commandLocator.command(FindOrCreateSubtree.class)
-                .setIndex(true).setParent(Suppliers.ofInstance(Optional.of(getTree())))
+                .setIndex(true).setParent(Suppliers.ofInstance(Optional.of(workHead)))
                 .setChildPath(path).call().builder(indexDatabase);
 
         String featurePath = NodeRef.appendChild(path, featureId);
@@ -173,11 +205,11 @@ public class WorkingTree {
             parentTree.remove(node.get().getName());
         }
 
-        ObjectId newTree = commandLocator.command(WriteBack.class).setAncestor(getTreeSupplier())
-                .setChildPath(path).setToIndex(true).setMetadataId(metadataId)
-                .setTree(parentTree.build()).call();
+        ObjectId newTree = commandLocator.command(WriteBack.class)
+                .setAncestor(workHead.builder(indexDatabase)).setChildPath(path).setToIndex(true)
+                .setMetadataId(metadataId).setTree(parentTree.build()).call();
 
-        updateWorkHead(newTree);
+        updateWorkHead(workHead, newTree, ImmutableList.of(path));
 
         return node.isPresent();
     }
@@ -228,7 +260,7 @@ public class WorkingTree {
                     .setAncestor(workHead.builder(indexDatabase)).setChildPath(parentPath)
                     .setTree(newParent).setMetadataId(parentMetadataId).call();
         }
-        updateWorkHead(newWorkHead);
+        updateWorkHead(workHead, newWorkHead, ImmutableList.of(path));
     }
 
     /**
@@ -243,8 +275,9 @@ public class WorkingTree {
     public void delete(final Name typeName, final Filter filter,
             final Iterator<Feature> affectedFeatures) throws Exception {
 
+        final RevTree workHead = getTree();
         Optional<NodeRef> typeTreeRef = commandLocator.command(FindTreeChild.class).setIndex(true)
-                .setParent(getTree()).setChildPath(typeName.getLocalPart()).call();
+                .setParent(workHead).setChildPath(typeName.getLocalPart()).call();
 
         ObjectId parentMetadataId = null;
         if (typeTreeRef.isPresent()) {
@@ -252,7 +285,7 @@ public class WorkingTree {
         }
 
         RevTreeBuilder parentTree = commandLocator.command(FindOrCreateSubtree.class)
-                .setParent(Suppliers.ofInstance(Optional.of(getTree()))).setIndex(true)
+                .setParent(Suppliers.ofInstance(Optional.of(workHead))).setIndex(true)
                 .setChildPath(typeName.getLocalPart()).call().builder(indexDatabase);
 
         String fid;
@@ -268,11 +301,141 @@ public class WorkingTree {
         }
 
         ObjectId newTree = commandLocator.command(WriteBack.class)
-                .setAncestor(getTree().builder(indexDatabase)).setMetadataId(parentMetadataId)
+                .setAncestor(workHead.builder(indexDatabase)).setMetadataId(parentMetadataId)
                 .setChildPath(typeName.getLocalPart()).setToIndex(true).setTree(parentTree.build())
                 .call();
 
-        updateWorkHead(newTree);
+        updateWorkHead(workHead, newTree, ImmutableList.of(typeName.getLocalPart()));
+    }
+
+    /**
+     * Deletes the features of a tree that match the given filter and updates the WORK_HEAD ref.
+     * <p>
+     * The bounds of the filter are checked against the bounds of the tree's buckets and feature
+     * nodes, so that only features whose bounds straddle them are loaded to evaluate the filter.
+     * Buckets and nodes outside the filter's bounds are skipped, and, if the filter is a
+     * {@link BBOX} and the tree's features have a single geometry, nodes within them are deleted
+     * without loading their features.
+     * 
+     * @param treePath the path of the tree to delete the features from
+     * @param filter the filter the features to delete match
+     * @return the number of deleted features
+     */
+    public long delete(final String treePath, final Filter filter) {
+        checkNotNull(treePath);
+        checkNotNull(filter);
+
+        final RevTree workHead = getTree();
+        final Optional<NodeRef> typeTreeRef = commandLocator.command(FindTreeChild.class)
+                .setIndex(true).setParent(workHead).setChildPath(treePath).call();
+        if (!typeTreeRef.isPresent() || Filter.EXCLUDE.equals(filter)) {
+            return 0;
+        }
+        final ObjectId metadataId = typeTreeRef.get().getMetadataId();
+        final RevTree typeTree = commandLocator.command(RevObjectParse.class)
+                .setObjectId(typeTreeRef.get().objectId()).call(RevTree.class).get();
+
+        final Envelope filterBounds = filterBounds(filter);
+        // node bounds are stored in single precision, so compare them against the filter's
+        // bounds grown and shrunk by the rounding error
+        final Envelope mayIntersect;
+        final Envelope within;
+        if (filterBounds == null) {
+            mayIntersect = null;
+            within = null;
+        } else {
+            double tolerance = 2 * Math.ulp((float) Math.max(
+                    Math.max(Math.abs(filterBounds.getMinX()), Math.abs(filterBounds.getMaxX())),
+                    Math.max(Math.abs(filterBounds.getMinY()), Math.abs(filterBounds.getMaxY()))));
+            mayIntersect = new Envelope(filterBounds);
+            mayIntersect.expandBy(tolerance);
+            if (filter instanceof BBOX && !metadataId.isNull()
+                    && geometryCount(indexDatabase.getFeatureType(metadataId)) == 1) {
+                within = new Envelope(filterBounds);
+                within.expandBy(-tolerance);
+            } else {
+                within = null;
+            }
+        }
+
+        DepthTreeIterator nodes = new DepthTreeIterator(treePath, metadataId, typeTree,
+                indexDatabase, DepthTreeIterator.Strategy.FEATURES_ONLY);
+        if (mayIntersect != null) {
+            nodes.setBoundsFilter(new Predicate<Bounded>() {
+                @Override
+                public boolean apply(Bounded bounded) {
+                    Envelope bounds = boundsOf(bounded);
+                    // features without a geometry are not accounted for in the bounds
+                    return bounds.isNull() || bounds.intersects(mayIntersect);
+                }
+            });
+        }
+
+        final RevTreeBuilder builder = typeTree.builder(indexDatabase);
+        final Map<ObjectId, FeatureBuilder> featureBuilders = Maps.newHashMap();
+        long deleted = 0;
+        while (nodes.hasNext()) {
+            final Node node = nodes.next().getNode();
+            final Envelope bounds = boundsOf(node);
+            final boolean matches;
+            if (within != null && !node.getMetadataId().isPresent() && !bounds.isNull()
+                    && within.contains(bounds)) {
+                matches = true;
+            } else {
+                ObjectId featureMetadataId = node.getMetadataId().or(metadataId);
+                FeatureBuilder featureBuilder = featureBuilders.get(featureMetadataId);
+                if (featureBuilder == null) {
+                    featureBuilder = new FeatureBuilder(
+                            indexDatabase.getFeatureType(featureMetadataId));
+                    featureBuilders.put(featureMetadataId, featureBuilder);
+                }
+                RevFeature revFeature = indexDatabase.getFeature(node.getObjectId());
+                matches = filter.evaluate(featureBuilder.build(node.getName(), revFeature));
+            }
+            if (matches) {
+                builder.remove(node.getName());
+                deleted++;
+            }
+        }
+        if (deleted > 0) {
+            Map<String, RevTree> newTrees = Maps.newHashMap();
+            newTrees.put(treePath, builder.build());
+            Map<String, ObjectId> metadataIds = Maps.newHashMap();
+            metadataIds.put(treePath, metadataId);
+            updateWorkHead(workHead, writeBack(workHead, newTrees, metadataIds),
+                    newTrees.keySet());
+        }
+        return deleted;
+    }
+
+    /**
+     * @return the spatial extent features must intersect to match the filter, or {@code null} if
+     *         it doesn't constrain them to an area
+     */
+    @Nullable
+    private static Envelope filterBounds(Filter filter) {
+        Envelope extent = (Envelope) filter.accept(ExtractBoundsFilterVisitor.BOUNDS_VISITOR, null);
+        if (extent == null || extent.isNull() || Double.isInfinite(extent.getWidth())
+                || Double.isInfinite(extent.getHeight())) {
+            return null;
+        }
+        return new Envelope(extent);
+    }
+
+    private static int geometryCount(RevFeatureType featureType) {
+        int count = 0;
+        for (PropertyDescriptor descriptor : featureType.sortedDescriptors()) {
+            if (descriptor instanceof GeometryDescriptor) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static Envelope boundsOf(Bounded bounded) {
+        Envelope bounds = new Envelope();
+        bounded.expand(bounds);
+        return bounds;
     }
 
     /**
@@ -284,14 +447,15 @@ public class WorkingTree {
     public void delete(final Name typeName) throws Exception {
         checkNotNull(typeName);
 
-        RevTreeBuilder workRoot = getTree().builder(indexDatabase);
+        final RevTree workHead = getTree();
+        RevTreeBuilder workRoot = workHead.builder(indexDatabase);
 
         final String treePath = typeName.getLocalPart();
         if (workRoot.get(treePath).isPresent()) {
             workRoot.remove(treePath);
             RevTree newRoot = workRoot.build();
             indexDatabase.put(newRoot);
-            updateWorkHead(newRoot.getId());
+            updateWorkHead(workHead, newRoot.getId(), ImmutableList.of(treePath));
         }
     }
 
@@ -319,24 +483,23 @@ public class WorkingTree {
             String featureName = NodeRef.nodeFromPath(featurePath);
             parentTree.remove(featureName);
         }
-        ObjectId newTree = null;
+        if (parents.isEmpty()) {
+            return;
+        }
+        Map<String, RevTree> newTrees = Maps.newHashMap();
+        Map<String, ObjectId> metadataIds = Maps.newHashMap();
         for (Map.Entry<String, RevTreeBuilder> entry : parents.entrySet()) {
             String path = entry.getKey();
+            newTrees.put(path, entry.getValue().build());
 
-            RevTreeBuilder parentTree = entry.getValue();
-            RevTree newTypeTree = parentTree.build();
-
-            ObjectId metadataId = null;
             Optional<NodeRef> currentTreeRef = commandLocator.command(FindTreeChild.class)
                     .setIndex(true).setParent(currentWorkHead).setChildPath(path).call();
             if (currentTreeRef.isPresent()) {
-                metadataId = currentTreeRef.get().getMetadataId();
+                metadataIds.put(path, currentTreeRef.get().getMetadataId());
             }
-            newTree = commandLocator.command(WriteBack.class).setAncestor(getTreeSupplier())
-                    .setChildPath(path).setToIndex(true).setTree(newTypeTree)
-                    .setMetadataId(metadataId).call();
-            updateWorkHead(newTree);
         }
+        updateWorkHead(currentWorkHead, writeBack(currentWorkHead, newTrees, metadataIds),
+                newTrees.keySet());
     }
 
     public NodeRef createTypeTree(final String treePath, final FeatureType featureType) {
@@ -356,7 +519,7 @@ public class WorkingTree {
         ObjectId newWorkHeadId = commandLocator.command(WriteBack.class).setToIndex(true)
                 .setAncestor(workHead.builder(indexDatabase)).setChildPath(treePath)
                 .setTree(newTree).setMetadataId(metadataId).call();
-        updateWorkHead(newWorkHeadId);
+        updateWorkHead(workHead, newWorkHeadId, ImmutableList.of(treePath));
 
         return commandLocator.command(FindTreeChild.class).setIndex(true).setParent(getTree())
                 .setChildPath(treePath).call().get();
@@ -394,18 +557,19 @@ public class WorkingTree {
         // ObjectId metadataId = treeRef.getMetadataId();
         final Node node = putInDatabase(feature, metadataId);
 
+        final RevTree workHead = getTree();
         RevTreeBuilder parentTree = commandLocator.command(FindOrCreateSubtree.class)
-                .setIndex(true).setParent(Suppliers.ofInstance(Optional.of(getTree())))
+                .setIndex(true).setParent(Suppliers.ofInstance(Optional.of(workHead)))
                 .setChildPath(parentTreePath).call().builder(indexDatabase);
 
         parentTree.put(node);
         final ObjectId treeMetadataId = treeRef.getMetadataId();
 
-        ObjectId newTree = commandLocator.command(WriteBack.class).setAncestor(getTreeSupplier())
-                .setChildPath(parentTreePath).setToIndex(true).setTree(parentTree.build())
-                .setMetadataId(treeMetadataId).call();
+        ObjectId newTree = commandLocator.command(WriteBack.class)
+                .setAncestor(workHead.builder(indexDatabase)).setChildPath(parentTreePath)
+                .setToIndex(true).setTree(parentTree.build()).setMetadataId(treeMetadataId).call();
 
-        updateWorkHead(newTree);
+        updateWorkHead(workHead, newTree, ImmutableList.of(parentTreePath));
 
         final String featurePath = NodeRef.appendChild(parentTreePath, node.getName());
         Optional<NodeRef> featureRef = commandLocator.command(FindTreeChild.class).setIndex(true)
@@ -415,6 +579,9 @@ public class WorkingTree {
 
     /**
      * Inserts a collection of features into the working tree and updates the WORK_HEAD ref.
+     * <p>
+     * Features are read from {@code features} on the calling thread and converted and written in
+     * batches concurrently, so the iterator shall not reuse the features it returns.
      * 
      * @param treePath the path of the tree to insert the features into
      * @param features the features to insert
@@ -448,55 +615,14 @@ public class WorkingTree {
             }
         }
 
-        final ObjectId defaultMetadataId = treeRef.getMetadataId();
-        final Map<Name, ObjectId> revFeatureTypes = Maps.newHashMap();
-
+        final RevTree workHead = getTree();
         final RevTreeBuilder typeTreeBuilder = commandLocator.command(FindOrCreateSubtree.class)
-                .setIndex(true).setParent(Suppliers.ofInstance(Optional.of(getTree())))
+                .setIndex(true).setParent(Suppliers.ofInstance(Optional.of(workHead)))
                 .setChildPath(treePath).call().builder(indexDatabase);
 
-        Iterator<RevObject> objects = Iterators.transform(features,
-                new Function<Feature, RevObject>() {
-
-                    private RevFeatureBuilder builder = new RevFeatureBuilder();
-
-                    private int count;
-
-                    @Override
-                    public RevFeature apply(Feature feature) {
-                        final RevFeature revFeature = builder.build(feature);
-                        FeatureType featureType = feature.getType();
-                        ObjectId revFeatureTypeId = revFeatureTypes.get(featureType.getName());
-
-                        if (null == revFeatureTypeId) {
-                            RevFeatureType newFeatureType = RevFeatureType.build(featureType);
-                            revFeatureTypeId = newFeatureType.getId();
-                            indexDatabase.put(newFeatureType);
-                            revFeatureTypes.put(feature.getType().getName(), revFeatureTypeId);
-                        }
-
-                        ObjectId metadataId = defaultMetadataId.equals(revFeatureTypeId) ? ObjectId.NULL
-                                : revFeatureTypeId;
-                        Node node = createNode(metadataId, feature, revFeature);
-
-                        if (insertedTarget != null) {
-                            insertedTarget.add(node);
-                        }
-                        typeTreeBuilder.put(node);
-
-                        count++;
-                        if (collectionSize != null) {
-                            listener.progress((float) (count * 100) / collectionSize.intValue());
-                        }
-                        return revFeature;
-                    }
-
-                });
-
-        // System.err.println("\n inserting rev features...");
-        // Stopwatch sw = new Stopwatch().start();
         listener.started();
-        indexDatabase.putAll(objects);
+        insertFeatures(typeTreeBuilder, treeRef.getMetadataId(), features, listener,
+                insertedTarget, 0, collectionSize);
         listener.complete();
         // sw.stop();
         // System.err.printf("\n%d features inserted in %s", collectionSize, sw);
@@ -508,11 +634,195 @@ public class WorkingTree {
         // sw.stop();
         // System.err.println("\nfinal tree built in " + sw);
 
-        ObjectId newTree = commandLocator.command(WriteBack.class).setAncestor(getTreeSupplier())
-                .setChildPath(treePath).setMetadataId(treeRef.getMetadataId()).setToIndex(true)
-                .setTree(newFeatureTree).call();
+        ObjectId newTree = commandLocator.command(WriteBack.class)
+                .setAncestor(workHead.builder(indexDatabase)).setChildPath(treePath)
+                .setMetadataId(treeRef.getMetadataId()).setToIndex(true).setTree(newFeatureTree)
+                .call();
 
-        updateWorkHead(newTree);
+        updateWorkHead(workHead, newTree, ImmutableList.of(treePath));
+    }
+
+    /**
+     * Inserts, updates and deletes features in several trees of the working tree at once and
+     * updates the WORK_HEAD ref.
+     * <p>
+     * Each affected tree is built once, and the new trees are written back along with their
+     * ancestors in a single pass, so that trees shared by several of them, like the root tree, are
+     * only rebuilt once. Deletes are applied before inserts within each tree. Trees that don't
+     * exist are created with the feature type of the first feature inserted into them.
+     * 
+     * @param inserts the features to insert or update, by the path of the tree to insert them into
+     * @param deletes the ids of the features to delete, by the path of the tree they belong to
+     * @param listener a {@link ProgressListener} for the current process
+     */
+    public void update(final Multimap<String, ? extends Feature> inserts,
+            final Multimap<String, String> deletes, final ProgressListener listener) {
+
+        final RevTree workHead = getTree();
+        final Map<String, RevTree> newTrees = Maps.newHashMap();
+        final Map<String, ObjectId> metadataIds = Maps.newHashMap();
+
+        listener.started();
+        int count = 0;
+        for (String treePath : Sets.union(inserts.keySet(), deletes.keySet())) {
+            final Collection<? extends Feature> features = inserts.get(treePath);
+            final Optional<NodeRef> treeRef = commandLocator.command(FindTreeChild.class)
+                    .setIndex(true).setParent(workHead).setChildPath(treePath).call();
+
+            final ObjectId metadataId;
+            final RevTreeBuilder treeBuilder;
+            if (treeRef.isPresent()) {
+                metadataId = treeRef.get().getMetadataId();
+                treeBuilder = commandLocator.command(RevObjectParse.class)
+                        .setObjectId(treeRef.get().objectId()).call(RevTree.class).get()
+                        .builder(indexDatabase);
+            } else if (features.isEmpty()) {
+                continue;// nothing to delete from
+            } else {
+                RevFeatureType revType = RevFeatureType.build(features.iterator().next()
+                        .getType());
+                indexDatabase.put(revType);
+                metadataId = revType.getId();
+                treeBuilder = new RevTreeBuilder(indexDatabase);
+            }
+
+            for (String featureId : deletes.get(treePath)) {
+                treeBuilder.remove(featureId);
+            }
+            count = insertFeatures(treeBuilder, metadataId, features.iterator(), listener, null,
+                    count, inserts.size());
+
+            newTrees.put(treePath, treeBuilder.build());
+            metadataIds.put(treePath, metadataId);
+        }
+        listener.complete();
+
+        if (!newTrees.isEmpty()) {
+            updateWorkHead(workHead, writeBack(workHead, newTrees, metadataIds),
+                    newTrees.keySet());
+        }
+    }
+
+    /**
+     * Writes the given trees back into the working tree, rebuilding each of their ancestors once,
+     * and returns the id of the new root tree.
+     */
+    private ObjectId writeBack(final RevTree workHead, final Map<String, RevTree> newTrees,
+            final Map<String, ObjectId> metadataIds) {
+        return new TreeWriteBack(commandLocator, indexDatabase).writeBack(workHead, newTrees,
+                metadataIds);
+    }
+
+    /**
+     * Inserts features into a tree builder, converting and writing them in batches concurrently
+     * while their nodes are added to the builder in order on the calling thread.
+     * 
+     * @return the number of features inserted so far, starting at {@code count}
+     */
+    private int insertFeatures(final RevTreeBuilder typeTreeBuilder,
+            final ObjectId defaultMetadataId, final Iterator<? extends Feature> features,
+            final ProgressListener listener, @Nullable final List<Node> insertedTarget, int count,
+            @Nullable final Integer collectionSize) {
+
+        final Map<Name, ObjectId> revFeatureTypes = Maps.newHashMap();
+
+        // features are read on this thread, converted and written in batches by the insert
+        // executor, and their nodes added to the tree builder here in the order they were read
+        final Deque<Future<List<Node>>> inFlight = new ArrayDeque<Future<List<Node>>>();
+        try {
+            while (features.hasNext()) {
+                List<Feature> batch = new ArrayList<Feature>(INSERT_BATCH_SIZE);
+                List<ObjectId> metadataIds = new ArrayList<ObjectId>(INSERT_BATCH_SIZE);
+                while (batch.size() < INSERT_BATCH_SIZE && features.hasNext()) {
+                    Feature feature = features.next();
+                    ObjectId revFeatureTypeId = revFeatureTypes.get(feature.getType().getName());
+                    if (null == revFeatureTypeId) {
+                        RevFeatureType newFeatureType = RevFeatureType.build(feature.getType());
+                        revFeatureTypeId = newFeatureType.getId();
+                        indexDatabase.put(newFeatureType);
+                        revFeatureTypes.put(feature.getType().getName(), revFeatureTypeId);
+                    }
+                    batch.add(feature);
+                    metadataIds.add(defaultMetadataId.equals(revFeatureTypeId) ? ObjectId.NULL
+                            : revFeatureTypeId);
+                }
+                inFlight.addLast(SharedExecutor.submit(new InsertBatch(batch, metadataIds)));
+                if (inFlight.size() > SharedExecutor.THREADS) {
+                    count = putNodes(inFlight.removeFirst(), typeTreeBuilder, insertedTarget,
+                            count, listener, collectionSize);
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                count = putNodes(inFlight.removeFirst(), typeTreeBuilder, insertedTarget, count,
+                        listener, collectionSize);
+            }
+        } finally {
+            for (Future<List<Node>> batch : inFlight) {
+                batch.cancel(true);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Waits for a batch of the insert pipeline and adds its nodes to the tree builder.
+     * 
+     * @return the number of features inserted so far
+     */
+    private int putNodes(Future<List<Node>> batch, RevTreeBuilder typeTreeBuilder,
+            @Nullable List<Node> insertedTarget, int count, ProgressListener listener,
+            @Nullable Integer collectionSize) {
+        final List<Node> nodes;
+        try {
+            nodes = batch.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(e);
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+        for (Node node : nodes) {
+            if (insertedTarget != null) {
+                insertedTarget.add(node);
+            }
+            typeTreeBuilder.put(node);
+
+            count++;
+            if (collectionSize != null) {
+                listener.progress((float) (count * 100) / collectionSize.intValue());
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Converts a batch of features to {@link RevFeature}s, writes them to the index database and
+     * returns their nodes in the same order as the features.
+     */
+    private class InsertBatch implements Callable<List<Node>> {
+
+        private final List<Feature> features;
+
+        private final List<ObjectId> metadataIds;
+
+        InsertBatch(List<Feature> features, List<ObjectId> metadataIds) {
+            this.features = features;
+            this.metadataIds = metadataIds;
+        }
+
+        @Override
+        public List<Node> call() {
+            final List<RevObject> revFeatures = new ArrayList<RevObject>(features.size());
+            final List<Node> nodes = new ArrayList<Node>(features.size());
+            for (int i = 0; i < features.size(); i++) {
+                Feature feature = features.get(i);
+                RevFeature revFeature = EncodedFeature.build(feature);
+                revFeatures.add(revFeature);
+                nodes.add(createNode(metadataIds.get(i), feature, revFeature));
+            }
+            indexDatabase.putAll(revFeatures.iterator());
+            return nodes;
+        }
     }
 
     private Node createNode(final ObjectId metadataId, Feature feature, final RevFeature revFeature) {
@@ -576,11 +886,66 @@ public class WorkingTree {
      *         the path filter.
      */
     public Iterator<DiffEntry> getUnstaged(final @Nullable String pathFilter) {
+        if (pathFilter == null) {
+            Optional<Set<String>> dirtyTrees = journal.dirtyTrees();
+            if (dirtyTrees.isPresent() && !dirtyTrees.get().contains(NodeRef.ROOT)) {
+                return getUnstaged(dirtyTrees.get());
+            }
+        }
         Iterator<DiffEntry> unstaged = commandLocator.command(DiffWorkTree.class)
                 .setFilter(pathFilter).setReportTrees(true).call();
         return unstaged;
     }
 
+    /**
+     * Computes the unstaged changes by diffing only the trees recorded in the journal as dirty,
+     * preceded by the changes to the trees containing them, as a full diff would report them.
+     */
+    private Iterator<DiffEntry> getUnstaged(final Set<String> dirtyTrees) {
+        // diff each dirty tree only once, even if it's inside another dirty tree
+        final List<String> topmostTrees = Lists.newArrayList();
+        for (String path : new TreeSet<String>(dirtyTrees)) {
+            if (topmostTrees.isEmpty()
+                    || !NodeRef.isChild(topmostTrees.get(topmostTrees.size() - 1), path)) {
+                topmostTrees.add(path);
+            }
+        }
+
+        final RevTree stageHead = commandLocator.getIndex().getTree();
+        final RevTree workHead = getTree();
+        final List<DiffEntry> ancestorChanges = Lists.newArrayList();
+        final Set<String> ancestors = new TreeSet<String>();
+        for (String path : topmostTrees) {
+            String parentPath = NodeRef.parentPath(path);
+            if (!parentPath.isEmpty()) {
+                ancestors.addAll(NodeRef.allPathsTo(parentPath));
+            }
+        }
+        for (String path : ancestors) {
+            NodeRef oldRef = commandLocator.command(FindTreeChild.class).setIndex(true)
+                    .setParent(stageHead).setChildPath(path).call().orNull();
+            NodeRef newRef = commandLocator.command(FindTreeChild.class).setIndex(true)
+                    .setParent(workHead).setChildPath(path).call().orNull();
+            if (oldRef == null || newRef == null) {
+                if (oldRef != newRef) {
+                    ancestorChanges.add(new DiffEntry(oldRef, newRef));
+                }
+            } else if (!oldRef.getMetadataId().equals(newRef.getMetadataId())) {
+                ancestorChanges.add(new DiffEntry(oldRef, newRef));
+            }
+        }
+
+        Iterator<Iterator<DiffEntry>> dirtyTreeChanges = Iterators.transform(
+                topmostTrees.iterator(), new Function<String, Iterator<DiffEntry>>() {
+                    @Override
+                    public Iterator<DiffEntry> apply(String path) {
+                        return commandLocator.command(DiffWorkTree.class).setFilter(path)
+                                .setReportTrees(true).call();
+                    }
+                });
+        return Iterators.concat(ancestorChanges.iterator(), Iterators.concat(dirtyTreeChanges));
+    }
+
     /**
      * @param pathFilter if specified, only changes that match the filter will be counted
      * @return the number differences between the work tree and the index based on the path filter.
@@ -628,7 +993,7 @@ public class WorkingTree {
         checkNotNull(feature);
         checkNotNull(metadataId);
 
-        final RevFeature newFeature = new RevFeatureBuilder().build(feature);
+        final RevFeature newFeature = EncodedFeature.build(feature);
         final ObjectId objectId = newFeature.getId();
         final Envelope bounds = (ReferencedEnvelope) feature.getBounds();
         final String nodeName = feature.getIdentifier().getID();
@@ -740,7 +1105,7 @@ public class WorkingTree {
         ObjectId newWorkHeadId = commandLocator.command(WriteBack.class).setToIndex(true)
                 .setAncestor(workHead.builder(indexDatabase)).setChildPath(treePath)
                 .setTree(newTree).setMetadataId(metadataId).call();
-        updateWorkHead(newWorkHeadId);
+        updateWorkHead(workHead, newWorkHeadId, ImmutableList.of(treePath));
 
         Map<ObjectId, FeatureBuilder> featureBuilders = Maps.newHashMap();
         while (iter.hasNext()) {
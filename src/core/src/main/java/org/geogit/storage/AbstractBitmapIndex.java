@@ -0,0 +1,270 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import org.geogit.api.ObjectId;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Base class for {@link BitmapIndex} implementations that keep the ordinal table in memory,
+ * leaving to subclasses how to persist ordinals and bitmaps.
+ * <p>
+ * The table is held as a flat array of raw object ids in ordinal order plus a permutation of the
+ * ordinals sorted by object id, so lookups are binary searches and the whole table costs about 24
+ * bytes per object. Ordinals added since the permutation was last sorted are kept in a small hash
+ * map and merged in batches.
+ * <p>
+ * The persisted table is only {@link #loadOrdinals() loaded} the first time the index is used
+ * after being opened, so opening a repository doesn't pay for it.
+ */
+public abstract class AbstractBitmapIndex implements BitmapIndex {
+
+    private static final int NUM_BYTES = ObjectId.NUM_BYTES;
+
+    private static final int MAX_PENDING = 64 * 1024;
+
+    private byte[] ids = new byte[NUM_BYTES * 1024];
+
+    private int size;
+
+    private int[] sorted = new int[0];
+
+    private final Map<ObjectId, Integer> pending = Maps.newHashMap();
+
+    private boolean loaded;
+
+    /**
+     * Called the first time the ordinal table is used after the index has been opened, to
+     * {@link #load(byte[], int) load} the persisted ordinals, if any.
+     */
+    protected abstract void loadOrdinals();
+
+    /**
+     * Called after a new ordinal has been assigned.
+     */
+    protected abstract void persistOrdinal(ObjectId objectId, int ordinal);
+
+    /**
+     * @return the persisted bitmap for the given commit, or {@code null}
+     */
+    protected abstract ReachabilityBitmap loadBitmap(ObjectId commitId);
+
+    /**
+     * Persists the bitmap for the given commit.
+     */
+    protected abstract void storeBitmap(ObjectId commitId, ReachabilityBitmap bitmap);
+
+    /**
+     * Called after the ordinal table has been cleared, to remove the persisted ordinals and
+     * bitmaps.
+     */
+    protected abstract void truncateInternal();
+
+    /**
+     * Replaces the in memory ordinal table with the given one, for subclasses to load the persisted
+     * table.
+     *
+     * @param rawIds the raw object ids, in ordinal order
+     * @param count the number of object ids in {@code rawIds}
+     */
+    protected synchronized void load(byte[] rawIds, int count) {
+        Integer[] order = new Integer[count];
+        ids = rawIds;
+        size = count;
+        for (int i = 0; i < count; i++) {
+            order[i] = Integer.valueOf(i);
+        }
+        Arrays.sort(order, ordinalOrder());
+        sorted = new int[count];
+        for (int i = 0; i < count; i++) {
+            sorted[i] = order[i].intValue();
+        }
+        pending.clear();
+    }
+
+    private synchronized int append(ObjectId objectId) {
+        if (ids.length < (size + 1) * NUM_BYTES) {
+            ids = Arrays.copyOf(ids, Math.max(ids.length * 2, (size + 1) * NUM_BYTES));
+        }
+        final int ordinal = size;
+        byte[] raw = objectId.getRawValue();
+        System.arraycopy(raw, 0, ids, ordinal * NUM_BYTES, NUM_BYTES);
+        size++;
+        pending.put(objectId, Integer.valueOf(ordinal));
+        if (pending.size() >= MAX_PENDING) {
+            merge();
+        }
+        return ordinal;
+    }
+
+    /**
+     * Makes sure the persisted ordinals are loaded, if the index is open
+     */
+    private void ensureLoaded() {
+        if (loaded || !isOpen()) {
+            return;
+        }
+        try {
+            loadOrdinals();
+        } catch (RuntimeException e) {
+            clear();
+            throw e;
+        }
+        loaded = true;
+    }
+
+    /**
+     * Clears the in memory ordinal table, without truncating the persisted one.
+     */
+    protected synchronized void clear() {
+        ids = new byte[NUM_BYTES * 1024];
+        size = 0;
+        sorted = new int[0];
+        pending.clear();
+        loaded = false;
+    }
+
+    @Override
+    public synchronized int ordinal(ObjectId objectId) {
+        ensureLoaded();
+        Integer pendingOrdinal = pending.get(objectId);
+        if (pendingOrdinal != null) {
+            return pendingOrdinal.intValue();
+        }
+        final byte[] key = objectId.getRawValue();
+        int low = 0;
+        int high = sorted.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int c = compare(sorted[mid], key);
+            if (c < 0) {
+                low = mid + 1;
+            } else if (c > 0) {
+                high = mid - 1;
+            } else {
+                return sorted[mid];
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public synchronized int add(ObjectId objectId) {
+        Preconditions.checkState(isOpen(), "index is not open");
+        int ordinal = ordinal(objectId);
+        if (ordinal == -1) {
+            ordinal = append(objectId);
+            persistOrdinal(objectId, ordinal);
+        }
+        return ordinal;
+    }
+
+    @Override
+    public synchronized ObjectId objectAt(int ordinal) {
+        ensureLoaded();
+        if (ordinal < 0 || ordinal >= size) {
+            throw new IndexOutOfBoundsException("No object with ordinal " + ordinal);
+        }
+        byte[] raw = new byte[NUM_BYTES];
+        System.arraycopy(ids, ordinal * NUM_BYTES, raw, 0, NUM_BYTES);
+        return ObjectId.createNoClone(raw);
+    }
+
+    @Override
+    public synchronized int size() {
+        ensureLoaded();
+        return size;
+    }
+
+    @Override
+    public Optional<ReachabilityBitmap> getBitmap(ObjectId commitId) {
+        return Optional.fromNullable(loadBitmap(commitId));
+    }
+
+    @Override
+    public void putBitmap(ObjectId commitId, ReachabilityBitmap bitmap) {
+        Preconditions.checkState(isOpen(), "index is not open");
+        storeBitmap(commitId, bitmap);
+    }
+
+    @Override
+    public synchronized void truncate() {
+        clear();
+        truncateInternal();
+        // nothing left to load
+        loaded = isOpen();
+    }
+
+    /**
+     * Merges the pending ordinals into the sorted permutation.
+     */
+    private void merge() {
+        List<Integer> added = Lists.newArrayList(pending.values());
+        Collections.sort(added, ordinalOrder());
+        int[] merged = new int[sorted.length + added.size()];
+        int i = 0, j = 0, k = 0;
+        while (i < sorted.length && j < added.size()) {
+            int a = sorted[i];
+            int b = added.get(j).intValue();
+            if (compare(a, b) <= 0) {
+                merged[k++] = a;
+                i++;
+            } else {
+                merged[k++] = b;
+                j++;
+            }
+        }
+        while (i < sorted.length) {
+            merged[k++] = sorted[i++];
+        }
+        while (j < added.size()) {
+            merged[k++] = added.get(j++).intValue();
+        }
+        sorted = merged;
+        pending.clear();
+    }
+
+    private Comparator<Integer> ordinalOrder() {
+        return new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return AbstractBitmapIndex.this.compare(o1.intValue(), o2.intValue());
+            }
+        };
+    }
+
+    private int compare(int ordinal1, int ordinal2) {
+        final int off1 = ordinal1 * NUM_BYTES;
+        final int off2 = ordinal2 * NUM_BYTES;
+        for (int i = 0; i < NUM_BYTES; i++) {
+            int c = (ids[off1 + i] & 0xFF) - (ids[off2 + i] & 0xFF);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    private int compare(int ordinal, byte[] key) {
+        final int off = ordinal * NUM_BYTES;
+        for (int i = 0; i < NUM_BYTES; i++) {
+            int c = (ids[off + i] & 0xFF) - (key[i] & 0xFF);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,199 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+import org.geogit.api.ObjectId;
+import org.geogit.api.RevCommit;
+import org.geotools.util.Range;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Base class for {@link CommitMetadataIndex} implementations that keep the index structures in
+ * memory, leaving to subclasses how (and whether) to persist the entries.
+ * <p>
+ * The persisted entries are only {@link #loadEntries() loaded} the first time the index is queried
+ * after being opened, so opening a repository doesn't pay for it. New entries are persisted right
+ * away without loading the persisted ones, so committing doesn't pay for it either; an entry for a
+ * commit that was indexed in a previous session may hence be persisted twice, and subclasses shall
+ * ignore the duplicates when loading.
+ */
+public abstract class AbstractCommitMetadataIndex implements CommitMetadataIndex {
+
+    private final Map<ObjectId, CommitMetadata> byId = Maps.newHashMap();
+
+    private final NavigableMap<Long, List<CommitMetadata>> byTime = new TreeMap<Long, List<CommitMetadata>>();
+
+    private final ListMultimap<String, CommitMetadata> byAuthor = ArrayListMultimap.create();
+
+    private final ListMultimap<String, CommitMetadata> byCommitter = ArrayListMultimap.create();
+
+    private boolean loaded;
+
+    /**
+     * Called the first time the index is used after being opened, to {@link #add add} the
+     * persisted entries, if any.
+     */
+    protected abstract void loadEntries();
+
+    /**
+     * Called after a new entry has been added to the in memory structures, whether or not the
+     * persisted entries were loaded.
+     */
+    protected abstract void persist(CommitMetadata entry);
+
+    /**
+     * Called after the in memory structures have been cleared.
+     */
+    protected abstract void truncateInternal();
+
+    /**
+     * Adds an entry to the in memory structures, without persisting it.
+     *
+     * @return {@code false} if an entry for the same commit was already present
+     */
+    protected synchronized boolean add(CommitMetadata entry) {
+        if (byId.containsKey(entry.getCommitId())) {
+            return false;
+        }
+        byId.put(entry.getCommitId(), entry);
+        List<CommitMetadata> sameTime = byTime.get(Long.valueOf(entry.getTimestamp()));
+        if (sameTime == null) {
+            sameTime = Lists.newArrayListWithCapacity(1);
+            byTime.put(Long.valueOf(entry.getTimestamp()), sameTime);
+        }
+        sameTime.add(entry);
+        byAuthor.put(entry.getAuthorName().or(""), entry);
+        byCommitter.put(entry.getCommitterName().or(""), entry);
+        return true;
+    }
+
+    /**
+     * Clears the in memory structures, without truncating the persisted entries.
+     */
+    protected synchronized void clear() {
+        byId.clear();
+        byTime.clear();
+        byAuthor.clear();
+        byCommitter.clear();
+        loaded = false;
+    }
+
+    /**
+     * Makes sure the persisted entries are loaded, if the index is open
+     */
+    private void ensureLoaded() {
+        if (loaded || !isOpen()) {
+            return;
+        }
+        try {
+            loadEntries();
+        } catch (RuntimeException e) {
+            clear();
+            throw e;
+        }
+        loaded = true;
+    }
+
+    @Override
+    public synchronized boolean put(RevCommit commit) {
+        Preconditions.checkState(isOpen(), "index is not open");
+        CommitMetadata entry = CommitMetadata.of(commit);
+        if (add(entry)) {
+            persist(entry);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized Optional<CommitMetadata> get(ObjectId commitId) {
+        ensureLoaded();
+        return Optional.fromNullable(byId.get(commitId));
+    }
+
+    @Override
+    public synchronized Set<ObjectId> find(Range<Long> timeRange, @Nullable Pattern author,
+            @Nullable Pattern committer) {
+        Preconditions.checkNotNull(timeRange);
+        ensureLoaded();
+
+        Collection<CommitMetadata> candidates;
+        if (author != null) {
+            candidates = byName(byAuthor, author);
+        } else if (committer != null) {
+            candidates = byName(byCommitter, committer);
+        } else {
+            candidates = Lists.newArrayList();
+            NavigableMap<Long, List<CommitMetadata>> inRange = byTime.subMap(
+                    timeRange.getMinValue(), timeRange.isMinIncluded(), timeRange.getMaxValue(),
+                    timeRange.isMaxIncluded());
+            for (List<CommitMetadata> entries : inRange.values()) {
+                candidates.addAll(entries);
+            }
+        }
+
+        Set<ObjectId> matches = Sets.newHashSet();
+        for (CommitMetadata entry : candidates) {
+            if (!timeRange.contains(Long.valueOf(entry.getTimestamp()))) {
+                continue;
+            }
+            if (!matches(author, entry.getAuthorName())) {
+                continue;
+            }
+            if (!matches(committer, entry.getCommitterName())) {
+                continue;
+            }
+            matches.add(entry.getCommitId());
+        }
+        return matches;
+    }
+
+    private static Collection<CommitMetadata> byName(ListMultimap<String, CommitMetadata> index,
+            Pattern pattern) {
+        List<CommitMetadata> entries = Lists.newArrayList();
+        for (String name : index.keySet()) {
+            // unnamed commits are stored under the empty string and match any pattern
+            if (name.isEmpty() || pattern.matcher(name).matches()) {
+                entries.addAll(index.get(name));
+            }
+        }
+        return entries;
+    }
+
+    private static boolean matches(@Nullable Pattern pattern, Optional<String> name) {
+        return pattern == null || !name.isPresent() || pattern.matcher(name.get()).matches();
+    }
+
+    @Override
+    public synchronized long size() {
+        ensureLoaded();
+        return byId.size();
+    }
+
+    @Override
+    public synchronized void truncate() {
+        clear();
+        truncateInternal();
+        // nothing left to load
+        loaded = isOpen();
+    }
+}
@@ -10,6 +10,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 import javax.annotation.Nullable;
 
@@ -24,6 +25,7 @@ import org.geogit.api.RevTree;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
+import com.google.common.collect.Sets;
 import com.google.common.io.Closeables;
 import com.ning.compress.lzf.LZFInputStream;
 import com.ning.compress.lzf.LZFOutputStream;
@@ -80,6 +82,21 @@ public abstract class AbstractObjectDatabase implements ObjectDatabase {
      */
     protected abstract List<ObjectId> lookUpInternal(byte[] raw);
 
+    /**
+     * This default implementation calls {@link #exists(ObjectId)} for each id; subclasses may
+     * override if appropriate.
+     */
+    @Override
+    public Set<ObjectId> existing(Iterable<ObjectId> ids) {
+        Set<ObjectId> existing = Sets.newHashSet();
+        for (ObjectId id : ids) {
+            if (exists(id)) {
+                existing.add(id);
+            }
+        }
+        return existing;
+    }
+
     @Override
     public RevObject get(ObjectId id) {
         Preconditions.checkNotNull(id, "id");
@@ -0,0 +1,78 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.util.Map;
+
+import org.geogit.api.ObjectId;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+/**
+ * Base class for {@link SpatialChangeIndex} implementations that keep the summaries in memory,
+ * leaving to subclasses how (and whether) to persist them.
+ */
+public abstract class AbstractSpatialChangeIndex implements SpatialChangeIndex {
+
+    private final Map<ObjectId, SpatialChangeSummary> byId = Maps.newHashMap();
+
+    /**
+     * Called after a new summary has been added to the in memory structures.
+     */
+    protected abstract void persist(SpatialChangeSummary summary);
+
+    /**
+     * Called after the in memory structures have been cleared.
+     */
+    protected abstract void truncateInternal();
+
+    /**
+     * Adds a summary to the in memory structures, without persisting it.
+     *
+     * @return {@code false} if a summary for the same commit was already present
+     */
+    protected synchronized boolean add(SpatialChangeSummary summary) {
+        if (byId.containsKey(summary.getCommitId())) {
+            return false;
+        }
+        byId.put(summary.getCommitId(), summary);
+        return true;
+    }
+
+    /**
+     * Clears the in memory structures, without truncating the persisted summaries.
+     */
+    protected synchronized void clear() {
+        byId.clear();
+    }
+
+    @Override
+    public synchronized boolean put(SpatialChangeSummary summary) {
+        Preconditions.checkState(isOpen(), "index is not open");
+        if (add(summary)) {
+            persist(summary);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized Optional<SpatialChangeSummary> get(ObjectId commitId) {
+        return Optional.fromNullable(byId.get(commitId));
+    }
+
+    @Override
+    public synchronized long size() {
+        return byId.size();
+    }
+
+    @Override
+    public synchronized void truncate() {
+        clear();
+        truncateInternal();
+    }
+}
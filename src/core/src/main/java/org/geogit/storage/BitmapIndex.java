@@ -0,0 +1,81 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import org.geogit.api.ObjectId;
+
+import com.google.common.base.Optional;
+
+/**
+ * Stores precomputed {@link ReachabilityBitmap reachability bitmaps} for selected commits, along
+ * with the table that maps object ids to the ordinals used as bitmap positions.
+ * <p>
+ * The bitmap of a commit holds the commit itself and every object reachable from its root tree
+ * (trees, buckets, features and feature types), but not its ancestors or their contents. The union
+ * of the bitmaps of a set of commits is thus the set of objects a repository holding those commits
+ * is guaranteed to have, regardless of it being a shallow clone.
+ * <p>
+ * Ordinals are assigned once and never change, so bitmaps stay valid as new objects are added.
+ *
+ * @see org.geogit.api.plumbing.UpdateBitmapIndexOp
+ */
+public interface BitmapIndex {
+
+    /**
+     * Initializes/opens the index. It's safe to call this method multiple times, and only the first
+     * call shall take effect.
+     */
+    public void open();
+
+    /**
+     * @return true if the index is open, false otherwise
+     */
+    public boolean isOpen();
+
+    /**
+     * Closes the index.
+     */
+    public void close();
+
+    /**
+     * @return the ordinal assigned to the given object, or {@code -1} if it has none
+     */
+    public int ordinal(ObjectId objectId);
+
+    /**
+     * Assigns an ordinal to the given object, if it doesn't have one already.
+     *
+     * @return the ordinal assigned to the object
+     */
+    public int add(ObjectId objectId);
+
+    /**
+     * @return the object the given ordinal was assigned to
+     * @throws IndexOutOfBoundsException if no object has such ordinal
+     */
+    public ObjectId objectAt(int ordinal);
+
+    /**
+     * @return the number of objects with an assigned ordinal
+     */
+    public int size();
+
+    /**
+     * @return the bitmap of objects reachable from the given commit, or {@link Optional#absent()}
+     *         if no bitmap has been computed for it. The returned bitmap may be shared and shall not
+     *         be modified
+     */
+    public Optional<ReachabilityBitmap> getBitmap(ObjectId commitId);
+
+    /**
+     * Stores the bitmap of objects reachable from the given commit, replacing any existing one.
+     */
+    public void putBitmap(ObjectId commitId, ReachabilityBitmap bitmap);
+
+    /**
+     * Removes every ordinal and bitmap from the index.
+     */
+    public void truncate();
+}
@@ -0,0 +1,103 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import javax.annotation.Nullable;
+
+import org.geogit.api.ObjectId;
+import org.geogit.api.RevCommit;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+
+/**
+ * The subset of a {@link RevCommit commit}'s properties held by a {@link CommitMetadataIndex}.
+ */
+public final class CommitMetadata {
+
+    private final ObjectId commitId;
+
+    private final long timestamp;
+
+    @Nullable
+    private final String authorName;
+
+    @Nullable
+    private final String committerName;
+
+    /**
+     * @param commitId the id of the commit
+     * @param timestamp the committer timestamp
+     * @param authorName the author name, may be {@code null}
+     * @param committerName the committer name, may be {@code null}
+     */
+    public CommitMetadata(ObjectId commitId, long timestamp, @Nullable String authorName,
+            @Nullable String committerName) {
+        Preconditions.checkNotNull(commitId);
+        this.commitId = commitId;
+        this.timestamp = timestamp;
+        this.authorName = authorName;
+        this.committerName = committerName;
+    }
+
+    /**
+     * Creates the metadata for the given commit.
+     */
+    public static CommitMetadata of(RevCommit commit) {
+        return new CommitMetadata(commit.getId(), commit.getCommitter().getTimestamp(), commit
+                .getAuthor().getName().orNull(), commit.getCommitter().getName().orNull());
+    }
+
+    /**
+     * @return the id of the commit
+     */
+    public ObjectId getCommitId() {
+        return commitId;
+    }
+
+    /**
+     * @return the committer timestamp
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return the author name
+     */
+    public Optional<String> getAuthorName() {
+        return Optional.fromNullable(authorName);
+    }
+
+    /**
+     * @return the committer name
+     */
+    public Optional<String> getCommitterName() {
+        return Optional.fromNullable(committerName);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof CommitMetadata)) {
+            return false;
+        }
+        CommitMetadata m = (CommitMetadata) o;
+        return commitId.equals(m.commitId) && timestamp == m.timestamp
+                && Objects.equal(authorName, m.authorName)
+                && Objects.equal(committerName, m.committerName);
+    }
+
+    @Override
+    public int hashCode() {
+        return commitId.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "CommitMetadata[" + commitId + ", " + timestamp + ", author: " + authorName
+                + ", committer: " + committerName + "]";
+    }
+}
@@ -0,0 +1,86 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+import org.geogit.api.ObjectId;
+import org.geogit.api.RevCommit;
+import org.geotools.util.Range;
+
+import com.google.common.base.Optional;
+
+/**
+ * A secondary index over the committer timestamp and author/committer names of the commits in a
+ * repository, used to answer log queries without loading every commit in the history.
+ * <p>
+ * The index is maintained as commits are inserted in the {@link ObjectDatabase} and can be rebuilt
+ * from scratch, so it may be incomplete but never holds information that contradicts the object
+ * database.
+ *
+ * @see org.geogit.api.plumbing.RebuildCommitIndexOp
+ */
+public interface CommitMetadataIndex {
+
+    /**
+     * Initializes/opens the index. It's safe to call this method multiple times, and only the first
+     * call shall take effect.
+     */
+    public void open();
+
+    /**
+     * @return true if the index is open, false otherwise
+     */
+    public boolean isOpen();
+
+    /**
+     * Closes the index.
+     */
+    public void close();
+
+    /**
+     * Adds the metadata of the given commit to the index, unless it's already indexed.
+     *
+     * @param commit the commit to index
+     * @return {@code true} if the commit was added, {@code false} if it was already indexed; an
+     *         index that didn't load its persisted entries yet may not know about the commits
+     *         indexed in a previous session, and return {@code true} for them
+     */
+    public boolean put(RevCommit commit);
+
+    /**
+     * @param commitId the commit to look up
+     * @return the indexed metadata of the commit, or {@link Optional#absent()} if the commit is not
+     *         indexed
+     */
+    public Optional<CommitMetadata> get(ObjectId commitId);
+
+    /**
+     * Finds the indexed commits whose committer timestamp falls into {@code timeRange} and whose
+     * author and committer names match the given patterns. A commit with no author (resp.
+     * committer) name is considered to match any author (resp. committer) pattern.
+     *
+     * @param timeRange the committer timestamp range, in milliseconds since the epoch
+     * @param author the pattern author names shall match, or {@code null} to match any author
+     * @param committer the pattern committer names shall match, or {@code null} to match any
+     *        committer
+     * @return the ids of the matching commits
+     */
+    public Set<ObjectId> find(Range<Long> timeRange, @Nullable Pattern author,
+            @Nullable Pattern committer);
+
+    /**
+     * @return the number of indexed commits
+     */
+    public long size();
+
+    /**
+     * Removes every entry from the index.
+     */
+    public void truncate();
+}
@@ -0,0 +1,32 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.io.IOException;
+
+/**
+ * An {@link ObjectDatabase} kept in files that can be copied as is to another database of the same
+ * kind, which is much cheaper than traversing and re-serializing every object when both
+ * repositories live on the same machine.
+ * 
+ * @see org.geogit.remote.LocalRemoteRepo
+ */
+public interface CopyableObjectDatabase extends ObjectDatabase {
+
+    /**
+     * @return {@code true} if the database holds no objects
+     */
+    public boolean isEmpty();
+
+    /**
+     * Copies the files of this database to {@code target}, which must be an empty database of a
+     * compatible kind. Both databases shall be open, and remain so when this method returns.
+     * 
+     * @param target the database to copy this database's objects to
+     * @return {@code false} if {@code target} is not compatible, in which case nothing was copied
+     * @throws IOException if copying the files fails
+     */
+    public boolean copyTo(ObjectDatabase target) throws IOException;
+}
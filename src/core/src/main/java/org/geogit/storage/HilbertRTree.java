@@ -0,0 +1,327 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import org.geogit.api.Bounded;
+import org.geogit.api.Node;
+import org.geogit.storage.datastream.FormatCommon;
+
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * An immutable, packed R-tree over the feature {@link Node nodes} of a tree, used as a spatial
+ * secondary index since the tree itself buckets nodes by the hash of their names and hence its
+ * bucket bounds hardly prune small areas.
+ * <p>
+ * Nodes are sorted by the Hilbert curve index of the center of their bounds, so spatially close
+ * nodes end up in the same leaves, and then packed bottom up in groups of {@link #NODE_CAPACITY}.
+ * Nodes with no bounds are not indexed.
+ *
+ * @see SpatialTreeIndex
+ */
+public final class HilbertRTree {
+
+    /**
+     * Maximum number of children of each R-tree node
+     */
+    public static final int NODE_CAPACITY = 32;
+
+    private static final int HILBERT_ORDER = 16;
+
+    private static final int HILBERT_SIDE = 1 << HILBERT_ORDER;
+
+    private final ImmutableList<Node> nodes;
+
+    /**
+     * Envelopes of the R-tree nodes per level, bottom up, as {@code minx, miny, maxx, maxy}
+     * quadruples
+     */
+    private final double[][] levels;
+
+    private final Envelope bounds;
+
+    private HilbertRTree(ImmutableList<Node> sortedNodes) {
+        this.nodes = sortedNodes;
+        this.bounds = new Envelope();
+        List<double[]> levels = Lists.newArrayList();
+        double[] children = new double[4 * nodes.size()];
+        for (int i = 0; i < nodes.size(); i++) {
+            Envelope env = new Envelope();
+            nodes.get(i).expand(env);
+            bounds.expandToInclude(env);
+            children[4 * i] = env.getMinX();
+            children[4 * i + 1] = env.getMinY();
+            children[4 * i + 2] = env.getMaxX();
+            children[4 * i + 3] = env.getMaxY();
+        }
+        int count = nodes.size();
+        while (count > NODE_CAPACITY || levels.isEmpty()) {
+            final int parents = (count + NODE_CAPACITY - 1) / NODE_CAPACITY;
+            double[] level = new double[4 * parents];
+            for (int p = 0; p < parents; p++) {
+                double minx = Double.POSITIVE_INFINITY, miny = Double.POSITIVE_INFINITY;
+                double maxx = Double.NEGATIVE_INFINITY, maxy = Double.NEGATIVE_INFINITY;
+                final int end = Math.min(count, (p + 1) * NODE_CAPACITY);
+                for (int c = p * NODE_CAPACITY; c < end; c++) {
+                    minx = Math.min(minx, children[4 * c]);
+                    miny = Math.min(miny, children[4 * c + 1]);
+                    maxx = Math.max(maxx, children[4 * c + 2]);
+                    maxy = Math.max(maxy, children[4 * c + 3]);
+                }
+                level[4 * p] = minx;
+                level[4 * p + 1] = miny;
+                level[4 * p + 2] = maxx;
+                level[4 * p + 3] = maxy;
+            }
+            levels.add(level);
+            children = level;
+            count = parents;
+        }
+        this.levels = levels.toArray(new double[levels.size()][]);
+    }
+
+    /**
+     * Builds an R-tree out of the given nodes.
+     *
+     * @param nodes the feature nodes to index, nodes with no bounds are ignored
+     * @return the R-tree
+     */
+    public static HilbertRTree build(Collection<Node> nodes) {
+        final Envelope extent = new Envelope();
+        List<Node> bounded = Lists.newArrayListWithCapacity(nodes.size());
+        for (Node node : nodes) {
+            Envelope env = new Envelope();
+            node.expand(env);
+            if (!env.isNull()) {
+                bounded.add(node);
+                extent.expandToInclude(env);
+            }
+        }
+        final long[] codes = new long[bounded.size()];
+        final Integer[] order = new Integer[bounded.size()];
+        for (int i = 0; i < codes.length; i++) {
+            Envelope env = new Envelope();
+            bounded.get(i).expand(env);
+            codes[i] = hilbert(extent, env.centre().x, env.centre().y);
+            order[i] = Integer.valueOf(i);
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                long c1 = codes[o1.intValue()];
+                long c2 = codes[o2.intValue()];
+                return c1 < c2 ? -1 : (c1 == c2 ? 0 : 1);
+            }
+        });
+        ImmutableList.Builder<Node> sorted = ImmutableList.builder();
+        for (Integer i : order) {
+            sorted.add(bounded.get(i.intValue()));
+        }
+        return new HilbertRTree(sorted.build());
+    }
+
+    /**
+     * @return the number of indexed nodes
+     */
+    public int size() {
+        return nodes.size();
+    }
+
+    /**
+     * @return the indexed nodes, in Hilbert order
+     */
+    public ImmutableList<Node> nodes() {
+        return nodes;
+    }
+
+    /**
+     * @return the aggregated bounds of the indexed nodes
+     */
+    public Envelope getBounds() {
+        return new Envelope(bounds);
+    }
+
+    /**
+     * Finds the indexed nodes that intersect the given envelope.
+     *
+     * @param envelope the area of interest
+     * @param nodeFilter an extra filter applied to each candidate node, or {@code null}
+     * @return the matching nodes, in Hilbert order. The returned {@link Query} reports how many
+     *         R-tree nodes were visited and pruned
+     */
+    public Query query(Envelope envelope, @Nullable Predicate<Bounded> nodeFilter) {
+        Predicate<Bounded> alwaysTrue = Predicates.alwaysTrue();
+        return new Query(envelope, nodeFilter == null ? alwaysTrue : nodeFilter);
+    }
+
+    /**
+     * Iterator over the nodes matching a {@link HilbertRTree#query(Envelope, Predicate) query}.
+     */
+    public final class Query extends AbstractIterator<Node> {
+
+        private final Envelope envelope;
+
+        private final Predicate<Bounded> nodeFilter;
+
+        /**
+         * Stack of pending {@code level, first child, end child} triplets, level {@code -1}
+         * standing for the indexed nodes
+         */
+        private int[] stack = new int[3 * 16];
+
+        private int top;
+
+        private int hits, misses;
+
+        private Query(Envelope envelope, Predicate<Bounded> nodeFilter) {
+            this.envelope = envelope;
+            this.nodeFilter = nodeFilter;
+            if (!nodes.isEmpty()) {
+                final int topLevel = levels.length - 1;
+                push(topLevel, 0, levels[topLevel].length / 4);
+            }
+        }
+
+        /**
+         * @return the number of R-tree nodes whose bounds intersect the query envelope
+         */
+        public int nodeHits() {
+            return hits;
+        }
+
+        /**
+         * @return the number of R-tree nodes pruned because their bounds don't intersect the
+         *         query envelope
+         */
+        public int nodeMisses() {
+            return misses;
+        }
+
+        private void push(int level, int start, int end) {
+            if (stack.length < top + 3) {
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            }
+            stack[top++] = level;
+            stack[top++] = start;
+            stack[top++] = end;
+        }
+
+        private boolean intersects(double[] envelopes, int index) {
+            final int offset = 4 * index;
+            return envelopes[offset] <= envelope.getMaxX()
+                    && envelopes[offset + 2] >= envelope.getMinX()
+                    && envelopes[offset + 1] <= envelope.getMaxY()
+                    && envelopes[offset + 3] >= envelope.getMinY();
+        }
+
+        @Override
+        protected Node computeNext() {
+            while (top > 0) {
+                final int level = stack[top - 3];
+                final int index = stack[top - 2];
+                final int end = stack[top - 1];
+                if (index == end) {
+                    top -= 3;
+                    continue;
+                }
+                stack[top - 2] = index + 1;
+                if (level == -1) {
+                    Node node = nodes.get(index);
+                    if (nodeFilter.apply(node) && node.intersects(envelope)) {
+                        return node;
+                    }
+                    continue;
+                }
+                final double[] envelopes = levels[level];
+                if (intersects(envelopes, index)) {
+                    hits++;
+                    final int childCount = level == 0 ? nodes.size()
+                            : levels[level - 1].length / 4;
+                    push(level - 1, index * NODE_CAPACITY,
+                            Math.min(childCount, (index + 1) * NODE_CAPACITY));
+                } else {
+                    misses++;
+                }
+            }
+            return endOfData();
+        }
+    }
+
+    /**
+     * Writes the indexed nodes, in Hilbert order, to the given output.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(nodes.size());
+        for (Node node : nodes) {
+            FormatCommon.writeNode(node, out);
+        }
+    }
+
+    /**
+     * Reads back an R-tree written with {@link #write(DataOutput)}.
+     */
+    public static HilbertRTree read(DataInput in) throws IOException {
+        final int size = in.readInt();
+        ImmutableList.Builder<Node> nodes = ImmutableList.builder();
+        for (int i = 0; i < size; i++) {
+            nodes.add(FormatCommon.readNode(in));
+        }
+        return new HilbertRTree(nodes.build());
+    }
+
+    /**
+     * @return the Hilbert curve index of the given point, scaled to a square grid of
+     *         {@code 2^16} cells per side over {@code extent}
+     */
+    private static long hilbert(Envelope extent, double x, double y) {
+        int ix = scale(x, extent.getMinX(), extent.getWidth());
+        int iy = scale(y, extent.getMinY(), extent.getHeight());
+        long d = 0;
+        for (int s = HILBERT_SIDE / 2; s > 0; s /= 2) {
+            int rx = (ix & s) > 0 ? 1 : 0;
+            int ry = (iy & s) > 0 ? 1 : 0;
+            d += (long) s * s * ((3 * rx) ^ ry);
+            // rotate the quadrant
+            if (ry == 0) {
+                if (rx == 1) {
+                    ix = HILBERT_SIDE - 1 - ix;
+                    iy = HILBERT_SIDE - 1 - iy;
+                }
+                int t = ix;
+                ix = iy;
+                iy = t;
+            }
+        }
+        return d;
+    }
+
+    private static int scale(double ordinate, double min, double span) {
+        if (span <= 0D) {
+            return 0;
+        }
+        int cell = (int) ((ordinate - min) / span * (HILBERT_SIDE - 1));
+        return Math.max(0, Math.min(HILBERT_SIDE - 1, cell));
+    }
+
+    @Override
+    public String toString() {
+        return "HilbertRTree[size: " + nodes.size() + ", bounds: " + bounds + "]";
+    }
+}
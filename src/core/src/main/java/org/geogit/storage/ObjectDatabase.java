@@ -6,6 +6,7 @@ package org.geogit.storage;
 
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 import javax.annotation.Nullable;
 
@@ -46,6 +47,15 @@ public interface ObjectDatabase {
      */
     public boolean exists(final ObjectId id);
 
+    /**
+     * Determines which of the given {@link ObjectId}s exist in the object database, allowing
+     * implementations to perform the lookups in bulk.
+     * 
+     * @param ids the ids to search for
+     * @return the subset of {@code ids} that exist
+     */
+    public Set<ObjectId> existing(final Iterable<ObjectId> ids);
+
     /**
      * Searches the database for {@link ObjectId}s that match the given partial id.
      * 
@@ -22,14 +22,18 @@ import com.google.inject.Provider;
 
 /**
  * Method interceptor for {@link ObjectDatabase#put(RevObject)} that adds new commits to the graph
- * database.
+ * database and the commit metadata index.
  */
 public class ObjectDatabasePutInterceptor implements MethodInterceptor {
 
     private Provider<GraphDatabase> graphDb;
 
-    public ObjectDatabasePutInterceptor(Provider<GraphDatabase> graphDb) {
+    private Provider<CommitMetadataIndex> commitIndex;
+
+    public ObjectDatabasePutInterceptor(Provider<GraphDatabase> graphDb,
+            Provider<CommitMetadataIndex> commitIndex) {
         this.graphDb = graphDb;
+        this.commitIndex = commitIndex;
     }
 
     @Override
@@ -66,10 +70,14 @@ public class ObjectDatabasePutInterceptor implements MethodInterceptor {
         Object result = invocation.proceed();
         if (!addedCommits.isEmpty()) {
             GraphDatabase graphDatabase = graphDb.get();
+            CommitMetadataIndex index = commitIndex.get();
             for (RevCommit commit : addedCommits) {
                 ObjectId commitId = commit.getId();
                 ImmutableList<ObjectId> parentIds = commit.getParentIds();
                 graphDatabase.put(commitId, parentIds);
+                if (index.isOpen()) {
+                    index.put(commit);
+                }
             }
         }
 
@@ -84,6 +92,10 @@ public class ObjectDatabasePutInterceptor implements MethodInterceptor {
         if (inserted && RevObject.TYPE.COMMIT.equals(revObject.getType())) {
             RevCommit commit = (RevCommit) revObject;
             graphDb.get().put(commit.getId(), commit.getParentIds());
+            CommitMetadataIndex index = commitIndex.get();
+            if (index.isOpen()) {
+                index.put(commit);
+            }
         }
         return Boolean.valueOf(inserted);
     }
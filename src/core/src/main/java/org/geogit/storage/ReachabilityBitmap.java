@@ -0,0 +1,158 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.BitSet;
+
+/**
+ * A set of object ordinals, as assigned by a {@link BitmapIndex}, identifying the objects
+ * reachable from a given commit.
+ * <p>
+ * Bitmaps are serialized as a sequence of runs of consecutive ordinals, each one encoded as the
+ * variable length gap since the end of the previous run followed by the run length. Since
+ * ordinals are assigned in traversal order, the objects reachable from a commit tend to form long
+ * runs and the encoded form stays small even for large repositories.
+ */
+public final class ReachabilityBitmap {
+
+    private final BitSet bits;
+
+    public ReachabilityBitmap() {
+        this.bits = new BitSet();
+    }
+
+    private ReachabilityBitmap(BitSet bits) {
+        this.bits = bits;
+    }
+
+    /**
+     * @return {@code true} if the given ordinal is set
+     */
+    public boolean get(int ordinal) {
+        return ordinal >= 0 && bits.get(ordinal);
+    }
+
+    /**
+     * Sets the given ordinal.
+     *
+     * @return {@code true} if the ordinal was not already set
+     */
+    public boolean set(int ordinal) {
+        if (bits.get(ordinal)) {
+            return false;
+        }
+        bits.set(ordinal);
+        return true;
+    }
+
+    /**
+     * @return the number of set ordinals
+     */
+    public int cardinality() {
+        return bits.cardinality();
+    }
+
+    /**
+     * @return the next set ordinal greater than or equal to {@code from}, or {@code -1}
+     */
+    public int nextSetBit(int from) {
+        return bits.nextSetBit(from);
+    }
+
+    /**
+     * Adds all the ordinals set in {@code other} to this bitmap.
+     *
+     * @return {@code this}
+     */
+    public ReachabilityBitmap or(ReachabilityBitmap other) {
+        bits.or(other.bits);
+        return this;
+    }
+
+    /**
+     * Removes from this bitmap all the ordinals set in {@code other}.
+     *
+     * @return {@code this}
+     */
+    public ReachabilityBitmap andNot(ReachabilityBitmap other) {
+        bits.andNot(other.bits);
+        return this;
+    }
+
+    /**
+     * @return a copy of this bitmap
+     */
+    public ReachabilityBitmap copy() {
+        return new ReachabilityBitmap((BitSet) bits.clone());
+    }
+
+    /**
+     * Writes this bitmap in its run-length encoded form.
+     */
+    public void write(DataOutput out) throws IOException {
+        int runs = 0;
+        for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(bits.nextClearBit(i))) {
+            runs++;
+        }
+        writeVarInt(out, runs);
+        int last = 0;
+        for (int start = bits.nextSetBit(0); start >= 0;) {
+            int end = bits.nextClearBit(start);
+            writeVarInt(out, start - last);
+            writeVarInt(out, end - start);
+            last = end;
+            start = bits.nextSetBit(end);
+        }
+    }
+
+    /**
+     * Reads back a bitmap written by {@link #write(DataOutput)}.
+     */
+    public static ReachabilityBitmap read(DataInput in) throws IOException {
+        BitSet bits = new BitSet();
+        final int runs = readVarInt(in);
+        int last = 0;
+        for (int i = 0; i < runs; i++) {
+            int start = last + readVarInt(in);
+            int end = start + readVarInt(in);
+            bits.set(start, end);
+            last = end;
+        }
+        return new ReachabilityBitmap(bits);
+    }
+
+    private static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof ReachabilityBitmap && bits.equals(((ReachabilityBitmap) o).bits);
+    }
+
+    @Override
+    public int hashCode() {
+        return bits.hashCode();
+    }
+}
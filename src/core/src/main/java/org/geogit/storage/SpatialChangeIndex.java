@@ -0,0 +1,64 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import org.geogit.api.ObjectId;
+
+import com.google.common.base.Optional;
+
+/**
+ * A side index of the {@link SpatialChangeSummary spatial change summary} of the commits in a
+ * repository, keyed by commit id, used to find the commits that touched a given area without
+ * computing the diff of every commit.
+ * <p>
+ * Summaries are computed lazily, the first time a commit's summary is needed, so that committing
+ * doesn't pay for a second diff of the new tree; the index may hence be incomplete.
+ *
+ * @see org.geogit.api.plumbing.IndexSpatialChangesOp
+ */
+public interface SpatialChangeIndex {
+
+    /**
+     * Initializes/opens the index. It's safe to call this method multiple times, and only the first
+     * call shall take effect.
+     */
+    public void open();
+
+    /**
+     * @return true if the index is open, false otherwise
+     */
+    public boolean isOpen();
+
+    /**
+     * Closes the index.
+     */
+    public void close();
+
+    /**
+     * Adds the given summary to the index, unless its commit is already indexed.
+     *
+     * @param summary the summary to index
+     * @return {@code true} if the summary was added, {@code false} if its commit was already
+     *         indexed
+     */
+    public boolean put(SpatialChangeSummary summary);
+
+    /**
+     * @param commitId the commit to look up
+     * @return the indexed summary of the commit, or {@link Optional#absent()} if the commit is not
+     *         indexed
+     */
+    public Optional<SpatialChangeSummary> get(ObjectId commitId);
+
+    /**
+     * @return the number of indexed commits
+     */
+    public long size();
+
+    /**
+     * Removes every entry from the index.
+     */
+    public void truncate();
+}
@@ -0,0 +1,186 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.util.Collection;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import org.geogit.api.NodeRef;
+import org.geogit.api.ObjectId;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * The geographic extent of the changes introduced by a commit with respect to its first parent,
+ * aggregated per feature type tree path.
+ * <p>
+ * Besides the aggregated envelope, each path holds a coarse grid of {@link #GRID_SIZE} x
+ * {@link #GRID_SIZE} cells over that envelope, flagging the cells touched by at least one change,
+ * so that commits with a few scattered changes can be told apart from commits covering their
+ * whole envelope.
+ * <p>
+ * Changes to features with no geometry don't contribute to the summary.
+ *
+ * @see SpatialChangeIndex
+ */
+public final class SpatialChangeSummary {
+
+    /**
+     * Number of grid cells along each axis of a path's aggregated envelope
+     */
+    public static final int GRID_SIZE = 8;
+
+    /**
+     * Grid mask with every cell touched
+     */
+    public static final long FULL_GRID = -1L;
+
+    private final ObjectId commitId;
+
+    private final ImmutableMap<String, Envelope> bounds;
+
+    private final ImmutableMap<String, Long> grids;
+
+    /**
+     * @param commitId the summarized commit
+     * @param bounds the aggregated envelope of the changes, per feature type tree path
+     * @param grids the mask of touched grid cells, per feature type tree path. Paths with no grid
+     *        are considered to touch every cell
+     */
+    public SpatialChangeSummary(ObjectId commitId, Map<String, Envelope> bounds,
+            Map<String, Long> grids) {
+        Preconditions.checkNotNull(commitId);
+        Preconditions.checkNotNull(bounds);
+        Preconditions.checkNotNull(grids);
+        this.commitId = commitId;
+        this.bounds = ImmutableMap.copyOf(bounds);
+        this.grids = ImmutableMap.copyOf(grids);
+    }
+
+    /**
+     * @return the summarized commit
+     */
+    public ObjectId getCommitId() {
+        return commitId;
+    }
+
+    /**
+     * @return the aggregated envelope of the changes, per feature type tree path
+     */
+    public ImmutableMap<String, Envelope> getBounds() {
+        return bounds;
+    }
+
+    /**
+     * @return the mask of touched grid cells for the given path, where bit
+     *         {@code row * GRID_SIZE + col} stands for the cell at column {@code col} and row
+     *         {@code row}; {@link #FULL_GRID} if the path has no grid
+     */
+    public long getGrid(String path) {
+        Long grid = grids.get(path);
+        return grid == null ? FULL_GRID : grid.longValue();
+    }
+
+    /**
+     * @return whether the commit has no spatial changes
+     */
+    public boolean isEmpty() {
+        return bounds.isEmpty();
+    }
+
+    /**
+     * Checks whether any of the changes summarized for the given paths may intersect the given
+     * envelope.
+     *
+     * @param envelope the area of interest
+     * @param paths the paths to check, a summarized path being considered if it is, is a parent of,
+     *        or is a child of, any of them. {@code null} or empty to check all paths
+     * @return {@code false} if no change in the given paths intersects {@code envelope}
+     */
+    public boolean intersects(Envelope envelope, @Nullable Collection<String> paths) {
+        for (Map.Entry<String, Envelope> entry : bounds.entrySet()) {
+            final String path = entry.getKey();
+            if (paths != null && !paths.isEmpty() && !matches(path, paths)) {
+                continue;
+            }
+            final Envelope pathBounds = entry.getValue();
+            if (!pathBounds.intersects(envelope)) {
+                continue;
+            }
+            if ((getGrid(path) & cells(pathBounds, envelope)) != 0L) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean matches(String path, Collection<String> paths) {
+        for (String filter : paths) {
+            if (filter.equals(path) || NodeRef.isChild(filter, path)
+                    || NodeRef.isChild(path, filter)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Computes the mask of the grid cells of {@code gridBounds} touched by {@code envelope}.
+     *
+     * @param gridBounds the envelope the grid is laid over
+     * @param envelope the envelope to compute the touched cells of
+     * @return the mask of touched cells, {@code 0} if {@code envelope} doesn't intersect
+     *         {@code gridBounds}
+     */
+    public static long cells(Envelope gridBounds, Envelope envelope) {
+        if (!gridBounds.intersects(envelope)) {
+            return 0L;
+        }
+        final int minCol = cell(envelope.getMinX(), gridBounds.getMinX(), gridBounds.getWidth());
+        final int maxCol = cell(envelope.getMaxX(), gridBounds.getMinX(), gridBounds.getWidth());
+        final int minRow = cell(envelope.getMinY(), gridBounds.getMinY(), gridBounds.getHeight());
+        final int maxRow = cell(envelope.getMaxY(), gridBounds.getMinY(), gridBounds.getHeight());
+        long mask = 0L;
+        for (int row = minRow; row <= maxRow; row++) {
+            for (int col = minCol; col <= maxCol; col++) {
+                mask |= 1L << (row * GRID_SIZE + col);
+            }
+        }
+        return mask;
+    }
+
+    private static int cell(double ordinate, double min, double span) {
+        if (span <= 0D) {
+            return 0;
+        }
+        int cell = (int) ((ordinate - min) * GRID_SIZE / span);
+        return Math.max(0, Math.min(GRID_SIZE - 1, cell));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof SpatialChangeSummary)) {
+            return false;
+        }
+        SpatialChangeSummary s = (SpatialChangeSummary) o;
+        return commitId.equals(s.commitId) && bounds.equals(s.bounds) && grids.equals(s.grids);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(commitId, bounds, grids);
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this).add("commit", commitId).add("bounds", bounds)
+                .toString();
+    }
+}
@@ -0,0 +1,60 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import org.geogit.api.ObjectId;
+
+import com.google.common.base.Optional;
+
+/**
+ * Stores {@link HilbertRTree spatial indexes} over the feature nodes of selected trees, keyed by
+ * tree id.
+ * <p>
+ * Since trees are immutable and identified by their contents, an index is versioned along with
+ * the tree it was built for, and applies to that tree whatever commit or ref it's read from.
+ * Indexes of superseded versions are {@link #remove(ObjectId) removed} as newer ones are derived
+ * from them.
+ *
+ * @see org.geogit.api.plumbing.UpdateSpatialTreeIndexOp
+ */
+public interface SpatialTreeIndex {
+
+    /**
+     * Initializes/opens the index. It's safe to call this method multiple times, and only the first
+     * call shall take effect.
+     */
+    public void open();
+
+    /**
+     * @return true if the index is open, false otherwise
+     */
+    public boolean isOpen();
+
+    /**
+     * Closes the index.
+     */
+    public void close();
+
+    /**
+     * @param treeId the id of the indexed tree
+     * @return the spatial index of the given tree, or {@link Optional#absent()} if it has none
+     */
+    public Optional<HilbertRTree> get(ObjectId treeId);
+
+    /**
+     * Stores the spatial index of the given tree, replacing any existing one.
+     */
+    public void put(ObjectId treeId, HilbertRTree index);
+
+    /**
+     * Removes the spatial index of the given tree, if any.
+     */
+    public void remove(ObjectId treeId);
+
+    /**
+     * Removes every spatial index.
+     */
+    public void truncate();
+}
@@ -6,7 +6,6 @@ package org.geogit.storage;
 
 import java.util.Iterator;
 import java.util.List;
-import java.util.UUID;
 
 import javax.annotation.Nullable;
 
@@ -44,12 +43,12 @@ public class TransactionStagingArea implements StagingArea {
     /**
      * Constructs a new {@code TransactionStagingArea}.
      * 
-     * @param index the repository index
-     * @param transactionId the transaction id
+     * @param index the transaction index
+     * @param database the transaction staging database the index works against
      */
-    public TransactionStagingArea(final StagingArea index, final UUID transactionId) {
+    public TransactionStagingArea(final StagingArea index, final StagingDatabase database) {
         this.index = index;
-        database = new TransactionStagingDatabase(index.getDatabase(), transactionId);
+        this.database = database;
     }
 
     /**
@@ -6,13 +6,27 @@ package org.geogit.storage;
 
 import static org.geogit.api.Ref.append;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.annotation.Nullable;
 
+import org.geogit.api.Bucket;
 import org.geogit.api.GeogitTransaction;
+import org.geogit.api.Node;
 import org.geogit.api.ObjectId;
 import org.geogit.api.RevCommit;
 import org.geogit.api.RevFeature;
@@ -23,15 +37,42 @@ import org.geogit.api.RevTree;
 import org.geogit.api.plumbing.TransactionBegin;
 import org.geogit.api.plumbing.TransactionEnd;
 import org.geogit.api.plumbing.merge.Conflict;
+import org.geogit.storage.datastream.DataStreamSerializationFactory;
 
+import com.google.common.base.Function;
 import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
 
 /**
  * A {@link StagingDatabase} decorator for a specific {@link GeogitTransaction transaction}.
  * <p>
  * This decorator creates a transaction specific namespace under the
- * {@code transactions/<transaction id>} path, and maps all query and storage methods to that
- * namespace.
+ * {@code transactions/<transaction id>} path, and maps all conflict query and storage methods to
+ * that namespace.
+ * <p>
+ * Objects are copied on write: the objects stored during the transaction are kept apart from the
+ * original database, which is only read through for the objects the transaction doesn't have, and
+ * are either {@link #merge() merged} into it when the transaction is committed or
+ * {@link #discard() discarded} when it's aborted. Concurrent transactions thus don't contend on
+ * the original database while they're in progress, and aborted ones leave nothing behind. On
+ * commit, only the objects the transaction's refs reach are merged.
+ * <p>
+ * The objects of a transaction are stored in a file, normally under the transaction's directory,
+ * and are shared by all the instances created for the same transaction id. They're not kept on the
+ * heap: the transaction refs are persisted, so the objects they point to have to outlive the
+ * process along with them. The file is never synced, so the objects of small transactions are
+ * mostly read back from the operating system's page cache.
  * 
  * @see GeogitTransaction
  * @see TransactionBegin
@@ -39,18 +80,47 @@ import com.google.common.base.Optional;
  */
 public class TransactionStagingDatabase implements StagingDatabase {
 
+    private static final int MERGE_BATCH_SIZE = 10000;
+
+    /**
+     * The objects of the transactions in progress, shared by all the instances created for the same
+     * transaction
+     */
+    private static final ConcurrentMap<UUID, ObjectOverlay> OVERLAYS = new MapMaker().makeMap();
+
     private final StagingDatabase database;
 
+    private final UUID transactionId;
+
     private final String txNamespace;
 
+    @Nullable
+    private final File objectsFile;
+
     /**
-     * Constructs a new {@code TransactionStagingDatabase}.
+     * Constructs a new {@code TransactionStagingDatabase} that keeps the transaction objects in a
+     * temporary file, which doesn't survive the process.
      * 
      * @param database the original staging database
      * @param transactionId the transaction id
      */
     public TransactionStagingDatabase(final StagingDatabase database, final UUID transactionId) {
+        this(database, transactionId, null);
+    }
+
+    /**
+     * Constructs a new {@code TransactionStagingDatabase}.
+     * 
+     * @param database the original staging database
+     * @param transactionId the transaction id
+     * @param objectsFile the file to keep the transaction objects in until the transaction ends,
+     *        or {@code null} to use a temporary file
+     */
+    public TransactionStagingDatabase(final StagingDatabase database, final UUID transactionId,
+            @Nullable final File objectsFile) {
         this.database = database;
+        this.transactionId = transactionId;
+        this.objectsFile = objectsFile;
         this.txNamespace = append(
                 append(GeogitTransaction.TRANSACTIONS_NAMESPACE, transactionId.toString()),
                 "conflicts");
@@ -82,126 +152,158 @@ public class TransactionStagingDatabase implements StagingDatabase {
     }
 
     /**
-     * Pass through to the original {@link StagingDatabase}.
+     * @return whether the object exists in the transaction or the original {@link StagingDatabase}
      */
     @Override
     public boolean exists(ObjectId id) {
-        return database.exists(id);
+        ObjectOverlay overlay = overlay(false);
+        return (overlay != null && overlay.exists(id)) || database.exists(id);
     }
 
     /**
-     * Pass through to the original {@link StagingDatabase}.
+     * @return the objects that exist in the transaction or the original {@link StagingDatabase}
+     */
+    @Override
+    public Set<ObjectId> existing(Iterable<ObjectId> ids) {
+        ObjectOverlay overlay = overlay(false);
+        if (overlay == null) {
+            return database.existing(ids);
+        }
+        Set<ObjectId> existing = Sets.newHashSet(overlay.existing(ids));
+        List<ObjectId> missing = Lists.newArrayList();
+        for (ObjectId id : ids) {
+            if (!existing.contains(id)) {
+                missing.add(id);
+            }
+        }
+        if (!missing.isEmpty()) {
+            existing.addAll(database.existing(missing));
+        }
+        return existing;
+    }
+
+    /**
+     * @return the matching objects of both the transaction and the original
+     *         {@link StagingDatabase}
      */
     @Override
     public List<ObjectId> lookUp(String partialId) {
-        return database.lookUp(partialId);
+        ObjectOverlay overlay = overlay(false);
+        if (overlay == null) {
+            return database.lookUp(partialId);
+        }
+        Set<ObjectId> lookUp = Sets.newHashSet(overlay.lookUp(partialId));
+        lookUp.addAll(database.lookUp(partialId));
+        return Lists.newArrayList(lookUp);
     }
 
     /**
-     * Pass through to the original {@link StagingDatabase}.
+     * Looks up the object in the transaction, and then in the original {@link StagingDatabase}.
      */
     @Override
     public RevObject get(ObjectId id) throws IllegalArgumentException {
-        return database.get(id);
+        RevObject object = getOverlaid(id);
+        return object == null ? database.get(id) : object;
     }
 
     /**
-     * Pass through to the original {@link StagingDatabase}.
+     * Looks up the object in the transaction, and then in the original {@link StagingDatabase}.
      */
     @Override
     public <T extends RevObject> T get(ObjectId id, Class<T> type) throws IllegalArgumentException {
-        return database.get(id, type);
+        T object = getOverlaid(id, type);
+        return object == null ? database.get(id, type) : object;
     }
 
     /**
-     * Pass through to the original {@link StagingDatabase}.
+     * Looks up the object in the transaction, and then in the original {@link StagingDatabase}.
      */
     @Override
     public @Nullable
     RevObject getIfPresent(ObjectId id) {
-        return database.getIfPresent(id);
+        RevObject object = getOverlaid(id);
+        return object == null ? database.getIfPresent(id) : object;
     }
 
     /**
-     * Pass through to the original {@link StagingDatabase}.
+     * Looks up the object in the transaction, and then in the original {@link StagingDatabase}.
      */
     @Override
     public @Nullable
     <T extends RevObject> T getIfPresent(ObjectId id, Class<T> type)
             throws IllegalArgumentException {
-        return database.getIfPresent(id, type);
+        T object = getOverlaid(id, type);
+        return object == null ? database.getIfPresent(id, type) : object;
+    }
+
+    @Nullable
+    private RevObject getOverlaid(ObjectId id) {
+        ObjectOverlay overlay = overlay(false);
+        return overlay == null ? null : overlay.getIfPresent(id);
+    }
+
+    @Nullable
+    private <T extends RevObject> T getOverlaid(ObjectId id, Class<T> type) {
+        ObjectOverlay overlay = overlay(false);
+        return overlay == null ? null : overlay.getIfPresent(id, type);
     }
 
-    /**
-     * Pass through to the original {@link StagingDatabase}.
-     */
     @Override
     public RevTree getTree(ObjectId id) {
-        return database.getTree(id);
+        return get(id, RevTree.class);
     }
 
-    /**
-     * Pass through to the original {@link StagingDatabase}.
-     */
     @Override
     public RevFeature getFeature(ObjectId id) {
-        return database.getFeature(id);
+        return get(id, RevFeature.class);
     }
 
-    /**
-     * Pass through to the original {@link StagingDatabase}.
-     */
     @Override
     public RevFeatureType getFeatureType(ObjectId id) {
-        return database.getFeatureType(id);
+        return get(id, RevFeatureType.class);
     }
 
-    /**
-     * Pass through to the original {@link StagingDatabase}.
-     */
     @Override
     public RevCommit getCommit(ObjectId id) {
-        return database.getCommit(id);
+        return get(id, RevCommit.class);
     }
 
-    /**
-     * Pass through to the original {@link StagingDatabase}.
-     */
     @Override
     public RevTag getTag(ObjectId id) {
-        return database.getTag(id);
+        return get(id, RevTag.class);
     }
 
     /**
-     * Pass through to the original {@link StagingDatabase}.
+     * Stores the object in the transaction only.
      */
     @Override
     public <T extends RevObject> boolean put(T object) {
-        return database.put(object);
+        return overlay(true).put(object);
     }
 
     /**
-     * Pass through to the original {@link StagingDatabase}.
+     * @return an inserter that stores objects in the transaction only
      */
     @Override
     public ObjectInserter newObjectInserter() {
-        return database.newObjectInserter();
+        return new ObjectInserter(this);
     }
 
     /**
-     * Pass through to the original {@link StagingDatabase}.
+     * Deletes the object from the transaction only.
      */
     @Override
     public boolean delete(ObjectId objectId) {
-        return database.delete(objectId);
+        ObjectOverlay overlay = overlay(false);
+        return overlay != null && overlay.delete(objectId);
     }
 
     /**
-     * Pass through to the original {@link StagingDatabase}.
+     * Stores the objects in the transaction only.
      */
     @Override
     public void putAll(Iterator<? extends RevObject> objects) {
-        database.putAll(objects);
+        overlay(true).putAll(objects);
     }
 
     /**
@@ -249,9 +351,333 @@ public class TransactionStagingDatabase implements StagingDatabase {
         database.removeConflicts(txNamespace);
     }
 
+    /**
+     * Deletes the objects from the transaction only.
+     */
     @Override
     public long deleteAll(Iterator<ObjectId> ids) {
-        return database.deleteAll(ids);
+        ObjectOverlay overlay = overlay(false);
+        return overlay == null ? 0 : overlay.deleteAll(ids);
+    }
+
+    /**
+     * Copies the objects created during the transaction that the given objects reach to the
+     * original {@link StagingDatabase}, except those it already has, and releases all the objects
+     * of the transaction. Objects the given ones don't reach, such as the trees of intermediate
+     * states of the working tree, are dropped.
+     * 
+     * @param tips the objects the transaction's refs point to
+     */
+    public void merge(Iterable<ObjectId> tips) {
+        final ObjectOverlay overlay = overlay(false);
+        if (overlay == null) {
+            return;
+        }
+        OVERLAYS.remove(transactionId, overlay);
+        try {
+            final Set<ObjectId> visited = Sets.newHashSet();
+            final Deque<ObjectId> pending = new ArrayDeque<ObjectId>();
+            Iterables.addAll(pending, tips);
+            final List<RevObject> batch = Lists.newArrayListWithCapacity(MERGE_BATCH_SIZE);
+            while (!pending.isEmpty()) {
+                final ObjectId id = pending.pop();
+                if (id.isNull() || !visited.add(id)) {
+                    continue;
+                }
+                final RevObject object = overlay.getIfPresent(id);
+                if (object == null) {
+                    // an object of the original database, which has all the objects it reaches
+                    continue;
+                }
+                addReferences(object, pending);
+                batch.add(object);
+                if (batch.size() == MERGE_BATCH_SIZE) {
+                    putMissing(batch);
+                    batch.clear();
+                }
+            }
+            putMissing(batch);
+        } finally {
+            overlay.delete();
+        }
+    }
+
+    private static void addReferences(RevObject object, Deque<ObjectId> pending) {
+        switch (object.getType()) {
+        case COMMIT:
+            RevCommit commit = (RevCommit) object;
+            pending.push(commit.getTreeId());
+            for (ObjectId parentId : commit.getParentIds()) {
+                pending.push(parentId);
+            }
+            break;
+        case TREE:
+            RevTree tree = (RevTree) object;
+            final ImmutableList<Node> none = ImmutableList.of();
+            for (Node node : Iterables.concat(tree.trees().or(none), tree.features().or(none))) {
+                pending.push(node.getObjectId());
+                if (node.getMetadataId().isPresent()) {
+                    pending.push(node.getMetadataId().get());
+                }
+            }
+            if (tree.buckets().isPresent()) {
+                for (Bucket bucket : tree.buckets().get().values()) {
+                    pending.push(bucket.id());
+                }
+            }
+            break;
+        case TAG:
+            pending.push(((RevTag) object).getCommitId());
+            break;
+        default:
+            // features and feature types reference nothing
+        }
+    }
+
+    private void putMissing(List<RevObject> objects) {
+        if (objects.isEmpty()) {
+            return;
+        }
+        final Set<ObjectId> existing = database.existing(Lists.transform(objects,
+                new Function<RevObject, ObjectId>() {
+                    @Override
+                    public ObjectId apply(RevObject object) {
+                        return object.getId();
+                    }
+                }));
+        database.putAll(Iterators.filter(objects.iterator(), new Predicate<RevObject>() {
+            @Override
+            public boolean apply(RevObject object) {
+                return !existing.contains(object.getId());
+            }
+        }));
+    }
+
+    /**
+     * Discards the objects created during the transaction.
+     */
+    public void discard() {
+        ObjectOverlay overlay = OVERLAYS.remove(transactionId);
+        if (overlay != null) {
+            overlay.delete();
+        } else if (objectsFile != null) {
+            // not opened by this process
+            objectsFile.delete();
+            objectsFile.getParentFile().delete();
+        }
+    }
+
+    /**
+     * @param create whether to create the transaction's overlay if it doesn't exist yet
+     * @return the transaction's overlay, or {@code null} if it doesn't exist and {@code create} is
+     *         {@code false}
+     */
+    @Nullable
+    private ObjectOverlay overlay(boolean create) {
+        ObjectOverlay overlay = OVERLAYS.get(transactionId);
+        if (overlay == null && (create || (objectsFile != null && objectsFile.exists()))) {
+            // either a new overlay, or one stored by a previous process for the same transaction
+            overlay = new ObjectOverlay(transactionId, objectsFile);
+            overlay.open();
+            ObjectOverlay existing = OVERLAYS.putIfAbsent(transactionId, overlay);
+            if (existing != null) {
+                overlay.close();
+                overlay = existing;
+            }
+        }
+        return overlay;
+    }
+
+    /**
+     * The objects created during a transaction, appended to a file as records made of the object
+     * id, the length of the stored object as an int, and the stored object itself. A length of
+     * {@code -1} with no object marks a deleted object.
+     * <p>
+     * If the file is given it's kept until the overlay is {@link #delete() deleted}, so that the
+     * objects survive the process; otherwise a temporary file is used.
+     */
+    private static class ObjectOverlay extends AbstractObjectDatabase {
+
+        private final UUID transactionId;
+
+        @Nullable
+        private File file;
+
+        private final boolean temporary;
+
+        private RandomAccessFile data;
+
+        /**
+         * Offset of the record of each object
+         */
+        private final Map<ObjectId, Long> offsets = Maps.newHashMap();
+
+        ObjectOverlay(UUID transactionId, @Nullable File file) {
+            super(new DataStreamSerializationFactory());
+            this.transactionId = transactionId;
+            this.file = file;
+            this.temporary = file == null;
+        }
+
+        @Override
+        public synchronized boolean isOpen() {
+            return data != null;
+        }
+
+        @Override
+        public synchronized void open() {
+            if (data != null) {
+                return;
+            }
+            try {
+                if (temporary) {
+                    file = File.createTempFile("geogit-transaction-" + transactionId, ".objects");
+                } else {
+                    Files.createParentDirs(file);
+                }
+                data = new RandomAccessFile(file, "rw");
+                load();
+            } catch (IOException e) {
+                close();
+                throw Throwables.propagate(e);
+            }
+        }
+
+        /**
+         * Reads the offsets of the records already in the file, dropping any incomplete record at
+         * its end
+         */
+        private void load() throws IOException {
+            final long length = data.length();
+            final byte[] rawId = new byte[ObjectId.NUM_BYTES];
+            long offset = 0;
+            while (offset + ObjectId.NUM_BYTES + 4 <= length) {
+                data.seek(offset);
+                data.readFully(rawId);
+                int size = data.readInt();
+                long next = offset + ObjectId.NUM_BYTES + 4 + Math.max(0, size);
+                if (next > length) {
+                    break;
+                }
+                ObjectId id = ObjectId.createNoClone(rawId.clone());
+                if (size < 0) {
+                    offsets.remove(id);
+                } else {
+                    offsets.put(id, Long.valueOf(offset));
+                }
+                offset = next;
+            }
+            data.setLength(offset);
+        }
+
+        @Override
+        public synchronized void close() {
+            offsets.clear();
+            Closeables.closeQuietly(data);
+            data = null;
+            if (temporary && file != null) {
+                file.delete();
+                file = null;
+            }
+        }
+
+        /**
+         * Closes the overlay and deletes its file.
+         */
+        synchronized void delete() {
+            close();
+            if (file != null) {
+                file.delete();
+                // the transaction's directory, if nothing else is left in it
+                file.getParentFile().delete();
+            }
+        }
+
+        @Override
+        public synchronized boolean exists(ObjectId id) {
+            return offsets.containsKey(id);
+        }
+
+        @Override
+        protected synchronized boolean putInternal(ObjectId id, byte[] rawData) {
+            Preconditions.checkState(isOpen(), "Transaction %s has ended", transactionId);
+            if (exists(id)) {
+                return false;
+            }
+            final long offset = appendRecord(id, rawData);
+            offsets.put(id, Long.valueOf(offset));
+            return true;
+        }
+
+        private long appendRecord(ObjectId id, @Nullable byte[] rawData) {
+            final int size = rawData == null ? 0 : rawData.length;
+            ByteBuffer record = ByteBuffer.allocate(ObjectId.NUM_BYTES + 4 + size);
+            record.put(id.getRawValue());
+            record.putInt(rawData == null ? -1 : size);
+            if (rawData != null) {
+                record.put(rawData);
+            }
+            try {
+                final long offset = data.length();
+                data.seek(offset);
+                data.write(record.array());
+                return offset;
+            } catch (IOException e) {
+                throw Throwables.propagate(e);
+            }
+        }
+
+        @Override
+        protected synchronized InputStream getRawInternal(ObjectId id, boolean failIfNotFound) {
+            Long offset = offsets.get(id);
+            if (offset == null) {
+                if (failIfNotFound) {
+                    throw new IllegalArgumentException("Object does not exist: " + id);
+                }
+                return null;
+            }
+            try {
+                data.seek(offset.longValue() + ObjectId.NUM_BYTES);
+                byte[] rawData = new byte[data.readInt()];
+                data.readFully(rawData);
+                return new ByteArrayInputStream(rawData);
+            } catch (IOException e) {
+                throw Throwables.propagate(e);
+            }
+        }
+
+        @Override
+        protected synchronized List<ObjectId> lookUpInternal(byte[] raw) {
+            List<ObjectId> matches = Lists.newArrayList();
+            byte[] rawId = new byte[ObjectId.NUM_BYTES];
+            for (ObjectId id : offsets.keySet()) {
+                id.getRawValue(rawId);
+                if (Arrays.equals(raw, Arrays.copyOf(rawId, raw.length))) {
+                    matches.add(id);
+                }
+            }
+            return matches;
+        }
+
+        @Override
+        public synchronized boolean delete(ObjectId objectId) {
+            if (!isOpen() || offsets.remove(objectId) == null) {
+                return false;
+            }
+            appendRecord(objectId, null);
+            return true;
+        }
+
+        @Override
+        public long deleteAll(Iterator<ObjectId> ids) {
+            long count = 0;
+            while (ids.hasNext()) {
+                if (delete(ids.next())) {
+                    count++;
+                }
+            }
+            return count;
+        }
     }
 
 }
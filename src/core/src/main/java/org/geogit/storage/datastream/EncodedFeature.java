@@ -0,0 +1,92 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.storage.datastream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+
+import javax.annotation.Nullable;
+
+import org.geogit.api.ObjectId;
+import org.geogit.api.RevFeature;
+import org.geogit.api.RevFeatureBuilder;
+import org.geogit.api.plumbing.HashObject.FeatureHasher;
+import org.opengis.feature.Feature;
+import org.opengis.feature.Property;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * A {@link RevFeature} carrying its own encoding in the data stream storage format, computed in
+ * the same pass over the feature's values as its id, so that {@link FeatureWriter} needs not
+ * encode it again.
+ * <p>
+ * Meant for the write path only: it's to be built right before the feature is stored and dropped
+ * afterwards, since keeping it around keeps the encoded bytes as well.
+ */
+public final class EncodedFeature extends RevFeature {
+
+    @Nullable
+    private final byte[] encoded;
+
+    private EncodedFeature(ObjectId id, ImmutableList<Optional<Object>> values,
+            @Nullable byte[] encoded) {
+        super(id, values);
+        this.encoded = encoded;
+    }
+
+    /**
+     * Builds a {@link RevFeature} from the provided {@link Feature}, with the same id
+     * {@link RevFeatureBuilder} would compute for it.
+     * 
+     * @param feature the feature to build from
+     * @return the newly constructed RevFeature, which has no cached encoding if any of its values
+     *         is of a type not supported by the data stream format
+     */
+    public static EncodedFeature build(Feature feature) {
+        if (feature == null) {
+            throw new IllegalStateException("No feature set");
+        }
+
+        Collection<Property> props = feature.getProperties();
+
+        ImmutableList.Builder<Optional<Object>> valuesBuilder = new ImmutableList.Builder<Optional<Object>>();
+        FeatureHasher hasher = new FeatureHasher();
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(encoded);
+        try {
+            FeatureWriter.writeFeatureHeader(data, props.size());
+            for (Property prop : props) {
+                Optional<Object> value = Optional.fromNullable(prop.getValue());
+                valuesBuilder.add(value);
+                hasher.put(value.orNull());
+                if (data != null) {
+                    try {
+                        FeatureWriter.writeValue(value, data);
+                    } catch (IllegalArgumentException unsupported) {
+                        // leave it to FeatureWriter to fail if it's ever asked to write it
+                        data = null;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+        return new EncodedFeature(hasher.hash(), valuesBuilder.build(), data == null ? null
+                : encoded.toByteArray());
+    }
+
+    /**
+     * @return the encoding of this feature in the data stream storage format, if all its values
+     *         could be encoded. The returned array shall not be modified.
+     */
+    Optional<byte[]> getEncoded() {
+        return Optional.fromNullable(encoded);
+    }
+}
@@ -20,15 +20,40 @@ import com.google.common.base.Optional;
 public class FeatureWriter implements ObjectWriter<RevFeature> {
     @Override
     public void write(RevFeature feature, OutputStream out) throws IOException {
+        if (feature instanceof EncodedFeature) {
+            Optional<byte[]> encoded = ((EncodedFeature) feature).getEncoded();
+            if (encoded.isPresent()) {
+                // encoded with the methods below while it was built
+                out.write(encoded.get());
+                return;
+            }
+        }
         DataOutput data = new DataOutputStream(out);
-        writeHeader(data, "feature");
-        data.writeInt(feature.getValues().size());
+        writeFeatureHeader(data, feature.getValues().size());
         for (Optional<Object> field : feature.getValues()) {
-            FieldType type = FieldType.forValue(field);
-            data.writeByte(type.getTag());
-            if (type != FieldType.NULL) {
-                DataStreamValueSerializer.write(field, data);
-            }
+            writeValue(field, data);
+        }
+    }
+
+    /**
+     * Writes the start of a feature with the given number of values, to be followed by each value
+     * as written by {@link #writeValue(Optional, DataOutput)}.
+     */
+    public static void writeFeatureHeader(DataOutput data, int numValues) throws IOException {
+        writeHeader(data, "feature");
+        data.writeInt(numValues);
+    }
+
+    /**
+     * Writes the next value of a feature.
+     * 
+     * @throws IllegalArgumentException if the type of the value is not supported
+     */
+    public static void writeValue(Optional<Object> field, DataOutput data) throws IOException {
+        FieldType type = FieldType.forValue(field);
+        data.writeByte(type.getTag());
+        if (type != FieldType.NULL) {
+            DataStreamValueSerializer.write(field, data);
         }
     }
 }
@@ -0,0 +1,226 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.storage.fs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.net.URL;
+
+import org.geogit.api.ObjectId;
+import org.geogit.api.Platform;
+import org.geogit.api.plumbing.ResolveGeogitDir;
+import org.geogit.storage.AbstractBitmapIndex;
+import org.geogit.storage.ReachabilityBitmap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+import com.google.common.primitives.Ints;
+import com.google.inject.Inject;
+
+/**
+ * Provides an implementation of a GeoGit bitmap index that stores the ordinal table and the
+ * bitmaps in the {@code bitmaps} directory of the repository.
+ * <p>
+ * The ordinal table is an append-only file of raw object ids, read back the first time the index
+ * is used. The directory is only created once something is written to the index.
+ * Each bitmap is stored in its own file, named after the commit id, and written only after the
+ * ordinals it refers to have been flushed.
+ */
+public class FileBitmapIndex extends AbstractBitmapIndex {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileBitmapIndex.class);
+
+    private final Platform platform;
+
+    private File dataRoot;
+
+    private OutputStream ordinalsOut;
+
+    private final Cache<ObjectId, ReachabilityBitmap> cache = CacheBuilder.newBuilder()
+            .maximumSize(64).softValues().build();
+
+    /**
+     * Constructs a new {@code FileBitmapIndex} using the given platform.
+     *
+     * @param platform the platform to use.
+     */
+    @Inject
+    public FileBitmapIndex(final Platform platform) {
+        this.platform = platform;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return dataRoot != null;
+    }
+
+    @Override
+    public synchronized void open() {
+        if (isOpen()) {
+            return;
+        }
+        final URL repoUrl = new ResolveGeogitDir(platform).call();
+        if (repoUrl == null) {
+            throw new IllegalStateException("Can't find geogit repository home");
+        }
+        try {
+            dataRoot = new File(new File(repoUrl.toURI()), "bitmaps");
+        } catch (URISyntaxException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    @Override
+    protected synchronized void loadOrdinals() {
+        final File ordinals = new File(dataRoot, "ordinals");
+        if (!ordinals.exists()) {
+            return;
+        }
+        try {
+            final long validLength = ordinals.length() - (ordinals.length() % ObjectId.NUM_BYTES);
+            if (validLength < ordinals.length()) {
+                LOGGER.warn("Discarding truncated ordinal in {}", ordinals);
+                RandomAccessFile raf = new RandomAccessFile(ordinals, "rw");
+                try {
+                    raf.setLength(validLength);
+                } finally {
+                    raf.close();
+                }
+            }
+            byte[] rawIds = new byte[Ints.checkedCast(validLength)];
+            InputStream in = new FileInputStream(ordinals);
+            try {
+                ByteStreams.readFully(in, rawIds);
+            } finally {
+                Closeables.closeQuietly(in);
+            }
+            load(rawIds, rawIds.length / ObjectId.NUM_BYTES);
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!isOpen()) {
+            return;
+        }
+        Closeables.closeQuietly(ordinalsOut);
+        ordinalsOut = null;
+        dataRoot = null;
+        cache.invalidateAll();
+        clear();
+    }
+
+    /**
+     * @return the stream to append ordinals to, creating the bitmaps directory the first time
+     *         something is written to it
+     */
+    private OutputStream ordinalsOut() throws IOException {
+        if (ordinalsOut == null) {
+            if (!dataRoot.exists() && !dataRoot.mkdirs()) {
+                throw new IOException("Can't create bitmap index directory: "
+                        + dataRoot.getAbsolutePath());
+            }
+            ordinalsOut = new BufferedOutputStream(new FileOutputStream(new File(dataRoot,
+                    "ordinals"), true));
+        }
+        return ordinalsOut;
+    }
+
+    @Override
+    protected synchronized void persistOrdinal(ObjectId objectId, int ordinal) {
+        try {
+            ordinalsOut().write(objectId.getRawValue());
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    @Override
+    protected ReachabilityBitmap loadBitmap(ObjectId commitId) {
+        ReachabilityBitmap bitmap = cache.getIfPresent(commitId);
+        if (bitmap != null) {
+            return bitmap;
+        }
+        File file = bitmapFile(commitId);
+        if (file == null || !file.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            bitmap = ReachabilityBitmap.read(in);
+        } catch (IOException e) {
+            LOGGER.warn("Unable to read bitmap " + file, e);
+            return null;
+        } finally {
+            Closeables.closeQuietly(in);
+        }
+        cache.put(commitId, bitmap);
+        return bitmap;
+    }
+
+    @Override
+    protected synchronized void storeBitmap(ObjectId commitId, ReachabilityBitmap bitmap) {
+        final File file = bitmapFile(commitId);
+        final File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try {
+            ordinalsOut().flush();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tmp)));
+            try {
+                bitmap.write(out);
+            } finally {
+                out.close();
+            }
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Can't replace bitmap " + file);
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Can't rename " + tmp + " to " + file);
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            throw Throwables.propagate(e);
+        }
+        cache.put(commitId, bitmap);
+    }
+
+    @Override
+    protected synchronized void truncateInternal() {
+        cache.invalidateAll();
+        if (!isOpen()) {
+            return;
+        }
+        Closeables.closeQuietly(ordinalsOut);
+        ordinalsOut = null;
+        File[] files = dataRoot.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+    }
+
+    private synchronized File bitmapFile(ObjectId commitId) {
+        return dataRoot == null ? null : new File(dataRoot, commitId.toString() + ".bitmap");
+    }
+}
@@ -0,0 +1,254 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.storage.fs;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileLock;
+
+import org.geogit.api.ObjectId;
+import org.geogit.api.Platform;
+import org.geogit.api.plumbing.ResolveGeogitDir;
+import org.geogit.storage.AbstractCommitMetadataIndex;
+import org.geogit.storage.CommitMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Throwables;
+import com.google.common.io.Closeables;
+import com.google.inject.Inject;
+
+/**
+ * Provides an implementation of a GeoGit commit metadata index that keeps the entries in memory
+ * and appends them to a log file inside the repository directory, which is read back the first
+ * time the index is used.
+ * <p>
+ * Each record holds the commit id, the committer timestamp and the (optional) author and committer
+ * names. A record truncated by an abrupt shutdown is discarded when the log is read back, or before
+ * appending to it for the first time.
+ * <p>
+ * The log is locked while being read or appended to, so that several processes can index commits
+ * in the same repository; each process reads back the records appended by the others the next time
+ * it opens the index.
+ */
+public class FileCommitMetadataIndex extends AbstractCommitMetadataIndex {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileCommitMetadataIndex.class);
+
+    private final Platform platform;
+
+    private File logFile;
+
+    private RandomAccessFile out;
+
+    /**
+     * Whether the log file is known not to end with a truncated record
+     */
+    private boolean tailChecked;
+
+    /**
+     * Constructs a new {@code FileCommitMetadataIndex} using the given platform.
+     * 
+     * @param platform the platform to use.
+     */
+    @Inject
+    public FileCommitMetadataIndex(final Platform platform) {
+        this.platform = platform;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return logFile != null;
+    }
+
+    @Override
+    public synchronized void open() {
+        if (isOpen()) {
+            return;
+        }
+        final URL repoUrl = new ResolveGeogitDir(platform).call();
+        if (repoUrl == null) {
+            throw new IllegalStateException("Can't find geogit repository home");
+        }
+        try {
+            logFile = new File(new File(repoUrl.toURI()), "commitindex");
+        } catch (URISyntaxException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    @Override
+    protected synchronized void loadEntries() {
+        if (!logFile.exists()) {
+            return;
+        }
+        try {
+            RandomAccessFile raf = new RandomAccessFile(logFile, "rw");
+            try {
+                FileLock lock = raf.getChannel().lock();
+                try {
+                    // not closed, as that would close the channel and release the lock
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(
+                            Channels.newInputStream(raf.getChannel())));
+                    discardTruncatedRecord(raf, load(in));
+                    tailChecked = true;
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private void discardTruncatedRecord(RandomAccessFile raf, long validLength) throws IOException {
+        if (validLength < raf.length()) {
+            LOGGER.warn("Discarding truncated commit index record in {}", logFile);
+            raf.setLength(validLength);
+        }
+    }
+
+    /**
+     * Reads back the log file, ignoring the records of the commits already loaded.
+     * 
+     * @return the length of the file up to the last complete record
+     */
+    private long load(DataInputStream in) throws IOException {
+        long validLength = 0;
+        try {
+            byte[] rawId = new byte[ObjectId.NUM_BYTES];
+            while (true) {
+                int size = in.readInt();
+                in.readFully(rawId);
+                long timestamp = in.readLong();
+                String author = in.readBoolean() ? in.readUTF() : null;
+                String committer = in.readBoolean() ? in.readUTF() : null;
+                add(new CommitMetadata(ObjectId.createNoClone(rawId.clone()), timestamp, author,
+                        committer));
+                validLength += 4 + size;
+            }
+        } catch (EOFException e) {
+            return validLength;
+        }
+    }
+
+    /**
+     * Skips over the records of the log file, without decoding them.
+     * 
+     * @return the length of the file up to the last complete record
+     */
+    private static long scan(RandomAccessFile raf) throws IOException {
+        final long length = raf.length();
+        // not closed, as that would close the channel
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(raf.getChannel().position(0))));
+        long validLength = 0;
+        try {
+            while (validLength + 4 <= length) {
+                int size = in.readInt();
+                if (size < 0 || validLength + 4 + size > length) {
+                    break;
+                }
+                for (long remaining = size; remaining > 0;) {
+                    long skipped = in.skip(remaining);
+                    if (skipped <= 0) {
+                        throw new EOFException();
+                    }
+                    remaining -= skipped;
+                }
+                validLength += 4 + size;
+            }
+        } catch (EOFException e) {
+            // the file was shorter than reported
+        }
+        return validLength;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!isOpen()) {
+            return;
+        }
+        Closeables.closeQuietly(out);
+        out = null;
+        tailChecked = false;
+        logFile = null;
+        clear();
+    }
+
+    /**
+     * Appends the entry to the log file, after making sure the file doesn't end with a truncated
+     * record if the entries were not loaded.
+     */
+    @Override
+    protected void persist(CommitMetadata entry) {
+        try {
+            if (out == null) {
+                out = new RandomAccessFile(logFile, "rw");
+            }
+            byte[] record = encode(entry);
+            FileLock lock = out.getChannel().lock();
+            try {
+                if (!tailChecked) {
+                    discardTruncatedRecord(out, scan(out));
+                    tailChecked = true;
+                }
+                // other processes may have appended to it meanwhile
+                out.seek(out.length());
+                out.write(record);
+            } finally {
+                lock.release();
+            }
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    /**
+     * @return the record of the entry, prefixed by its size
+     */
+    private static byte[] encode(CommitMetadata entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream record = new DataOutputStream(bytes);
+        record.writeInt(0);
+        record.write(entry.getCommitId().getRawValue());
+        record.writeLong(entry.getTimestamp());
+        record.writeBoolean(entry.getAuthorName().isPresent());
+        if (entry.getAuthorName().isPresent()) {
+            record.writeUTF(entry.getAuthorName().get());
+        }
+        record.writeBoolean(entry.getCommitterName().isPresent());
+        if (entry.getCommitterName().isPresent()) {
+            record.writeUTF(entry.getCommitterName().get());
+        }
+        record.flush();
+        byte[] raw = bytes.toByteArray();
+        ByteBuffer.wrap(raw).putInt(raw.length - 4);
+        return raw;
+    }
+
+    @Override
+    protected void truncateInternal() {
+        if (!isOpen()) {
+            return;
+        }
+        Closeables.closeQuietly(out);
+        out = null;
+        logFile.delete();
+        tailChecked = true;
+    }
+}
@@ -6,6 +6,7 @@ package org.geogit.storage.fs;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -13,6 +14,7 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.Iterator;
@@ -22,6 +24,7 @@ import org.geogit.api.ObjectId;
 import org.geogit.api.Platform;
 import org.geogit.api.plumbing.ResolveGeogitDir;
 import org.geogit.storage.AbstractObjectDatabase;
+import org.geogit.storage.CopyableObjectDatabase;
 import org.geogit.storage.ObjectDatabase;
 import org.geogit.storage.ObjectSerializingFactory;
 
@@ -36,7 +39,7 @@ import com.google.inject.Inject;
  * 
  * @see AbstractObjectDatabase
  */
-public class FileObjectDatabase extends AbstractObjectDatabase implements ObjectDatabase {
+public class FileObjectDatabase extends AbstractObjectDatabase implements CopyableObjectDatabase {
 
     private final Platform platform;
 
@@ -183,6 +186,79 @@ public class FileObjectDatabase extends AbstractObjectDatabase implements Object
         return true;
     }
 
+    /**
+     * @return {@code true} if there are no object directories in the database
+     */
+    @Override
+    public boolean isEmpty() {
+        checkState(isOpen(), "database is not open");
+        String[] children = dataRoot.list();
+        return children == null || children.length == 0;
+    }
+
+    /**
+     * Copies the object files to another {@code FileObjectDatabase}. Each file is copied under a
+     * temporary name and then renamed, so an interrupted copy never leaves a truncated object
+     * behind.
+     */
+    @Override
+    public boolean copyTo(ObjectDatabase target) throws IOException {
+        checkState(isOpen(), "database is not open");
+        if (!(target instanceof FileObjectDatabase)) {
+            return false;
+        }
+        final FileObjectDatabase targetDb = (FileObjectDatabase) target;
+        checkState(targetDb.isOpen(), "target database is not open");
+        checkArgument(targetDb.isEmpty(), "target database is not empty");
+        copyDirectory(dataRoot, targetDb.getDataRoot());
+        return true;
+    }
+
+    private static void copyDirectory(File from, File to) throws IOException {
+        File[] children = from.listFiles();
+        if (children == null) {
+            return;
+        }
+        if (!to.exists() && !to.mkdirs()) {
+            throw new IOException("Can't create " + to.getAbsolutePath());
+        }
+        for (File child : children) {
+            final File target = new File(to, child.getName());
+            if (child.isDirectory()) {
+                copyDirectory(child, target);
+            } else if (!target.exists()) {
+                copyFile(child, target);
+            }
+        }
+    }
+
+    private static void copyFile(File from, File to) throws IOException {
+        // hidden, so it never matches a partial id lookup
+        final File tmp = new File(to.getParentFile(), "." + to.getName() + ".tmp");
+        FileInputStream in = new FileInputStream(from);
+        try {
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                final FileChannel source = in.getChannel();
+                final FileChannel destination = out.getChannel();
+                final long size = source.size();
+                long position = 0;
+                while (position < size) {
+                    position += source.transferTo(position, size - position, destination);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        if (!tmp.renameTo(to)) {
+            tmp.delete();
+            throw new IOException("Can't rename " + tmp.getAbsolutePath() + " to "
+                    + to.getAbsolutePath());
+        }
+    }
+
     /**
      * Deletes the object with the provided {@link ObjectId id} from the database.
      * 
@@ -0,0 +1,196 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.storage.fs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.Map;
+
+import org.geogit.api.ObjectId;
+import org.geogit.api.Platform;
+import org.geogit.api.plumbing.ResolveGeogitDir;
+import org.geogit.storage.AbstractSpatialChangeIndex;
+import org.geogit.storage.SpatialChangeSummary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
+import com.google.inject.Inject;
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Provides an implementation of a GeoGit spatial change index that keeps the summaries in memory
+ * and appends them to a log file inside the repository directory, which is read back on
+ * {@link #open()}.
+ * <p>
+ * Each record holds the commit id and, for each feature type tree path, the aggregated envelope and
+ * grid mask of its changes. A record truncated by an abrupt shutdown is discarded when the log is
+ * read back.
+ */
+public class FileSpatialChangeIndex extends AbstractSpatialChangeIndex {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileSpatialChangeIndex.class);
+
+    private final Platform platform;
+
+    private File logFile;
+
+    private DataOutputStream out;
+
+    /**
+     * Constructs a new {@code FileSpatialChangeIndex} using the given platform.
+     *
+     * @param platform the platform to use.
+     */
+    @Inject
+    public FileSpatialChangeIndex(final Platform platform) {
+        this.platform = platform;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return out != null;
+    }
+
+    @Override
+    public synchronized void open() {
+        if (isOpen()) {
+            return;
+        }
+        final URL repoUrl = new ResolveGeogitDir(platform).call();
+        if (repoUrl == null) {
+            throw new IllegalStateException("Can't find geogit repository home");
+        }
+        try {
+            logFile = new File(new File(repoUrl.toURI()), "spatialindex");
+        } catch (URISyntaxException e) {
+            throw Throwables.propagate(e);
+        }
+        try {
+            if (logFile.exists()) {
+                long validLength = load(logFile);
+                if (validLength < logFile.length()) {
+                    LOGGER.warn("Discarding truncated spatial index record in {}", logFile);
+                    RandomAccessFile raf = new RandomAccessFile(logFile, "rw");
+                    try {
+                        raf.setLength(validLength);
+                    } finally {
+                        raf.close();
+                    }
+                }
+            }
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFile,
+                    true)));
+        } catch (IOException e) {
+            clear();
+            throw Throwables.propagate(e);
+        }
+    }
+
+    /**
+     * Reads back the log file.
+     *
+     * @return the length of the file up to the last complete record
+     */
+    private long load(File file) throws IOException {
+        long validLength = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+                file)));
+        try {
+            byte[] rawId = new byte[ObjectId.NUM_BYTES];
+            while (true) {
+                int size = in.readInt();
+                in.readFully(rawId);
+                final int paths = in.readInt();
+                Map<String, Envelope> bounds = Maps.newHashMap();
+                Map<String, Long> grids = Maps.newHashMap();
+                for (int i = 0; i < paths; i++) {
+                    String path = in.readUTF();
+                    double minx = in.readDouble();
+                    double maxx = in.readDouble();
+                    double miny = in.readDouble();
+                    double maxy = in.readDouble();
+                    long grid = in.readLong();
+                    bounds.put(path, new Envelope(minx, maxx, miny, maxy));
+                    grids.put(path, Long.valueOf(grid));
+                }
+                add(new SpatialChangeSummary(ObjectId.createNoClone(rawId.clone()), bounds, grids));
+                validLength += 4 + size;
+            }
+        } catch (EOFException e) {
+            return validLength;
+        } finally {
+            Closeables.closeQuietly(in);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!isOpen()) {
+            return;
+        }
+        Closeables.closeQuietly(out);
+        out = null;
+        logFile = null;
+        clear();
+    }
+
+    @Override
+    protected void persist(SpatialChangeSummary summary) {
+        try {
+            byte[] record = encode(summary);
+            out.writeInt(record.length);
+            out.write(record);
+            out.flush();
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private static byte[] encode(SpatialChangeSummary summary) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream record = new DataOutputStream(bytes);
+        record.write(summary.getCommitId().getRawValue());
+        record.writeInt(summary.getBounds().size());
+        for (Map.Entry<String, Envelope> entry : summary.getBounds().entrySet()) {
+            Envelope env = entry.getValue();
+            record.writeUTF(entry.getKey());
+            record.writeDouble(env.getMinX());
+            record.writeDouble(env.getMaxX());
+            record.writeDouble(env.getMinY());
+            record.writeDouble(env.getMaxY());
+            record.writeLong(summary.getGrid(entry.getKey()));
+        }
+        record.flush();
+        return bytes.toByteArray();
+    }
+
+    @Override
+    protected void truncateInternal() {
+        if (!isOpen()) {
+            return;
+        }
+        try {
+            out.close();
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFile,
+                    false)));
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.storage.fs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+
+import org.geogit.api.ObjectId;
+import org.geogit.api.Platform;
+import org.geogit.api.plumbing.ResolveGeogitDir;
+import org.geogit.storage.HilbertRTree;
+import org.geogit.storage.SpatialTreeIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.io.Closeables;
+import com.google.inject.Inject;
+
+/**
+ * Provides an implementation of a GeoGit spatial tree index that stores each index in its own
+ * file, named after the tree id, in the {@code spatialtrees} directory of the repository.
+ * <p>
+ * Indexes are written to a temporary file and renamed once complete, and the most recently used
+ * ones are kept in memory.
+ */
+public class FileSpatialTreeIndex implements SpatialTreeIndex {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileSpatialTreeIndex.class);
+
+    private final Platform platform;
+
+    private File dataRoot;
+
+    private final Cache<ObjectId, HilbertRTree> cache = CacheBuilder.newBuilder().maximumSize(16)
+            .softValues().build();
+
+    /**
+     * Constructs a new {@code FileSpatialTreeIndex} using the given platform.
+     *
+     * @param platform the platform to use.
+     */
+    @Inject
+    public FileSpatialTreeIndex(final Platform platform) {
+        this.platform = platform;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return dataRoot != null;
+    }
+
+    @Override
+    public synchronized void open() {
+        if (isOpen()) {
+            return;
+        }
+        final URL repoUrl = new ResolveGeogitDir(platform).call();
+        if (repoUrl == null) {
+            throw new IllegalStateException("Can't find geogit repository home");
+        }
+        File root;
+        try {
+            root = new File(new File(repoUrl.toURI()), "spatialtrees");
+        } catch (URISyntaxException e) {
+            throw Throwables.propagate(e);
+        }
+        if (!root.exists() && !root.mkdirs()) {
+            throw new IllegalStateException("Can't create spatial index directory: "
+                    + root.getAbsolutePath());
+        }
+        dataRoot = root;
+    }
+
+    @Override
+    public synchronized void close() {
+        dataRoot = null;
+        cache.invalidateAll();
+    }
+
+    @Override
+    public Optional<HilbertRTree> get(ObjectId treeId) {
+        HilbertRTree index = cache.getIfPresent(treeId);
+        if (index != null) {
+            return Optional.of(index);
+        }
+        File file = indexFile(treeId);
+        if (file == null || !file.exists()) {
+            return Optional.absent();
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            index = HilbertRTree.read(in);
+        } catch (IOException e) {
+            LOGGER.warn("Unable to read spatial index " + file, e);
+            return Optional.absent();
+        } finally {
+            Closeables.closeQuietly(in);
+        }
+        cache.put(treeId, index);
+        return Optional.of(index);
+    }
+
+    @Override
+    public synchronized void put(ObjectId treeId, HilbertRTree index) {
+        Preconditions.checkState(isOpen(), "index is not open");
+        final File file = indexFile(treeId);
+        final File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tmp)));
+            try {
+                index.write(out);
+            } finally {
+                out.close();
+            }
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Can't replace spatial index " + file);
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Can't rename " + tmp + " to " + file);
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            throw Throwables.propagate(e);
+        }
+        cache.put(treeId, index);
+    }
+
+    @Override
+    public synchronized void remove(ObjectId treeId) {
+        cache.invalidate(treeId);
+        File file = indexFile(treeId);
+        if (file != null && file.exists() && !file.delete()) {
+            LOGGER.warn("Unable to delete spatial index " + file);
+        }
+    }
+
+    @Override
+    public synchronized void truncate() {
+        cache.invalidateAll();
+        if (!isOpen()) {
+            return;
+        }
+        File[] files = dataRoot.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+    }
+
+    private synchronized File indexFile(ObjectId treeId) {
+        return dataRoot == null ? null : new File(dataRoot, treeId.toString() + ".qix");
+    }
+}
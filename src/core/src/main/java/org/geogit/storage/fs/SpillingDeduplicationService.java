@@ -0,0 +1,74 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.storage.fs;
+
+import java.io.File;
+import java.net.URISyntaxException;
+import java.net.URL;
+
+import org.geogit.api.Platform;
+import org.geogit.api.plumbing.ResolveGeogitDir;
+import org.geogit.storage.DeduplicationService;
+import org.geogit.storage.Deduplicator;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.inject.Inject;
+
+/**
+ * A {@link DeduplicationService} creating {@link SpillingDeduplicator}s, which hold up to
+ * {@link #DEFAULT_MEMORY_BUDGET} bytes of ids off the java heap and spill the rest to the
+ * {@code tmp} directory of the repository, or to the system's temporary directory when used
+ * outside of a repository.
+ */
+public class SpillingDeduplicationService implements DeduplicationService {
+
+    /**
+     * Default number of bytes each deduplicator can hold in memory before spilling to disk
+     */
+    public static final long DEFAULT_MEMORY_BUDGET = 64L * 1024 * 1024;
+
+    private final Platform platform;
+
+    private final long memoryBudget;
+
+    /**
+     * @param platform the platform to resolve the repository directory from
+     */
+    @Inject
+    public SpillingDeduplicationService(Platform platform) {
+        this(platform, DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * @param platform the platform to resolve the repository directory from
+     * @param memoryBudget the number of bytes each deduplicator can hold in memory
+     */
+    public SpillingDeduplicationService(Platform platform, long memoryBudget) {
+        this.platform = platform;
+        this.memoryBudget = memoryBudget;
+    }
+
+    @Override
+    public Deduplicator createDeduplicator() {
+        return new SpillingDeduplicator(spillDirectory(), memoryBudget);
+    }
+
+    private File spillDirectory() {
+        final URL repoUrl = new ResolveGeogitDir(platform).call();
+        if (repoUrl == null) {
+            return new File(System.getProperty("java.io.tmpdir"));
+        }
+        File directory;
+        try {
+            directory = new File(new File(repoUrl.toURI()), "tmp");
+        } catch (URISyntaxException e) {
+            throw Throwables.propagate(e);
+        }
+        Preconditions.checkState(directory.exists() || directory.mkdirs(),
+                "Can't create temporary directory %s", directory.getAbsolutePath());
+        return directory;
+    }
+}
@@ -0,0 +1,589 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.storage.fs;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.geogit.api.ObjectId;
+import org.geogit.storage.Deduplicator;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.io.Closeables;
+
+/**
+ * A {@link Deduplicator} that keeps the raw bytes of the visited ids in an open addressing hash
+ * table held in direct {@link ByteBuffer}s, and spills the table to a sorted run file when it
+ * would outgrow its memory budget.
+ * <p>
+ * The home slot of an id is given by its leading bits, so the table is sorted by id except for
+ * the entries displaced by collisions, which stay within their cluster of occupied slots. Spilling
+ * the table hence only takes sorting each cluster. Lookups that miss the table go through a bloom
+ * filter per run before binary searching the memory mapped run, and runs are merged into one when
+ * there are more than {@link #MAX_RUNS} of them.
+ * <p>
+ * Instances of this class are not thread safe.
+ *
+ * @see SpillingDeduplicationService
+ */
+public class SpillingDeduplicator implements Deduplicator {
+
+    private static final int ID_LENGTH = ObjectId.NUM_BYTES;
+
+    private static final int INITIAL_CAPACITY_BITS = 12;
+
+    private static final int SLAB_SLOTS_BITS = 16;
+
+    private static final int SLAB_SLOTS = 1 << SLAB_SLOTS_BITS;
+
+    /**
+     * Extra slots past the end of the table, so that probing never wraps around and the table
+     * stays sorted by cluster
+     */
+    private static final int OVERFLOW_SLOTS = 1024;
+
+    private static final double MAX_LOAD = 0.75;
+
+    /**
+     * Maximum number of spilled runs before they're merged into one
+     */
+    static final int MAX_RUNS = 8;
+
+    private static final Comparator<byte[]> UNSIGNED_ORDER = new Comparator<byte[]>() {
+        @Override
+        public int compare(byte[] o1, byte[] o2) {
+            for (int i = 0; i < ID_LENGTH; i++) {
+                int c = (o1[i] & 0xFF) - (o2[i] & 0xFF);
+                if (c != 0) {
+                    return c;
+                }
+            }
+            return 0;
+        }
+    };
+
+    private final File spillDirectory;
+
+    private final long memoryBudget;
+
+    private final byte[] scratch = new byte[ID_LENGTH];
+
+    private ByteBuffer[] slabs;
+
+    private int capacityBits;
+
+    private int size;
+
+    /**
+     * Whether {@link ObjectId#NULL} was visited, as its all zero bytes denote empty slots
+     */
+    private boolean nullVisited;
+
+    private List<Run> runs = new ArrayList<Run>();
+
+    /**
+     * @param spillDirectory the directory to write run files to
+     * @param memoryBudget the maximum number of bytes the hash table can take
+     */
+    public SpillingDeduplicator(File spillDirectory, long memoryBudget) {
+        Preconditions.checkArgument(memoryBudget >= ID_LENGTH << (INITIAL_CAPACITY_BITS + 1),
+                "memory budget is too small: %s", memoryBudget);
+        this.spillDirectory = spillDirectory;
+        this.memoryBudget = memoryBudget;
+        allocate(INITIAL_CAPACITY_BITS);
+    }
+
+    @Override
+    public boolean isDuplicate(ObjectId id) {
+        if (id.isNull()) {
+            return nullVisited;
+        }
+        id.getRawValue(scratch);
+        return find(scratch) >= 0 || inRuns(scratch);
+    }
+
+    @Override
+    public boolean visit(ObjectId id) {
+        if (id.isNull()) {
+            boolean visited = nullVisited;
+            nullVisited = true;
+            return visited;
+        }
+        id.getRawValue(scratch);
+        int slot = find(scratch);
+        if (slot >= 0) {
+            return true;
+        }
+        if (inRuns(scratch)) {
+            return true;
+        }
+        if (size + 1 > (1L << capacityBits) * MAX_LOAD || -slot - 1 >= slotCount()) {
+            makeRoom();
+            slot = find(scratch);
+        }
+        if (-slot - 1 >= slotCount()) {
+            // too many collisions past the end of the table, can't help but spill
+            spill();
+            slot = find(scratch);
+        }
+        write(-slot - 1, scratch);
+        size++;
+        return false;
+    }
+
+    @Override
+    public void removeDuplicates(List<ObjectId> ids) {
+        Iterator<ObjectId> iterator = ids.iterator();
+        while (iterator.hasNext()) {
+            if (isDuplicate(iterator.next())) {
+                iterator.remove();
+            }
+        }
+    }
+
+    @Override
+    public void reset() {
+        for (ByteBuffer slab : slabs) {
+            clear(slab);
+        }
+        size = 0;
+        nullVisited = false;
+        deleteRuns(runs);
+        runs = new ArrayList<Run>();
+    }
+
+    @Override
+    public void release() {
+        if (slabs != null) {
+            free(slabs);
+            slabs = null;
+        }
+        deleteRuns(runs);
+        runs = null;
+    }
+
+    /**
+     * @return the number of spilled runs, for testing purposes
+     */
+    int runCount() {
+        return runs.size();
+    }
+
+    private int slotCount() {
+        return (1 << capacityBits) + OVERFLOW_SLOTS;
+    }
+
+    private void allocate(int bits) {
+        this.capacityBits = bits;
+        final int slots = (1 << bits) + OVERFLOW_SLOTS;
+        final int slabCount = (slots + SLAB_SLOTS - 1) / SLAB_SLOTS;
+        slabs = new ByteBuffer[slabCount];
+        for (int i = 0; i < slabCount; i++) {
+            int slabSlots = Math.min(SLAB_SLOTS, slots - i * SLAB_SLOTS);
+            slabs[i] = ByteBuffer.allocateDirect(slabSlots * ID_LENGTH);
+        }
+    }
+
+    private static void clear(ByteBuffer slab) {
+        final int limit = slab.capacity();
+        int i = 0;
+        for (; i + 8 <= limit; i += 8) {
+            slab.putLong(i, 0L);
+        }
+        for (; i < limit; i++) {
+            slab.put(i, (byte) 0);
+        }
+    }
+
+    private int home(byte[] raw) {
+        long prefix = ((raw[0] & 0xFFL) << 24) | ((raw[1] & 0xFFL) << 16)
+                | ((raw[2] & 0xFFL) << 8) | (raw[3] & 0xFFL);
+        return (int) (prefix >>> (32 - capacityBits));
+    }
+
+    /**
+     * @return the slot holding {@code raw}, or {@code -(insertion slot) - 1} if not present, the
+     *         insertion slot being {@link #slotCount()} if the table overflowed
+     */
+    private int find(byte[] raw) {
+        final int slots = slotCount();
+        for (int slot = home(raw); slot < slots; slot++) {
+            if (isEmpty(slot)) {
+                return -slot - 1;
+            }
+            if (equals(slot, raw)) {
+                return slot;
+            }
+        }
+        return -slots - 1;
+    }
+
+    private boolean isEmpty(int slot) {
+        final ByteBuffer slab = slabs[slot >>> SLAB_SLOTS_BITS];
+        final int offset = (slot & (SLAB_SLOTS - 1)) * ID_LENGTH;
+        return slab.getLong(offset) == 0L && slab.getLong(offset + 8) == 0L
+                && slab.getInt(offset + 16) == 0;
+    }
+
+    private boolean equals(int slot, byte[] raw) {
+        final ByteBuffer slab = slabs[slot >>> SLAB_SLOTS_BITS];
+        final int offset = (slot & (SLAB_SLOTS - 1)) * ID_LENGTH;
+        for (int i = 0; i < ID_LENGTH; i++) {
+            if (slab.get(offset + i) != raw[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void read(int slot, byte[] target) {
+        final ByteBuffer slab = slabs[slot >>> SLAB_SLOTS_BITS];
+        final int offset = (slot & (SLAB_SLOTS - 1)) * ID_LENGTH;
+        for (int i = 0; i < ID_LENGTH; i++) {
+            target[i] = slab.get(offset + i);
+        }
+    }
+
+    private void write(int slot, byte[] raw) {
+        final ByteBuffer slab = slabs[slot >>> SLAB_SLOTS_BITS];
+        final int offset = (slot & (SLAB_SLOTS - 1)) * ID_LENGTH;
+        for (int i = 0; i < ID_LENGTH; i++) {
+            slab.put(offset + i, raw[i]);
+        }
+    }
+
+    /**
+     * Doubles the table if the memory budget allows it, spills it otherwise.
+     */
+    private void makeRoom() {
+        final long grownBytes = ((2L << capacityBits) + OVERFLOW_SLOTS) * ID_LENGTH;
+        if (capacityBits >= 30 || grownBytes > memoryBudget) {
+            spill();
+            return;
+        }
+        final ByteBuffer[] oldSlabs = this.slabs;
+        final int oldSlots = slotCount();
+        allocate(capacityBits + 1);
+        ByteBuffer[] newSlabs = this.slabs;
+        byte[] raw = new byte[ID_LENGTH];
+        for (int slot = 0; slot < oldSlots; slot++) {
+            this.slabs = oldSlabs;
+            if (isEmpty(slot)) {
+                continue;
+            }
+            read(slot, raw);
+            this.slabs = newSlabs;
+            int target = find(raw);
+            Preconditions.checkState(target < 0 && -target - 1 < slotCount());
+            write(-target - 1, raw);
+        }
+        this.slabs = newSlabs;
+        free(oldSlabs);
+    }
+
+    /**
+     * Writes the table contents to a new sorted run, and clears the table.
+     */
+    private void spill() {
+        if (size == 0) {
+            return;
+        }
+        File file;
+        OutputStream out = null;
+        try {
+            file = File.createTempFile("dedup", ".run", spillDirectory);
+            file.deleteOnExit();
+            out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+            BloomFilter bloom = new BloomFilter(size);
+            List<byte[]> cluster = new ArrayList<byte[]>();
+            final int slots = slotCount();
+            for (int slot = 0; slot <= slots; slot++) {
+                if (slot < slots && !isEmpty(slot)) {
+                    byte[] raw = new byte[ID_LENGTH];
+                    read(slot, raw);
+                    cluster.add(raw);
+                    continue;
+                }
+                if (cluster.size() > 1) {
+                    // displaced entries are out of order within their cluster only
+                    byte[][] sorted = cluster.toArray(new byte[cluster.size()][]);
+                    Arrays.sort(sorted, UNSIGNED_ORDER);
+                    cluster = Arrays.asList(sorted);
+                }
+                for (byte[] raw : cluster) {
+                    out.write(raw);
+                    bloom.add(raw);
+                }
+                cluster = new ArrayList<byte[]>();
+            }
+            out.close();
+            out = null;
+            runs.add(new Run(file, size, bloom));
+        } catch (IOException e) {
+            Closeables.closeQuietly(out);
+            throw Throwables.propagate(e);
+        }
+        for (ByteBuffer slab : slabs) {
+            clear(slab);
+        }
+        size = 0;
+        if (runs.size() > MAX_RUNS) {
+            mergeRuns();
+        }
+    }
+
+    private boolean inRuns(byte[] raw) {
+        for (Run run : runs) {
+            if (run.contains(raw)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Merges all the runs into a single one.
+     */
+    private void mergeRuns() {
+        long total = 0;
+        PriorityQueue<RunCursor> cursors = new PriorityQueue<RunCursor>(runs.size(),
+                new Comparator<RunCursor>() {
+                    @Override
+                    public int compare(RunCursor o1, RunCursor o2) {
+                        return UNSIGNED_ORDER.compare(o1.current, o2.current);
+                    }
+                });
+        for (Run run : runs) {
+            total += run.size;
+            RunCursor cursor = new RunCursor(run);
+            if (cursor.next()) {
+                cursors.add(cursor);
+            }
+        }
+        Preconditions.checkState(total * ID_LENGTH <= Integer.MAX_VALUE,
+                "too many ids to merge into a single run: %s", total);
+        OutputStream out = null;
+        try {
+            File file = File.createTempFile("dedup", ".run", spillDirectory);
+            file.deleteOnExit();
+            out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+            BloomFilter bloom = new BloomFilter((int) total);
+            while (!cursors.isEmpty()) {
+                RunCursor cursor = cursors.poll();
+                out.write(cursor.current);
+                bloom.add(cursor.current);
+                if (cursor.next()) {
+                    cursors.add(cursor);
+                }
+            }
+            out.close();
+            out = null;
+            List<Run> merged = runs;
+            runs = new ArrayList<Run>();
+            runs.add(new Run(file, (int) total, bloom));
+            deleteRuns(merged);
+        } catch (IOException e) {
+            Closeables.closeQuietly(out);
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private static void deleteRuns(List<Run> runs) {
+        if (runs == null) {
+            return;
+        }
+        for (Run run : runs) {
+            run.delete();
+        }
+        runs.clear();
+    }
+
+    private static void free(ByteBuffer[] slabs) {
+        for (ByteBuffer slab : slabs) {
+            free(slab);
+        }
+    }
+
+    /**
+     * Frees the memory of a direct or memory mapped buffer right away instead of whenever it's
+     * garbage collected, which also unmaps the file of a mapped buffer so that it can be deleted on
+     * platforms that don't allow deleting mapped files. The buffer shall no longer be used.
+     * <p>
+     * There's no public API for this, so it's done through the buffer's cleaner where available,
+     * and left to the garbage collector otherwise.
+     */
+    private static void free(ByteBuffer buffer) {
+        if (!buffer.isDirect()) {
+            return;
+        }
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                Method clean = cleaner.getClass().getMethod("clean");
+                clean.setAccessible(true);
+                clean.invoke(cleaner);
+            }
+        } catch (Exception e) {
+            // not available on this JVM, the buffer is freed when garbage collected
+        }
+    }
+
+    /**
+     * A sorted file of raw ids, memory mapped for binary searching.
+     */
+    private static class Run {
+
+        final File file;
+
+        final int size;
+
+        final BloomFilter bloom;
+
+        final MappedByteBuffer ids;
+
+        Run(File file, int size, BloomFilter bloom) throws IOException {
+            this.file = file;
+            this.size = size;
+            this.bloom = bloom;
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                this.ids = raf.getChannel().map(MapMode.READ_ONLY, 0, (long) size * ID_LENGTH);
+            } finally {
+                raf.close();
+            }
+        }
+
+        boolean contains(byte[] raw) {
+            if (!bloom.mightContain(raw)) {
+                return false;
+            }
+            int low = 0;
+            int high = size - 1;
+            while (low <= high) {
+                final int mid = (low + high) >>> 1;
+                final int c = compare(mid, raw);
+                if (c < 0) {
+                    low = mid + 1;
+                } else if (c > 0) {
+                    high = mid - 1;
+                } else {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Unmaps and deletes the run file.
+         */
+        void delete() {
+            free(ids);
+            file.delete();
+        }
+
+        private int compare(int index, byte[] raw) {
+            final int offset = index * ID_LENGTH;
+            for (int i = 0; i < ID_LENGTH; i++) {
+                int c = (ids.get(offset + i) & 0xFF) - (raw[i] & 0xFF);
+                if (c != 0) {
+                    return c;
+                }
+            }
+            return 0;
+        }
+    }
+
+    private static class RunCursor {
+
+        private final Run run;
+
+        private int index = -1;
+
+        final byte[] current = new byte[ID_LENGTH];
+
+        RunCursor(Run run) {
+            this.run = run;
+        }
+
+        boolean next() {
+            index++;
+            if (index >= run.size) {
+                return false;
+            }
+            final int offset = index * ID_LENGTH;
+            for (int i = 0; i < ID_LENGTH; i++) {
+                current[i] = run.ids.get(offset + i);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A bloom filter over raw ids, taking advantage of ids being hashes already to derive the bit
+     * positions from their bytes.
+     */
+    private static class BloomFilter {
+
+        private static final int BITS_PER_ID = 10;
+
+        private static final int HASHES = 4;
+
+        private final long[] bits;
+
+        private final long bitCount;
+
+        BloomFilter(int expectedIds) {
+            long wanted = Math.max(64L, (long) expectedIds * BITS_PER_ID);
+            this.bits = new long[(int) ((wanted + 63) / 64)];
+            this.bitCount = bits.length * 64L;
+        }
+
+        void add(byte[] raw) {
+            final long h1 = hash(raw, 4);
+            final long h2 = hash(raw, 8);
+            for (int i = 0; i < HASHES; i++) {
+                long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+                bits[(int) (bit >>> 6)] |= 1L << (bit & 63);
+            }
+        }
+
+        boolean mightContain(byte[] raw) {
+            final long h1 = hash(raw, 4);
+            final long h2 = hash(raw, 8);
+            for (int i = 0; i < HASHES; i++) {
+                long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+                if ((bits[(int) (bit >>> 6)] & (1L << (bit & 63))) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static long hash(byte[] raw, int offset) {
+            long h = 0;
+            for (int i = offset; i < offset + 8; i++) {
+                h = (h << 8) | (raw[i] & 0xFF);
+            }
+            return h;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.storage.memory;
+
+import java.util.Map;
+
+import org.geogit.api.ObjectId;
+import org.geogit.storage.AbstractBitmapIndex;
+import org.geogit.storage.ReachabilityBitmap;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Provides an implementation of a GeoGit bitmap index that is held only in memory.
+ */
+public class HeapBitmapIndex extends AbstractBitmapIndex {
+
+    private Map<ObjectId, ReachabilityBitmap> bitmaps;
+
+    @Override
+    public synchronized void open() {
+        if (isOpen()) {
+            return;
+        }
+        bitmaps = Maps.newConcurrentMap();
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return bitmaps != null;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (bitmaps != null) {
+            bitmaps.clear();
+            bitmaps = null;
+        }
+        clear();
+    }
+
+    @Override
+    protected void loadOrdinals() {
+        // nothing to do
+    }
+
+    @Override
+    protected void persistOrdinal(ObjectId objectId, int ordinal) {
+        // nothing to do
+    }
+
+    @Override
+    protected ReachabilityBitmap loadBitmap(ObjectId commitId) {
+        Map<ObjectId, ReachabilityBitmap> bitmaps = this.bitmaps;
+        return bitmaps == null ? null : bitmaps.get(commitId);
+    }
+
+    @Override
+    protected void storeBitmap(ObjectId commitId, ReachabilityBitmap bitmap) {
+        bitmaps.put(commitId, bitmap);
+    }
+
+    @Override
+    protected void truncateInternal() {
+        if (bitmaps != null) {
+            bitmaps.clear();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.storage.memory;
+
+import org.geogit.storage.AbstractCommitMetadataIndex;
+import org.geogit.storage.CommitMetadata;
+
+/**
+ * Provides an implementation of a GeoGit commit metadata index that is held only in memory.
+ */
+public class HeapCommitMetadataIndex extends AbstractCommitMetadataIndex {
+
+    private boolean open;
+
+    @Override
+    public void open() {
+        open = true;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        clear();
+        open = false;
+    }
+
+    @Override
+    protected void loadEntries() {
+        // nothing to do
+    }
+
+    @Override
+    protected void persist(CommitMetadata entry) {
+        // nothing to do
+    }
+
+    @Override
+    protected void truncateInternal() {
+        // nothing to do
+    }
+}
@@ -0,0 +1,42 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.storage.memory;
+
+import org.geogit.storage.AbstractSpatialChangeIndex;
+import org.geogit.storage.SpatialChangeSummary;
+
+/**
+ * Provides an implementation of a GeoGit spatial change index that is held only in memory.
+ */
+public class HeapSpatialChangeIndex extends AbstractSpatialChangeIndex {
+
+    private boolean open;
+
+    @Override
+    public void open() {
+        open = true;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        clear();
+        open = false;
+    }
+
+    @Override
+    protected void persist(SpatialChangeSummary summary) {
+        // nothing to do
+    }
+
+    @Override
+    protected void truncateInternal() {
+        // nothing to do
+    }
+}
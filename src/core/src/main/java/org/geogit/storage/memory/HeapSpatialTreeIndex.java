@@ -0,0 +1,62 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.storage.memory;
+
+import java.util.Map;
+
+import org.geogit.api.ObjectId;
+import org.geogit.storage.HilbertRTree;
+import org.geogit.storage.SpatialTreeIndex;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+/**
+ * Provides an implementation of a GeoGit spatial tree index that is held only in memory.
+ */
+public class HeapSpatialTreeIndex implements SpatialTreeIndex {
+
+    private final Map<ObjectId, HilbertRTree> indexes = Maps.newConcurrentMap();
+
+    private boolean open;
+
+    @Override
+    public void open() {
+        open = true;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        indexes.clear();
+        open = false;
+    }
+
+    @Override
+    public Optional<HilbertRTree> get(ObjectId treeId) {
+        return Optional.fromNullable(indexes.get(treeId));
+    }
+
+    @Override
+    public void put(ObjectId treeId, HilbertRTree index) {
+        Preconditions.checkState(isOpen(), "index is not open");
+        indexes.put(treeId, index);
+    }
+
+    @Override
+    public void remove(ObjectId treeId) {
+        indexes.remove(treeId);
+    }
+
+    @Override
+    public void truncate() {
+        indexes.clear();
+    }
+}
@@ -63,6 +63,21 @@ public class HeapStagingDatabase extends HeapObjectDatabse implements StagingDat
         return exists;
     }
 
+    @Override
+    public Set<ObjectId> existing(Iterable<ObjectId> ids) {
+        Set<ObjectId> existing = new HashSet<ObjectId>(super.existing(ids));
+        List<ObjectId> missing = new ArrayList<ObjectId>();
+        for (ObjectId id : ids) {
+            if (!existing.contains(id)) {
+                missing.add(id);
+            }
+        }
+        if (!missing.isEmpty()) {
+            existing.addAll(repositoryDb.existing(missing));
+        }
+        return existing;
+    }
+
     @Override
     protected InputStream getRawInternal(final ObjectId id, final boolean failIfNotFound)
             throws IllegalArgumentException {
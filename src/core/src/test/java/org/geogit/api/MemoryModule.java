@@ -5,13 +5,21 @@
 
 package org.geogit.api;
 
+import org.geogit.storage.BitmapIndex;
+import org.geogit.storage.CommitMetadataIndex;
 import org.geogit.storage.GraphDatabase;
 import org.geogit.storage.ObjectDatabase;
 import org.geogit.storage.RefDatabase;
+import org.geogit.storage.SpatialChangeIndex;
+import org.geogit.storage.SpatialTreeIndex;
 import org.geogit.storage.StagingDatabase;
+import org.geogit.storage.memory.HeapBitmapIndex;
+import org.geogit.storage.memory.HeapCommitMetadataIndex;
 import org.geogit.storage.memory.HeapGraphDatabase;
 import org.geogit.storage.memory.HeapObjectDatabse;
 import org.geogit.storage.memory.HeapRefDatabase;
+import org.geogit.storage.memory.HeapSpatialChangeIndex;
+import org.geogit.storage.memory.HeapSpatialTreeIndex;
 import org.geogit.storage.memory.HeapStagingDatabase;
 
 import com.google.inject.AbstractModule;
@@ -22,6 +30,10 @@ import com.google.inject.Scopes;
  * @see HeapStagingDatabase
  * @see HeapRefDatabase
  * @see HeapGraphDatabase
+ * @see HeapCommitMetadataIndex
+ * @see HeapBitmapIndex
+ * @see HeapSpatialChangeIndex
+ * @see HeapSpatialTreeIndex
  */
 public class MemoryModule extends AbstractModule {
 
@@ -43,6 +55,10 @@ public class MemoryModule extends AbstractModule {
         bind(StagingDatabase.class).to(HeapStagingDatabase.class).in(Scopes.SINGLETON);
         bind(RefDatabase.class).to(HeapRefDatabase.class).in(Scopes.SINGLETON);
         bind(GraphDatabase.class).to(HeapGraphDatabase.class).in(Scopes.SINGLETON);
+        bind(CommitMetadataIndex.class).to(HeapCommitMetadataIndex.class).in(Scopes.SINGLETON);
+        bind(BitmapIndex.class).to(HeapBitmapIndex.class).in(Scopes.SINGLETON);
+        bind(SpatialChangeIndex.class).to(HeapSpatialChangeIndex.class).in(Scopes.SINGLETON);
+        bind(SpatialTreeIndex.class).to(HeapSpatialTreeIndex.class).in(Scopes.SINGLETON);
     }
 
 }
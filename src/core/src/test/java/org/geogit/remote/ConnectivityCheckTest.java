@@ -0,0 +1,103 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.remote;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.Set;
+
+import org.geogit.api.ObjectId;
+import org.geogit.api.RevCommit;
+import org.geogit.storage.ObjectDatabase;
+import org.geogit.storage.datastream.DataStreamSerializationFactory;
+import org.geogit.storage.memory.HeapDeduplicator;
+import org.geogit.storage.memory.HeapObjectDatabse;
+import org.geogit.test.integration.RepositoryTestCase;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+public class ConnectivityCheckTest extends RepositoryTestCase {
+
+    private RevCommit tip;
+
+    private ObjectDatabase target;
+
+    @Override
+    protected void setUpInternal() throws Exception {
+        List<RevCommit> commits = populate(true, points1, lines1, points2);
+        tip = commits.get(commits.size() - 1);
+        target = new HeapObjectDatabse(new DataStreamSerializationFactory());
+        target.open();
+    }
+
+    private byte[] pack() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new BinaryPackedObjects(repo.getObjectDatabase()).write(out,
+                ImmutableList.of(tip.getId()), ImmutableList.<ObjectId> of(), false,
+                new HeapDeduplicator());
+        return out.toByteArray();
+    }
+
+    private Set<ObjectId> missing(ConnectivityCheck check) {
+        try {
+            return check.missing(ImmutableList.of(tip.getId()));
+        } finally {
+            check.release();
+        }
+    }
+
+    @Test
+    public void testCompleteStream() throws Exception {
+        ConnectivityCheck check = new ConnectivityCheck(target, new HeapDeduplicator());
+        new BinaryPackedObjects(target).ingest(new ByteArrayInputStream(pack()), check);
+        assertTrue(missing(check).isEmpty());
+    }
+
+    @Test
+    public void testReferencesToExistingObjects() throws Exception {
+        new BinaryPackedObjects(target).ingest(new ByteArrayInputStream(pack()));
+
+        ConnectivityCheck check = new ConnectivityCheck(target, new HeapDeduplicator());
+        check.callback(tip, null);
+        assertTrue(missing(check).isEmpty());
+    }
+
+    @Test
+    public void testMissingObjects() throws Exception {
+        ConnectivityCheck check = new ConnectivityCheck(target, new HeapDeduplicator());
+        check.callback(tip, null);
+        Set<ObjectId> expected = ImmutableSet.<ObjectId> builder().add(tip.getTreeId())
+                .addAll(tip.getParentIds()).build();
+        assertEquals(expected, missing(check));
+    }
+
+    @Test
+    public void testMissingTip() throws Exception {
+        ConnectivityCheck check = new ConnectivityCheck(target, new HeapDeduplicator());
+        assertEquals(ImmutableSet.of(tip.getId()), missing(check));
+    }
+
+    @Test
+    public void testCorruptObject() throws Exception {
+        RevCommit corrupt = new RevCommit(ObjectId.forString("corrupt"), tip.getTreeId(),
+                tip.getParentIds(), tip.getAuthor(), tip.getCommitter(), tip.getMessage());
+        ConnectivityCheck check = new ConnectivityCheck(target, new HeapDeduplicator());
+        try {
+            check.callback(corrupt, null);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(corrupt.getId().toString()));
+        }
+        try {
+            missing(check);
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(corrupt.getId().toString()));
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.remote;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import org.geogit.api.CommitBuilder;
+import org.geogit.api.ObjectId;
+import org.geogit.api.RevCommit;
+import org.geogit.api.RevFeature;
+import org.geogit.api.RevFeatureBuilder;
+import org.geogit.api.plumbing.ResolveGeogitDir;
+import org.geogit.storage.ObjectDatabase;
+import org.geogit.test.integration.RepositoryTestCase;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+public class FetchQuarantineTest extends RepositoryTestCase {
+
+    private static final String REMOTE = "http://example.com/geogit/repo";
+
+    private RevFeature feature1;
+
+    private RevFeature feature2;
+
+    private RevCommit commit;
+
+    @Override
+    protected void setUpInternal() throws Exception {
+        feature1 = new RevFeatureBuilder().build(points1);
+        feature2 = new RevFeatureBuilder().build(points2);
+        commit = new CommitBuilder().setTreeId(ObjectId.forString("tree"))
+                .setAuthor("groldan").setMessage("quarantined").build();
+    }
+
+    private File quarantineDir() throws Exception {
+        File geogitDir = new File(geogit.command(ResolveGeogitDir.class).call().toURI());
+        return new File(new File(geogitDir, "quarantine"), ObjectId.forString(REMOTE).toString());
+    }
+
+    @Test
+    public void testObjectsAndCheckpointSurviveReopen() throws Exception {
+        FetchQuarantine quarantine = FetchQuarantine.open(repo, REMOTE);
+        quarantine.getDatabase().put(feature1);
+        quarantine.getDatabase().put(commit);
+        quarantine.checkpoint(ImmutableList.of(commit.getId()));
+        quarantine.getDatabase().put(feature2);
+        quarantine.close();
+
+        assertFalse(repo.getObjectDatabase().exists(feature1.getId()));
+
+        quarantine = FetchQuarantine.open(repo, REMOTE);
+        try {
+            assertEquals(ImmutableSet.of(commit.getId()), quarantine.getCheckpoint());
+            ObjectDatabase db = quarantine.getDatabase();
+            assertEquals(feature1, db.get(feature1.getId()));
+            assertEquals(feature2, db.get(feature2.getId()));
+            assertEquals(commit, db.get(commit.getId()));
+        } finally {
+            quarantine.close();
+        }
+    }
+
+    @Test
+    public void testTruncatedTailIsDiscarded() throws Exception {
+        FetchQuarantine quarantine = FetchQuarantine.open(repo, REMOTE);
+        quarantine.getDatabase().put(feature1);
+        quarantine.close();
+
+        // simulate a record and a checkpoint interrupted halfway
+        FileOutputStream out = new FileOutputStream(new File(quarantineDir(), "objects"), true);
+        out.write(new byte[] { 2, 1, 2, 3 });
+        out.close();
+        out = new FileOutputStream(new File(quarantineDir(), "checkpoint"), true);
+        out.write(new byte[] { 1, 2, 3 });
+        out.close();
+
+        quarantine = FetchQuarantine.open(repo, REMOTE);
+        assertTrue(quarantine.getCheckpoint().isEmpty());
+        assertEquals(feature1, quarantine.getDatabase().get(feature1.getId()));
+        quarantine.getDatabase().put(feature2);
+        quarantine.close();
+
+        quarantine = FetchQuarantine.open(repo, REMOTE);
+        try {
+            assertEquals(feature1, quarantine.getDatabase().get(feature1.getId()));
+            assertEquals(feature2, quarantine.getDatabase().get(feature2.getId()));
+        } finally {
+            quarantine.close();
+        }
+    }
+
+    @Test
+    public void testExistenceIncludesRepositoryObjects() throws Exception {
+        repo.getObjectDatabase().put(feature2);
+        FetchQuarantine quarantine = FetchQuarantine.open(repo, REMOTE);
+        try {
+            quarantine.getDatabase().put(feature1);
+            assertTrue(quarantine.getDatabase().exists(feature2.getId()));
+            assertEquals(ImmutableSet.of(feature1.getId(), feature2.getId()), quarantine
+                    .getDatabase().existing(
+                            ImmutableList.of(feature1.getId(), feature2.getId(), commit.getId())));
+        } finally {
+            quarantine.close();
+        }
+    }
+
+    @Test
+    public void testCheckpointRequiresReceivedCommits() throws Exception {
+        FetchQuarantine quarantine = FetchQuarantine.open(repo, REMOTE);
+        try {
+            quarantine.checkpoint(ImmutableList.of(commit.getId()));
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("was not received"));
+        } finally {
+            quarantine.close();
+        }
+    }
+
+    @Test
+    public void testPromote() throws Exception {
+        FetchQuarantine quarantine = FetchQuarantine.open(repo, REMOTE);
+        quarantine.getDatabase().put(feature1);
+        quarantine.getDatabase().put(commit);
+        quarantine.promote();
+
+        assertEquals(feature1, repo.getObjectDatabase().get(feature1.getId()));
+        assertEquals(commit, repo.getObjectDatabase().get(commit.getId()));
+        assertFalse(quarantineDir().exists());
+    }
+}
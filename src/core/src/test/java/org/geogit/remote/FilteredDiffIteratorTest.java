@@ -0,0 +1,183 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.remote;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.geogit.api.Bounded;
+import org.geogit.api.NodeRef;
+import org.geogit.api.ObjectId;
+import org.geogit.api.RepositoryFilter;
+import org.geogit.api.RevCommit;
+import org.geogit.api.RevObject;
+import org.geogit.api.plumbing.DiffTree;
+import org.geogit.api.plumbing.diff.DiffEntry;
+import org.geogit.api.plumbing.diff.TreeBoundsFilter;
+import org.geogit.api.porcelain.CommitOp;
+import org.geogit.repository.Repository;
+import org.geogit.test.integration.RepositoryTestCase;
+import org.junit.Test;
+import org.opengis.feature.Feature;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+public class FilteredDiffIteratorTest extends RepositoryTestCase {
+
+    private RepositoryFilter filter;
+
+    private RevCommit first;
+
+    private RevCommit second;
+
+    @Override
+    protected void setUpInternal() throws Exception {
+        filter = new RepositoryFilter();
+        filter.addFilter(pointsName, "CQL", "BBOX(pp, 0, 0, 10, 10)");
+        filter.addFilter("default", "CQL", "INCLUDE");
+
+        // enough features for the Points tree to be split into buckets
+        List<Feature> features = new ArrayList<Feature>();
+        for (int i = 0; i < 1000; i++) {
+            features.add(point(i, i));
+        }
+        insertAndAdd(features.toArray(new Feature[features.size()]));
+        insertAndAdd(lines1);
+        first = geogit.command(CommitOp.class).call();
+
+        insertAndAdd(point(5, 2000), point(550, 2001), point(999, 2002), lines2);
+        second = geogit.command(CommitOp.class).call();
+    }
+
+    private Feature point(int i, int value) throws Exception {
+        return feature(pointsType, "Points." + i, "StringProp_" + i, new Integer(value), "POINT("
+                + (i % 100) + " " + (i / 100) + ")");
+    }
+
+    private DiffTree diff(RevCommit commit) {
+        String parent = commit.getParentIds().isEmpty() ? ObjectId.NULL.toString() : commit
+                .getParentIds().get(0).toString();
+        return geogit.command(DiffTree.class).setOldVersion(parent)
+                .setNewVersion(commit.getId().toString()).setReportTrees(true);
+    }
+
+    private static class CollectingIterator extends FilteredDiffIterator {
+
+        private final Set<ObjectId> processed = Sets.newHashSet();
+
+        private final Set<ObjectId> tracked;
+
+        CollectingIterator(DiffTree diff, RepositoryFilter filter, Set<ObjectId> tracked,
+                boolean pruneTrees, Repository repository) {
+            super(diff, repository, filter, pruneTrees);
+            this.tracked = tracked;
+        }
+
+        CollectingIterator(Iterator<DiffEntry> source, RepositoryFilter filter,
+                Set<ObjectId> tracked, Repository repository) {
+            super(source, repository, filter);
+            this.tracked = tracked;
+        }
+
+        @Override
+        protected boolean trackingObject(ObjectId objectId) {
+            return tracked.contains(objectId);
+        }
+
+        @Override
+        protected void processObject(RevObject object) {
+            if (object != null) {
+                processed.add(object.getId());
+            }
+        }
+    }
+
+    private void assertSameChanges(RevCommit commit) {
+        Set<ObjectId> tracked = Sets.newHashSet();
+        CollectingIterator expected = new CollectingIterator(diff(commit).call(), filter, tracked,
+                repo);
+        List<DiffEntry> expectedChanges = ImmutableList.copyOf(expected);
+
+        CollectingIterator pruned = new CollectingIterator(diff(commit), filter, tracked, true,
+                repo);
+        List<DiffEntry> prunedChanges = ImmutableList.copyOf(pruned);
+
+        assertEquals(Sets.newHashSet(expectedChanges), Sets.newHashSet(prunedChanges));
+        assertEquals(expected.processed, pruned.processed);
+        assertEquals(expected.wasFiltered(), pruned.wasFiltered());
+    }
+
+    @Test
+    public void testPrunedChangesMatchFilteredChanges() throws Exception {
+        assertSameChanges(first);
+        assertSameChanges(second);
+    }
+
+    @Test
+    public void testChangesOutsideTheFilter() throws Exception {
+        List<DiffEntry> changes = Lists.newArrayList(new CollectingIterator(diff(second), filter,
+                Sets.<ObjectId> newHashSet(), true, repo));
+
+        List<String> paths = Lists.newArrayList();
+        for (DiffEntry entry : changes) {
+            if (entry.getNewObject().getType() == RevObject.TYPE.FEATURE) {
+                paths.add(entry.getNewObject().path());
+            }
+        }
+        // Points.550 and Points.999 lie outside the filter
+        assertEquals(ImmutableList.of("Lines/Lines.2", "Points/Points.5"),
+                Lists.newArrayList(Sets.newTreeSet(paths)));
+    }
+
+    @Test
+    public void testTrackedFeaturesOutsideTheFilter() throws Exception {
+        ObjectId outside = null;
+        Iterator<DiffEntry> changes = diff(second).call();
+        while (changes.hasNext()) {
+            DiffEntry entry = changes.next();
+            if (entry.getOldObject() != null
+                    && "Points/Points.999".equals(entry.getOldObject().path())) {
+                outside = entry.getOldObject().objectId();
+            }
+        }
+        assertNotNull(outside);
+
+        CollectingIterator filtered = new CollectingIterator(diff(second).call(), filter,
+                Sets.newHashSet(outside), repo);
+        boolean found = false;
+        while (filtered.hasNext()) {
+            DiffEntry entry = filtered.next();
+            found |= entry.getNewObject() != null
+                    && "Points/Points.999".equals(entry.getNewObject().path());
+        }
+        assertTrue(found);
+    }
+
+    @Test
+    public void testBoundsFilterSkipsTrees() throws Exception {
+        final List<String> rejected = Lists.newArrayList();
+        TreeBoundsFilter rejectPoints = new TreeBoundsFilter() {
+            @Override
+            public boolean apply(String treePath, boolean hasSubtrees, Bounded bounded) {
+                if (treePath.startsWith(pointsName)) {
+                    rejected.add(treePath);
+                    return false;
+                }
+                return true;
+            }
+        };
+        Iterator<DiffEntry> changes = diff(second).setBoundsFilter(rejectPoints).call();
+        while (changes.hasNext()) {
+            DiffEntry entry = changes.next();
+            assertFalse(entry.toString(),
+                    entry.getNewObject().path().startsWith(pointsName + NodeRef.PATH_SEPARATOR));
+        }
+        assertFalse(rejected.isEmpty());
+    }
+}
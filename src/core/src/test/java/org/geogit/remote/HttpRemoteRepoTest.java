@@ -0,0 +1,238 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.remote;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.geogit.api.ObjectId;
+import org.geogit.api.Ref;
+import org.geogit.api.RevCommit;
+import org.geogit.api.RevObject;
+import org.geogit.api.plumbing.RefParse;
+import org.geogit.api.porcelain.LogOp;
+import org.geogit.remote.BinaryPackedObjects.Format;
+import org.geogit.repository.PostOrderIterator;
+import org.geogit.repository.Repository;
+import org.geogit.storage.DeduplicationService;
+import org.geogit.storage.ObjectDatabase;
+import org.geogit.storage.memory.HeapDeduplicator;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class HttpRemoteRepoTest extends RemoteRepositoryTestCase {
+
+    private static final String URL = "http://example.com/geogit/repo";
+
+    private Ref remoteMaster;
+
+    @Override
+    protected void setUpInternal() throws Exception {
+        // more commits than fit in the first range of each connection
+        List<RevCommit> commits = new ArrayList<RevCommit>();
+        for (int i = 0; i < 30; i++) {
+            commits.addAll(populate(remoteGeogit.geogit, true,
+                    feature(pointsType, "Points." + i, "StringProp1_" + i, new Integer(i),
+                            "POINT(" + i + " " + i + ")")));
+        }
+        remoteMaster = remoteGeogit.geogit.command(RefParse.class).setName(Ref.MASTER).call()
+                .get();
+        assertEquals(commits.get(commits.size() - 1).getId(), remoteMaster.getObjectId());
+    }
+
+    /**
+     * An {@link HttpRemoteRepo} that answers its fetch requests out of the remote test repository
+     * the same way the batched objects resource of the web API does, and fails once
+     * {@code failAfter} requests were answered.
+     */
+    private class TestHttpRemoteRepo extends HttpRemoteRepo {
+
+        private final AtomicInteger requests = new AtomicInteger();
+
+        private final int failAfter;
+
+        private final int batchObjects;
+
+        TestHttpRemoteRepo(int failAfter) throws Exception {
+            this(failAfter, BinaryPackedObjects.DEFAULT_BATCH_OBJECTS);
+        }
+
+        TestHttpRemoteRepo(int failAfter, int batchObjects) throws Exception {
+            super(new URL(URL), localGeogit.repo, localGeogit.injector
+                    .getInstance(DeduplicationService.class));
+            this.failAfter = failAfter;
+            this.batchObjects = batchObjects;
+        }
+
+        @Override
+        public RepositoryWrapper getRemoteWrapper() {
+            return new LocalRepositoryWrapper(remoteGeogit.repo);
+        }
+
+        @Override
+        HttpURLConnection openConnection(String resource) throws IOException {
+            assertEquals("/repo/batchobjects", resource);
+            return new HttpURLConnection(new URL(URL + resource)) {
+
+                private final ByteArrayOutputStream request = new ByteArrayOutputStream();
+
+                @Override
+                public OutputStream getOutputStream() {
+                    return request;
+                }
+
+                @Override
+                public InputStream getInputStream() throws IOException {
+                    if (requests.incrementAndGet() > failAfter) {
+                        throw new IOException("Server returned HTTP response code: 500");
+                    }
+                    return new ByteArrayInputStream(respond(request.toByteArray()));
+                }
+
+                @Override
+                public String getContentType() {
+                    return BinaryPackedObjects.FRAMED_MEDIA_TYPE;
+                }
+
+                @Override
+                public void connect() {
+                }
+
+                @Override
+                public void disconnect() {
+                }
+
+                @Override
+                public boolean usingProxy() {
+                    return false;
+                }
+            };
+        }
+
+        private byte[] respond(byte[] request) throws IOException {
+            JsonObject message = new JsonParser().parse(
+                    new InputStreamReader(new ByteArrayInputStream(request), Charsets.UTF_8))
+                    .getAsJsonObject();
+            List<ObjectId> want = new ArrayList<ObjectId>();
+            for (JsonElement e : message.get("want").getAsJsonArray()) {
+                want.add(ObjectId.valueOf(e.getAsString()));
+            }
+            List<ObjectId> have = new ArrayList<ObjectId>();
+            for (JsonElement e : message.get("have").getAsJsonArray()) {
+                have.add(ObjectId.valueOf(e.getAsString()));
+            }
+            Format format = Format.negotiate(message.get(BinaryPackedObjects.FORMAT_PARAM)
+                    .getAsString());
+
+            Repository repository = remoteGeogit.repo;
+            BinaryPackedObjects packer = new BinaryPackedObjects(
+                    repository.getObjectDatabase(), repository.getBitmapIndex());
+            packer.setBatchLimits(message.get(BinaryPackedObjects.BATCH_BYTES_PARAM).getAsLong(),
+                    batchObjects);
+            packer.setReportProgress(message.get(BinaryPackedObjects.PROGRESS_PARAM)
+                    .getAsBoolean());
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            packer.write(response, want, have, false, new HeapDeduplicator(), format);
+            return response.toByteArray();
+        }
+    }
+
+    private List<ObjectId> remoteObjects() {
+        Iterator<RevObject> objects = PostOrderIterator.range(
+                ImmutableList.of(remoteMaster.getObjectId()), ImmutableList.<ObjectId> of(),
+                remoteGeogit.repo.getObjectDatabase(), true, new HeapDeduplicator());
+        List<ObjectId> ids = new ArrayList<ObjectId>();
+        while (objects.hasNext()) {
+            ids.add(objects.next().getId());
+        }
+        return ids;
+    }
+
+    @Test
+    public void testFetchNewData() throws Exception {
+        TestHttpRemoteRepo remote = new TestHttpRemoteRepo(Integer.MAX_VALUE);
+        remote.fetchNewData(remoteMaster, Optional.<Integer> absent());
+
+        // several requests, since the commits don't fit in a single range
+        assertTrue(remote.requests.get() > 1);
+
+        ObjectDatabase localDb = localGeogit.repo.getObjectDatabase();
+        List<ObjectId> expected = remoteObjects();
+        assertTrue(expected.size() > 90);
+        for (ObjectId id : expected) {
+            assertTrue("missing " + id, localDb.exists(id));
+        }
+        for (RevCommit commit : toList(remoteGeogit.geogit.command(LogOp.class).call())) {
+            assertEquals(commit, localDb.getCommit(commit.getId()));
+        }
+    }
+
+    @Test
+    public void testProducerFailure() throws Exception {
+        TestHttpRemoteRepo remote = new TestHttpRemoteRepo(1);
+        try {
+            remote.fetchNewData(remoteMaster, Optional.<Integer> absent());
+            fail("Expected the failure of the remote to be propagated");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("500"));
+        }
+        // nothing is promoted to the repository out of a failed fetch
+        ObjectDatabase localDb = localGeogit.repo.getObjectDatabase();
+        assertFalse(localDb.exists(remoteMaster.getObjectId()));
+
+        // and the next fetch picks up from there
+        remote = new TestHttpRemoteRepo(Integer.MAX_VALUE);
+        remote.fetchNewData(remoteMaster, Optional.<Integer> absent());
+        for (ObjectId id : remoteObjects()) {
+            assertTrue("missing " + id, localDb.exists(id));
+        }
+    }
+
+    @Test
+    public void testResumeInTheMiddleOfARange() throws Exception {
+        // a single commit per response, so ranges take several requests
+        TestHttpRemoteRepo remote = new TestHttpRemoteRepo(3, 1);
+        try {
+            remote.fetchNewData(remoteMaster, Optional.<Integer> absent());
+            fail("Expected the failure of the remote to be propagated");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("500"));
+        }
+        ObjectDatabase localDb = localGeogit.repo.getObjectDatabase();
+        assertFalse(localDb.exists(remoteMaster.getObjectId()));
+
+        // the commits received before the failure are not asked for again
+        remote = new TestHttpRemoteRepo(Integer.MAX_VALUE, 1);
+        remote.fetchNewData(remoteMaster, Optional.<Integer> absent());
+        assertEquals(30 - 3, remote.requests.get());
+        for (ObjectId id : remoteObjects()) {
+            assertTrue("missing " + id, localDb.exists(id));
+        }
+        for (RevCommit commit : toList(remoteGeogit.geogit.command(LogOp.class).call())) {
+            assertEquals(commit, localDb.getCommit(commit.getId()));
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.repository;
+
+import java.util.Iterator;
+
+import org.geogit.api.ObjectId;
+import org.geogit.api.Ref;
+import org.geogit.api.RevCommit;
+import org.geogit.api.plumbing.RefParse;
+import org.geogit.api.porcelain.BranchCreateOp;
+import org.geogit.api.porcelain.CheckoutOp;
+import org.geogit.api.porcelain.CommitOp;
+import org.geogit.api.porcelain.MergeOp;
+import org.geogit.test.integration.RepositoryTestCase;
+import org.junit.Test;
+
+import com.google.common.base.Function;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterators;
+
+public class CommitPrefetcherTest extends RepositoryTestCase {
+
+    private RevCommit c1, c2, c3, c4, merge;
+
+    @Override
+    protected void setUpInternal() throws Exception {
+        // o - Points 1 added
+        // |\
+        // | o - branch1 - Points 2 added
+        // | |
+        // o | - Points 3 added
+        // | |
+        // o | - Lines 1 added
+        // |/
+        // o - master - HEAD - Merge commit
+        insertAndAdd(points1);
+        c1 = geogit.command(CommitOp.class).call();
+        geogit.command(BranchCreateOp.class).setAutoCheckout(true).setName("branch1").call();
+        insertAndAdd(points2);
+        c2 = geogit.command(CommitOp.class).call();
+        geogit.command(CheckoutOp.class).setSource("master").call();
+        insertAndAdd(points3);
+        c3 = geogit.command(CommitOp.class).call();
+        insertAndAdd(lines1);
+        c4 = geogit.command(CommitOp.class).call();
+
+        Ref branch1 = geogit.command(RefParse.class).setName("branch1").call().get();
+        merge = geogit.command(MergeOp.class)
+                .addCommit(Suppliers.ofInstance(branch1.getObjectId())).call().getMergeCommit();
+        assertEquals(ImmutableList.of(c4.getId(), c2.getId()), merge.getParentIds());
+    }
+
+    private CommitPrefetcher prefetcher(int window, boolean firstParentOnly) {
+        return new CommitPrefetcher(repo.getObjectDatabase(), repo.getGraphDatabase(), window,
+                firstParentOnly);
+    }
+
+    @Test
+    public void testBreadthFirstFrontier() {
+        CommitPrefetcher prefetcher = prefetcher(2, false);
+        assertEquals(merge, prefetcher.get(merge.getId()).get());
+        // both parents of the merge before any grandparent
+        assertEquals(ImmutableSet.of(c4.getId(), c2.getId()), prefetcher.pending());
+
+        assertEquals(c4, prefetcher.get(c4.getId()).get());
+        assertEquals(ImmutableSet.of(c2.getId(), c3.getId()), prefetcher.pending());
+
+        assertEquals(c3, prefetcher.get(c3.getId()).get());
+        // the parent of the merge's second parent comes before the parent of c3
+        assertEquals(ImmutableSet.of(c2.getId(), c1.getId()), prefetcher.pending());
+
+        prefetcher.close();
+        assertTrue(prefetcher.pending().isEmpty());
+    }
+
+    @Test
+    public void testMergePartiallyScheduled() {
+        CommitPrefetcher prefetcher = prefetcher(1, false);
+        prefetcher.get(merge.getId());
+        // the window only fits the first parent of the merge
+        assertEquals(ImmutableSet.of(c4.getId()), prefetcher.pending());
+
+        prefetcher.get(c4.getId());
+        // the merge stayed in the frontier until its second parent was scheduled
+        assertEquals(ImmutableSet.of(c2.getId()), prefetcher.pending());
+        prefetcher.close();
+    }
+
+    @Test
+    public void testFirstParentOnly() {
+        CommitPrefetcher prefetcher = prefetcher(2, true);
+        prefetcher.get(merge.getId());
+        assertEquals(ImmutableSet.of(c4.getId(), c3.getId()), prefetcher.pending());
+        prefetcher.close();
+    }
+
+    @Test
+    public void testCloseWhenLimitReachedWithinMerge() {
+        final CommitPrefetcher prefetcher = prefetcher(2, false);
+        Iterator<ObjectId> walk = ImmutableList.of(merge.getId(), c4.getId(), c3.getId(),
+                c2.getId(), c1.getId()).iterator();
+        Iterator<RevCommit> commits = Iterators.transform(walk,
+                new Function<ObjectId, RevCommit>() {
+                    @Override
+                    public RevCommit apply(ObjectId id) {
+                        return prefetcher.get(id).get();
+                    }
+                });
+        commits = prefetcher.closeWhenDone(Iterators.limit(commits, 2));
+
+        assertEquals(merge, commits.next());
+        assertEquals(c4, commits.next());
+        assertEquals(ImmutableSet.of(c2.getId(), c3.getId()), prefetcher.pending());
+
+        // the limit stops the walk before the merge's second parent is reached
+        assertFalse(commits.hasNext());
+        assertTrue(prefetcher.pending().isEmpty());
+    }
+}
@@ -4,10 +4,16 @@
  */
 package org.geogit.repository;
 
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
 import org.geogit.api.RevFeature;
 import org.geogit.api.RevFeatureBuilder;
+import org.geogit.storage.datastream.EncodedFeature;
+import org.geogit.storage.datastream.FeatureWriter;
 import org.geogit.test.integration.RepositoryTestCase;
 import org.junit.Test;
+import org.opengis.feature.Feature;
 import org.opengis.feature.Property;
 
 import com.google.common.base.Optional;
@@ -57,4 +63,24 @@ public class RevFeatureBuilderTest extends RepositoryTestCase {
         }
 
     }
+
+    @Test
+    public void testHashAndEncodingMatchSeparateComputation() throws Exception {
+        RevFeatureBuilder b = new RevFeatureBuilder();
+        for (Feature f : ImmutableList.of(points1, lines1)) {
+            RevFeature built = b.build(f);
+            RevFeature unencoded = RevFeature.build(built.getValues());
+            assertEquals(unencoded.getId(), built.getId());
+
+            EncodedFeature encoded = EncodedFeature.build(f);
+            assertEquals(unencoded.getId(), encoded.getId());
+            assertEquals(unencoded.getValues(), encoded.getValues());
+
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            new FeatureWriter().write(unencoded, expected);
+            ByteArrayOutputStream actual = new ByteArrayOutputStream();
+            new FeatureWriter().write(encoded, actual);
+            assertTrue(Arrays.equals(expected.toByteArray(), actual.toByteArray()));
+        }
+    }
 }
@@ -0,0 +1,138 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.repository;
+
+import java.util.Set;
+
+import org.geogit.api.GeogitTransaction;
+import org.geogit.api.NodeRef;
+import org.geogit.api.RevTree;
+import org.geogit.api.plumbing.DiffWorkTree;
+import org.geogit.api.plumbing.TransactionBegin;
+import org.geogit.api.plumbing.TransactionEnd;
+import org.geogit.api.plumbing.diff.DiffEntry;
+import org.geogit.api.porcelain.AddOp;
+import org.geogit.test.integration.RepositoryTestCase;
+import org.junit.Test;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableSet;
+
+public class WorkTreeJournalTest extends RepositoryTestCase {
+
+    private WorkTreeJournal journal;
+
+    @Override
+    protected void setUpInternal() throws Exception {
+        // resolve both refs to the empty tree
+        repo.getIndex().getTree();
+        repo.getWorkingTree().getTree();
+        journal = repo.getWorkingTree().journal();
+    }
+
+    private Set<DiffEntry> unstaged() {
+        return ImmutableSet.copyOf(repo.getWorkingTree().getUnstaged(null));
+    }
+
+    private Set<DiffEntry> fullDiff() {
+        return ImmutableSet.copyOf(geogit.command(DiffWorkTree.class).setReportTrees(true).call());
+    }
+
+    @Test
+    public void testRecordsChangedTrees() throws Exception {
+        assertEquals(Optional.of(ImmutableSet.<String> of()), journal.dirtyTrees());
+
+        insert(points1);
+        assertEquals(Optional.of(ImmutableSet.of(pointsName)), journal.dirtyTrees());
+        insert(lines1, lines2);
+        assertEquals(Optional.of(ImmutableSet.of(pointsName, linesName)), journal.dirtyTrees());
+        assertEquals(fullDiff(), unstaged());
+        assertEquals(5, unstaged().size());
+
+        // staging a tree as it is in the work tree makes it clean
+        geogit.command(AddOp.class).addPattern(pointsName).call();
+        assertEquals(Optional.of(ImmutableSet.of(linesName)), journal.dirtyTrees());
+        assertEquals(fullDiff(), unstaged());
+        assertEquals(3, unstaged().size());
+
+        geogit.command(AddOp.class).call();
+        assertEquals(Optional.of(ImmutableSet.<String> of()), journal.dirtyTrees());
+        assertTrue(unstaged().isEmpty());
+
+        delete(points1);
+        assertEquals(Optional.of(ImmutableSet.of(pointsName)), journal.dirtyTrees());
+        assertEquals(fullDiff(), unstaged());
+    }
+
+    @Test
+    public void testPartiallyStagedTreeStaysDirty() throws Exception {
+        insert(points1, points2);
+        geogit.command(AddOp.class).addPattern(NodeRef.appendChild(pointsName, idP1)).call();
+        assertEquals(Optional.of(ImmutableSet.of(pointsName)), journal.dirtyTrees());
+        assertEquals(fullDiff(), unstaged());
+        assertEquals(2, unstaged().size());
+    }
+
+    @Test
+    public void testWrittenBackToFile() throws Exception {
+        insert(points1, lines1);
+        geogit.command(AddOp.class).addPattern(pointsName).call();
+
+        // a new journal reads the state the commands left behind
+        WorkTreeJournal reloaded = new WorkTreeJournal(repo);
+        assertEquals(Optional.of(ImmutableSet.of(linesName)), reloaded.dirtyTrees());
+
+        geogit.command(AddOp.class).call();
+        assertEquals(Optional.of(ImmutableSet.<String> of()),
+                new WorkTreeJournal(repo).dirtyTrees());
+    }
+
+    @Test
+    public void testNestedTrees() throws Exception {
+        final String nestedPoints = "nested/" + pointsName;
+        repo.getWorkingTree().insert(nestedPoints, points1);
+        assertEquals(Optional.of(ImmutableSet.of(nestedPoints)), journal.dirtyTrees());
+        assertEquals(fullDiff(), unstaged());
+
+        geogit.command(AddOp.class).call();
+        assertEquals(Optional.of(ImmutableSet.<String> of()), journal.dirtyTrees());
+        assertEquals(repo.getWorkingTree().getTree().getId(), repo.getIndex().getTree().getId());
+    }
+
+    @Test
+    public void testInvalidatedByUnrecordedUpdates() throws Exception {
+        insert(points1);
+        RevTree recorded = repo.getWorkingTree().getTree();
+        insert(lines1);
+
+        // moving WORK_HEAD behind the journal's back
+        repo.getWorkingTree().updateWorkHead(recorded.getId());
+        assertFalse(journal.dirtyTrees().isPresent());
+        assertEquals(fullDiff(), unstaged());
+
+        // and the journal stays invalid until the work and stage trees match again
+        insert(points2);
+        assertFalse(journal.dirtyTrees().isPresent());
+        geogit.command(AddOp.class).call();
+        assertEquals(Optional.of(ImmutableSet.<String> of()), journal.dirtyTrees());
+    }
+
+    @Test
+    public void testTransactionJournal() throws Exception {
+        GeogitTransaction t = geogit.command(TransactionBegin.class).call();
+        WorkTreeJournal transactionJournal = t.getWorkingTree().journal();
+        insert(t, lines1);
+        assertEquals(Optional.of(ImmutableSet.of(linesName)), transactionJournal.dirtyTrees());
+
+        // the repository's journal and the transaction's one are kept apart
+        assertEquals(Optional.of(ImmutableSet.<String> of()), journal.dirtyTrees());
+        insert(points1);
+        assertEquals(Optional.of(ImmutableSet.of(pointsName)), journal.dirtyTrees());
+        assertEquals(Optional.of(ImmutableSet.of(linesName)), transactionJournal.dirtyTrees());
+
+        geogit.command(TransactionEnd.class).setTransaction(t).setCancel(true).call();
+        assertEquals(Optional.of(ImmutableSet.of(pointsName)), journal.dirtyTrees());
+    }
+}
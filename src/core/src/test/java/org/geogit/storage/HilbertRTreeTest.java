@@ -0,0 +1,90 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.geogit.api.Node;
+import org.geogit.api.ObjectId;
+import org.geogit.api.RevObject;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.vividsolutions.jts.geom.Envelope;
+
+public class HilbertRTreeTest extends Assert {
+
+    private List<Node> nodes;
+
+    @Before
+    public void setUp() {
+        Random random = new Random(1);
+        nodes = Lists.newArrayList();
+        for (int i = 0; i < 5000; i++) {
+            double x = random.nextDouble() * 360 - 180;
+            double y = random.nextDouble() * 180 - 90;
+            nodes.add(Node.create("node." + i, ObjectId.forString("node." + i), ObjectId.NULL,
+                    RevObject.TYPE.FEATURE, new Envelope(x, x + 0.1, y, y + 0.1)));
+        }
+        // nodes with no bounds are not indexed
+        nodes.add(Node.create("nogeom", ObjectId.forString("nogeom"), ObjectId.NULL,
+                RevObject.TYPE.FEATURE));
+    }
+
+    @Test
+    public void testQueryMatchesFullScan() {
+        HilbertRTree index = HilbertRTree.build(nodes);
+        assertEquals(5000, index.size());
+
+        Random random = new Random(2);
+        for (int i = 0; i < 50; i++) {
+            double x = random.nextDouble() * 360 - 180;
+            double y = random.nextDouble() * 180 - 90;
+            Envelope query = new Envelope(x, x + 10, y, y + 10);
+
+            Set<Node> expected = Sets.newHashSet();
+            for (Node node : nodes) {
+                if (node.intersects(query)) {
+                    expected.add(node);
+                }
+            }
+            HilbertRTree.Query result = index.query(query, null);
+            assertEquals(expected, Sets.newHashSet(result));
+            assertTrue(result.nodeMisses() > 0);
+        }
+        assertFalse(index.query(new Envelope(500, 600, 500, 600), null).hasNext());
+    }
+
+    @Test
+    public void testEmpty() {
+        HilbertRTree index = HilbertRTree.build(Lists.<Node> newArrayList());
+        assertEquals(0, index.size());
+        assertFalse(index.query(new Envelope(-180, 180, -90, 90), null).hasNext());
+    }
+
+    @Test
+    public void testSerialization() throws Exception {
+        HilbertRTree index = HilbertRTree.build(nodes);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        index.write(new DataOutputStream(bytes));
+
+        HilbertRTree read = HilbertRTree.read(new DataInputStream(new ByteArrayInputStream(
+                bytes.toByteArray())));
+        assertEquals(index.nodes(), read.nodes());
+        assertEquals(index.getBounds(), read.getBounds());
+        Envelope query = new Envelope(0, 20, 0, 20);
+        assertEquals(Lists.newArrayList(index.query(query, null)),
+                Lists.newArrayList(read.query(query, null)));
+    }
+}
@@ -0,0 +1,185 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.storage.fs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.regex.Pattern;
+
+import org.geogit.api.CommitBuilder;
+import org.geogit.api.ObjectId;
+import org.geogit.api.Platform;
+import org.geogit.api.RevCommit;
+import org.geogit.storage.CommitMetadata;
+import org.geogit.storage.CommitMetadataIndex;
+import org.geotools.util.Range;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.ImmutableSet;
+
+public class FileCommitMetadataIndexTest {
+
+    private static final Range<Long> ALWAYS = new Range<Long>(Long.class, 0L, true,
+            Long.MAX_VALUE, true);
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private Platform platform;
+
+    private CommitMetadataIndex index;
+
+    private RevCommit c1, c2, c3;
+
+    @Before
+    public void setUp() {
+        final File workingDir = tempFolder.newFolder("mockWorkingDir");
+        tempFolder.newFolder("mockWorkingDir/.geogit");
+
+        platform = mock(Platform.class);
+        when(platform.pwd()).thenReturn(workingDir);
+
+        index = new FileCommitMetadataIndex(platform);
+        index.open();
+
+        c1 = commit("alice", "alice", 1000, ObjectId.forString("tree1"));
+        c2 = commit("bob", "alice", 2000, ObjectId.forString("tree2"));
+        c3 = commit(null, "carol", 3000, ObjectId.forString("tree3"));
+    }
+
+    @After
+    public void tearDown() {
+        index.close();
+    }
+
+    private RevCommit commit(String author, String committer, long timestamp, ObjectId treeId) {
+        return new CommitBuilder().setAuthor(author).setCommitter(committer)
+                .setCommitterTimestamp(timestamp).setAuthorTimestamp(timestamp)
+                .setTreeId(treeId).build();
+    }
+
+    @Test
+    public void testPutAndGet() {
+        assertTrue(index.put(c1));
+        assertFalse(index.put(c1));
+        assertTrue(index.put(c2));
+        assertEquals(2, index.size());
+        assertEquals(CommitMetadata.of(c1), index.get(c1.getId()).get());
+        assertFalse(index.get(c3.getId()).isPresent());
+    }
+
+    @Test
+    public void testFind() {
+        index.put(c1);
+        index.put(c2);
+        index.put(c3);
+
+        Range<Long> range = new Range<Long>(Long.class, 1000L, false, 3000L, true);
+        assertEquals(ImmutableSet.of(c2.getId(), c3.getId()), index.find(range, null, null));
+
+        assertEquals(ImmutableSet.of(c1.getId(), c3.getId()),
+                index.find(ALWAYS, Pattern.compile("alice"), null));
+
+        assertEquals(ImmutableSet.of(c1.getId(), c2.getId()),
+                index.find(ALWAYS, null, Pattern.compile("alice")));
+
+        assertEquals(ImmutableSet.of(c2.getId()),
+                index.find(range, Pattern.compile("b.*"), Pattern.compile("alice")));
+    }
+
+    @Test
+    public void testReopen() {
+        index.put(c1);
+        index.put(c2);
+        index.close();
+        assertEquals(0, index.size());
+
+        index.open();
+        assertEquals(2, index.size());
+        assertEquals(CommitMetadata.of(c2), index.get(c2.getId()).get());
+    }
+
+    @Test
+    public void testTruncatedRecordIsDiscarded() throws Exception {
+        index.put(c1);
+        index.put(c2);
+        index.close();
+
+        File logFile = new File(new File(platform.pwd(), ".geogit"), "commitindex");
+        RandomAccessFile raf = new RandomAccessFile(logFile, "rw");
+        try {
+            raf.setLength(raf.length() - 3);
+        } finally {
+            raf.close();
+        }
+
+        index.open();
+        assertEquals(1, index.size());
+        assertTrue(index.put(c2));
+        index.close();
+        index.open();
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    public void testAppendAfterTruncatedRecord() throws Exception {
+        index.put(c1);
+        index.put(c2);
+        index.close();
+
+        File logFile = new File(new File(platform.pwd(), ".geogit"), "commitindex");
+        RandomAccessFile raf = new RandomAccessFile(logFile, "rw");
+        try {
+            raf.setLength(raf.length() - 3);
+        } finally {
+            raf.close();
+        }
+
+        // appended without reading back the log first
+        index.open();
+        assertTrue(index.put(c3));
+        index.close();
+        index.open();
+        assertEquals(ImmutableSet.of(c1.getId(), c3.getId()), index.find(ALWAYS, null, null));
+    }
+
+    @Test
+    public void testDuplicatesAreIgnoredWhenLoading() {
+        index.put(c1);
+        index.close();
+
+        index.open();
+        // not known to be indexed until the log is read back
+        index.put(c1);
+        index.put(c2);
+        assertEquals(2, index.size());
+        index.close();
+        index.open();
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    public void testTruncate() {
+        index.put(c1);
+        index.put(c2);
+        index.truncate();
+        assertEquals(0, index.size());
+        index.put(c3);
+        index.close();
+        index.open();
+        assertEquals(1, index.size());
+        assertTrue(index.get(c3.getId()).isPresent());
+    }
+}
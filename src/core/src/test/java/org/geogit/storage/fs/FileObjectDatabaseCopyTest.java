@@ -0,0 +1,105 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.storage.fs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.util.List;
+
+import org.geogit.api.CommitBuilder;
+import org.geogit.api.ObjectId;
+import org.geogit.api.Platform;
+import org.geogit.api.RevCommit;
+import org.geogit.storage.datastream.DataStreamSerializationFactory;
+import org.geogit.storage.memory.HeapObjectDatabse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.Lists;
+
+public class FileObjectDatabaseCopyTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private FileObjectDatabase source;
+
+    private FileObjectDatabase target;
+
+    @Before
+    public void setUp() {
+        source = open("source");
+        target = open("target");
+    }
+
+    @After
+    public void tearDown() {
+        source.close();
+        target.close();
+    }
+
+    private FileObjectDatabase open(String name) {
+        final File workingDir = tempFolder.newFolder(name);
+        tempFolder.newFolder(name + "/.geogit");
+        final Platform platform = mock(Platform.class);
+        when(platform.pwd()).thenReturn(workingDir);
+        FileObjectDatabase database = new FileObjectDatabase(platform,
+                new DataStreamSerializationFactory());
+        database.open();
+        return database;
+    }
+
+    private List<RevCommit> commits(int count) {
+        List<RevCommit> commits = Lists.newArrayList();
+        for (int i = 0; i < count; i++) {
+            commits.add(new CommitBuilder().setTreeId(ObjectId.forString("tree" + i))
+                    .setAuthor("groldan").setMessage("commit " + i).build());
+        }
+        return commits;
+    }
+
+    @Test
+    public void testCopy() throws Exception {
+        List<RevCommit> commits = commits(50);
+        source.putAll(commits.iterator());
+        assertTrue(target.isEmpty());
+
+        assertTrue(source.copyTo(target));
+
+        assertFalse(target.isEmpty());
+        for (RevCommit commit : commits) {
+            assertEquals(commit, target.getCommit(commit.getId()));
+        }
+        // the source is left untouched
+        assertEquals(commits.get(0), source.getCommit(commits.get(0).getId()));
+    }
+
+    @Test
+    public void testIncompatibleTarget() throws Exception {
+        source.putAll(commits(1).iterator());
+        assertFalse(source.copyTo(new HeapObjectDatabse(new DataStreamSerializationFactory())));
+    }
+
+    @Test
+    public void testNonEmptyTarget() throws Exception {
+        source.putAll(commits(1).iterator());
+        target.putAll(commits(2).iterator());
+        try {
+            source.copyTo(target);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.storage.fs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.List;
+
+import org.geogit.api.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+public class SpillingDeduplicatorTest {
+
+    /**
+     * The smallest budget allowed, so the table spills every few thousand ids
+     */
+    private static final long BUDGET = ObjectId.NUM_BYTES << 13;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private File spillDir;
+
+    private SpillingDeduplicator deduplicator;
+
+    @Before
+    public void setUp() {
+        spillDir = tempFolder.newFolder("spill");
+        deduplicator = new SpillingDeduplicator(spillDir, BUDGET);
+    }
+
+    @After
+    public void tearDown() {
+        deduplicator.release();
+    }
+
+    private static ObjectId id(int i) {
+        return ObjectId.forString("id" + i);
+    }
+
+    @Test
+    public void testVisitInMemory() {
+        assertFalse(deduplicator.visit(id(1)));
+        assertTrue(deduplicator.visit(id(1)));
+        assertTrue(deduplicator.isDuplicate(id(1)));
+        assertFalse(deduplicator.isDuplicate(id(2)));
+        assertEquals(0, deduplicator.runCount());
+    }
+
+    @Test
+    public void testNullId() {
+        assertFalse(deduplicator.isDuplicate(ObjectId.NULL));
+        assertFalse(deduplicator.visit(ObjectId.NULL));
+        assertTrue(deduplicator.isDuplicate(ObjectId.NULL));
+        assertFalse(deduplicator.isDuplicate(id(1)));
+    }
+
+    @Test
+    public void testSpillAndMerge() {
+        final int count = 50 * 1000;
+        for (int i = 0; i < count; i++) {
+            assertFalse(deduplicator.visit(id(i)));
+        }
+        assertTrue(spillDir.list().length > 0);
+        assertTrue(deduplicator.runCount() > 0);
+        assertTrue(deduplicator.runCount() <= SpillingDeduplicator.MAX_RUNS);
+        for (int i = 0; i < count; i++) {
+            assertTrue(deduplicator.isDuplicate(id(i)));
+            assertTrue(deduplicator.visit(id(i)));
+        }
+        for (int i = count; i < count + 1000; i++) {
+            assertFalse(deduplicator.isDuplicate(id(i)));
+        }
+    }
+
+    @Test
+    public void testRemoveDuplicates() {
+        for (int i = 0; i < 10 * 1000; i += 2) {
+            deduplicator.visit(id(i));
+        }
+        List<ObjectId> ids = Lists.newArrayList(id(0), id(1), id(2), id(3), id(9999));
+        deduplicator.removeDuplicates(ids);
+        assertEquals(ImmutableList.of(id(1), id(3), id(9999)), ids);
+    }
+
+    @Test
+    public void testReset() {
+        for (int i = 0; i < 10 * 1000; i++) {
+            deduplicator.visit(id(i));
+        }
+        deduplicator.visit(ObjectId.NULL);
+        deduplicator.reset();
+        assertEquals(0, deduplicator.runCount());
+        assertFalse(deduplicator.isDuplicate(ObjectId.NULL));
+        for (int i = 0; i < 10 * 1000; i++) {
+            assertFalse(deduplicator.isDuplicate(id(i)));
+        }
+    }
+
+    @Test
+    public void testReleaseDeletesRuns() {
+        for (int i = 0; i < 20 * 1000; i++) {
+            deduplicator.visit(id(i));
+        }
+        assertTrue(spillDir.list().length > 0);
+        deduplicator.release();
+        // the runs are unmapped before being deleted, or some platforms would keep them
+        assertEquals(0, spillDir.list().length);
+        // releasing again is harmless
+        deduplicator.release();
+    }
+}
@@ -0,0 +1,238 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.test.integration;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.geogit.api.ObjectId;
+import org.geogit.api.RevCommit;
+import org.geogit.api.RevObject;
+import org.geogit.remote.BinaryPackedObjects;
+import org.geogit.remote.BinaryPackedObjects.Format;
+import org.geogit.remote.BinaryPackedObjects.ProgressCallback;
+import org.geogit.repository.PostOrderIterator;
+import org.geogit.storage.ObjectDatabase;
+import org.geogit.storage.datastream.DataStreamSerializationFactory;
+import org.geogit.storage.memory.HeapDeduplicator;
+import org.geogit.storage.memory.HeapObjectDatabse;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+public class BinaryPackedObjectsTest extends RepositoryTestCase {
+
+    private RevCommit tip;
+
+    private Set<ObjectId> expected;
+
+    @Override
+    protected void setUpInternal() throws Exception {
+        List<RevCommit> commits = populate(true, points1, lines1, points2, lines2, points3);
+        tip = commits.get(commits.size() - 1);
+        Iterator<RevObject> contents = PostOrderIterator.range(ImmutableList.of(tip.getId()),
+                ImmutableList.<ObjectId> of(), repo.getObjectDatabase(), false,
+                new HeapDeduplicator());
+        expected = Sets.newHashSet();
+        while (contents.hasNext()) {
+            expected.add(contents.next().getId());
+        }
+    }
+
+    private byte[] write(Format format) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new BinaryPackedObjects(repo.getObjectDatabase()).write(out,
+                ImmutableList.of(tip.getId()), ImmutableList.<ObjectId> of(), false,
+                new HeapDeduplicator(), format);
+        return out.toByteArray();
+    }
+
+    private Set<ObjectId> ingest(byte[] stream, Format format, ObjectDatabase target) {
+        final Set<ObjectId> ingested = Sets.newHashSet();
+        BinaryPackedObjects.Callback<Void> callback = new BinaryPackedObjects.Callback<Void>() {
+            @Override
+            public Void callback(RevObject object, Void state) {
+                ingested.add(object.getId());
+                return null;
+            }
+        };
+        new BinaryPackedObjects(target).ingest(new ByteArrayInputStream(stream), callback,
+                format);
+        return ingested;
+    }
+
+    private ObjectDatabase newDatabase() {
+        ObjectDatabase db = new HeapObjectDatabse(new DataStreamSerializationFactory());
+        db.open();
+        return db;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        for (Format format : Format.values()) {
+            ObjectDatabase target = newDatabase();
+            assertEquals(format.toString(), expected, ingest(write(format), format, target));
+            for (ObjectId id : expected) {
+                assertEquals(repo.getObjectDatabase().get(id), target.get(id));
+            }
+        }
+    }
+
+    @Test
+    public void testFramedSkipsExistingObjects() throws Exception {
+        ObjectDatabase target = newDatabase();
+        target.put(repo.getObjectDatabase().get(tip.getId()));
+        target.put(repo.getObjectDatabase().get(tip.getTreeId()));
+
+        Set<ObjectId> ingested = ingest(write(Format.FRAMED_COMPRESSED), Format.FRAMED, target);
+        assertEquals(expected.size() - 2, ingested.size());
+        assertFalse(ingested.contains(tip.getId()));
+        assertFalse(ingested.contains(tip.getTreeId()));
+        for (ObjectId id : expected) {
+            assertTrue(target.exists(id));
+        }
+    }
+
+    @Test
+    public void testCallbackPrecedesStorage() throws Exception {
+        final ObjectDatabase target = newDatabase();
+        final Set<ObjectId> ingested = Sets.newHashSet();
+        BinaryPackedObjects.Callback<Void> callback = new BinaryPackedObjects.Callback<Void>() {
+            @Override
+            public Void callback(RevObject object, Void state) {
+                assertFalse(target.exists(object.getId()));
+                ingested.add(object.getId());
+                return null;
+            }
+        };
+        for (Format format : Format.values()) {
+            new BinaryPackedObjects(target).ingest(new ByteArrayInputStream(write(format)),
+                    callback, format);
+        }
+        // only the first ingestion stored anything
+        assertEquals(expected, ingested);
+        assertEquals(expected, target.existing(expected));
+    }
+
+    @Test
+    public void testFramedDetectsTruncatedStream() throws Exception {
+        byte[] stream = write(Format.FRAMED);
+        byte[] truncated = Arrays.copyOf(stream, stream.length - 1);
+        try {
+            ingest(truncated, Format.FRAMED, newDatabase());
+            fail("expected exception on truncated stream");
+        } catch (RuntimeException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testFramedRejectsLegacyStream() throws Exception {
+        try {
+            ingest(write(Format.LEGACY), Format.FRAMED, newDatabase());
+            fail("expected exception on legacy stream");
+        } catch (RuntimeException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testBatchLimits() throws Exception {
+        for (Format format : Format.values()) {
+            ObjectDatabase target = newDatabase();
+            List<ObjectId> want = Lists.newArrayList(tip.getId());
+            Set<ObjectId> have = Sets.newHashSet();
+            final List<RevCommit> received = Lists.newArrayList();
+            BinaryPackedObjects.Callback<Void> callback = new BinaryPackedObjects.Callback<Void>() {
+                @Override
+                public Void callback(RevObject object, Void state) {
+                    if (object instanceof RevCommit) {
+                        received.add((RevCommit) object);
+                    }
+                    return null;
+                }
+            };
+            int batches = 0;
+            while (!target.exists(tip.getId())) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                BinaryPackedObjects packer = new BinaryPackedObjects(repo.getObjectDatabase());
+                packer.setBatchLimits(1, 1);
+                packer.write(out, want, ImmutableList.copyOf(have), false, new HeapDeduplicator(),
+                        format);
+                int before = received.size();
+                new BinaryPackedObjects(target).ingest(new ByteArrayInputStream(out.toByteArray()),
+                        callback, format);
+                // one commit per batch
+                assertEquals(format.toString(), before + 1, received.size());
+                have.removeAll(received.get(before).getParentIds());
+                have.add(received.get(before).getId());
+                batches++;
+            }
+            assertEquals(5, batches);
+            assertEquals(expected, target.existing(expected));
+        }
+    }
+
+    @Test
+    public void testProgressRecords() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryPackedObjects packer = new BinaryPackedObjects(repo.getObjectDatabase());
+        packer.setReportProgress(true);
+        packer.write(out, ImmutableList.of(tip.getId()), ImmutableList.<ObjectId> of(), false,
+                new HeapDeduplicator(), Format.FRAMED_COMPRESSED);
+
+        final List<long[]> progress = Lists.newArrayList();
+        ProgressCallback progressCallback = new ProgressCallback() {
+            @Override
+            public void progress(int commits, long objects, long bytes) {
+                progress.add(new long[] { commits, objects, bytes });
+            }
+        };
+        ObjectDatabase target = newDatabase();
+        new BinaryPackedObjects(target).ingest(new ByteArrayInputStream(out.toByteArray()),
+                new BinaryPackedObjects.Callback<Void>() {
+                    @Override
+                    public Void callback(RevObject object, Void state) {
+                        return null;
+                    }
+                }, Format.FRAMED, progressCallback);
+
+        assertEquals(expected, target.existing(expected));
+        assertEquals(5, progress.size());
+        long[] last = progress.get(progress.size() - 1);
+        assertEquals(5, last[0]);
+        assertEquals(expected.size(), last[1]);
+        for (int i = 1; i < progress.size(); i++) {
+            assertEquals(i + 1, progress.get(i)[0]);
+            assertTrue(progress.get(i)[1] > progress.get(i - 1)[1]);
+            assertTrue(progress.get(i)[2] > progress.get(i - 1)[2]);
+        }
+    }
+
+    @Test
+    public void testProgressRecordsAreOptIn() throws Exception {
+        final List<Integer> progress = Lists.newArrayList();
+        new BinaryPackedObjects(newDatabase()).ingest(
+                new ByteArrayInputStream(write(Format.FRAMED)),
+                new BinaryPackedObjects.Callback<Void>() {
+                    @Override
+                    public Void callback(RevObject object, Void state) {
+                        return null;
+                    }
+                }, Format.FRAMED, new ProgressCallback() {
+                    @Override
+                    public void progress(int commits, long objects, long bytes) {
+                        progress.add(commits);
+                    }
+                });
+        assertTrue(progress.isEmpty());
+    }
+}
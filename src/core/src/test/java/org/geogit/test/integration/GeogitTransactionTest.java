@@ -4,15 +4,22 @@
  */
 package org.geogit.test.integration;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 
 import org.geogit.api.GeogitTransaction;
+import org.geogit.api.NodeRef;
+import org.geogit.api.ObjectId;
+import org.geogit.api.Ref;
 import org.geogit.api.RevCommit;
+import org.geogit.api.RevFeatureBuilder;
+import org.geogit.api.plumbing.RevParse;
 import org.geogit.api.plumbing.TransactionBegin;
 import org.geogit.api.plumbing.TransactionEnd;
+import org.geogit.api.plumbing.UpdateRef;
 import org.geogit.api.porcelain.BranchCreateOp;
 import org.geogit.api.porcelain.CheckoutOp;
 import org.geogit.api.porcelain.CommitOp;
@@ -21,6 +28,8 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import com.google.common.base.Optional;
+
 public class GeogitTransactionTest extends RepositoryTestCase {
     @Rule
     public ExpectedException exception = ExpectedException.none();
@@ -400,6 +409,167 @@ public class GeogitTransactionTest extends RepositoryTestCase {
 
     }
 
+    @Test
+    public void testTransactionStagedObjects() throws Exception {
+        insertAndAdd(points1);
+        geogit.command(CommitOp.class).call();
+        final ObjectId featureId = new RevFeatureBuilder().build(points2).getId();
+
+        GeogitTransaction t = geogit.command(TransactionBegin.class).call();
+        insertAndAdd(t, points2);
+
+        // the staged objects are only visible to the transaction until it's committed
+        assertTrue(t.getIndex().getDatabase().exists(featureId));
+        assertFalse(repo.getIndex().getDatabase().exists(featureId));
+        // and kept with the transaction
+        final File objects = new File(t.getDirectory(), ".objects");
+        assertTrue(objects.exists());
+
+        t.command(CommitOp.class).call();
+        geogit.command(TransactionEnd.class).setTransaction(t).setRebase(true).call();
+
+        assertTrue(repo.getIndex().getDatabase().exists(featureId));
+        assertFalse(objects.exists());
+    }
+
+    @Test
+    public void testCancelTransactionDiscardsObjects() throws Exception {
+        insertAndAdd(points1);
+        geogit.command(CommitOp.class).call();
+        final ObjectId featureId = new RevFeatureBuilder().build(points2).getId();
+
+        GeogitTransaction t = geogit.command(TransactionBegin.class).call();
+        insertAndAdd(t, points2);
+        assertTrue(t.getIndex().getDatabase().exists(featureId));
+        final File objects = new File(t.getDirectory(), ".objects");
+        assertTrue(objects.exists());
+
+        geogit.command(TransactionEnd.class).setCancel(true).setTransaction(t).call();
+
+        assertFalse(t.getIndex().getDatabase().exists(featureId));
+        assertFalse(repo.getIndex().getDatabase().exists(featureId));
+        assertFalse(objects.exists());
+    }
+
+    @Test
+    public void testCommandsUseTransactionStagingDatabase() throws Exception {
+        insertAndAdd(points1);
+        geogit.command(CommitOp.class).call();
+        final ObjectId featureId = new RevFeatureBuilder().build(points2).getId();
+
+        GeogitTransaction t = geogit.command(TransactionBegin.class).call();
+        insertAndAdd(t, points2);
+
+        // RevParse looks partial ids up in the staging database it's injected with
+        final String partialId = featureId.toString().substring(0, 10);
+        assertEquals(Optional.of(featureId), t.command(RevParse.class).setRefSpec(partialId)
+                .call());
+        assertFalse(geogit.command(RevParse.class).setRefSpec(partialId).call().isPresent());
+    }
+
+    @Test
+    public void testOnlyReachableObjectsAreMerged() throws Exception {
+        insertAndAdd(points1);
+        geogit.command(CommitOp.class).call();
+        final ObjectId committedId = new RevFeatureBuilder().build(points2).getId();
+        final ObjectId unstagedId = new RevFeatureBuilder().build(points3).getId();
+
+        GeogitTransaction t = geogit.command(TransactionBegin.class).call();
+        insertAndAdd(t, points2);
+        t.command(CommitOp.class).call();
+        insert(t, points3);
+        assertTrue(t.getIndex().getDatabase().exists(unstagedId));
+
+        geogit.command(TransactionEnd.class).setTransaction(t).setRebase(true).call();
+
+        assertTrue(repo.getIndex().getDatabase().exists(committedId));
+        // the transaction's refs don't reach its working tree
+        assertFalse(repo.getIndex().getDatabase().exists(unstagedId));
+    }
+
+    @Test
+    public void testUnchangedRefsAreLeftUntouched() throws Exception {
+        insertAndAdd(points1);
+        RevCommit mainCommit = geogit.command(CommitOp.class).call();
+
+        GeogitTransaction t = geogit.command(TransactionBegin.class).call();
+        t.command(BranchCreateOp.class).setAutoCheckout(true).setName("branch1").call();
+        insertAndAdd(t, points2);
+        RevCommit branchCommit = t.command(CommitOp.class).call();
+
+        // unstaged changes on the repository's current branch
+        insert(points3);
+        final ObjectId workHead = repo.getWorkingTree().getTree().getId();
+
+        geogit.command(TransactionEnd.class).setTransaction(t).setRebase(true).call();
+
+        assertEquals(branchCommit.getId(), geogit.command(RevParse.class).setRefSpec("branch1")
+                .call().get());
+        assertEquals(mainCommit.getId(), geogit.command(RevParse.class).setRefSpec(Ref.HEAD)
+                .call().get());
+        assertEquals(workHead, repo.getWorkingTree().getTree().getId());
+    }
+
+    @Test
+    public void testRebaseLeavesWorkingTreesAlone() throws Exception {
+        insertAndAdd(points1);
+        geogit.command(CommitOp.class).call();
+        geogit.command(BranchCreateOp.class).setName("branch1").call();
+
+        GeogitTransaction t = geogit.command(TransactionBegin.class).call();
+        t.command(CheckoutOp.class).setSource("branch1").call();
+        insertAndAdd(t, points2);
+        RevCommit transactionCommit = t.command(CommitOp.class).call();
+
+        // move the same branch in the repository
+        geogit.command(CheckoutOp.class).setSource("branch1").call();
+        insertAndAdd(points3);
+        RevCommit repoCommit = geogit.command(CommitOp.class).call();
+        geogit.command(CheckoutOp.class).setSource(Ref.MASTER).call();
+        // unstaged changes on the repository's current branch
+        insert(lines1);
+        final ObjectId workHead = repo.getWorkingTree().getTree().getId();
+
+        geogit.command(TransactionEnd.class).setTransaction(t).setRebase(true).call();
+
+        // the transaction commit was replayed on top of the repository's one
+        RevCommit rebased = repo.getCommit(geogit.command(RevParse.class)
+                .setRefSpec("branch1").call().get());
+        assertEquals(repoCommit.getId(), rebased.getParentIds().get(0));
+        assertEquals(transactionCommit.getMessage(), rebased.getMessage());
+        assertTrue(geogit.command(RevParse.class)
+                .setRefSpec("branch1:" + NodeRef.appendChild(pointsName, idP2)).call()
+                .isPresent());
+        assertTrue(geogit.command(RevParse.class)
+                .setRefSpec("branch1:" + NodeRef.appendChild(pointsName, idP3)).call()
+                .isPresent());
+        // without going through any working tree
+        assertEquals(workHead, repo.getWorkingTree().getTree().getId());
+    }
+
+    @Test
+    public void testFastForwardTransaction() throws Exception {
+        insertAndAdd(points1);
+        geogit.command(CommitOp.class).call();
+
+        GeogitTransaction t = geogit.command(TransactionBegin.class).call();
+
+        // move the repository branch, and bring the transaction up to date with it
+        insertAndAdd(points2);
+        RevCommit repoCommit = geogit.command(CommitOp.class).call();
+        t.command(UpdateRef.class).setName(Ref.MASTER).setNewValue(repoCommit.getId()).call();
+        t.command(CheckoutOp.class).setSource(Ref.MASTER).setForce(true).call();
+        insertAndAdd(t, points3);
+        RevCommit transactionCommit = t.command(CommitOp.class).call();
+
+        geogit.command(TransactionEnd.class).setTransaction(t).setRebase(true).call();
+
+        // the transaction commit was not replayed
+        Iterator<RevCommit> logs = geogit.command(LogOp.class).call();
+        assertEquals(transactionCommit, logs.next());
+        assertEquals(repoCommit, logs.next());
+    }
+
     @Test
     public void testEndNoTransaction() throws Exception {
         exception.expect(IllegalArgumentException.class);
@@ -16,6 +16,8 @@ import org.geogit.api.NodeRef;
 import org.geogit.api.ObjectId;
 import org.geogit.api.Ref;
 import org.geogit.api.RevCommit;
+import org.geogit.api.plumbing.IndexSpatialChangesOp;
+import org.geogit.api.plumbing.RebuildCommitIndexOp;
 import org.geogit.api.plumbing.RefParse;
 import org.geogit.api.porcelain.BranchCreateOp;
 import org.geogit.api.porcelain.CheckoutOp;
@@ -23,6 +25,9 @@ import org.geogit.api.porcelain.CommitOp;
 import org.geogit.api.porcelain.LogOp;
 import org.geogit.api.porcelain.MergeOp;
 import org.geogit.api.porcelain.MergeOp.MergeReport;
+import org.geogit.storage.CommitMetadataIndex;
+import org.geogit.storage.SpatialChangeIndex;
+import org.geogit.storage.SpatialChangeSummary;
 import org.geotools.util.Range;
 import org.junit.Rule;
 import org.junit.Test;
@@ -32,6 +37,7 @@ import org.opengis.feature.Feature;
 import com.google.common.base.Suppliers;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
+import com.vividsolutions.jts.geom.Envelope;
 
 public class LogOpTest extends RepositoryTestCase {
 
@@ -109,6 +115,33 @@ public class LogOpTest extends RepositoryTestCase {
         assertEquals(expected, logged);
     }
 
+    @Test
+    public void testPrefetchWindow() throws Exception {
+
+        List<Feature> features = Arrays.asList(points1, lines1, points2, lines2, points3, lines3);
+        LinkedList<RevCommit> expected = new LinkedList<RevCommit>();
+
+        for (Feature f : features) {
+            insertAndAdd(f);
+            final RevCommit commit = geogit.command(CommitOp.class).call();
+            expected.addFirst(commit);
+        }
+
+        for (int window : new int[] { 0, 1, 2, 100 }) {
+            List<RevCommit> logged = Lists.newArrayList(geogit.command(LogOp.class)
+                    .setPrefetchWindow(window).call());
+            assertEquals(expected, logged);
+
+            logged = Lists.newArrayList(geogit.command(LogOp.class).setPrefetchWindow(window)
+                    .setFirstParentOnly(true).call());
+            assertEquals(expected, logged);
+
+            logged = Lists.newArrayList(geogit.command(LogOp.class).setPrefetchWindow(window)
+                    .setTopoOrder(true).call());
+            assertEquals(expected, logged);
+        }
+    }
+
     @Test
     public void testPathFilterSingleFeature() throws Exception {
 
@@ -419,6 +452,50 @@ public class LogOpTest extends RepositoryTestCase {
 
     }
 
+    @Test
+    public void testLimitWithinMerge() throws Exception {
+        insertAndAdd(points1);
+        final RevCommit c1 = geogit.command(CommitOp.class).call();
+        geogit.command(BranchCreateOp.class).setAutoCheckout(true).setName("branch1").call();
+        insertAndAdd(points2);
+        final RevCommit c2 = geogit.command(CommitOp.class).call();
+        geogit.command(CheckoutOp.class).setSource("master").call();
+        insertAndAdd(points3);
+        final RevCommit c3 = geogit.command(CommitOp.class).call();
+        insertAndAdd(lines1);
+        final RevCommit c4 = geogit.command(CommitOp.class).call();
+        Ref branch1 = geogit.command(RefParse.class).setName("branch1").call().get();
+        final RevCommit mergeCommit = geogit.command(MergeOp.class)
+                .addCommit(Suppliers.ofInstance(branch1.getObjectId())).call().getMergeCommit();
+
+        // stopping before, at and after the merge's second parent, with windows that fit none,
+        // some and all of the commits being prefetched
+        for (int window : new int[] { 0, 1, 2, 100 }) {
+            List<RevCommit> logged = Lists.newArrayList(geogit.command(LogOp.class)
+                    .setPrefetchWindow(window).setLimit(3).call());
+            assertEquals(Arrays.asList(mergeCommit, c4, c3), logged);
+
+            logged = Lists.newArrayList(geogit.command(LogOp.class).setPrefetchWindow(window)
+                    .setLimit(4).call());
+            assertEquals(Arrays.asList(mergeCommit, c4, c3, c2), logged);
+
+            logged = Lists.newArrayList(geogit.command(LogOp.class).setPrefetchWindow(window)
+                    .setTopoOrder(true).setLimit(4).call());
+            assertEquals(Arrays.asList(mergeCommit, c4, c3, c1), logged);
+
+            logged = Lists.newArrayList(geogit.command(LogOp.class).setPrefetchWindow(window)
+                    .setFirstParentOnly(true).setLimit(2).call());
+            assertEquals(Arrays.asList(mergeCommit, c4), logged);
+
+            Iterator<RevCommit> iterator = geogit.command(LogOp.class).setPrefetchWindow(window)
+                    .setLimit(2).call();
+            assertEquals(mergeCommit, iterator.next());
+            assertEquals(c4, iterator.next());
+            assertFalse(iterator.hasNext());
+            assertFalse(iterator.hasNext());
+        }
+    }
+
     @Test
     public void testAll() throws Exception {
         // Create the following revision graph
@@ -516,6 +593,143 @@ public class LogOpTest extends RepositoryTestCase {
         assertFalse(iterator.hasNext());
     }
 
+    @Test
+    public void testIndexedFiltersAfterRebuild() throws Exception {
+        insertAndAdd(points1);
+        final RevCommit firstCommit = geogit.command(CommitOp.class)
+                .setAuthor("firstauthor", "firstauthor@opengeo.org").setCommitterTimestamp(1000)
+                .call();
+
+        insertAndAdd(lines1);
+        final RevCommit secondCommit = geogit.command(CommitOp.class)
+                .setAuthor("secondauthor", "secondauthor@opengeo.org")
+                .setCommitterTimestamp(2000).call();
+
+        insertAndAdd(points2);
+        final RevCommit thirdCommit = geogit.command(CommitOp.class)
+                .setAuthor("firstauthor", "firstauthor@opengeo.org").setCommitterTimestamp(3000)
+                .call();
+
+        CommitMetadataIndex index = geogit.getRepository().getCommitMetadataIndex();
+        assertEquals(3, index.size());
+
+        List<RevCommit> logged = toList(geogit.command(LogOp.class).setAuthor("firstauthor")
+                .call());
+        assertEquals(Arrays.asList(thirdCommit, firstCommit), logged);
+        assertEquals(3, index.size());
+
+        index.truncate();
+        assertEquals(Long.valueOf(3), geogit.command(RebuildCommitIndexOp.class).call());
+
+        Range<Date> commitRange = new Range<Date>(Date.class, new Date(1500), true, new Date(
+                5000), true);
+        logged = toList(geogit.command(LogOp.class).setAuthor("firstauthor")
+                .setTimeRange(commitRange).call());
+        assertEquals(Arrays.asList(thirdCommit), logged);
+
+        logged = toList(geogit.command(LogOp.class).setTimeRange(commitRange)
+                .setSince(secondCommit.getId()).call());
+        assertEquals(Arrays.asList(thirdCommit), logged);
+    }
+
+    @Test
+    public void testIndexedFilterSkipsOtherBranches() throws Exception {
+        insertAndAdd(points1);
+        final RevCommit firstCommit = geogit.command(CommitOp.class)
+                .setAuthor("firstauthor", "firstauthor@opengeo.org").setCommitterTimestamp(1000)
+                .call();
+
+        // a matching commit only reachable from another branch
+        geogit.command(BranchCreateOp.class).setAutoCheckout(true).setName("branch1").call();
+        insertAndAdd(lines1);
+        geogit.command(CommitOp.class).setAuthor("firstauthor", "firstauthor@opengeo.org")
+                .setCommitterTimestamp(500).call();
+        geogit.command(CheckoutOp.class).setSource("master").call();
+
+        insertAndAdd(points2);
+        final RevCommit secondCommit = geogit.command(CommitOp.class)
+                .setAuthor("firstauthor", "firstauthor@opengeo.org").setCommitterTimestamp(2000)
+                .call();
+
+        List<RevCommit> logged = toList(geogit.command(LogOp.class).setAuthor("firstauthor")
+                .call());
+        assertEquals(Arrays.asList(secondCommit, firstCommit), logged);
+    }
+
+    @Test
+    public void testIndexedFilterToleratesClockSkew() throws Exception {
+        insertAndAdd(points1);
+        final RevCommit firstCommit = geogit.command(CommitOp.class)
+                .setAuthor("firstauthor", "firstauthor@opengeo.org")
+                .setCommitterTimestamp(10000).call();
+
+        // committed with a clock running behind
+        insertAndAdd(lines1);
+        geogit.command(CommitOp.class).setAuthor("secondauthor", "secondauthor@opengeo.org")
+                .setCommitterTimestamp(1000).call();
+
+        insertAndAdd(points2);
+        final RevCommit thirdCommit = geogit.command(CommitOp.class)
+                .setAuthor("firstauthor", "firstauthor@opengeo.org")
+                .setCommitterTimestamp(20000).call();
+
+        List<RevCommit> logged = toList(geogit.command(LogOp.class).setAuthor("firstauthor")
+                .call());
+        assertEquals(Arrays.asList(thirdCommit, firstCommit), logged);
+    }
+
+    @Test
+    public void testBoundsFilter() throws Exception {
+        insertAndAdd(points1);
+        final RevCommit firstCommit = geogit.command(CommitOp.class).call();
+
+        insertAndAdd(lines3);
+        final RevCommit secondCommit = geogit.command(CommitOp.class).call();
+
+        insertAndAdd(points1_modified);
+        final RevCommit thirdCommit = geogit.command(CommitOp.class).call();
+
+        // summaries are computed the first time they're needed, not when committing
+        SpatialChangeIndex index = geogit.getRepository().getSpatialChangeIndex();
+        assertEquals(0, index.size());
+
+        List<RevCommit> logged = toList(geogit.command(LogOp.class)
+                .setBounds(new Envelope(0.5, 1.5, 0.5, 1.5)).call());
+        assertEquals(Arrays.asList(thirdCommit, firstCommit), logged);
+
+        logged = toList(geogit.command(LogOp.class).setBounds(new Envelope(4, 10, 4, 10))
+                .call());
+        assertEquals(Arrays.asList(secondCommit), logged);
+
+        logged = toList(geogit.command(LogOp.class).setBounds(new Envelope(0, 2, 0, 2))
+                .addPath(linesName).call());
+        assertTrue(logged.isEmpty());
+
+        // missing summaries are computed and indexed on demand
+        index.truncate();
+        logged = toList(geogit.command(LogOp.class).setBounds(new Envelope(4, 10, 4, 10))
+                .call());
+        assertEquals(Arrays.asList(secondCommit), logged);
+        assertEquals(3, index.size());
+    }
+
+    @Test
+    public void testBoundsFilterUsesChangeGrid() throws Exception {
+        insertAndAdd(points1, points3);
+        final RevCommit commit = geogit.command(CommitOp.class).call();
+
+        SpatialChangeSummary summary = geogit.command(IndexSpatialChangesOp.class)
+                .setCommit(commit).call();
+        assertEquals(new Envelope(1, 3, 1, 3), summary.getBounds().get(pointsName));
+
+        // inside the aggregated envelope, but away from both changes
+        assertFalse(geogit.command(LogOp.class).setBounds(new Envelope(1.9, 2.1, 1.9, 2.1))
+                .call().hasNext());
+        assertEquals(Arrays.asList(commit),
+                toList(geogit.command(LogOp.class).setBounds(new Envelope(2.9, 3.1, 2.9, 3.1))
+                        .call()));
+    }
+
     @Test
     public void testCommitterFilter() throws Exception {
         insertAndAdd(points1);
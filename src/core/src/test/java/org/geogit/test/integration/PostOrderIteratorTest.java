@@ -0,0 +1,96 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.test.integration;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.geogit.api.Node;
+import org.geogit.api.ObjectId;
+import org.geogit.api.RevCommit;
+import org.geogit.api.RevObject;
+import org.geogit.api.RevTree;
+import org.geogit.repository.PostOrderIterator;
+import org.geogit.storage.memory.HeapDeduplicator;
+import org.junit.Test;
+import org.opengis.feature.Feature;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+public class PostOrderIteratorTest extends RepositoryTestCase {
+
+    private RevCommit tip;
+
+    @Override
+    protected void setUpInternal() throws Exception {
+        // enough features in a single tree for its children to be loaded concurrently
+        List<Feature> features = Lists.newArrayList();
+        for (int i = 0; i < 100; i++) {
+            features.add(feature(pointsType, "Points." + i, "StringProp1_" + i,
+                    Integer.valueOf(i), "POINT(" + i + " " + i + ")"));
+        }
+        populate(false, features);
+        List<RevCommit> commits = populate(true, lines1, lines2);
+        tip = commits.get(commits.size() - 1);
+    }
+
+    private List<RevObject> contentsOf(boolean parallel) {
+        Iterator<RevObject> contents = PostOrderIterator.contentsOf(
+                ImmutableList.of(tip.getId()), repo.getObjectDatabase(), new HeapDeduplicator(),
+                parallel);
+        return Lists.newArrayList(contents);
+    }
+
+    @Test
+    public void testParallelContentsMatchSequential() {
+        List<RevObject> sequential = contentsOf(false);
+        List<RevObject> parallel = contentsOf(true);
+        assertTrue(sequential.size() > 100);
+        assertEquals(sequential, parallel);
+    }
+
+    @Test
+    public void testSuccessorsVisitedFirst() {
+        Set<ObjectId> visited = Sets.newHashSet();
+        for (RevObject object : contentsOf(true)) {
+            assertTrue(visited.add(object.getId()));
+            if (object instanceof RevTree) {
+                RevTree tree = (RevTree) object;
+                if (tree.features().isPresent()) {
+                    for (Node node : tree.features().get()) {
+                        assertTrue(visited.contains(node.getObjectId()));
+                    }
+                }
+                if (tree.trees().isPresent()) {
+                    for (Node node : tree.trees().get()) {
+                        assertTrue(visited.contains(node.getObjectId()));
+                    }
+                }
+            }
+        }
+        assertTrue(visited.contains(tip.getTreeId()));
+    }
+
+    @Test
+    public void testAllVisitsHistory() {
+        Set<ObjectId> visited = Sets.newHashSet();
+        Iterator<RevObject> all = PostOrderIterator.all(tip.getId(), repo.getObjectDatabase(),
+                new HeapDeduplicator());
+        RevObject object = null;
+        while (all.hasNext()) {
+            object = all.next();
+            assertTrue(visited.add(object.getId()));
+            if (object instanceof RevCommit) {
+                for (ObjectId parentId : ((RevCommit) object).getParentIds()) {
+                    assertTrue(visited.contains(parentId));
+                }
+            }
+        }
+        assertEquals(tip, object);
+    }
+}
@@ -161,6 +161,84 @@ public class RebaseOpTest extends RepositoryTestCase {
 
     }
 
+    @Test
+    public void testRebaseUpdatesWorkTreeAndIndexOnce() throws Exception {
+        insertAndAdd(points1);
+        geogit.command(CommitOp.class).setMessage("commit for " + idP1).call();
+
+        geogit.command(BranchCreateOp.class).setAutoCheckout(true).setName("branch1").call();
+        insertAndAdd(points2);
+        final RevCommit c2 = geogit.command(CommitOp.class).setMessage("commit for " + idP2).call();
+
+        geogit.command(CheckoutOp.class).setSource("master").call();
+        geogit.command(BranchCreateOp.class).setAutoCheckout(true).setName("branch2").call();
+        insertAndAdd(points3);
+        geogit.command(CommitOp.class).setMessage("commit for " + idP3).call();
+        // modify a feature added by a commit that is replayed too
+        Feature points3Modified = feature(pointsType, idP3, "StringProp1_3a", new Integer(3001),
+                "POINT(3 3)");
+        insertAndAdd(points3Modified);
+        geogit.command(CommitOp.class).setMessage("modified " + idP3).call();
+
+        geogit.command(RebaseOp.class).setUpstream(Suppliers.ofInstance(c2.getId())).call();
+
+        Iterator<RevCommit> log = geogit.command(LogOp.class).call();
+        RevCommit head = log.next();
+        assertEquals("modified " + idP3, head.getMessage());
+        assertEquals("commit for " + idP3, log.next().getMessage());
+        assertEquals(c2.getId(), log.next().getId());
+
+        assertEquals(head.getTreeId(), repo.getIndex().getTree().getId());
+        assertEquals(head.getTreeId(), repo.getWorkingTree().getTree().getId());
+
+        Optional<RevFeature> feature = geogit.command(RevObjectParse.class)
+                .setRefSpec(Ref.HEAD + ":" + NodeRef.appendChild(pointsName, idP3))
+                .call(RevFeature.class);
+        assertEquals(new RevFeatureBuilder().build(points3Modified), feature.get());
+        assertTrue(geogit.command(RevObjectParse.class)
+                .setRefSpec(Ref.HEAD + ":" + NodeRef.appendChild(pointsName, idP2)).call()
+                .isPresent());
+    }
+
+    @Test
+    public void testRebaseFailureLeavesBranchAndWorkTree() throws Exception {
+        insertAndAdd(points1);
+        geogit.command(CommitOp.class).setMessage("commit for " + idP1).call();
+
+        geogit.command(BranchCreateOp.class).setAutoCheckout(true).setName("branch1").call();
+        insertAndAdd(points2);
+        final RevCommit c2 = geogit.command(CommitOp.class).setMessage("commit for " + idP2).call();
+
+        geogit.command(CheckoutOp.class).setSource("master").call();
+        geogit.command(BranchCreateOp.class).setAutoCheckout(true).setName("branch2").call();
+        insertAndAdd(points3);
+        geogit.command(CommitOp.class).setMessage("commit for " + idP3).call();
+        insertAndAdd(lines1);
+        final RevCommit c4 = geogit.command(CommitOp.class).setMessage("commit for " + idL1)
+                .call();
+        // unstaged changes
+        insert(lines2);
+        final Ref workHead = geogit.command(RefParse.class).setName(Ref.WORK_HEAD).call().get();
+        final Ref stageHead = geogit.command(RefParse.class).setName(Ref.STAGE_HEAD).call()
+                .get();
+
+        // the second commit to replay can't be applied
+        repo.getObjectDatabase().delete(c4.getTreeId());
+        try {
+            geogit.command(RebaseOp.class).setUpstream(Suppliers.ofInstance(c2.getId())).call();
+            fail("Expected the rebase to fail");
+        } catch (RuntimeException e) {
+            // expected
+        }
+
+        Optional<Ref> branch2 = geogit.command(RefParse.class).setName("branch2").call();
+        assertEquals(c4.getId(), branch2.get().getObjectId());
+        assertEquals(workHead,
+                geogit.command(RefParse.class).setName(Ref.WORK_HEAD).call().get());
+        assertEquals(stageHead,
+                geogit.command(RefParse.class).setName(Ref.STAGE_HEAD).call().get());
+    }
+
     @Test
     public void testRebaseSquash() throws Exception {
         // Create the following revision graph
@@ -4,7 +4,11 @@
  */
 package org.geogit.test.integration;
 
+import java.util.Set;
+
+import org.geogit.api.NodeRef;
 import org.geogit.api.RevCommit;
+import org.geogit.api.plumbing.diff.DiffEntry;
 import org.geogit.api.plumbing.merge.CheckMergeScenarioOp;
 import org.geogit.api.plumbing.merge.MergeScenarioReport;
 import org.geogit.api.plumbing.merge.ReportMergeScenarioOp;
@@ -18,7 +22,9 @@ import org.junit.Test;
 import org.opengis.feature.Feature;
 import org.opengis.feature.simple.SimpleFeatureType;
 
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 
 public class ReportMergeConflictsOpTest extends RepositoryTestCase {
 
@@ -273,6 +279,27 @@ public class ReportMergeConflictsOpTest extends RepositoryTestCase {
         assertTrue(hasConflicts.booleanValue());
     }
 
+    @Test
+    public void testModifiedDefaultFeatureTypeInOneBranchEditedTreeInTheOther() throws Exception {
+        insertAndAdd(points1);
+        geogit.command(CommitOp.class).call();
+        geogit.command(BranchCreateOp.class).setName("TestBranch").call();
+        insertAndAdd(points2);
+        RevCommit masterCommit = geogit.command(CommitOp.class).call();
+        geogit.command(CheckoutOp.class).setSource("TestBranch").call();
+        geogit.getRepository().getWorkingTree().updateTypeTree(pointsName, modifiedPointsType);
+        insert(points1B);
+        geogit.command(AddOp.class).call();
+        RevCommit branchCommit = geogit.command(CommitOp.class).call();
+        MergeScenarioReport conflicts = geogit.command(ReportMergeScenarioOp.class)
+                .setMergeIntoCommit(masterCommit).setToMergeCommit(branchCommit).call();
+        // the tree was changed in both branches, so the change of its default feature type is a
+        // conflict even if only one of them made it
+        assertEquals(1, conflicts.getConflicts().size());
+        assertEquals(pointsName, conflicts.getConflicts().get(0).getPath());
+        assertEquals(1, conflicts.getUnconflicted().size());
+    }
+
     @Test
     public void testModifiedFeatureTypeInOneBranchEditedAttributeValueInTheOther() throws Exception {
         insertAndAdd(points1);
@@ -317,4 +344,32 @@ public class ReportMergeConflictsOpTest extends RepositoryTestCase {
         assertFalse(hasConflicts.booleanValue());
     }
 
+
+    @Test
+    public void testChangedTreesInBothBranches() throws Exception {
+        insertAndAdd(points1, points2, lines1);
+        geogit.command(CommitOp.class).call();
+        geogit.command(BranchCreateOp.class).setName("TestBranch").call();
+        insert(points1_modified);
+        delete(lines1);
+        geogit.command(AddOp.class).call();
+        RevCommit masterCommit = geogit.command(CommitOp.class).call();
+        geogit.command(CheckoutOp.class).setSource("TestBranch").call();
+        delete(points2);
+        insert(lines2);
+        geogit.command(AddOp.class).call();
+        RevCommit branchCommit = geogit.command(CommitOp.class).call();
+
+        MergeScenarioReport conflicts = geogit.command(ReportMergeScenarioOp.class)
+                .setMergeIntoCommit(masterCommit).setToMergeCommit(branchCommit).call();
+        assertEquals(0, conflicts.getConflicts().size());
+        assertEquals(0, conflicts.getMerged().size());
+        Set<String> unconflicted = Sets.newHashSet();
+        for (DiffEntry diff : conflicts.getUnconflicted()) {
+            unconflicted.add(diff.oldPath() == null ? diff.newPath() : diff.oldPath());
+        }
+        assertEquals(ImmutableSet.of(NodeRef.appendChild(pointsName, idP2),
+                NodeRef.appendChild(linesName, idL2)), unconflicted);
+    }
+
 }
@@ -0,0 +1,126 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.test.integration;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.geogit.api.ObjectId;
+import org.geogit.api.RevCommit;
+import org.geogit.api.RevObject;
+import org.geogit.api.plumbing.UpdateBitmapIndexOp;
+import org.geogit.remote.BinaryPackedObjects;
+import org.geogit.repository.PostOrderIterator;
+import org.geogit.storage.BitmapIndex;
+import org.geogit.storage.ReachabilityBitmap;
+import org.geogit.storage.memory.HeapDeduplicator;
+import org.junit.Test;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+public class UpdateBitmapIndexOpTest extends RepositoryTestCase {
+
+    private BitmapIndex index;
+
+    @Override
+    protected void setUpInternal() throws Exception {
+        index = repo.getBitmapIndex();
+    }
+
+    private Set<ObjectId> contentsOf(ObjectId commitId) {
+        Iterator<RevObject> contents = PostOrderIterator.contentsOf(ImmutableList.of(commitId),
+                repo.getObjectDatabase(), new HeapDeduplicator());
+        Set<ObjectId> ids = Sets.newHashSet();
+        while (contents.hasNext()) {
+            ids.add(contents.next().getId());
+        }
+        return ids;
+    }
+
+    private Set<ObjectId> bitmapOf(ObjectId commitId) {
+        Optional<ReachabilityBitmap> bitmap = index.getBitmap(commitId);
+        assertTrue(bitmap.isPresent());
+        Set<ObjectId> ids = Sets.newHashSet();
+        for (int i = bitmap.get().nextSetBit(0); i >= 0; i = bitmap.get().nextSetBit(i + 1)) {
+            ids.add(index.objectAt(i));
+        }
+        return ids;
+    }
+
+    @Test
+    public void testTipsAndCheckpoints() throws Exception {
+        List<RevCommit> commits = populate(true, points1, lines1, points2, lines2, points3);
+
+        int computed = geogit.command(UpdateBitmapIndexOp.class).setInterval(2).call()
+                .intValue();
+        // tip, plus depths 0, 2 and 4 (the latter being the tip itself)
+        assertEquals(3, computed);
+
+        for (int depth : new int[] { 0, 2, 4 }) {
+            ObjectId commitId = commits.get(depth).getId();
+            assertEquals(contentsOf(commitId), bitmapOf(commitId));
+        }
+        assertFalse(index.getBitmap(commits.get(1).getId()).isPresent());
+        assertFalse(index.getBitmap(commits.get(3).getId()).isPresent());
+
+        // nothing new to compute
+        assertEquals(0, geogit.command(UpdateBitmapIndexOp.class).setInterval(2).call()
+                .intValue());
+    }
+
+    @Test
+    public void testBitmapEncoding() throws Exception {
+        ReachabilityBitmap bitmap = new ReachabilityBitmap();
+        for (int i : new int[] { 0, 1, 2, 3, 200, 201, 70000, 1 << 20 }) {
+            bitmap.set(i);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bitmap.write(new DataOutputStream(bytes));
+        ReachabilityBitmap read = ReachabilityBitmap.read(new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(bitmap, read);
+        assertEquals(0, ReachabilityBitmap.read(
+                new DataInputStream(new ByteArrayInputStream(new byte[] { 0 }))).cardinality());
+    }
+
+    @Test
+    public void testPackedObjectsUseBitmaps() throws Exception {
+        List<RevCommit> commits = populate(true, points1, lines1, points2);
+        geogit.command(UpdateBitmapIndexOp.class).setInterval(1).call();
+
+        RevCommit have = commits.get(1);
+        RevCommit want = commits.get(2);
+
+        List<ObjectId> withBitmaps = Lists.newArrayList();
+        List<ObjectId> withoutBitmaps = Lists.newArrayList();
+        write(new BinaryPackedObjects(repo.getObjectDatabase(), index), want, have, withBitmaps);
+        write(new BinaryPackedObjects(repo.getObjectDatabase()), want, have, withoutBitmaps);
+
+        assertFalse(withBitmaps.isEmpty());
+        assertEquals(withoutBitmaps, withBitmaps);
+    }
+
+    private void write(BinaryPackedObjects packer, RevCommit want, RevCommit have,
+            final List<ObjectId> sent) throws Exception {
+        BinaryPackedObjects.Callback<Void> callback = new BinaryPackedObjects.Callback<Void>() {
+            @Override
+            public Void callback(RevObject object, Void state) {
+                sent.add(object.getId());
+                return null;
+            }
+        };
+        packer.write(new ByteArrayOutputStream(), ImmutableList.of(want.getId()),
+                ImmutableList.of(have.getId()), Sets.<ObjectId> newHashSet(), callback, false,
+                new HeapDeduplicator());
+    }
+}
@@ -0,0 +1,101 @@
+/* Copyright (c) 2013 OpenPlans. All rights reserved.
+ * This code is licensed under the BSD New License, available at the root
+ * application directory.
+ */
+package org.geogit.test.integration;
+
+import java.util.Set;
+
+import org.geogit.api.Node;
+import org.geogit.api.ObjectId;
+import org.geogit.api.RevCommit;
+import org.geogit.api.RevTree;
+import org.geogit.api.plumbing.FindSpatialTreeIndex;
+import org.geogit.api.plumbing.RevObjectParse;
+import org.geogit.api.plumbing.UpdateSpatialTreeIndexOp;
+import org.geogit.api.porcelain.CommitOp;
+import org.geogit.storage.HilbertRTree;
+import org.junit.Test;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.vividsolutions.jts.geom.Envelope;
+
+public class UpdateSpatialTreeIndexOpTest extends RepositoryTestCase {
+
+    @Override
+    protected void setUpInternal() throws Exception {
+    }
+
+    private Optional<HilbertRTree> indexOf(RevCommit commit, String typeTreePath) {
+        RevTree tree = geogit.command(RevObjectParse.class)
+                .setRefSpec(commit.getId().toString() + ":" + typeTreePath).call(RevTree.class)
+                .get();
+        return geogit.command(FindSpatialTreeIndex.class).setTreeId(tree.getId()).call();
+    }
+
+    private Set<String> query(HilbertRTree index, Envelope bounds) {
+        Set<String> names = Sets.newHashSet();
+        for (Node node : ImmutableSet.copyOf(index.query(bounds, null))) {
+            names.add(node.getName());
+        }
+        return names;
+    }
+
+    @Test
+    public void testBuildAndUpdate() throws Exception {
+        insertAndAdd(points1, points2, points3, lines1);
+        RevCommit first = geogit.command(CommitOp.class).call();
+        // below the default minimum size
+        assertFalse(indexOf(first, pointsName).isPresent());
+
+        // only the points tree holds 3 features
+        assertEquals(Integer.valueOf(1), geogit.command(UpdateSpatialTreeIndexOp.class)
+                .setRootTree(first.getTreeId()).setMinSize(3).call());
+        assertEquals(Integer.valueOf(0), geogit.command(UpdateSpatialTreeIndexOp.class)
+                .setRootTree(first.getTreeId()).setMinSize(3).call());
+
+        HilbertRTree index = indexOf(first, pointsName).get();
+        assertEquals(3, index.size());
+        assertEquals(ImmutableSet.of(idP2), query(index, new Envelope(1.5, 2.5, 1.5, 2.5)));
+
+        insertAndAdd(points1_modified, lines2);
+        deleteAndAdd(points3);
+        RevCommit second = geogit.command(CommitOp.class).call();
+
+        // derived from the previous version of the index
+        assertEquals(Integer.valueOf(2), geogit.command(UpdateSpatialTreeIndexOp.class)
+                .setRootTree(second.getTreeId()).setPreviousRootTree(first.getTreeId())
+                .setMinSize(2).call());
+        index = indexOf(second, pointsName).get();
+        assertEquals(2, index.size());
+        assertEquals(ImmutableSet.of(idP1, idP2), query(index, new Envelope(0, 5, 0, 5)));
+        assertEquals(ImmutableSet.of(idP1), query(index, new Envelope(0.5, 1.5, 1.5, 2.5)));
+        assertTrue(query(index, new Envelope(2.5, 3.5, 2.5, 3.5)).isEmpty());
+
+        // the index of the first version was pruned, the lines tree was not indexed before
+        assertFalse(indexOf(first, pointsName).isPresent());
+        assertEquals(2, indexOf(second, linesName).get().size());
+    }
+
+    @Test
+    public void testCommitDoesNotIndex() throws Exception {
+        insertAndAdd(points1, points2, points3);
+        RevCommit first = geogit.command(CommitOp.class).call();
+        assertEquals(Integer.valueOf(1), geogit.command(UpdateSpatialTreeIndexOp.class)
+                .setRootTree(first.getTreeId()).setMinSize(3).call());
+
+        insertAndAdd(points1_modified);
+        RevCommit second = geogit.command(CommitOp.class).call();
+        // indexes are only built on request
+        assertFalse(indexOf(second, pointsName).isPresent());
+        assertTrue(indexOf(first, pointsName).isPresent());
+    }
+
+    @Test
+    public void testNullRootTree() throws Exception {
+        assertEquals(Integer.valueOf(0), geogit.command(UpdateSpatialTreeIndexOp.class)
+                .setRootTree(ObjectId.NULL).call());
+    }
+}
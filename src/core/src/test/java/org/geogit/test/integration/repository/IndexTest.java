@@ -452,4 +452,34 @@ public class IndexTest extends RepositoryTestCase {
         geogit.command(AddOp.class).setUpdateOnly(false).call();
         assertTrue(index.findStaged(pointsName).isPresent());
     }
+
+    @Test
+    public void testStageMultipleNestedTrees() throws Exception {
+        WorkingTree workingTree = geogit.getRepository().getWorkingTree();
+        final String nestedPoints = appendChild("nested", pointsName);
+        final String nestedLines = appendChild("nested", linesName);
+        workingTree.insert(pointsName, points1);
+        workingTree.insert(nestedPoints, points2);
+        workingTree.insert(nestedPoints, points3);
+        workingTree.insert(nestedLines, lines1);
+        workingTree.insert(appendChild(nestedLines, "deeper"), lines2);
+
+        geogit.command(AddOp.class).call();
+
+        assertEquals(workingTree.getTree().getId(), index.getTree().getId());
+        assertTrue(index.findStaged(appendChild(nestedPoints, idP3)).isPresent());
+        assertTrue(index.findStaged(appendChild(appendChild(nestedLines, "deeper"), idL2))
+                .isPresent());
+
+        workingTree.delete(nestedLines);
+        workingTree.delete(pointsName, idP1);
+        workingTree.insert(nestedPoints, points1);
+
+        geogit.command(AddOp.class).call();
+
+        assertEquals(workingTree.getTree().getId(), index.getTree().getId());
+        assertFalse(index.findStaged(nestedLines).isPresent());
+        assertFalse(index.findStaged(appendChild(pointsName, idP1)).isPresent());
+        assertTrue(index.findStaged(appendChild(nestedPoints, idP1)).isPresent());
+    }
 }
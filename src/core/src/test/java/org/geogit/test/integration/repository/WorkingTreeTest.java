@@ -20,14 +20,20 @@ import org.geogit.api.plumbing.FindTreeChild;
 import org.geogit.api.plumbing.diff.DiffEntry;
 import org.geogit.repository.WorkingTree;
 import org.geogit.test.integration.RepositoryTestCase;
+import org.geotools.filter.text.cql2.CQL;
 import org.geotools.util.NullProgressListener;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.opengis.feature.Feature;
 import org.opengis.feature.type.Name;
+import org.opengis.filter.Filter;
 
 import com.google.common.base.Optional;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.Multimap;
 
 /**
  *
@@ -409,6 +415,98 @@ public class WorkingTreeTest extends RepositoryTestCase {
         assertNotNull(changes);
     }
 
+    @Test
+    public void testInsertCollectionInBatches() throws Exception {
+        // more features than fit in a single batch of the insert pipeline
+        List<Feature> featureList = new LinkedList<Feature>();
+        for (int i = 0; i < 2500; i++) {
+            featureList.add(feature(pointsType, "Points." + i, "StringProp_" + i,
+                    new Integer(i), "POINT(" + (i % 50) + " " + (i / 50) + ")"));
+        }
+
+        List<Node> targetList = new LinkedList<Node>();
+        workTree.insert(pointsName, featureList.iterator(), LISTENER, targetList,
+                featureList.size());
+
+        assertEquals(featureList.size(), targetList.size());
+        for (int i = 0; i < featureList.size(); i++) {
+            Node node = targetList.get(i);
+            assertEquals("Points." + i, node.getName());
+            assertEquals(node.getObjectId(), workTree.findUnstaged(
+                    appendChild(pointsName, node.getName())).get().getObjectId());
+        }
+        final ObjectId tree = workTree.getTree().getId();
+
+        // inserting the same features again leaves the working tree unchanged
+        workTree.insert(pointsName, featureList.iterator(), LISTENER, null, null);
+        assertEquals(tree, workTree.getTree().getId());
+    }
+
+    @Test
+    public void testUpdateMultipleTrees() throws Exception {
+        workTree.insert(pointsName, points1);
+        final String nestedPath = appendChild("nested", linesName);
+
+        Multimap<String, Feature> inserts = ArrayListMultimap.create();
+        inserts.putAll(pointsName, ImmutableList.of(points2, points3));
+        inserts.put(linesName, lines1);
+        inserts.put(nestedPath, lines2);
+        Multimap<String, String> deletes = ImmutableMultimap.of(pointsName, idP1, linesName,
+                "Lines.NotPresent");
+
+        workTree.update(inserts, deletes, LISTENER);
+
+        assertFalse(workTree.findUnstaged(appendChild(pointsName, idP1)).isPresent());
+        assertTrue(workTree.findUnstaged(appendChild(pointsName, idP2)).isPresent());
+        assertTrue(workTree.findUnstaged(appendChild(pointsName, idP3)).isPresent());
+        assertTrue(workTree.findUnstaged(appendChild(linesName, idL1)).isPresent());
+        assertTrue(workTree.findUnstaged(appendChild(nestedPath, idL2)).isPresent());
+
+        // same working tree as with separate inserts and deletes
+        final ObjectId batched = workTree.getTree().getId();
+        workTree.delete(pointsName);
+        workTree.delete(linesName);
+        workTree.delete("nested");
+        workTree.insert(pointsName, points1);
+        workTree.insert(pointsName, ImmutableList.of(points2, points3).iterator(), LISTENER,
+                null, null);
+        workTree.delete(pointsName, idP1);
+        workTree.insert(linesName, lines1);
+        workTree.insert(nestedPath, lines2);
+        assertEquals(batched, workTree.getTree().getId());
+    }
+
+    @Test
+    public void testDeleteByFilter() throws Exception {
+        // enough features for the tree to be split into buckets
+        List<Feature> featureList = new LinkedList<Feature>();
+        for (int i = 0; i < 2500; i++) {
+            featureList.add(feature(pointsType, "Points." + i, "StringProp_" + i,
+                    new Integer(i), "POINT(" + (i % 50) + " " + (i / 50) + ")"));
+        }
+        final String[] filters = { "BBOX(pp, 10, 10, 20, 20)",
+                "BBOX(pp, 10, 10, 20, 20) AND ip < 800", "ip >= 2400",
+                "INTERSECTS(pp, POLYGON((0 0, 30 0, 0 30, 0 0)))" };
+        for (String cql : filters) {
+            workTree.delete(pointsName);
+            workTree.insert(pointsName, featureList.iterator(), LISTENER, null, null);
+
+            Filter filter = CQL.toFilter(cql);
+            long expected = 0;
+            for (Feature feature : featureList) {
+                expected += filter.evaluate(feature) ? 1 : 0;
+            }
+            assertTrue(cql, expected > 0);
+            assertEquals(cql, expected, workTree.delete(pointsName, filter));
+
+            for (Feature feature : featureList) {
+                String path = appendChild(pointsName, feature.getIdentifier().getID());
+                assertEquals(cql + ": " + path, !filter.evaluate(feature), workTree
+                        .findUnstaged(path).isPresent());
+            }
+        }
+    }
+
     @Test
     public void testInsertMultipleFeatureTypes() throws Exception {
         List<Feature> featureList = new LinkedList<Feature>();
@@ -12,8 +12,10 @@ import static com.google.common.collect.Iterators.filter;
 import static com.google.common.collect.Iterators.transform;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.logging.Logger;
@@ -26,14 +28,18 @@ import org.geogit.api.CommandLocator;
 import org.geogit.api.FeatureBuilder;
 import org.geogit.api.Node;
 import org.geogit.api.NodeRef;
+import org.geogit.api.ObjectId;
 import org.geogit.api.Ref;
 import org.geogit.api.RevFeature;
 import org.geogit.api.RevObject;
 import org.geogit.api.RevTree;
+import org.geogit.api.plumbing.FindSpatialTreeIndex;
 import org.geogit.api.plumbing.FindTreeChild;
 import org.geogit.api.plumbing.LsTreeOp;
 import org.geogit.api.plumbing.LsTreeOp.Strategy;
+import org.geogit.api.plumbing.ResolveTreeish;
 import org.geogit.api.plumbing.RevObjectParse;
+import org.geogit.storage.HilbertRTree;
 import org.geogit.storage.NodePathStorageOrder;
 import org.geotools.data.FeatureReader;
 import org.geotools.factory.CommonFactoryFinder;
@@ -58,6 +64,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.vividsolutions.jts.geom.Envelope;
 
@@ -84,6 +91,8 @@ class GeogitFeatureReader<T extends FeatureType, F extends Feature> implements F
     private static class Stats implements Predicate<Bounded> {
         public int featureHits, featureMisses, treeHits, treeMisses, bucketHits, bucketMisses;
 
+        public int indexHits, indexMisses;
+
         private Envelope bounds;
 
         public Stats(Envelope bounds) {
@@ -97,6 +106,8 @@ class GeogitFeatureReader<T extends FeatureType, F extends Feature> implements F
             sb.append("Features: ").append(featureHits).append('/').append(featureMisses)
                     .append('\n');
             sb.append("Buckets: ").append(bucketHits).append('/').append(bucketMisses).append('\n');
+            sb.append("Index nodes: ").append(indexHits).append('/').append(indexMisses)
+                    .append('\n');
             return sb.toString();
         }
 
@@ -189,9 +200,23 @@ class GeogitFeatureReader<T extends FeatureType, F extends Feature> implements F
             Iterator<FeatureId> featureIds = getSortedFidsInNaturalOrder((Id) filter);
             featureRefs = filter(transform(featureIds, idToRef), notNull());
         } else {
-            featureRefs = commandLocator.command(LsTreeOp.class)
-                    .setStrategy(Strategy.FEATURES_ONLY).setReference(typeTreeRefSpec)
-                    .setBoundsFilter(refBoundsFilter).call();
+            Optional<HilbertRTree> spatialIndex = Optional.absent();
+            // indexes are kept per tree id, so they apply to whatever ref the tree was read from
+            if (!queryBounds.isNull()) {
+                spatialIndex = commandLocator.command(FindSpatialTreeIndex.class)
+                        .setTreeId(parentTree.get().getId()).call();
+            }
+            if (spatialIndex.isPresent()
+                    && !queryBounds.contains(spatialIndex.get().getBounds())) {
+                final ObjectId typeMetadataId = typeTreeMetadataId(commandLocator, branchRef,
+                        typeTreePath);
+                featureRefs = queryIndex(spatialIndex.get(), typeTreePath, typeMetadataId,
+                        queryBounds, refBoundsFilter);
+            } else {
+                featureRefs = commandLocator.command(LsTreeOp.class)
+                        .setStrategy(Strategy.FEATURES_ONLY).setReference(typeTreeRefSpec)
+                        .setBoundsFilter(refBoundsFilter).call();
+            }
         }
 
         final boolean filterSupportedByRefs = Filter.INCLUDE.equals(filter)
@@ -261,6 +286,56 @@ class GeogitFeatureReader<T extends FeatureType, F extends Feature> implements F
         return featureRefs;
     }
 
+    /**
+     * @return the metadata id of the feature type tree, which its features inherit unless they
+     *         have their own
+     */
+    private static ObjectId typeTreeMetadataId(final CommandLocator commandLocator,
+            final String refSpec, final String typeTreePath) {
+        Optional<ObjectId> rootTreeId = commandLocator.command(ResolveTreeish.class)
+                .setTreeish(refSpec).call();
+        if (!rootTreeId.isPresent()) {
+            return ObjectId.NULL;
+        }
+        Optional<RevTree> rootTree = commandLocator.command(RevObjectParse.class)
+                .setObjectId(rootTreeId.get()).call(RevTree.class);
+        if (!rootTree.isPresent()) {
+            return ObjectId.NULL;
+        }
+        Optional<NodeRef> typeTreeRef = commandLocator.command(FindTreeChild.class)
+                .setParent(rootTree.get()).setChildPath(typeTreePath).setIndex(true).call();
+        return typeTreeRef.isPresent() ? typeTreeRef.get().getMetadataId() : ObjectId.NULL;
+    }
+
+    /**
+     * Finds the features intersecting the query bounds through the spatial index of the feature
+     * type tree, returning them in the same order as the tree would.
+     */
+    private Iterator<NodeRef> queryIndex(final HilbertRTree spatialIndex,
+            final String typeTreePath, final ObjectId typeMetadataId, final Envelope queryBounds,
+            final Predicate<Bounded> refBoundsFilter) {
+
+        HilbertRTree.Query query = spatialIndex.query(queryBounds, refBoundsFilter);
+        List<Node> nodes = Lists.newArrayList(query);
+        if (stats != null) {
+            stats.indexHits += query.nodeHits();
+            stats.indexMisses += query.nodeMisses();
+        }
+        final Comparator<String> storageOrder = new NodePathStorageOrder();
+        Collections.sort(nodes, new Comparator<Node>() {
+            @Override
+            public int compare(Node o1, Node o2) {
+                return storageOrder.compare(o1.getName(), o2.getName());
+            }
+        });
+        return transform(nodes.iterator(), new Function<Node, NodeRef>() {
+            @Override
+            public NodeRef apply(Node node) {
+                return new NodeRef(node, typeTreePath, node.getMetadataId().or(typeMetadataId));
+            }
+        });
+    }
+
     private Iterator<FeatureId> getSortedFidsInNaturalOrder(Id filter) {
 
         final Set<Identifier> identifiers = filter.getIdentifiers();
@@ -24,12 +24,14 @@ import org.geotools.data.store.ContentEntry;
 import org.geotools.data.store.ContentFeatureStore;
 import org.geotools.data.store.ContentState;
 import org.geotools.data.store.FeatureIteratorIterator;
+import org.geotools.factory.CommonFactoryFinder;
 import org.geotools.factory.Hints;
 import org.geotools.feature.FeatureCollection;
 import org.geotools.feature.FeatureIterator;
 import org.geotools.feature.FeatureReaderIterator;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.filter.identity.FeatureIdVersionedImpl;
+import org.geotools.filter.spatial.ReprojectingFilterVisitor;
 import org.geotools.filter.visitor.SimplifyingFilterVisitor;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.util.NullProgressListener;
@@ -39,6 +41,8 @@ import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.Name;
 import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+import org.opengis.filter.Id;
 import org.opengis.filter.identity.FeatureId;
 
 import com.google.common.base.Function;
@@ -382,6 +386,19 @@ class GeogitFeatureStore extends ContentFeatureStore {
             return;
         }
 
+        if (!(filter instanceof Id)) {
+            // evaluated against the type tree, loading only the features the filter's bounds
+            // can't tell about
+            final SimpleFeatureType nativeType = delegate.getNativeType();
+            if (nativeType.getCoordinateReferenceSystem() != null) {
+                FilterFactory2 factory = CommonFactoryFinder.getFilterFactory2();
+                filter = (Filter) filter.accept(new ReprojectingFilterVisitor(factory,
+                        nativeType), null);
+            }
+            workingTree.delete(typeTreePath, filter);
+            return;
+        }
+
         Iterator<SimpleFeature> featureIterator = featureIterator(filter);
         Iterator<String> affectedFeaturePaths = Iterators.transform(featureIterator,
                 new Function<SimpleFeature, String>() {
@@ -24,8 +24,14 @@ import java.util.Map;
 import java.util.Set;
 
 import org.geogit.api.NodeRef;
+import org.geogit.api.ObjectId;
+import org.geogit.api.Ref;
+import org.geogit.api.plumbing.FindSpatialTreeIndex;
+import org.geogit.api.plumbing.FindTreeChild;
 import org.geogit.api.plumbing.LsTreeOp;
 import org.geogit.api.plumbing.LsTreeOp.Strategy;
+import org.geogit.api.plumbing.ResolveTreeish;
+import org.geogit.api.plumbing.UpdateSpatialTreeIndexOp;
 import org.geogit.api.porcelain.CommitOp;
 import org.geogit.test.integration.RepositoryTestCase;
 import org.geotools.data.Query;
@@ -322,6 +328,31 @@ public class GeoGitFeatureSourceTest extends RepositoryTestCase {
 
     }
 
+    @Test
+    public void testGetFeaturesBBoxUsingSpatialIndex() throws Exception {
+        ObjectId rootTreeId = geogit.command(ResolveTreeish.class).setTreeish(Ref.WORK_HEAD)
+                .call().get();
+        assertEquals(Integer.valueOf(2), geogit.command(UpdateSpatialTreeIndexOp.class)
+                .setRootTree(rootTreeId).setMinSize(1).call());
+        NodeRef pointsTree = geogit.command(FindTreeChild.class).setParent(
+                geogit.getRepository().getTree(rootTreeId)).setChildPath(pointsName).call().get();
+        assertTrue(geogit.command(FindSpatialTreeIndex.class)
+                .setTreeId(pointsTree.getNode().getObjectId()).call().isPresent());
+
+        final String geomName = pointsType.getGeometryDescriptor().getLocalName();
+        Filter filter = ff.bbox(geomName, 1.5, 1.5, 3.5, 3.5, null);
+        Set<List<Object>> actual = Sets.newHashSet();
+        for (SimpleFeature f : toList(pointsSource.getFeatures(new Query(pointsName, filter)))) {
+            actual.add(f.getAttributes());
+        }
+        Set<List<Object>> expected = ImmutableSet.of(((SimpleFeature) points2).getAttributes(),
+                ((SimpleFeature) points3).getAttributes());
+        assertEquals(expected, actual);
+
+        filter = ff.bbox(geomName, 10, 10, 20, 20, null);
+        assertTrue(toList(pointsSource.getFeatures(new Query(pointsName, filter))).isEmpty());
+    }
+
     @Test
     public void testFeatureIdsAreVersioned() throws IOException {
         SimpleFeatureCollection collection = pointsSource.getFeatures(Query.ALL);
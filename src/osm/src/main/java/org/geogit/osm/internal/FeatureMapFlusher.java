@@ -4,17 +4,12 @@
  */
 package org.geogit.osm.internal;
 
-import java.util.Iterator;
-import java.util.List;
-import java.util.Set;
-
 import org.geogit.repository.WorkingTree;
 import org.geotools.util.NullProgressListener;
-import org.opengis.feature.Feature;
 import org.opengis.feature.simple.SimpleFeature;
-import org.opengis.util.ProgressListener;
 
 import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableMultimap;
 
 /**
  * A buffer that wraps a multimap to store features, that flushes when a certain limit is reached.
@@ -49,23 +44,14 @@ public class FeatureMapFlusher {
 
     }
 
-    private void flush(String path) {
-        Set<SimpleFeature> features = map.get(path);
-        if (!features.isEmpty()) {
-            Iterator<? extends Feature> iterator = features.iterator();
-            ProgressListener listener = new NullProgressListener();
-            List<org.geogit.api.Node> insertedTarget = null;
-            Integer collectionSize = Integer.valueOf(features.size());
-            workTree.insert(path, iterator, listener, insertedTarget, collectionSize);
-        }
-    }
-
     /**
      * Inserts all features currently stored in this object into the working tree.
      */
     public void flushAll() {
-        for (String key : map.keySet()) {
-            flush(key);
+        if (!map.isEmpty()) {
+            // all trees are written back at once, with a single update of the working tree
+            workTree.update(map, ImmutableMultimap.<String, String> of(),
+                    new NullProgressListener());
         }
         count = 0;
         map.clear();
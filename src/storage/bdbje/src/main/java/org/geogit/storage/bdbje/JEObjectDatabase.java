@@ -10,6 +10,7 @@ import static com.sleepycat.je.OperationStatus.SUCCESS;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -17,6 +18,7 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -29,6 +31,7 @@ import javax.annotation.Nullable;
 import org.geogit.api.ObjectId;
 import org.geogit.api.RevObject;
 import org.geogit.storage.AbstractObjectDatabase;
+import org.geogit.storage.CopyableObjectDatabase;
 import org.geogit.storage.ObjectDatabase;
 import org.geogit.storage.ObjectSerializingFactory;
 import org.slf4j.Logger;
@@ -38,7 +41,9 @@ import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import com.google.common.collect.UnmodifiableIterator;
+import com.google.common.io.Files;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import com.sleepycat.collections.CurrentTransaction;
@@ -52,11 +57,12 @@ import com.sleepycat.je.LockMode;
 import com.sleepycat.je.OperationStatus;
 import com.sleepycat.je.Transaction;
 import com.sleepycat.je.TransactionConfig;
+import com.sleepycat.je.util.DbBackup;
 
 /**
  * @TODO: extract interface
  */
-public class JEObjectDatabase extends AbstractObjectDatabase implements ObjectDatabase {
+public class JEObjectDatabase extends AbstractObjectDatabase implements CopyableObjectDatabase {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(JEObjectDatabase.class);
 
@@ -235,6 +241,103 @@ public class JEObjectDatabase extends AbstractObjectDatabase implements ObjectDa
         return SUCCESS == status;
     }
 
+    @Override
+    public boolean isEmpty() {
+        Preconditions.checkState(isOpen(), "database is not open");
+        DatabaseEntry key = new DatabaseEntry();
+        DatabaseEntry data = new DatabaseEntry();
+        // tell db not to retrieve data
+        data.setPartial(0, 0, true);
+
+        Transaction transaction = txn == null ? null : txn.getTransaction();
+        Cursor cursor = objectDb.openCursor(transaction, CursorConfig.READ_UNCOMMITTED);
+        try {
+            return SUCCESS != cursor.getFirst(key, data, LockMode.READ_UNCOMMITTED);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Flushes this environment and copies its log files over those of the target's environment,
+     * which is closed while copying and reopened afterwards. The copy happens within a
+     * {@link DbBackup} so that the log cleaner doesn't delete the files being copied.
+     */
+    @Override
+    public synchronized boolean copyTo(ObjectDatabase target) throws IOException {
+        Preconditions.checkState(isOpen(), "database is not open");
+        if (!(target instanceof JEObjectDatabase)) {
+            return false;
+        }
+        final JEObjectDatabase targetDb = (JEObjectDatabase) target;
+        if (targetDb.envProvider == null) {
+            // an environment given at construction time can't be reopened
+            return false;
+        }
+        Preconditions.checkArgument(targetDb.isEmpty(), "target database is not empty");
+
+        final Environment environment = getEnvironment();
+        // writes the deferred write database and checkpoints the environment
+        environment.sync();
+        final File home = environment.getHome();
+        final File targetHome = targetDb.getEnvironment().getHome();
+        LOGGER.debug("Copying object database from {} to {}", home, targetHome);
+
+        DbBackup backup = new DbBackup(environment);
+        backup.startBackup();
+        targetDb.close();
+        try {
+            File[] targetLogs = targetHome.listFiles();
+            if (targetLogs != null) {
+                for (File log : targetLogs) {
+                    if (log.getName().endsWith(".jdb") && !log.delete()) {
+                        throw new IOException("Can't delete " + log.getAbsolutePath());
+                    }
+                }
+            }
+            for (String log : backup.getLogFilesInBackupSet()) {
+                Files.copy(new File(home, log), new File(targetHome, log));
+            }
+        } finally {
+            backup.endBackup();
+            targetDb.open();
+        }
+        return true;
+    }
+
+    /**
+     * Looks up the given ids in key order through a single cursor, which is cheaper than a random
+     * lookup per id on large batches.
+     */
+    @Override
+    public Set<ObjectId> existing(final Iterable<ObjectId> ids) {
+        List<ObjectId> sorted = Lists.newArrayList(ids);
+        Collections.sort(sorted);
+
+        Set<ObjectId> existing = Sets.newHashSet();
+        if (sorted.isEmpty()) {
+            return existing;
+        }
+        DatabaseEntry key = new DatabaseEntry(new byte[ObjectId.NUM_BYTES]);
+        DatabaseEntry data = new DatabaseEntry();
+        // tell db not to retrieve data
+        data.setPartial(0, 0, true);
+
+        Transaction transaction = txn == null ? null : txn.getTransaction();
+        Cursor cursor = objectDb.openCursor(transaction, CursorConfig.READ_UNCOMMITTED);
+        try {
+            for (ObjectId id : sorted) {
+                id.getRawValue(key.getData());
+                if (SUCCESS == cursor.getSearchKey(key, data, LockMode.READ_UNCOMMITTED)) {
+                    existing.add(id);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return existing;
+    }
+
     @Override
     protected InputStream getRawInternal(final ObjectId id, final boolean failIfNotFound) {
         Preconditions.checkNotNull(id, "id");
@@ -155,6 +155,21 @@ public class JEStagingDatabase implements ObjectDatabase, StagingDatabase {
         return exists;
     }
 
+    @Override
+    public Set<ObjectId> existing(Iterable<ObjectId> ids) {
+        Set<ObjectId> existing = new HashSet<ObjectId>(stagingDb.existing(ids));
+        List<ObjectId> missing = new ArrayList<ObjectId>();
+        for (ObjectId id : ids) {
+            if (!existing.contains(id)) {
+                missing.add(id);
+            }
+        }
+        if (!missing.isEmpty()) {
+            existing.addAll(repositoryDb.existing(missing));
+        }
+        return existing;
+    }
+
     @Override
     public List<ObjectId> lookUp(String partialId) {
         Set<ObjectId> lookUp = new HashSet<ObjectId>(stagingDb.lookUp(partialId));
@@ -8,6 +8,7 @@ package org.geogit.storage.bdbje;
 import org.geogit.storage.DeduplicationService;
 import org.geogit.storage.ObjectDatabase;
 import org.geogit.storage.StagingDatabase;
+import org.geogit.storage.fs.SpillingDeduplicationService;
 
 import com.google.inject.AbstractModule;
 import com.google.inject.Scopes;
@@ -22,8 +23,10 @@ public class JEStorageModule extends AbstractModule {
         // BDB JE bindings for the different kinds of databases
         bind(ObjectDatabase.class).to(JEObjectDatabase.class).in(Scopes.SINGLETON);
         bind(StagingDatabase.class).to(JEStagingDatabase.class).in(Scopes.SINGLETON);
-        bind(DeduplicationService.class).to(BDBJEDeduplicationService.class).in(Scopes.SINGLETON);
-        
+        // off heap, spilling to disk past its memory budget; BDBJEDeduplicationService remains
+        // available to modules that override this binding
+        bind(DeduplicationService.class).to(SpillingDeduplicationService.class).in(
+                Scopes.SINGLETON);
 
         // this module's specific. Used by the JE*Databases to set up the db environment
         // A new instance of each db
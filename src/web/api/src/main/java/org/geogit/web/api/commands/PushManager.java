@@ -5,9 +5,12 @@
 package org.geogit.web.api.commands;
 
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import org.geogit.api.GeoGIT;
 import org.geogit.api.ObjectId;
@@ -15,10 +18,16 @@ import org.geogit.api.Ref;
 import org.geogit.api.RevCommit;
 import org.geogit.api.RevObject;
 import org.geogit.api.SymRef;
+import org.geogit.api.plumbing.CreateDeduplicator;
 import org.geogit.api.plumbing.RefParse;
+import org.geogit.api.plumbing.UpdateBitmapIndexOp;
 import org.geogit.api.plumbing.UpdateRef;
+import org.geogit.remote.ConnectivityCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
 
 /**
  * Provides a safety net for remote pushes. This class keeps track of all objects that are being
@@ -26,16 +35,33 @@ import com.google.common.base.Optional;
  * in the Index database. If every object is successfully transfered, a message will be sent to the
  * PushManager to transfer all of those objects to the repository database. This prevents the
  * repository from getting corrupted if a push fails halfway through.
- * 
+ * <p>
+ * The objects pushed over each connection are validated as they are received by a
+ * {@link ConnectivityCheck}, and the ref update is rejected if any of them was corrupted or if the
+ * history of the pushed commit is incomplete.
  */
 public class PushManager {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(PushManager.class);
+
+    /**
+     * Time after which the check of a connection that hasn't been used is released, e.g. because
+     * the client went away in the middle of a push
+     */
+    private static final long CHECK_EXPIRY_MILLIS = TimeUnit.HOURS.toMillis(1);
+
     private Map<String, List<ObjectId>> incomingData;
 
+    private Map<String, ConnectivityCheck> connectivityChecks;
+
+    private Map<String, Long> checkAccessTimes;
+
     private static PushManager instance = new PushManager();
 
     private PushManager() {
         incomingData = new HashMap<String, List<ObjectId>>();
+        connectivityChecks = new HashMap<String, ConnectivityCheck>();
+        checkAccessTimes = new HashMap<String, Long>();
     }
 
     /**
@@ -50,10 +76,12 @@ public class PushManager {
      * 
      * @param ipAddress the remote machine that is pushing objects
      */
-    public void connectionBegin(String ipAddress) {
+    public synchronized void connectionBegin(String ipAddress) {
         if (incomingData.containsKey(ipAddress)) {
             incomingData.remove(ipAddress);
         }
+        releaseConnectivityCheck(ipAddress);
+        releaseExpiredConnectivityChecks(System.currentTimeMillis());
         if (incomingData.size() > 0) {
             // Fail?
         }
@@ -68,9 +96,28 @@ public class PushManager {
      * 
      * @param geogit the geogit of the local repository
      * @param ipAddress the remote machine that is pushing objects
+     * @throws IllegalStateException if a corrupted object was pushed, or objects in the history of
+     *         {@code newCommit} are missing, in which case the ref is not updated
      */
-    public void connectionSucceeded(GeoGIT geogit, String ipAddress, String refspec,
-            ObjectId newCommit) {
+    public synchronized void connectionSucceeded(GeoGIT geogit, String ipAddress,
+            String refspec, ObjectId newCommit) {
+        ConnectivityCheck check = connectivityChecks.remove(ipAddress);
+        checkAccessTimes.remove(ipAddress);
+        if (check != null) {
+            try {
+                Set<ObjectId> missing = check.missing(ImmutableList.of(newCommit));
+                if (!missing.isEmpty()) {
+                    throw new IllegalStateException(missing.size()
+                            + " objects in the history of " + newCommit + " are missing, like "
+                            + missing.iterator().next());
+                }
+            } catch (IllegalStateException e) {
+                incomingData.remove(ipAddress);
+                throw e;
+            } finally {
+                check.release();
+            }
+        }
         // Add objects to the repository
         if (incomingData.containsKey(ipAddress)) {
             List<ObjectId> objectsToMove = incomingData.remove(ipAddress);
@@ -98,6 +145,7 @@ public class PushManager {
             }
 
             geogit.command(UpdateRef.class).setName(refName).setNewValue(newCommit).call();
+            updateBitmaps(geogit);
         } else {
             throw new RuntimeException("Tried to end a connection that didn't exist.");
         }
@@ -111,7 +159,7 @@ public class PushManager {
      * @return {@code true} if the object has already been pushed and is being tracked by the
      *         {@code PushManager}
      */
-    public boolean alreadyPushed(String ipAddress, ObjectId oid) {
+    public synchronized boolean alreadyPushed(String ipAddress, ObjectId oid) {
         if (incomingData.containsKey(ipAddress)) {
             return incomingData.get(ipAddress).contains(oid);
         }
@@ -125,7 +173,7 @@ public class PushManager {
      * @param ipAddress the remote machine that is pushing objects
      * @param oid the id of the object
      */
-    public void addObject(String ipAddress, ObjectId oid) {
+    public synchronized void addObject(String ipAddress, ObjectId oid) {
         if (incomingData.containsKey(ipAddress)) {
             incomingData.get(ipAddress).add(oid);
         } else {
@@ -133,4 +181,61 @@ public class PushManager {
                     "Tried to push an object without first opening a connection.");
         }
     }
+
+    /**
+     * Returns the check validating the objects pushed from the given address, to be given to
+     * {@link org.geogit.remote.BinaryPackedObjects#ingest} as they're received. The check is
+     * performed when the connection {@link #connectionSucceeded succeeds}. Checks that haven't been
+     * used for a while are released.
+     * 
+     * @param geogit the geogit of the local repository
+     * @param ipAddress the remote machine that is pushing objects
+     * @return the connectivity check for the connection
+     */
+    public synchronized ConnectivityCheck connectivityCheck(GeoGIT geogit, String ipAddress) {
+        final long now = System.currentTimeMillis();
+        releaseExpiredConnectivityChecks(now);
+        checkAccessTimes.put(ipAddress, Long.valueOf(now));
+        ConnectivityCheck check = connectivityChecks.get(ipAddress);
+        if (check == null) {
+            check = new ConnectivityCheck(geogit.getRepository().getObjectDatabase(), geogit
+                    .command(CreateDeduplicator.class).call());
+            connectivityChecks.put(ipAddress, check);
+        }
+        return check;
+    }
+
+    /**
+     * Computes the reachability bitmaps of the pushed commits, used to serve fetches from this
+     * repository. The push has succeeded by then, so failing to compute them is only logged.
+     */
+    private void updateBitmaps(GeoGIT geogit) {
+        try {
+            geogit.command(UpdateBitmapIndexOp.class).call();
+        } catch (RuntimeException e) {
+            LOGGER.warn("Unable to update the reachability bitmaps", e);
+        }
+    }
+
+    private void releaseExpiredConnectivityChecks(long now) {
+        Iterator<Map.Entry<String, Long>> it = checkAccessTimes.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            if (now - entry.getValue().longValue() > CHECK_EXPIRY_MILLIS) {
+                it.remove();
+                ConnectivityCheck check = connectivityChecks.remove(entry.getKey());
+                if (check != null) {
+                    check.release();
+                }
+            }
+        }
+    }
+
+    private void releaseConnectivityCheck(String ipAddress) {
+        checkAccessTimes.remove(ipAddress);
+        ConnectivityCheck check = connectivityChecks.remove(ipAddress);
+        if (check != null) {
+            check.release();
+        }
+    }
 }
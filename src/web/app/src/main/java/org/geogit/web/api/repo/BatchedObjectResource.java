@@ -14,6 +14,7 @@ import org.geogit.api.GeoGIT;
 import org.geogit.api.ObjectId;
 import org.geogit.api.plumbing.CreateDeduplicator;
 import org.geogit.remote.BinaryPackedObjects;
+import org.geogit.remote.BinaryPackedObjects.Format;
 import org.geogit.repository.Repository;
 import org.geogit.storage.Deduplicator;
 import org.geogit.storage.memory.HeapDeduplicator;
@@ -38,6 +39,9 @@ public class BatchedObjectResource extends ServerResource {
 
             final List<ObjectId> want = new ArrayList<ObjectId>();
             final List<ObjectId> have = new ArrayList<ObjectId>();
+            String requestedFormat = null;
+            long batchBytes = BinaryPackedObjects.DEFAULT_BATCH_BYTES;
+            boolean reportProgress = false;
 
             if (messageJson.isJsonObject()) {
                 final JsonObject message = messageJson.getAsJsonObject();
@@ -63,15 +67,35 @@ public class BatchedObjectResource extends ServerResource {
                         have.add(ObjectId.valueOf(e.getAsJsonPrimitive().getAsString()));
                     }
                 }
+                if (message.has(BinaryPackedObjects.FORMAT_PARAM)
+                        && message.get(BinaryPackedObjects.FORMAT_PARAM).isJsonPrimitive()) {
+                    requestedFormat = message.get(BinaryPackedObjects.FORMAT_PARAM)
+                            .getAsString();
+                }
+                if (message.has(BinaryPackedObjects.BATCH_BYTES_PARAM)
+                        && message.get(BinaryPackedObjects.BATCH_BYTES_PARAM).isJsonPrimitive()) {
+                    batchBytes = message.get(BinaryPackedObjects.BATCH_BYTES_PARAM).getAsLong();
+                }
+                if (message.has(BinaryPackedObjects.PROGRESS_PARAM)
+                        && message.get(BinaryPackedObjects.PROGRESS_PARAM).isJsonPrimitive()) {
+                    reportProgress = message.get(BinaryPackedObjects.PROGRESS_PARAM)
+                            .getAsBoolean();
+                }
             }
+            final Format format = Format.negotiate(requestedFormat);
 
             final GeoGIT ggit = (GeoGIT) getApplication().getContext().getAttributes()
                     .get("geogit");
             final Repository repository = ggit.getRepository();
             final Deduplicator deduplicator = ggit.command(CreateDeduplicator.class).call();
 
-            return new BinaryPackedObjectsRepresentation(new BinaryPackedObjects(
-                    repository.getObjectDatabase()), want, have, deduplicator);
+            final BinaryPackedObjects packer = new BinaryPackedObjects(
+                    repository.getObjectDatabase(), repository.getBitmapIndex());
+            packer.setBatchLimits(Math.max(1L, batchBytes),
+                    BinaryPackedObjects.DEFAULT_BATCH_OBJECTS);
+            packer.setReportProgress(reportProgress);
+
+            return new BinaryPackedObjectsRepresentation(packer, want, have, deduplicator, format);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -79,6 +103,9 @@ public class BatchedObjectResource extends ServerResource {
 
     private static final MediaType PACKED_OBJECTS = new MediaType("application/x-geogit-packed");
 
+    private static final MediaType FRAMED_PACKED_OBJECTS = new MediaType(
+            BinaryPackedObjects.FRAMED_MEDIA_TYPE);
+
     private class BinaryPackedObjectsRepresentation extends OutputRepresentation {
         private final BinaryPackedObjects packer;
 
@@ -88,9 +115,12 @@ public class BatchedObjectResource extends ServerResource {
 
 		private Deduplicator deduplicator;
 
+        private final Format format;
+
         public BinaryPackedObjectsRepresentation(BinaryPackedObjects packer, List<ObjectId> want,
-                List<ObjectId> have, Deduplicator deduplicator) {
-            super(PACKED_OBJECTS);
+                List<ObjectId> have, Deduplicator deduplicator, Format format) {
+            super(format.isFramed() ? FRAMED_PACKED_OBJECTS : PACKED_OBJECTS);
+            this.format = format;
             this.want = want;
             this.have = have;
             this.packer = packer;
@@ -100,7 +130,7 @@ public class BatchedObjectResource extends ServerResource {
         @Override
         public void write(OutputStream out) throws IOException {
         	try {
-        		packer.write(out, want, have, false, deduplicator);
+        		packer.write(out, want, have, false, deduplicator, format);
         	} finally {
         		deduplicator.release();
         	}
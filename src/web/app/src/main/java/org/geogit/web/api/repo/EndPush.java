@@ -4,9 +4,6 @@
  */
 package org.geogit.web.api.repo;
 
-import java.io.IOException;
-import java.io.Writer;
-
 import org.geogit.api.GeoGIT;
 import org.geogit.api.ObjectId;
 import org.geogit.api.Ref;
@@ -15,52 +12,59 @@ import org.geogit.web.api.commands.PushManager;
 import org.restlet.data.ClientInfo;
 import org.restlet.data.Form;
 import org.restlet.data.MediaType;
-import org.restlet.representation.WriterRepresentation;
+import org.restlet.data.Status;
+import org.restlet.representation.Representation;
+import org.restlet.representation.StringRepresentation;
+import org.restlet.representation.Variant;
 import org.restlet.resource.ServerResource;
 
 import com.google.common.base.Optional;
 
+/**
+ * Ends a push, updating the pushed ref. If the push is aborted the response has an error status,
+ * so the client knows the ref wasn't updated.
+ */
 public class EndPush extends ServerResource {
     {
-        getVariants().add(new EndPushRepresentation());
+        getVariants().add(new Variant(MediaType.TEXT_PLAIN));
     }
 
-    private class EndPushRepresentation extends WriterRepresentation {
-        public EndPushRepresentation() {
-            super(MediaType.TEXT_PLAIN);
-        }
+    @Override
+    protected Representation get(Variant variant) {
+        ClientInfo info = getRequest().getClientInfo();
+        GeoGIT ggit = (GeoGIT) getApplication().getContext().getAttributes().get("geogit");
+        Form options = getRequest().getResourceRef().getQueryAsForm();
 
-        @Override
-        public void write(Writer w) throws IOException {
-            ClientInfo info = getRequest().getClientInfo();
-            GeoGIT ggit = (GeoGIT) getApplication().getContext().getAttributes().get("geogit");
-            Form options = getRequest().getResourceRef().getQueryAsForm();
+        // make a combined ip address to handle requests from multiple machines in the same
+        // external network.
+        // e.g.: ext.ern.al.IP.int.ern.al.IP
+        String ipAddress = info.getAddress() + "." + options.getFirstValue("internalIp", "");
 
-            // make a combined ip address to handle requests from multiple machines in the same
-            // external network.
-            // e.g.: ext.ern.al.IP.int.ern.al.IP
-            String ipAddress = info.getAddress() + "." + options.getFirstValue("internalIp", "");
+        String refspec = options.getFirstValue("refspec", null);
+        ObjectId oid = ObjectId.valueOf(options.getFirstValue("objectId",
+                ObjectId.NULL.toString()));
+        ObjectId originalRefValue = ObjectId.valueOf(options.getFirstValue("originalRefValue",
+                ObjectId.NULL.toString()));
 
-            String refspec = options.getFirstValue("refspec", null);
-            ObjectId oid = ObjectId.valueOf(options.getFirstValue("objectId",
-                    ObjectId.NULL.toString()));
-            ObjectId originalRefValue = ObjectId.valueOf(options.getFirstValue("originalRefValue",
-                    ObjectId.NULL.toString()));
+        Optional<Ref> currentRef = ggit.command(RefParse.class).setName(refspec).call();
 
-            Optional<Ref> currentRef = ggit.command(RefParse.class).setName(refspec).call();
-
-            if (currentRef.isPresent() && !currentRef.get().getObjectId().equals(ObjectId.NULL)
-                    && !currentRef.get().getObjectId().equals(originalRefValue)) {
-                // Abort push
-                w.write("Push aborted for address: " + ipAddress
-                        + ". The ref was changed during push.");
-                w.flush();
-            } else {
-                PushManager pushManager = PushManager.get();
-                pushManager.connectionSucceeded(ggit, ipAddress, refspec, oid);
-                w.write("Push succeeded for address: " + ipAddress);
-                w.flush();
-            }
+        if (currentRef.isPresent() && !currentRef.get().getObjectId().equals(ObjectId.NULL)
+                && !currentRef.get().getObjectId().equals(originalRefValue)) {
+            // Abort push
+            setStatus(Status.CLIENT_ERROR_CONFLICT);
+            return new StringRepresentation("Push aborted for address: " + ipAddress
+                    + ". The ref was changed during push.", MediaType.TEXT_PLAIN);
+        }
+        PushManager pushManager = PushManager.get();
+        try {
+            pushManager.connectionSucceeded(ggit, ipAddress, refspec, oid);
+        } catch (IllegalStateException e) {
+            // the pushed objects failed the connectivity check
+            setStatus(Status.CLIENT_ERROR_BAD_REQUEST);
+            return new StringRepresentation("Push aborted for address: " + ipAddress + ". "
+                    + e.getMessage(), MediaType.TEXT_PLAIN);
         }
+        return new StringRepresentation("Push succeeded for address: " + ipAddress,
+                MediaType.TEXT_PLAIN);
     }
 }
@@ -9,6 +9,9 @@ import java.io.InputStream;
 
 import org.geogit.api.GeoGIT;
 import org.geogit.remote.BinaryPackedObjects;
+import org.geogit.web.api.commands.PushManager;
+import org.restlet.data.ClientInfo;
+import org.restlet.data.Form;
 import org.restlet.data.MediaType;
 import org.restlet.representation.Representation;
 import org.restlet.representation.StringRepresentation;
@@ -23,7 +26,17 @@ public class SendObjectResource extends ServerResource {
         final BinaryPackedObjects unpacker = new BinaryPackedObjects(ggit.getRepository()
                 .getObjectDatabase());
 
-        unpacker.ingest(input);
+        ClientInfo info = getRequest().getClientInfo();
+        Form options = getRequest().getResourceRef().getQueryAsForm();
+        String internalIp = options.getFirstValue("internalIp");
+        if (internalIp == null) {
+            // older clients don't identify the push connection, leave the objects unchecked
+            unpacker.ingest(input);
+        } else {
+            // same combined ip address as BeginPush and EndPush
+            String ipAddress = info.getAddress() + "." + internalIp;
+            unpacker.ingest(input, PushManager.get().connectivityCheck(ggit, ipAddress));
+        }
         return new StringRepresentation("Ingested", MediaType.TEXT_PLAIN);
     }
 }
@@ -19,6 +19,7 @@ import org.geogit.api.GeoGIT;
 import org.geogit.api.ObjectId;
 import org.geogit.api.plumbing.CreateDeduplicator;
 import org.geogit.remote.BinaryPackedObjects;
+import org.geogit.remote.BinaryPackedObjects.Format;
 import org.geogit.repository.Repository;
 import org.geogit.storage.Deduplicator;
 import org.geogit.storage.memory.HeapDeduplicator;
@@ -76,6 +77,9 @@ public class BatchedObjectResource extends Finder {
 
             final List<ObjectId> want = new ArrayList<ObjectId>();
             final List<ObjectId> have = new ArrayList<ObjectId>();
+            String requestedFormat = null;
+            long batchBytes = BinaryPackedObjects.DEFAULT_BATCH_BYTES;
+            boolean reportProgress = false;
 
             if (messageJson.isJsonObject()) {
                 final JsonObject message = messageJson.getAsJsonObject();
@@ -101,18 +105,40 @@ public class BatchedObjectResource extends Finder {
                         have.add(ObjectId.valueOf(e.getAsJsonPrimitive().getAsString()));
                     }
                 }
+                if (message.has(BinaryPackedObjects.FORMAT_PARAM)
+                        && message.get(BinaryPackedObjects.FORMAT_PARAM).isJsonPrimitive()) {
+                    requestedFormat = message.get(BinaryPackedObjects.FORMAT_PARAM)
+                            .getAsString();
+                }
+                if (message.has(BinaryPackedObjects.BATCH_BYTES_PARAM)
+                        && message.get(BinaryPackedObjects.BATCH_BYTES_PARAM).isJsonPrimitive()) {
+                    batchBytes = message.get(BinaryPackedObjects.BATCH_BYTES_PARAM).getAsLong();
+                }
+                if (message.has(BinaryPackedObjects.PROGRESS_PARAM)
+                        && message.get(BinaryPackedObjects.PROGRESS_PARAM).isJsonPrimitive()) {
+                    reportProgress = message.get(BinaryPackedObjects.PROGRESS_PARAM)
+                            .getAsBoolean();
+                }
             }
+            final Format format = Format.negotiate(requestedFormat);
 
             final GeoGIT ggit = getGeogit(getRequest()).get();
             final Repository repository = ggit.getRepository();
             final Deduplicator deduplicator = ggit.command(CreateDeduplicator.class).call();
 
             BinaryPackedObjects packer = new BinaryPackedObjects(repository.getIndex()
-                    .getDatabase());
-            getResponse().setEntity(new RevObjectBinaryRepresentation(packer, want, have, deduplicator));
+                    .getDatabase(), repository.getBitmapIndex());
+            packer.setBatchLimits(Math.max(1L, batchBytes),
+                    BinaryPackedObjects.DEFAULT_BATCH_OBJECTS);
+            packer.setReportProgress(reportProgress);
+            getResponse().setEntity(
+                    new RevObjectBinaryRepresentation(packer, want, have, deduplicator, format));
         }
     }
 
+    private static final MediaType FRAMED_PACKED_OBJECTS = new MediaType(
+            BinaryPackedObjects.FRAMED_MEDIA_TYPE);
+
     private static class RevObjectBinaryRepresentation extends OutputRepresentation {
         private final BinaryPackedObjects packer;
 
@@ -122,13 +148,17 @@ public class BatchedObjectResource extends Finder {
 
 		private Deduplicator deduplicator;
 
+        private final Format format;
+
         public RevObjectBinaryRepresentation( //
                 BinaryPackedObjects packer, //
                 List<ObjectId> want, //
                 List<ObjectId> have, //
-                Deduplicator deduplicator) //
+                Deduplicator deduplicator, //
+                Format format) //
         {
-            super(MediaType.APPLICATION_OCTET_STREAM);
+            super(format.isFramed() ? FRAMED_PACKED_OBJECTS : MediaType.APPLICATION_OCTET_STREAM);
+            this.format = format;
             this.packer = packer;
             this.want = want;
             this.have = have;
@@ -138,7 +168,7 @@ public class BatchedObjectResource extends Finder {
         @Override
         public void write(OutputStream out) throws IOException {
         	try {
-        		packer.write(out, want, have, false, deduplicator);
+        		packer.write(out, want, have, false, deduplicator, format);
         	} finally {
         		deduplicator.release();
         	}
@@ -7,8 +7,6 @@ package org.geogit.rest.repository;
 
 import static org.geogit.rest.repository.GeogitResourceUtils.getGeogit;
 
-import java.io.IOException;
-import java.io.Writer;
 import java.util.List;
 
 import org.geogit.api.GeoGIT;
@@ -22,14 +20,18 @@ import org.restlet.data.Form;
 import org.restlet.data.MediaType;
 import org.restlet.data.Request;
 import org.restlet.data.Response;
+import org.restlet.data.Status;
+import org.restlet.resource.Representation;
 import org.restlet.resource.Resource;
+import org.restlet.resource.StringRepresentation;
 import org.restlet.resource.Variant;
 
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 
 /**
- *
+ * Ends a push, updating the pushed ref. If the push is aborted the response has an error status,
+ * so the client knows the ref wasn't updated.
  */
 public class EndPush extends Resource {
 
@@ -37,48 +39,48 @@ public class EndPush extends Resource {
     public void init(Context context, Request request, Response response) {
         super.init(context, request, response);
         List<Variant> variants = getVariants();
-        variants.add(new EndPushRepresentation());
+        variants.add(new Variant(MediaType.TEXT_PLAIN));
     }
 
-    private class EndPushRepresentation extends WriterRepresentation {
-        public EndPushRepresentation() {
-            super(MediaType.TEXT_PLAIN);
-        }
-
-        @Override
-        public void write(Writer w) throws IOException {
-            ClientInfo info = getRequest().getClientInfo();
-            Request request = getRequest();
-            Optional<GeoGIT> ggit = getGeogit(request);
-            Preconditions.checkState(ggit.isPresent());
-            Form options = getRequest().getResourceRef().getQueryAsForm();
+    @Override
+    public Representation getRepresentation(Variant variant) {
+        ClientInfo info = getRequest().getClientInfo();
+        Request request = getRequest();
+        Optional<GeoGIT> ggit = getGeogit(request);
+        Preconditions.checkState(ggit.isPresent());
+        Form options = getRequest().getResourceRef().getQueryAsForm();
 
-            // make a combined ip address to handle requests from multiple machines in the same
-            // external network.
-            // e.g.: ext.ern.al.IP.int.ern.al.IP
-            String ipAddress = info.getAddress() + "." + options.getFirstValue("internalIp", "");
+        // make a combined ip address to handle requests from multiple machines in the same
+        // external network.
+        // e.g.: ext.ern.al.IP.int.ern.al.IP
+        String ipAddress = info.getAddress() + "." + options.getFirstValue("internalIp", "");
 
-            String refspec = options.getFirstValue("refspec", null);
-            ObjectId oid = ObjectId.valueOf(options.getFirstValue("objectId",
-                    ObjectId.NULL.toString()));
-            ObjectId originalRefValue = ObjectId.valueOf(options.getFirstValue("originalRefValue",
-                    ObjectId.NULL.toString()));
+        String refspec = options.getFirstValue("refspec", null);
+        ObjectId oid = ObjectId.valueOf(options.getFirstValue("objectId",
+                ObjectId.NULL.toString()));
+        ObjectId originalRefValue = ObjectId.valueOf(options.getFirstValue("originalRefValue",
+                ObjectId.NULL.toString()));
 
-            Optional<Ref> currentRef = ggit.get().command(RefParse.class).setName(refspec).call();
+        Optional<Ref> currentRef = ggit.get().command(RefParse.class).setName(refspec).call();
 
-            if (currentRef.isPresent() && !currentRef.get().getObjectId().equals(ObjectId.NULL)
-                    && !currentRef.get().getObjectId().equals(originalRefValue)) {
-                // Abort push
-                w.write("Push aborted for address: " + ipAddress
-                        + ". The ref was changed during push.");
-                w.flush();
-            } else {
-                PushManager pushManager = PushManager.get();
-                pushManager.connectionSucceeded(ggit.get(), ipAddress, refspec, oid);
-                w.write("Push succeeded for address: " + ipAddress);
-                w.flush();
-            }
+        if (currentRef.isPresent() && !currentRef.get().getObjectId().equals(ObjectId.NULL)
+                && !currentRef.get().getObjectId().equals(originalRefValue)) {
+            // Abort push
+            getResponse().setStatus(Status.CLIENT_ERROR_CONFLICT);
+            return new StringRepresentation("Push aborted for address: " + ipAddress
+                    + ". The ref was changed during push.", MediaType.TEXT_PLAIN);
+        }
+        PushManager pushManager = PushManager.get();
+        try {
+            pushManager.connectionSucceeded(ggit.get(), ipAddress, refspec, oid);
+        } catch (IllegalStateException e) {
+            // the pushed objects failed the connectivity check
+            getResponse().setStatus(Status.CLIENT_ERROR_BAD_REQUEST);
+            return new StringRepresentation("Push aborted for address: " + ipAddress + ". "
+                    + e.getMessage(), MediaType.TEXT_PLAIN);
         }
+        return new StringRepresentation("Push succeeded for address: " + ipAddress,
+                MediaType.TEXT_PLAIN);
     }
 
 }
@@ -12,16 +12,14 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.Reader;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
+import java.util.HashSet;
+import java.util.Set;
 
 import org.geogit.api.GeoGIT;
 import org.geogit.api.ObjectId;
 import org.geogit.api.RepositoryFilter;
 import org.geogit.api.RevCommit;
-import org.geogit.api.plumbing.diff.DiffEntry;
-import org.geogit.api.porcelain.DiffOp;
+import org.geogit.api.plumbing.DiffTree;
 import org.geogit.remote.BinaryPackedChanges;
 import org.geogit.remote.FilteredDiffIterator;
 import org.geogit.repository.Repository;
@@ -78,7 +76,7 @@ public class FilteredChangesResource extends Finder {
                 final JsonParser parser = new JsonParser();
                 final JsonElement messageJson = parser.parse(body);
 
-                final List<ObjectId> tracked = new ArrayList<ObjectId>();
+                final Set<ObjectId> tracked = new HashSet<ObjectId>();
 
                 RepositoryFilter filter = new RepositoryFilter();
 
@@ -146,11 +144,11 @@ public class FilteredChangesResource extends Finder {
                     parent = commit.getParentIds().get(0);
                 }
 
-                Iterator<DiffEntry> changes = ggit.command(DiffOp.class)
-                        .setNewVersion(commit.getId()).setOldVersion(parent).setReportTrees(true)
-                        .call();
-                FilteredDiffIterator filteredChanges = new FilteredDiffIterator(changes,
-                        repository, filter) {
+                // with nothing tracked, the diff can skip whatever lies outside the filter
+                DiffTree changes = ggit.command(DiffTree.class).setOldVersion(parent.toString())
+                        .setNewVersion(commit.getId().toString()).setReportTrees(true);
+                FilteredDiffIterator filteredChanges = new FilteredDiffIterator(changes, repository,
+                        filter, tracked.isEmpty()) {
                     @Override
                     protected boolean trackingObject(ObjectId objectId) {
                         return tracked.contains(objectId);
@@ -12,7 +12,10 @@ import java.io.InputStream;
 
 import org.geogit.api.GeoGIT;
 import org.geogit.remote.BinaryPackedObjects;
+import org.geogit.web.api.commands.PushManager;
 import org.geoserver.rest.RestletException;
+import org.restlet.data.ClientInfo;
+import org.restlet.data.Form;
 import org.restlet.data.Status;
 import org.restlet.resource.Representation;
 import org.restlet.resource.Resource;
@@ -37,7 +40,17 @@ public class SendObjectResource extends Resource {
             final GeoGIT ggit = getGeogit(getRequest()).get();
             final BinaryPackedObjects unpacker = new BinaryPackedObjects(ggit.getRepository()
                     .getObjectDatabase());
-            unpacker.ingest(input);
+            ClientInfo info = getRequest().getClientInfo();
+            Form options = getRequest().getResourceRef().getQueryAsForm();
+            String internalIp = options.getFirstValue("internalIp");
+            if (internalIp == null) {
+                // older clients don't identify the push connection, leave the objects unchecked
+                unpacker.ingest(input);
+            } else {
+                // same combined ip address as BeginPush and EndPush
+                String ipAddress = info.getAddress() + "." + internalIp;
+                unpacker.ingest(input, PushManager.get().connectivityCheck(ggit, ipAddress));
+            }
 
         } catch (IOException e) {
             throw new RestletException(e.getMessage(), Status.SERVER_ERROR_INTERNAL, e);